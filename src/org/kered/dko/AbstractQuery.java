@@ -16,8 +16,11 @@ import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
 
 import org.kered.dko.Constants.DIRECTION;
+import org.kered.dko.Constants.SNAPSHOT_FORMAT;
 import org.kered.dko.Table.__Alias;
 import org.kered.dko.Table.__PrimaryKey;
 
@@ -57,6 +60,11 @@ public abstract class AbstractQuery<T extends Table> implements Query<T> {
 		return new InMemoryQuery<T>(this);
 	}
 
+	@Override
+	public Query<T> toColumnarMemory() {
+		return new ColumnarQuery<T>(this);
+	}
+
 	public AbstractQuery(final Class<? extends Table> type) {
 		this.ofType = (Class<T>) type;
 	}
@@ -690,12 +698,18 @@ public abstract class AbstractQuery<T extends Table> implements Query<T> {
 	}
 
 	@Override
-	public Iterable<T> snapshot() {
+	public Snapshot<T> snapshot() {
 		return new QuerySnapshot<T>(this);
 	}
 
 	@Override
-	public Iterable<T> snapshot(final File f) {
+	public Snapshot<T> snapshot(final File f) {
+		return new QuerySnapshot<T>(this, f);
+	}
+
+	@Override
+	public Snapshot<T> snapshot(final File f, final SNAPSHOT_FORMAT format) {
+		if (format == SNAPSHOT_FORMAT.MAPPED) return new MappedSnapshot<T>(this, f);
 		return new QuerySnapshot<T>(this, f);
 	}
 
@@ -751,6 +765,81 @@ public abstract class AbstractQuery<T extends Table> implements Query<T> {
 		return this;
 	}
 
+	@Override
+	public Query<T> cache(final long ttlMillis) {
+		return this;
+	}
+
+	@Override
+	public Query<T> index(final Field<?>... fields) {
+		return this;
+	}
+
+	@Override
+	public Chunks<T> chunks(final int size) {
+		return new Chunks<T>(this, size);
+	}
+
+	@Override
+	public Future<List<T>> asListAsync() {
+		return Async.submit(getDataSource(), new Callable<List<T>>() {
+			@Override
+			public List<T> call() {
+				return asList();
+			}
+		});
+	}
+
+	@Override
+	public Future<Long> countAsync() {
+		return Async.submit(getDataSource(), new Callable<Long>() {
+			@Override
+			public Long call() throws SQLException {
+				return count();
+			}
+		});
+	}
+
+	@Override
+	public Future<Integer> updateAsync() {
+		return Async.submit(getDataSource(), new Callable<Integer>() {
+			@Override
+			public Integer call() throws SQLException {
+				return update();
+			}
+		});
+	}
+
+	@Override
+	public RowStream<T> stream() {
+		return new RowStream<T>(this);
+	}
+
+	@Override
+	public Query<T> parallel(final int n) {
+		return this;
+	}
+
+	@Override
+	public Query<T> parallel(final int n, final boolean inPKOrder) {
+		return this;
+	}
+
+	@Override
+	public Query<T> fetchSize(final int n) {
+		return this;
+	}
+
+	@Override
+	public Query<T> readAhead(final int rows) {
+		return this;
+	}
+
+	@Override
+	public Query<T> withSeparately(final Field.FK<?>... fields) {
+		return with(fields);
+	}
+
 	@Override
 	public Iterator<T> iterator() {
 		// TODO Auto-generated method stub
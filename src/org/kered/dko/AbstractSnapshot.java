@@ -0,0 +1,98 @@
+package org.kered.dko;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * What's common to the {@code Snapshot} formats: incremental refreshes by a last-modified
+ * field, and the primary key handling both kinds of refresh need. &nbsp; Subclasses
+ * implement {@code refresh()} (finding the changed rows) and {@code apply()} (replacing
+ * them in the snapshot).
+ *
+ * @author Derek Anderson
+ */
+abstract class AbstractSnapshot<T extends Table> implements Snapshot<T> {
+
+	final Query<T> q;
+	private final Map<Field<?>,Object> newest = new HashMap<Field<?>,Object>();
+
+	AbstractSnapshot(final Query<T> q) {
+		this.q = q;
+	}
+
+	/**
+	 * Removes these rows from the snapshot and adds (or replaces, by primary key) these others.
+	 */
+	abstract void apply(Collection<T> deletes, Collection<T> upserts);
+
+	@Override
+	public synchronized long refresh(final Field<?> lastModified) {
+		pkFields();
+		if (!q.getSelectFields().contains(lastModified)) {
+			throw new IllegalArgumentException(lastModified +" isn't in this snapshot");
+		}
+		final Object since = newest.containsKey(lastModified) ? newest.get(lastModified) : newest(this, lastModified, null);
+		// "at or after" because rows can be modified within the same tick as the newest one we have
+		final List<T> rows = (since==null ? q : q.where(atOrAfter(lastModified, since))).asList();
+		if (!rows.isEmpty()) apply(Collections.<T>emptyList(), rows);
+		newest.put(lastModified, newest(rows, lastModified, since));
+		return rows.size();
+	}
+
+	/**
+	 * @return the primary key fields of this snapshot's table
+	 * @throws UnsupportedOperationException if it doesn't have one, or it wasn't selected
+	 */
+	List<Field<?>> pkFields() {
+		final Field.PK<?> pk = Util.getPK(q.getType());
+		final List<Field<?>> fields = pk==null ? null : pk.GET_FIELDS();
+		if (fields == null || fields.isEmpty() || !q.getSelectFields().containsAll(fields)) {
+			throw new UnsupportedOperationException("snapshots of "+ q.getType().getName()
+					+" can't be refreshed without its primary key");
+		}
+		return fields;
+	}
+
+	/**
+	 * @return the values of these fields of this row, to look it up by (numbers by value)
+	 */
+	static List<Object> key(final Table t, final List<Field<?>> fields) {
+		final List<Object> ret = new ArrayList<Object>(fields.size());
+		for (final Field<?> field : fields) {
+			final Object v = t.get(field);
+			ret.add(v==null ? null : Evaluator.key(v));
+		}
+		return ret;
+	}
+
+	/**
+	 * @return if every selected field of these rows is equal
+	 */
+	boolean sameValues(final Table a, final Table b) {
+		for (final Field<?> field : q.getSelectFields()) {
+			final Object av = a.get(field);
+			final Object bv = b.get(field);
+			if (av == null ? bv != null : !av.equals(bv)) return false;
+		}
+		return true;
+	}
+
+	private static Object newest(final Iterable<? extends Table> rows, final Field<?> field, final Object since) {
+		Object ret = since;
+		for (final Table t : rows) {
+			final Object v = t.get(field);
+			if (v != null && (ret == null || Evaluator.compare(v, ret) > 0)) ret = v;
+		}
+		return ret;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static <S> Condition atOrAfter(final Field<S> field, final Object v) {
+		return field.gte((S) v);
+	}
+
+}
@@ -0,0 +1,111 @@
+package org.kered.dko;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+import javax.sql.DataSource;
+
+/**
+ * Runs the asynchronous variants of the query and {@code Bulk} operations ({@code asListAsync()},
+ * {@code countAsync()}, {@code Bulk.insertAllAsync()}, etc.). &nbsp; Each call is submitted to
+ * an executor and returns a {@code Future}, so many independent queries can be in flight at
+ * once (each on its own connection).
+ * <p>
+ * The task runs with a copy of the calling thread's thread and thread-group {@code Context}s
+ * as they were when it was submitted (their data sources, schema overrides, etc.), without
+ * their transactions or units of work, so changes the calling thread makes afterwards don't
+ * reach it. &nbsp; But a connection can't be shared between threads, so calls made while the
+ * calling thread is in a transaction or unit of work on the operation's data source run
+ * immediately on the calling thread (within it) and return a completed future.
+ * <p>
+ * By default tasks run on a pool of {@code Constants.PROPERTY_ASYNC_THREADS} daemon threads.
+ * &nbsp; Any other executor can be plugged in with {@code setExecutor()}:
+ * <pre>  {@code Async.setExecutor(Executors.newVirtualThreadPerTaskExecutor());}</pre>
+ *
+ * @author Derek Anderson
+ */
+public class Async {
+
+	private static final Logger log = Logger.getLogger("org.kered.dko.Async");
+
+	private static volatile ExecutorService executor = null;
+
+	/**
+	 * Sets the executor asynchronous operations are submitted to. &nbsp; The previous executor
+	 * isn't shut down.
+	 * @param executor
+	 */
+	public static void setExecutor(final ExecutorService executor) {
+		if (executor == null) throw new IllegalArgumentException("executor can't be null");
+		Async.executor = executor;
+	}
+
+	/**
+	 * @return the executor asynchronous operations are submitted to
+	 */
+	public static ExecutorService getExecutor() {
+		ExecutorService ret = executor;
+		if (ret == null) {
+			synchronized (Async.class) {
+				if (executor == null) executor = createDefaultExecutor();
+				ret = executor;
+			}
+		}
+		return ret;
+	}
+
+	/**
+	 * Submits a task touching the given data source.
+	 * @param ds the data source the task uses (to detect transactions), or null
+	 * @param task
+	 * @return
+	 */
+	static <V> Future<V> submit(final DataSource ds, final Callable<V> task) {
+		if (ds != null && (Context.inTransaction(ds) || Context.getUnitOfWork(ds) != null)) {
+			final FutureTask<V> ret = new FutureTask<V>(task);
+			ret.run();
+			return ret;
+		}
+		final Context threadContext = Context.getThreadContext().copySettings();
+		final Context threadGroupContext = Context.getThreadGroupContext().copySettings();
+		return getExecutor().submit(new Callable<V>() {
+			@Override
+			public V call() throws Exception {
+				return Context.callWithContexts(threadContext, threadGroupContext, task);
+			}
+		});
+	}
+
+	private static ExecutorService createDefaultExecutor() {
+		final AtomicInteger count = new AtomicInteger();
+		return Executors.newFixedThreadPool(parseThreads(), new ThreadFactory() {
+			@Override
+			public Thread newThread(final Runnable r) {
+				final Thread t = new Thread(r, "dko-async-"+ count.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	private static int parseThreads() {
+		final String s = System.getProperty(Constants.PROPERTY_ASYNC_THREADS);
+		if (s != null) {
+			try {
+				final int n = Integer.parseInt(s.trim());
+				if (n > 0) return n;
+			} catch (final NumberFormatException e) {
+				/* ignore */
+			}
+			log.warning("could not parse "+ Constants.PROPERTY_ASYNC_THREADS +"="+ s);
+		}
+		return 16;
+	}
+
+}
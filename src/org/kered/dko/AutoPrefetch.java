@@ -0,0 +1,252 @@
+package org.kered.dko;
+
+import java.sql.SQLException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.logging.Logger;
+
+import javax.sql.DataSource;
+
+import org.kered.dko.Field.FK;
+import org.kered.dko.persistence.FkPrefetch;
+import org.kered.dko.persistence.QueryExecution;
+
+/**
+ * Foreign keys DKO has learned to prefetch. &nbsp; The usage monitor counts, for every query
+ * call site (the line of code that created the query), how many of the objects it returned
+ * lazily followed each FK. &nbsp; When that's more than {@code getThreshold()} percent, later
+ * executions from the same call site prefetch the FK: with {@code .with(fk)} when the FK
+ * belongs to the query's own table (and the query is a plain select from it), or by batch
+ * loading it otherwise (see {@code Constants.PROPERTY_BATCH_FK_LOADING}). &nbsp; This is the
+ * FK counterpart of the select field optimizations, and is likewise turned off by
+ * {@code Context.enableSelectOptimizations(false)}. &nbsp; As it changes the SQL DKO sends,
+ * it's off unless turned on with {@code Constants.PROPERTY_AUTO_PREFETCH} or {@code setEnabled()}.
+ * <p>
+ * Decisions are kept in the persistence database (table {@code fk_prefetch}, one row per
+ * call site and FK). &nbsp; Review them with {@code getDecisions()} (each one links to the
+ * {@code QueryExecution} describing its call site) and pin them with {@code override()};
+ * overridden decisions are never changed automatically.
+ * <pre>  {@code for (FkPrefetch d : AutoPrefetch.getDecisions()) {
+ *     System.out.println(d.getFkName() +" "+ d.getStrategy() +" @ "+ d.getQueryExecutionIdFK().getDescription());
+ *   }}</pre>
+ *
+ * @author Derek Anderson
+ */
+public class AutoPrefetch {
+
+	private static final Logger log = Logger.getLogger("org.kered.dko.recommendations");
+
+	public static enum Strategy {
+		/** prefetch with a join ({@code .with(fk)}) */
+		WITH,
+		/** load the FK for every object of the batch the first time it's followed */
+		BATCH,
+		/** don't prefetch */
+		NONE
+	}
+
+	private static final long ONE_DAY = 1000*60*60*24;
+
+	private static volatile boolean enabled = "true".equals(System.getProperty(Constants.PROPERTY_AUTO_PREFETCH));
+	private static volatile int threshold = parseThreshold();
+
+	private static final Map<Class<? extends Table>,Map<String,FK<?>>> fksByName =
+			new HashMap<Class<? extends Table>,Map<String,FK<?>>>();
+
+	public static void setEnabled(final boolean enabled) {
+		AutoPrefetch.enabled = enabled;
+	}
+
+	public static boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * @param percent the percentage of a query's objects that must follow a FK for it to be prefetched
+	 */
+	public static void setThreshold(final int percent) {
+		if (percent < 0 || percent > 100) throw new IllegalArgumentException("threshold must be a percentage: "+ percent);
+		threshold = percent;
+	}
+
+	public static int getThreshold() {
+		return threshold;
+	}
+
+	/**
+	 * @return every learned or overridden decision, most recently seen first
+	 * @throws SQLException
+	 */
+	public static List<FkPrefetch> getDecisions() throws SQLException {
+		final DataSource ds = org.kered.dko.persistence.Util.getDS();
+		if (ds == null) return Collections.emptyList();
+		return FkPrefetch.ALL.use(ds)
+				.with(FkPrefetch.FK_QUERY_EXECUTION)
+				.orderBy(FkPrefetch.LAST_SEEN.desc())
+				.asList();
+	}
+
+	/**
+	 * @return the strategy of a decision returned by {@code getDecisions()}
+	 */
+	public static Strategy getStrategy(final FkPrefetch decision) {
+		return parse(decision.getStrategy());
+	}
+
+	/**
+	 * Pins a decision to a strategy. &nbsp; It takes effect the next time its query is run.
+	 * @param decision a decision returned by {@code getDecisions()}
+	 * @param strategy
+	 * @throws SQLException
+	 */
+	public static void override(final FkPrefetch decision, final Strategy strategy) throws SQLException {
+		final DataSource ds = org.kered.dko.persistence.Util.getDS();
+		if (ds == null) return;
+		decision.setStrategy(strategy.name())
+			.setOverridden(1)
+			.update(ds);
+	}
+
+	/**
+	 * Forgets every decision that hasn't been overridden.
+	 * @throws SQLException
+	 */
+	public static void reset() throws SQLException {
+		final DataSource ds = org.kered.dko.persistence.Util.getDS();
+		if (ds == null) return;
+		FkPrefetch.ALL.use(ds).where(FkPrefetch.OVERRIDDEN.isNull().or(FkPrefetch.OVERRIDDEN.eq(0))).delete();
+	}
+
+	/**
+	 * @return the decisions for a call site, keyed by {@code tableName(fk.referencing) +"."+ fk.name}
+	 */
+	static Map<String,FkPrefetch> getDecisions(final DataSource ds, final QueryExecution qe) {
+		final Map<String,FkPrefetch> ret = new HashMap<String,FkPrefetch>();
+		for (final FkPrefetch d : FkPrefetch.ALL.use(ds).where(FkPrefetch.QUERY_EXECUTION_ID.eq(qe.getId()))) {
+			ret.put(d.getTableName() +"."+ d.getFkName(), d);
+		}
+		return ret;
+	}
+
+	static String key(final FK<?> fk) {
+		return Util.getTableName(fk.referencing) +"."+ fk.name;
+	}
+
+	static Strategy parse(final String s) {
+		if (s == null) return Strategy.NONE;
+		try {
+			return Strategy.valueOf(s);
+		} catch (final IllegalArgumentException e) {
+			return Strategy.NONE;
+		}
+	}
+
+	/**
+	 * @return the FK of this table with this name, or null
+	 */
+	static FK<?> getFK(final Class<? extends Table> type, final String name) {
+		synchronized (fksByName) {
+			Map<String,FK<?>> fks = fksByName.get(type);
+			if (fks == null) {
+				fks = new HashMap<String,FK<?>>();
+				for (final java.lang.reflect.Field f : type.getFields()) {
+					if (!FK.class.isAssignableFrom(f.getType())) continue;
+					try {
+						final FK<?> fk = (FK<?>) f.get(null);
+						if (fk != null && fk.referencing == type) fks.put(fk.name, fk);
+					} catch (final IllegalAccessException e) {
+						/* ignore */
+					}
+				}
+				fksByName.put(type, fks);
+			}
+			return fks.get(name);
+		}
+	}
+
+	/**
+	 * Records what the objects of one execution did. &nbsp; FKs followed by more than the threshold
+	 * of objects are prefetched next time, those followed by less than half of it are not. &nbsp;
+	 * FKs that were prefetched with a join this time aren't followed lazily, so their decisions are kept.
+	 * @param decisions the existing decisions for this call site (new ones aren't added to it)
+	 * @param follows the number of objects that lazily followed each FK
+	 * @param canJoin if the query was simple enough to add joins to
+	 * @param type the query's type
+	 */
+	static void record(final DataSource ds, final QueryExecution qe, final Map<String,FkPrefetch> decisions,
+			final Map<FK<?>,Long> follows, final long objectCount, final boolean canJoin, final Class<? extends Table> type) {
+		final long now = System.currentTimeMillis();
+		for (final Entry<FK<?>, Long> e : follows.entrySet()) {
+			final FK<?> fk = e.getKey();
+			final int percent = (int) Math.min(100, e.getValue()*100/objectCount);
+			FkPrefetch d = decisions.get(key(fk));
+			final boolean isNew = d == null;
+			if (isNew) {
+				if (percent <= threshold) continue;
+				d = new FkPrefetch()
+					.setQueryExecutionIdFK(qe)
+					.setTableName(Util.getTableName(fk.referencing))
+					.setFkName(fk.name)
+					.setOverridden(0);
+			}
+			final boolean overridden = d.getOverridden()!=null && d.getOverridden()!=0;
+			final Strategy before = parse(d.getStrategy());
+			Strategy strategy = before;
+			if (!overridden) {
+				if (percent > threshold) {
+					strategy = canJoin && fk.referencing == type ? Strategy.WITH : Strategy.BATCH;
+				} else if (percent < threshold / 2) {
+					strategy = Strategy.NONE;
+				}
+			}
+			if (!isNew && strategy == before && d.getLastSeen()!=null && d.getLastSeen() > now - ONE_DAY) continue;
+			d.setStrategy(strategy.name())
+				.setFollowPercent(percent)
+				.setLastSeen(now);
+			try {
+				if (isNew) d.insert(ds);
+				else d.update(ds);
+			} catch (final SQLException x) {
+				x.printStackTrace();
+			}
+			if (strategy != before) {
+				log.info("The objects of the query created at "+ qe.getDescription() +" followed "
+						+ fk.referencing.getSimpleName() +"."+ fk.name +" "+ percent +"% of the time, so it will "
+						+ (strategy==Strategy.NONE ? "no longer be prefetched." : "be prefetched ("+ strategy +") from now on."));
+			}
+		}
+		// batch loaded FKs are still followed lazily, so if they weren't followed at all they're no longer needed
+		final Set<String> followed = new HashSet<String>();
+		for (final FK<?> fk : follows.keySet()) followed.add(key(fk));
+		for (final Entry<String, FkPrefetch> e : decisions.entrySet()) {
+			final FkPrefetch d = e.getValue();
+			if (followed.contains(e.getKey()) || parse(d.getStrategy()) != Strategy.BATCH) continue;
+			if (d.getOverridden()!=null && d.getOverridden()!=0) continue;
+			try {
+				d.setStrategy(Strategy.NONE.name()).setFollowPercent(0).setLastSeen(now).update(ds);
+			} catch (final SQLException x) {
+				x.printStackTrace();
+			}
+		}
+	}
+
+	private static int parseThreshold() {
+		final String s = System.getProperty(Constants.PROPERTY_AUTO_PREFETCH_THRESHOLD);
+		if (s != null) {
+			try {
+				final int percent = Integer.parseInt(s.trim());
+				if (percent >= 0 && percent <= 100) return percent;
+			} catch (final NumberFormatException e) {
+				/* ignore */
+			}
+			log.warning("could not parse "+ Constants.PROPERTY_AUTO_PREFETCH_THRESHOLD +"="+ s);
+		}
+		return 50;
+	}
+
+}
@@ -7,12 +7,16 @@ import java.sql.BatchUpdateException;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.SQLException;
+import java.sql.Statement;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.BitSet;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
 
 import javax.sql.DataSource;
 
@@ -47,7 +51,12 @@ public class Bulk {
 	private final DB_TYPE dbType;
 	private final int batchSize;
 	private long rateLimit = -1;
+	private boolean setBased = false;
+	private int setBasedMinRows = SET_BASED_MIN_ROWS;
+	private boolean setBasedOnDerby = false;
 	private static final int DEFAULT_BATCH_SIZE = 64;
+	private static final int SET_BASED_BATCH_SIZE = 8192;
+	private static final int SET_BASED_MIN_ROWS = 1024;
 
 	/**
 	 * Specify the target DataSource.
@@ -77,6 +86,50 @@ public class Bulk {
 		return this;
 	}
 
+	/**
+	 * Makes {@code updateAll()} and {@code deleteAll()} set-based. &nbsp; Instead of one
+	 * {@code update ... where pk=?} (or {@code delete}) per object, the objects (grouped by the
+	 * columns they changed, as usual) are loaded up to 8192 at a time into a temporary table
+	 * indexed on the primary key, which is applied with a single statement joining it to the
+	 * table: an {@code update ... from} on Postgres and SQL Server, a multi-table {@code update}
+	 * on MySQL, a {@code merge} on Oracle and HSQL, and correlated sub-queries elsewhere. &nbsp;
+	 * The database then plans one statement per chunk instead of one per row, which is much
+	 * faster for large numbers of rows. &nbsp; Chunks of fewer than 1024 rows (see
+	 * {@code setSetBasedMinRows()}) still use the batched statements, as does Derby unless
+	 * {@code setSetBasedOnDerby(true)} (its temporary tables can't be indexed). &nbsp;
+	 * The counts returned are the rows the database changed.
+	 * @param setBased
+	 * @return this
+	 */
+	public Bulk setSetBased(final boolean setBased) {
+		this.setBased = setBased;
+		return this;
+	}
+
+	/**
+	 * Sets the fewest rows a chunk needs for {@code setSetBased(true)} to apply it with one
+	 * statement (smaller chunks use the batched statements).
+	 * @param rows by default 1024
+	 * @return this
+	 */
+	public Bulk setSetBasedMinRows(final int rows) {
+		if (rows < 1) throw new IllegalArgumentException("rows must be positive: "+ rows);
+		setBasedMinRows = rows;
+		return this;
+	}
+
+	/**
+	 * Lets {@code setSetBased(true)} apply chunks with one statement on Derby too. &nbsp; Off by
+	 * default: Derby's temporary tables can't be indexed, so the statement joining to one is
+	 * quadratic in the chunk size.
+	 * @param setBasedOnDerby
+	 * @return this
+	 */
+	public Bulk setSetBasedOnDerby(final boolean setBasedOnDerby) {
+		this.setBasedOnDerby = setBasedOnDerby;
+		return this;
+	}
+
 	/**
 	 * Inserts all objects from the source iterable into the target DataSource. &nbsp;
 	 * On error aborts. &nbsp;
@@ -186,7 +239,7 @@ public class Bulk {
 			Updater<T> updater = updaters.get(key);
 			if (updater == null) {
 				//System.err.println("t.__NOSCO_UPDATED_VALUES: "+ t.__NOSCO_UPDATED_VALUES);
-				updater = new Updater<T>();
+				updater = new Updater<T>(setBased);
 				updaters.put(key, updater);
 			}
 			final boolean batchWentOut = updater.push(t);
@@ -209,8 +262,7 @@ public class Bulk {
 
 	private class Doer<T extends Table> {
 
-		@SuppressWarnings("unchecked")
-		private final T[] buffer = (T[]) new Table[batchSize];
+		private final T[] buffer;
 		private int pos = 0;
 		protected boolean init = false;
 		protected Field<?>[] fields;
@@ -224,6 +276,15 @@ public class Bulk {
 		RejectCallback<T> rc = null;
 		Class<? extends Table> clazz;
 
+		Doer() {
+			this(batchSize);
+		}
+
+		@SuppressWarnings("unchecked")
+		Doer(final int size) {
+			buffer = (T[]) new Table[size];
+		}
+
 		boolean push(final T t) throws SQLException {
 			buffer[pos++] = t;
 			if (pos == buffer.length) {
@@ -249,7 +310,14 @@ public class Bulk {
 					throw new RuntimeException(e);
 				}
 			}
-			executeBatch(0, pos);
+			final Object event = FlightRecorderEvents.begin(FlightRecorderEvents.Type.BULK_BATCH);
+			execute(pos);
+			if (EntityCache.isEnabled()) {
+				for (int i=0; i<pos; ++i) EntityCache.invalidate(buffer[i]);
+			}
+			ResultCache.invalidate(clazz);
+			Context.noteTableWrite(ds, clazz);
+			if (event!=null) FlightRecorderEvents.commit(event, getClass().getSimpleName(), clazz.getName(), (long) pos);
 			if (post != null) {
 				try {
 					final Object[] cba = (Object[]) Array.newInstance(clazz, pos);
@@ -266,6 +334,51 @@ public class Bulk {
 			pos = 0;
 		}
 
+		/**
+		 * Writes the first {@code n} buffered objects.
+		 */
+		protected void execute(final int n) throws SQLException {
+			executeBatch(0, n);
+		}
+
+		/**
+		 * Writes the first {@code n} buffered objects with one statement joining them (loaded
+		 * into a temporary table) to the table. &nbsp; The last {@code pkCount} fields must be
+		 * the primary key, and the others are the columns to update (if any, otherwise the
+		 * rows are deleted).
+		 */
+		@SuppressWarnings({ "unchecked", "rawtypes" })
+		protected void executeSetBased(final int n, final int pkCount) throws SQLException {
+			final List<T> rows = Arrays.asList(buffer).subList(0, n);
+			final List<Field<?>> allFields = Arrays.asList(fields);
+			final TemporaryTableFactory.DummyTableWithName<T> tmp = TemporaryTableFactory
+					.createTemporaryTable((Class) clazz, allFields, rows);
+			// derby can't index its temporary tables
+			if (dbType != DB_TYPE.DERBY) tmp.indexOn(allFields.subList(fields.length-pkCount, fields.length));
+			final SqlContext context = new SqlContext(dbType);
+			final String sql = setBasedSQL(clazz, tmp.getSQLName(dbType), fields, pkCount);
+			Statement stmt = null;
+			try {
+				tmp.__NOSCO_PRIVATE_preExecute(context, conn);
+				try {
+					stmt = conn.createStatement();
+					Util.log(sql, null);
+					count += stmt.executeUpdate(sql);
+				} finally {
+					try {
+						if (stmt != null) stmt.close();
+					} catch (final SQLException e) {
+						/* ignore */
+					}
+					tmp.__NOSCO_PRIVATE_postExecute(context, conn);
+				}
+				if (shouldCloseConn && !conn.getAutoCommit()) conn.commit();
+			} catch (final SQLException e) {
+				if (shouldCloseConn && !conn.getAutoCommit()) conn.rollback();
+				throw e;
+			}
+		}
+
 		private void executeBatch(final int start, final int end) throws SQLException, BatchUpdateException {
 			//System.err.println("executing batch of " + (end-start));
 			for (int i=start; i<end; ++i) {
@@ -349,6 +462,73 @@ public class Bulk {
 
 	}
 
+	/**
+	 * @return if these rows are worth loading into a temporary table (never on derby unless
+	 * asked for, whose temporary tables can't be indexed, so joining to them is quadratic)
+	 */
+	private boolean useSetBased(final boolean setBased, final int n) {
+		if (!setBased) return false;
+		if (dbType == DB_TYPE.DERBY && !setBasedOnDerby) return false;
+		return n >= setBasedMinRows;
+	}
+
+	/**
+	 * @return the statement applying the temporary table {@code tmpName} to the table: updating
+	 * the columns of all but the last {@code pkCount} fields, or deleting if there aren't any
+	 */
+	private String setBasedSQL(final Class<? extends Table> clazz, final String tmpName,
+			final Field<?>[] fields, final int pkCount) {
+		final String sep = dbType==DB_TYPE.SQLSERVER ? ".dbo." : ".";
+		final String schema = Context.getSchemaToUse(ds, Util.getSchemaName(clazz));
+		final String table = (schema==null || "".equals(schema) ? "" : schema+sep) + Util.getTableName(clazz);
+		final StringBuilder on = new StringBuilder();
+		for (int i=fields.length-pkCount; i<fields.length; ++i) {
+			if (on.length() > 0) on.append(" and ");
+			on.append("t.").append(fields[i].getSQL(dbType)).append("=tmp.").append(fields[i].NAME);
+		}
+		final int sets = fields.length - pkCount;
+		final StringBuilder sb = new StringBuilder();
+		if (sets == 0) {
+			// mysql and sql server don't allow an alias after the table name of a delete
+			final boolean named = dbType==DB_TYPE.MYSQL || dbType==DB_TYPE.SQLSERVER;
+			sb.append(named ? "delete t from " : "delete from ").append(table).append(" t where exists (select 1 from ");
+			sb.append(tmpName).append(" tmp where ").append(on).append(")");
+		} else if (dbType==DB_TYPE.POSTGRES) {
+			sb.append("update ").append(table).append(" t set ");
+			appendSets(sb, fields, sets, false);
+			sb.append(" from ").append(tmpName).append(" tmp where ").append(on);
+		} else if (dbType==DB_TYPE.SQLSERVER) {
+			sb.append("update t set ");
+			appendSets(sb, fields, sets, true);
+			sb.append(" from ").append(table).append(" t inner join ").append(tmpName).append(" tmp on ").append(on);
+		} else if (dbType==DB_TYPE.MYSQL) {
+			sb.append("update ").append(table).append(" t inner join ").append(tmpName).append(" tmp on ").append(on);
+			sb.append(" set ");
+			appendSets(sb, fields, sets, true);
+		} else if (dbType==DB_TYPE.ORACLE || dbType==DB_TYPE.HSQL) {
+			sb.append("merge into ").append(table).append(" t using ").append(tmpName).append(" tmp on (").append(on);
+			sb.append(") when matched then update set ");
+			appendSets(sb, fields, sets, true);
+		} else {
+			sb.append("update ").append(table).append(" t set ");
+			for (int i=0; i<sets; ++i) {
+				if (i > 0) sb.append(", ");
+				sb.append(fields[i].getSQL(dbType)).append("=(select tmp.").append(fields[i].NAME);
+				sb.append(" from ").append(tmpName).append(" tmp where ").append(on).append(")");
+			}
+			sb.append(" where exists (select 1 from ").append(tmpName).append(" tmp where ").append(on).append(")");
+		}
+		return sb.toString();
+	}
+
+	private void appendSets(final StringBuilder sb, final Field<?>[] fields, final int sets, final boolean qualified) {
+		for (int i=0; i<sets; ++i) {
+			if (i > 0) sb.append(", ");
+			if (qualified) sb.append("t.");
+			sb.append(fields[i].getSQL(dbType)).append("=tmp.").append(fields[i].NAME);
+		}
+	}
+
 	private class Inserter<T extends Table> extends Doer<T> {
 
 		public Inserter() {}
@@ -405,13 +585,28 @@ public class Bulk {
 	private class Updater<T extends Table> extends Doer<T> {
 
 		private BitSet values = null;
+		private final boolean setBased;
 
-		Updater() {}
+		Updater() {
+			this(false);
+		}
+
+		Updater(final boolean setBased) {
+			super(setBased ? SET_BASED_BATCH_SIZE : batchSize);
+			this.setBased = setBased;
+		}
 
 		public Updater(final BitSet values) {
+			this(false);
 			this.values  = values;
 		}
 
+		@Override
+		protected void execute(final int n) throws SQLException {
+			if (useSetBased(setBased, n)) executeSetBased(n, Util.getPK(clazz).GET_FIELDS().size());
+			else super.execute(n);
+		}
+
 		@Override
 		protected void init(final Table table) throws SQLException {
 			super.init(table);
@@ -472,7 +667,22 @@ public class Bulk {
 
 	private class Deleter<T extends Table> extends Doer<T> {
 
-		Deleter() {}
+		private final boolean setBased;
+
+		Deleter() {
+			this(false);
+		}
+
+		Deleter(final boolean setBased) {
+			super(setBased ? SET_BASED_BATCH_SIZE : batchSize);
+			this.setBased = setBased;
+		}
+
+		@Override
+		protected void execute(final int n) throws SQLException {
+			if (useSetBased(setBased, n)) executeSetBased(n, fields.length);
+			else super.execute(n);
+		}
 
 		@Override
 		protected void init(final Table table) throws SQLException {
@@ -634,7 +844,7 @@ public class Bulk {
 		long start = System.currentTimeMillis()-1;
 		long c = 0;
 		double lastCallback = System.currentTimeMillis() / 1000.0;
-		final Deleter<T> deleter = new Deleter<T>();
+		final Deleter<T> deleter = new Deleter<T>(setBased);
 		for (final T t : iterable) {
 			++c;
 			if (rateLimit>0 && c*1000/(System.currentTimeMillis()-start) > rateLimit) {
@@ -651,6 +861,62 @@ public class Bulk {
 		return deleter.count;
 	}
 
+	/**
+	 * Like {@code insertAll()}, but runs on the {@code Async} executor.
+	 * @param iterable
+	 * @return
+	 */
+	public <T extends Table> Future<Long> insertAllAsync(final Iterable<T> iterable) {
+		return Async.submit(ds, new Callable<Long>() {
+			@Override
+			public Long call() throws SQLException {
+				return insertAll(iterable);
+			}
+		});
+	}
+
+	/**
+	 * Like {@code updateAll()}, but runs on the {@code Async} executor.
+	 * @param iterable
+	 * @return
+	 */
+	public <T extends Table> Future<Long> updateAllAsync(final Iterable<T> iterable) {
+		return Async.submit(ds, new Callable<Long>() {
+			@Override
+			public Long call() throws SQLException {
+				return updateAll(iterable);
+			}
+		});
+	}
+
+	/**
+	 * Like {@code insertOrUpdateAll()}, but runs on the {@code Async} executor.
+	 * @param iterable
+	 * @return
+	 */
+	public <T extends Table> Future<Long> insertOrUpdateAllAsync(final Iterable<T> iterable) {
+		return Async.submit(ds, new Callable<Long>() {
+			@Override
+			public Long call() throws SQLException {
+				return insertOrUpdateAll(iterable);
+			}
+		});
+	}
+
+	/**
+	 * Like {@code deleteAll()}, but runs on the {@code Async} executor.
+	 * @param iterable
+	 * @return
+	 */
+	public <T extends Table> Future<Long> deleteAllAsync(final Iterable<T> iterable) {
+		return Async.submit(ds, new Callable<Long>() {
+			@Override
+			public Long call() throws SQLException {
+				return deleteAll(iterable);
+			}
+		});
+	}
+
 	/**
 	 * A callback interface for bulk load operations. &nbsp; Calls with the current
 	 * count of rows inserted, updated or deleted every {@code frequency} seconds
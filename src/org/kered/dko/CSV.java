@@ -101,8 +101,8 @@ public class CSV {
 	 */
 	public static <T extends Table> Iterable<T> read(final Class<T> cls, final Reader r) {
 		try {
-			final Constructor<T> constructor = (Constructor<T>) cls.getDeclaredConstructor(
-					new Field[0].getClass(), new Object[0].getClass(), Integer.TYPE, Integer.TYPE);
+			final Constructor<T> constructor = cls.getDeclaredConstructor(
+					Expression.Select[].class, new Object[0].getClass(), Integer.TYPE, Integer.TYPE);
 			constructor.setAccessible(true);
 			return new Iterable<T>() {
 				@Override
@@ -125,8 +125,8 @@ public class CSV {
 	 */
 	public static <T extends Table> Iterable<T> read(final Class<T> cls, final File f) {
 		try {
-			final Constructor<T> constructor = (Constructor<T>) cls.getDeclaredConstructor(
-					new Expression.Select[0].getClass(), new Object[0].getClass(), Integer.TYPE, Integer.TYPE);
+			final Constructor<T> constructor = cls.getDeclaredConstructor(
+					Expression.Select[].class, new Object[0].getClass(), Integer.TYPE, Integer.TYPE);
 			constructor.setAccessible(true);
 			return new Iterable<T>() {
 				@Override
@@ -0,0 +1,208 @@
+package org.kered.dko;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import org.kered.dko.Constants.DB_TYPE;
+import org.kered.dko.Field.PK;
+
+/**
+ * A scan of a query in chunks of at most {@code size} rows, returned by {@code Query.chunks(size)}.
+ * &nbsp; Each chunk is a separate query ordered by the table's primary key and starting
+ * after the last key of the previous chunk (keyset pagination: {@code where pk > ? order by pk}
+ * limited by {@code top()}). &nbsp; So no cursor is kept open between chunks and (outside of a
+ * transaction) the connection is returned after each one, and the cost of a chunk doesn't grow
+ * with how far into the table it is (unlike offsets). &nbsp; On Oracle, where {@code top()} is a
+ * {@code rownum} condition (applied before the order), chunks are instead read from the ordered
+ * query and its cursor closed after {@code size} rows.
+ * <p>
+ * A scan can be resumed by saving {@code getCheckpoint()} and passing it to {@code after()}:
+ * <pre>  {@code Chunks<Sale> chunks = Sale.ALL.where(Sale.YEAR.eq(2012)).chunks(10000).after(savedCheckpoint);
+ *   for (List<Sale> chunk : chunks) {
+ *     export(chunk);
+ *     savedCheckpoint = chunks.getCheckpoint();
+ *   }}</pre>
+ * The query may not be ordered (the primary key order is used) and its table must have a
+ * primary key. &nbsp; If it's limited with {@code top()}, the scan stops after that many rows,
+ * counting (when resumed with {@code after()}) the rows up to and including the checkpoint.
+ *
+ * @author Derek Anderson
+ */
+public class Chunks<T extends Table> implements Iterable<List<T>> {
+
+	/**
+	 * Called with each chunk by {@code forEachChunk()}.
+	 */
+	public static interface Handler<T extends Table> {
+		public void handle(List<T> chunk) throws SQLException;
+	}
+
+	private final Query<T> query;
+	private final int size;
+	private final Field<?>[] pkFields;
+	private final Object[] start;
+	private Object[] checkpoint;
+	// the query's own top(), across all chunks (0 for none)
+	private final long limit;
+	private final boolean orderAppliedAfterTop;
+
+	Chunks(final Query<T> query, final int size) {
+		this(query, size, null);
+	}
+
+	private Chunks(final Query<T> query, final int size, final Object[] start) {
+		if (size < 1) throw new IllegalArgumentException("chunk size must be positive: "+ size);
+		if (query.isOrdered()) {
+			throw new IllegalArgumentException("chunks are ordered by the primary key, so the query can't have an order");
+		}
+		final PK<T> pk = Util.getPK(query.getType());
+		if (pk == null) throw new IllegalArgumentException(query.getType().getName() +" has no primary key to chunk by");
+		if (query instanceof DBQuery) {
+			final DBQuery<T> q = (DBQuery<T>) query;
+			this.limit = q.top;
+			this.orderAppliedAfterTop = q.getDBType() == DB_TYPE.ORACLE;
+			this.query = q.top > 0 ? q.limit(0) : q;
+		} else {
+			this.limit = 0;
+			this.orderAppliedAfterTop = false;
+			this.query = query;
+		}
+		this.size = size;
+		this.pkFields = pk.GET_FIELDS().toArray(new Field<?>[0]);
+		if (start != null && start.length != pkFields.length) {
+			throw new IllegalArgumentException("the checkpoint must have one value per primary key field: "
+					+ Arrays.toString(start));
+		}
+		this.start = start;
+		this.checkpoint = start;
+	}
+
+	/**
+	 * @param checkpoint a value returned by {@code getCheckpoint()} (or the primary key values of a row)
+	 * @return the chunks of this query after the row with this primary key
+	 */
+	public Chunks<T> after(final Object... checkpoint) {
+		return new Chunks<T>(limit > 0 ? query.limit(limit) : query, size, checkpoint==null ? null : checkpoint.clone());
+	}
+
+	/**
+	 * @return the primary key values of the last row returned (or the starting point if no chunks
+	 * have been read yet, possibly null)
+	 */
+	public Object[] getCheckpoint() {
+		return checkpoint==null ? null : checkpoint.clone();
+	}
+
+	/**
+	 * Calls the handler with every chunk.
+	 * @param handler
+	 * @return the number of rows handled
+	 * @throws SQLException
+	 */
+	public long forEachChunk(final Handler<T> handler) throws SQLException {
+		long count = 0;
+		for (final List<T> chunk : this) {
+			handler.handle(chunk);
+			count += chunk.size();
+		}
+		return count;
+	}
+
+	@Override
+	public Iterator<List<T>> iterator() {
+		checkpoint = start;
+		return new Iterator<List<T>>() {
+			private Object[] last = start;
+			private List<T> next = null;
+			private boolean done = false;
+			// rows left under the query's top() (-1 until the first chunk is read)
+			private long remaining = -1;
+
+			@Override
+			public boolean hasNext() {
+				if (next != null) return true;
+				if (done) return false;
+				if (remaining < 0) remaining = limit > 0 ? Math.max(0, limit - rowsThrough(start)) : Long.MAX_VALUE;
+				final int n = (int) Math.min(size, remaining);
+				next = readChunk(last, n);
+				remaining -= next.size();
+				if (next.size() < n || remaining <= 0) done = true;
+				if (next.isEmpty()) {
+					next = null;
+					return false;
+				}
+				last = pkValues(next.get(next.size()-1));
+				return true;
+			}
+
+			@Override
+			public List<T> next() {
+				if (!hasNext()) throw new NoSuchElementException();
+				final List<T> ret = next;
+				next = null;
+				checkpoint = last;
+				return ret;
+			}
+
+			@Override
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+
+	@SuppressWarnings("unchecked")
+	private List<T> readChunk(final Object[] after, final int n) {
+		if (n <= 0) return new ArrayList<T>();
+		Query<T> q = query;
+		if (after != null) q = q.where(keysetCondition(after));
+		q = q.orderBy(pkFields);
+		if (!orderAppliedAfterTop) return q.top(n).asList();
+		final List<T> ret = new ArrayList<T>(n);
+		final Iterator<T> it = q.fetchSize(n).iterator();
+		try {
+			while (ret.size() < n && it.hasNext()) ret.add(it.next());
+		} finally {
+			if (it instanceof ClosableIterator) ((ClosableIterator<T>) it).close();
+		}
+		return ret;
+	}
+
+	/**
+	 * @return the number of rows (in primary key order) up to and including this one, which a
+	 * scan resumed after it has already returned
+	 */
+	private long rowsThrough(final Object[] pk) {
+		if (pk == null) return 0;
+		try {
+			return query.where(keysetCondition(pk).not()).count();
+		} catch (final SQLException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * @return {@code (a > ?) or (a = ? and b > ?) or ...} for a primary key {@code (a, b, ...)}
+	 */
+	@SuppressWarnings("unchecked")
+	private Condition keysetCondition(final Object[] after) {
+		Condition ret = null;
+		for (int i=0; i<pkFields.length; ++i) {
+			Condition c = ((Field<Object>) pkFields[i]).gt(after[i]);
+			for (int j=0; j<i; ++j) c = ((Field<Object>) pkFields[j]).eq(after[j]).and(c);
+			ret = ret==null ? c : ret.or(c);
+		}
+		return ret;
+	}
+
+	private Object[] pkValues(final T t) {
+		final Object[] ret = new Object[pkFields.length];
+		for (int i=0; i<pkFields.length; ++i) ret[i] = t.get(pkFields[i]);
+		return ret;
+	}
+
+}
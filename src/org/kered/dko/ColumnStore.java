@@ -0,0 +1,430 @@
+package org.kered.dko;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The rows of a query stored by column, for {@code ColumnarQuery}. &nbsp; {@code Integer},
+ * {@code Long} and {@code Double} fields are stored as primitive arrays, strings are
+ * dictionary encoded (unless most of them are distinct) and everything else is stored as
+ * an array of objects, each column with a bitmap of its nulls. &nbsp; Conditions are
+ * evaluated a column at a time into bitmaps of the matching rows (see
+ * {@code Condition.filter()}) and objects are only created when rows are read.
+ * &nbsp; Immutable once loaded, and shared by every query derived from it.
+ *
+ * @author Derek Anderson
+ */
+class ColumnStore<T extends Table> {
+
+	private static final int INITIAL_CAPACITY = 1024;
+
+	final Class<T> type;
+	final List<Field<?>> fields;
+	private final Field<?>[] fieldArray;
+	private final Map<Field<?>,Column> columns = new HashMap<Field<?>,Column>();
+	private final Column[] columnArray;
+	final int size;
+	private final Constructor<T> constructor;
+
+	@SuppressWarnings("unchecked")
+	ColumnStore(final Query<T> query) {
+		this.type = query.getType();
+		try {
+			constructor = type.getDeclaredConstructor(Expression.Select[].class,
+					new Object[0].getClass(), Integer.TYPE, Integer.TYPE);
+			constructor.setAccessible(true);
+		} catch (final NoSuchMethodException e) {
+			throw new RuntimeException(type.getName() +" can't be stored by column", e);
+		}
+		this.fields = query.getSelectFields();
+		fieldArray = fields.toArray(new Field<?>[fields.size()]);
+		columnArray = new Column[fieldArray.length];
+		for (int i=0; i<fieldArray.length; ++i) columnArray[i] = newColumn(fieldArray[i].TYPE);
+		int n = 0;
+		for (final T t : query) {
+			for (int i=0; i<fieldArray.length; ++i) columnArray[i].add(n, t.get(fieldArray[i]));
+			++n;
+		}
+		size = n;
+		for (int i=0; i<fieldArray.length; ++i) {
+			columnArray[i] = columnArray[i].done(size);
+			columns.put(fieldArray[i], columnArray[i]);
+		}
+	}
+
+	private static Column newColumn(final Class<?> type) {
+		if (Integer.class.equals(type)) return new IntColumn();
+		if (Long.class.equals(type)) return new LongColumn();
+		if (Double.class.equals(type)) return new DoubleColumn();
+		if (String.class.equals(type)) return new StringColumn();
+		return new ObjectColumn();
+	}
+
+	/**
+	 * @return the column of this field, or null if it wasn't selected
+	 */
+	Column column(final Field<?> field) {
+		return columns.get(field);
+	}
+
+	/**
+	 * @return a new object for this row
+	 */
+	T get(final int row) {
+		final Object[] values = new Object[columnArray.length];
+		for (int i=0; i<columnArray.length; ++i) values[i] = columnArray[i].get(row);
+		try {
+			return constructor.newInstance(fieldArray, values, 0, values.length);
+		} catch (final InstantiationException e) {
+			throw new RuntimeException(e);
+		} catch (final IllegalAccessException e) {
+			throw new RuntimeException(e);
+		} catch (final InvocationTargetException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * @return the rows of {@code rows} matching this condition, evaluated by column where it
+	 * can be, otherwise on objects created for each row
+	 */
+	BitSet filter(final Condition c, final BitSet rows) {
+		final BitSet ret = c.filter(this, rows);
+		if (ret != null) return ret;
+		final BitSet matches = new BitSet(size);
+		for (int i=rows.nextSetBit(0); i>=0; i=rows.nextSetBit(i+1)) {
+			if (c.matches(get(i))) matches.set(i);
+		}
+		return matches;
+	}
+
+	/**
+	 * @return if this is an operator the primitive columns compare directly (not {@code like})
+	 */
+	private static boolean isComparison(final String cmp) {
+		final String op = cmp.trim();
+		return "=".equals(op) || "!=".equals(op) || "<>".equals(op) || "<".equals(op)
+				|| "<=".equals(op) || ">".equals(op) || ">=".equals(op);
+	}
+
+	/**
+	 * One field of every row.
+	 */
+	static abstract class Column {
+
+		BitSet nulls = new BitSet();
+
+		void add(final int row, final Object v) {
+			if (v == null) nulls.set(row);
+			else set(row, v);
+		}
+
+		abstract void set(int row, Object v);
+
+		/**
+		 * Called when every row has been added.
+		 * @return the finished column (possibly a different one)
+		 */
+		abstract Column done(int size);
+
+		abstract Object get(int row);
+
+		/**
+		 * @return the rows of {@code rows} that compare to {@code v} as {@code cmp} (as {@code Evaluator})
+		 */
+		BitSet compare(final BitSet rows, final String cmp, final Object v) {
+			final Evaluator.Test test = Evaluator.test(cmp, v);
+			final BitSet ret = new BitSet();
+			for (int i=rows.nextSetBit(0); i>=0; i=rows.nextSetBit(i+1)) {
+				if (!nulls.get(i) && test.test(get(i))) ret.set(i);
+			}
+			return ret;
+		}
+
+		/**
+		 * @return the rows of {@code rows} with a value in {@code vs}
+		 */
+		BitSet in(final BitSet rows, final Collection<?> vs) {
+			final Set<Object> keys = new HashSet<Object>();
+			for (final Object o : vs) keys.add(Evaluator.key(o));
+			final BitSet ret = new BitSet();
+			for (int i=rows.nextSetBit(0); i>=0; i=rows.nextSetBit(i+1)) {
+				if (!nulls.get(i) && keys.contains(Evaluator.key(get(i)))) ret.set(i);
+			}
+			return ret;
+		}
+
+		/**
+		 * @return the rows of {@code rows} that are (or aren't) null
+		 */
+		BitSet isNull(final BitSet rows, final boolean isNull) {
+			final BitSet ret = (BitSet) rows.clone();
+			if (isNull) ret.and(nulls);
+			else ret.andNot(nulls);
+			return ret;
+		}
+
+	}
+
+	static class IntColumn extends Column {
+
+		int[] values = new int[INITIAL_CAPACITY];
+
+		@Override
+		void set(final int row, final Object v) {
+			if (row >= values.length) values = Arrays.copyOf(values, Math.max(values.length * 2, row + 1));
+			values[row] = (Integer) v;
+		}
+
+		@Override
+		Column done(final int size) {
+			values = Arrays.copyOf(values, size);
+			return this;
+		}
+
+		@Override
+		Object get(final int row) {
+			return nulls.get(row) ? null : values[row];
+		}
+
+		@Override
+		BitSet compare(final BitSet rows, final String cmp, final Object v) {
+			if (!isComparison(cmp) || !(v instanceof Integer || v instanceof Short || v instanceof Byte)) {
+				return super.compare(rows, cmp, v);
+			}
+			final boolean[] signs = Evaluator.signs(cmp);
+			final int x = ((Number) v).intValue();
+			final int[] values = this.values;
+			final BitSet ret = new BitSet();
+			for (int i=rows.nextSetBit(0); i>=0; i=rows.nextSetBit(i+1)) {
+				final int y = values[i];
+				if (signs[y < x ? 0 : y == x ? 1 : 2] && !nulls.get(i)) ret.set(i);
+			}
+			return ret;
+		}
+
+		/**
+		 * @return the sum of these rows' values (ignoring nulls)
+		 */
+		long sum(final BitSet rows) {
+			long sum = 0;
+			for (int i=rows.nextSetBit(0); i>=0; i=rows.nextSetBit(i+1)) {
+				if (!nulls.get(i)) sum += values[i];
+			}
+			return sum;
+		}
+
+	}
+
+	static class LongColumn extends Column {
+
+		long[] values = new long[INITIAL_CAPACITY];
+
+		@Override
+		void set(final int row, final Object v) {
+			if (row >= values.length) values = Arrays.copyOf(values, Math.max(values.length * 2, row + 1));
+			values[row] = (Long) v;
+		}
+
+		@Override
+		Column done(final int size) {
+			values = Arrays.copyOf(values, size);
+			return this;
+		}
+
+		@Override
+		Object get(final int row) {
+			return nulls.get(row) ? null : values[row];
+		}
+
+		@Override
+		BitSet compare(final BitSet rows, final String cmp, final Object v) {
+			if (!isComparison(cmp) || !(v instanceof Long || v instanceof Integer || v instanceof Short || v instanceof Byte)) {
+				return super.compare(rows, cmp, v);
+			}
+			final boolean[] signs = Evaluator.signs(cmp);
+			final long x = ((Number) v).longValue();
+			final long[] values = this.values;
+			final BitSet ret = new BitSet();
+			for (int i=rows.nextSetBit(0); i>=0; i=rows.nextSetBit(i+1)) {
+				final long y = values[i];
+				if (signs[y < x ? 0 : y == x ? 1 : 2] && !nulls.get(i)) ret.set(i);
+			}
+			return ret;
+		}
+
+		long sum(final BitSet rows) {
+			long sum = 0;
+			for (int i=rows.nextSetBit(0); i>=0; i=rows.nextSetBit(i+1)) {
+				if (!nulls.get(i)) sum += values[i];
+			}
+			return sum;
+		}
+
+	}
+
+	static class DoubleColumn extends Column {
+
+		double[] values = new double[INITIAL_CAPACITY];
+
+		@Override
+		void set(final int row, final Object v) {
+			if (row >= values.length) values = Arrays.copyOf(values, Math.max(values.length * 2, row + 1));
+			values[row] = (Double) v;
+		}
+
+		@Override
+		Column done(final int size) {
+			values = Arrays.copyOf(values, size);
+			return this;
+		}
+
+		@Override
+		Object get(final int row) {
+			return nulls.get(row) ? null : values[row];
+		}
+
+		@Override
+		BitSet compare(final BitSet rows, final String cmp, final Object v) {
+			if (!isComparison(cmp) || !(v instanceof Double || v instanceof Float || v instanceof Integer || v instanceof Short || v instanceof Byte)) {
+				return super.compare(rows, cmp, v);
+			}
+			final boolean[] signs = Evaluator.signs(cmp);
+			final double x = ((Number) v).doubleValue();
+			final double[] values = this.values;
+			final BitSet ret = new BitSet();
+			for (int i=rows.nextSetBit(0); i>=0; i=rows.nextSetBit(i+1)) {
+				// Double.compare() so NaN sorts (and equals) as in Evaluator
+				final int c = Double.compare(values[i], x);
+				if (signs[c < 0 ? 0 : c == 0 ? 1 : 2] && !nulls.get(i)) ret.set(i);
+			}
+			return ret;
+		}
+
+		double sum(final BitSet rows) {
+			double sum = 0;
+			for (int i=rows.nextSetBit(0); i>=0; i=rows.nextSetBit(i+1)) {
+				if (!nulls.get(i)) sum += values[i];
+			}
+			return sum;
+		}
+
+	}
+
+	/**
+	 * Strings, dictionary encoded while loading. &nbsp; If most of them turn out to be
+	 * distinct they're stored as an {@code ObjectColumn} instead.
+	 */
+	static class StringColumn extends Column {
+
+		private Map<String,Integer> codes = new HashMap<String,Integer>();
+		String[] dictionary = new String[16];
+		int[] values = new int[INITIAL_CAPACITY];
+
+		@Override
+		void set(final int row, final Object v) {
+			if (row >= values.length) values = Arrays.copyOf(values, Math.max(values.length * 2, row + 1));
+			Integer code = codes.get(v);
+			if (code == null) {
+				code = codes.size();
+				if (code >= dictionary.length) dictionary = Arrays.copyOf(dictionary, dictionary.length * 2);
+				dictionary[code] = (String) v;
+				codes.put((String) v, code);
+			}
+			values[row] = code;
+		}
+
+		@Override
+		Column done(final int size) {
+			if (codes.size() > size / 2) {
+				final ObjectColumn ret = new ObjectColumn();
+				ret.values = new Object[size];
+				for (int i=0; i<size; ++i) ret.values[i] = get(i);
+				ret.nulls = nulls;
+				return ret;
+			}
+			dictionary = Arrays.copyOf(dictionary, codes.size());
+			values = Arrays.copyOf(values, size);
+			codes = null;
+			return this;
+		}
+
+		@Override
+		Object get(final int row) {
+			return nulls.get(row) ? null : dictionary[values[row]];
+		}
+
+		/**
+		 * Compares every distinct value once, then just checks the rows' codes.
+		 */
+		@Override
+		BitSet compare(final BitSet rows, final String cmp, final Object v) {
+			final Evaluator.Test test = Evaluator.test(cmp, v);
+			final boolean[] matches = new boolean[dictionary.length];
+			for (int i=0; i<dictionary.length; ++i) matches[i] = test.test(dictionary[i]);
+			return select(rows, matches);
+		}
+
+		@Override
+		BitSet in(final BitSet rows, final Collection<?> vs) {
+			final Set<Object> keys = new HashSet<Object>();
+			for (final Object o : vs) keys.add(Evaluator.key(o));
+			final boolean[] matches = new boolean[dictionary.length];
+			for (int i=0; i<dictionary.length; ++i) matches[i] = keys.contains(dictionary[i]);
+			return select(rows, matches);
+		}
+
+		private BitSet select(final BitSet rows, final boolean[] matches) {
+			final int[] values = this.values;
+			final BitSet ret = new BitSet();
+			for (int i=rows.nextSetBit(0); i>=0; i=rows.nextSetBit(i+1)) {
+				if (matches[values[i]] && !nulls.get(i)) ret.set(i);
+			}
+			return ret;
+		}
+
+		/**
+		 * @return how many of these rows have each code
+		 */
+		int[] counts(final BitSet rows) {
+			final int[] ret = new int[dictionary.length];
+			for (int i=rows.nextSetBit(0); i>=0; i=rows.nextSetBit(i+1)) {
+				if (!nulls.get(i)) ++ret[values[i]];
+			}
+			return ret;
+		}
+
+	}
+
+	static class ObjectColumn extends Column {
+
+		Object[] values = new Object[INITIAL_CAPACITY];
+
+		@Override
+		void set(final int row, final Object v) {
+			if (row >= values.length) values = Arrays.copyOf(values, Math.max(values.length * 2, row + 1));
+			values[row] = v;
+		}
+
+		@Override
+		Column done(final int size) {
+			values = Arrays.copyOf(values, size);
+			return this;
+		}
+
+		@Override
+		Object get(final int row) {
+			return values[row];
+		}
+
+	}
+
+}
@@ -0,0 +1,473 @@
+package org.kered.dko;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+import javax.sql.DataSource;
+
+import org.kered.dko.ColumnStore.Column;
+import org.kered.dko.ColumnStore.DoubleColumn;
+import org.kered.dko.ColumnStore.IntColumn;
+import org.kered.dko.ColumnStore.LongColumn;
+import org.kered.dko.ColumnStore.StringColumn;
+import org.kered.dko.Constants.DB_TYPE;
+import org.kered.dko.Constants.DIRECTION;
+import org.kered.dko.Field.FK;
+
+/**
+ * Implements {@code Query.toColumnarMemory()}. &nbsp; An in-memory query whose rows are
+ * stored by column (see {@code ColumnStore}) instead of as objects. &nbsp; Queries derived
+ * from it share the columns and are just a bitmap of the rows they select (and their
+ * order, if ordered). &nbsp; {@code where()} is evaluated a column at a time,
+ * {@code sum()}, {@code average()}, {@code min()}, {@code max()}, {@code countBy()}
+ * and {@code asIterableOf()} read the columns directly, and objects are only created
+ * as the query is iterated (a new one each time).
+ *
+ * @author Derek Anderson
+ */
+class ColumnarQuery<T extends Table> extends AbstractQuery<T> {
+
+	private final ColumnStore<T> store;
+	private final BitSet rows;
+	private final Comparator<Integer> sortBy;
+	private volatile int[] order;
+
+	ColumnarQuery(final Query<T> query) {
+		super(query);
+		store = new ColumnStore<T>(query);
+		rows = new BitSet(store.size);
+		rows.set(0, store.size);
+		sortBy = null;
+		order = null;
+	}
+
+	/**
+	 * @param order the positions of the rows in order, or null
+	 * @param sortBy the order of the rows if they haven't been sorted yet, or null
+	 */
+	private ColumnarQuery(final ColumnarQuery<T> q, final BitSet rows, final int[] order, final Comparator<Integer> sortBy) {
+		super(q);
+		this.store = q.store;
+		this.rows = rows;
+		this.order = order;
+		this.sortBy = sortBy;
+	}
+
+	@Override
+	public Iterator<T> iterator() {
+		final int[] order = order();
+		return new Iterator<T>() {
+			private int i = order==null ? rows.nextSetBit(0) : 0;
+			@Override
+			public boolean hasNext() {
+				return order==null ? i >= 0 : i < order.length;
+			}
+			@Override
+			public T next() {
+				if (!hasNext()) throw new NoSuchElementException();
+				if (order != null) return store.get(order[i++]);
+				final T t = store.get(i);
+				i = rows.nextSetBit(i+1);
+				return t;
+			}
+			@Override
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+
+	/**
+	 * @return the positions of the rows in order (sorting them the first time it's called),
+	 * or null if this query isn't ordered
+	 */
+	private int[] order() {
+		if (order == null && sortBy != null) order = toArray(TopN.sort(rowIterator(), sortBy));
+		return order;
+	}
+
+	private Iterator<Integer> rowIterator() {
+		return new Iterator<Integer>() {
+			private int i = rows.nextSetBit(0);
+			@Override
+			public boolean hasNext() {
+				return i >= 0;
+			}
+			@Override
+			public Integer next() {
+				if (!hasNext()) throw new NoSuchElementException();
+				final int ret = i;
+				i = rows.nextSetBit(i+1);
+				return ret;
+			}
+			@Override
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+
+	private static int[] toArray(final List<Integer> positions) {
+		final int[] ret = new int[positions.size()];
+		for (int i=0; i<ret.length; ++i) ret[i] = positions.get(i);
+		return ret;
+	}
+
+	/**
+	 * @return the positions of the rows of this query, in order
+	 */
+	private int[] positions() {
+		final int[] order = order();
+		if (order != null) return order;
+		final int[] ret = new int[rows.cardinality()];
+		int k = 0;
+		for (int i=rows.nextSetBit(0); i>=0; i=rows.nextSetBit(i+1)) ret[k++] = i;
+		return ret;
+	}
+
+	private ColumnarQuery<T> select(final BitSet selected) {
+		final int[] order = this.order;
+		// not sorted yet?  then sort only what's selected, if it's ever needed
+		if (order == null) return new ColumnarQuery<T>(this, selected, null, sortBy);
+		final int[] newOrder = new int[selected.cardinality()];
+		int k = 0;
+		for (final int i : order) {
+			if (selected.get(i)) newOrder[k++] = i;
+		}
+		return new ColumnarQuery<T>(this, selected, newOrder, null);
+	}
+
+	@Override
+	public boolean isOrdered() {
+		return order != null || sortBy != null;
+	}
+
+	@Override
+	public Query<T> where(final Condition... conditions) {
+		final Condition c = conditions.length==1 ? conditions[0] : new Condition.And(conditions);
+		return select(store.filter(c, rows));
+	}
+
+	@Override
+	public Query<T> exclude(final Condition... conditions) {
+		final Condition c = conditions.length==1 ? conditions[0] : new Condition.And(conditions);
+		return where(new Condition.Not(c));
+	}
+
+	@Override
+	public long count() throws SQLException {
+		return rows.cardinality();
+	}
+
+	/**
+	 * Doesn't sort until the rows are read, so a following {@code limit()} can select just
+	 * the first rows (with {@code TopN}) instead.
+	 */
+	@Override
+	public Query<T> orderBy(final Expression.OrderBy<?>... obes) {
+		final Column[] columns = new Column[obes.length];
+		final int[] directions = new int[obes.length];
+		for (int i=0; i<obes.length; ++i) {
+			Field<?> f;
+			if (obes[i] instanceof Field) {
+				f = (Field<?>) obes[i];
+				directions[i] = 1;
+			} else if (obes[i] instanceof Field.OrderByField) {
+				f = ((Field.OrderByField<?>) obes[i]).underlying;
+				directions[i] = ((Field.OrderByField<?>) obes[i]).direction==DIRECTION.DESCENDING ? -1 : 1;
+			} else {
+				throw new UnsupportedOperationException("columnar queries can only be ordered by fields: "+ obes[i]);
+			}
+			columns[i] = store.column(f);
+			if (columns[i] == null) throw new IllegalArgumentException(f +" was not selected");
+		}
+		// any previous order breaks ties
+		final Comparator<Integer> previous = order==null ? sortBy : null;
+		final Comparator<Integer> byColumns = new Comparator<Integer>() {
+			@Override
+			public int compare(final Integer a, final Integer b) {
+				for (int i=0; i<columns.length; ++i) {
+					// nulls last (first when descending)
+					final int c = TopN.compare(columns[i].get(a), columns[i].get(b));
+					if (c != 0) return c * directions[i];
+				}
+				return previous==null ? 0 : previous.compare(a, b);
+			}
+		};
+		if (order != null) {
+			final int[] order = this.order;
+			final List<Integer> positions = new ArrayList<Integer>(order.length);
+			for (final int i : order) positions.add(i);
+			return new ColumnarQuery<T>(this, rows, toArray(TopN.sort(positions.iterator(), byColumns)), null);
+		}
+		return new ColumnarQuery<T>(this, rows, null, byColumns);
+	}
+
+	@Override
+	public Query<T> limit(final long n) {
+		if (order == null && sortBy != null) {
+			final int[] top = toArray(TopN.top(rowIterator(), sortBy, n));
+			final BitSet selected = new BitSet(store.size);
+			for (final int i : top) selected.set(i);
+			return new ColumnarQuery<T>(this, selected, top, null);
+		}
+		final int[] order = this.order;
+		final int[] positions = positions();
+		final int size = (int) Math.min(n, positions.length);
+		final BitSet selected = new BitSet(store.size);
+		for (int i=0; i<size; ++i) selected.set(positions[i]);
+		return new ColumnarQuery<T>(this, selected, order==null ? null : Arrays.copyOf(order, size), null);
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	public <S extends Number> S sum(final Field<S> f) throws SQLException {
+		final Column column = store.column(f);
+		if (column instanceof IntColumn) return (S) Integer.valueOf((int) ((IntColumn) column).sum(rows));
+		if (column instanceof LongColumn) return (S) Long.valueOf(((LongColumn) column).sum(rows));
+		if (column instanceof DoubleColumn) return (S) Double.valueOf(((DoubleColumn) column).sum(rows));
+		return super.sum(f);
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	public <S extends Number> S average(final Field<S> f) throws SQLException {
+		final Column column = store.column(f);
+		if (!(column instanceof IntColumn || column instanceof LongColumn || column instanceof DoubleColumn)) {
+			return super.average(f);
+		}
+		final BitSet nonNull = column.isNull(rows, false);
+		final int count = nonNull.cardinality();
+		if (count == 0) return null;
+		if (column instanceof IntColumn) return (S) Integer.valueOf((int) (((IntColumn) column).sum(nonNull) / count));
+		if (column instanceof LongColumn) return (S) Long.valueOf(((LongColumn) column).sum(nonNull) / count);
+		return (S) Double.valueOf(((DoubleColumn) column).sum(nonNull) / count);
+	}
+
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	@Override
+	public <S extends Comparable> S max(final Field<S> f) throws SQLException {
+		return (S) extreme(f, 1);
+	}
+
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	@Override
+	public <S extends Comparable> S min(final Field<S> f) throws SQLException {
+		return (S) extreme(f, -1);
+	}
+
+	/**
+	 * @return the max (sign 1) or min (sign -1) value of this field, ignoring nulls
+	 */
+	private Object extreme(final Field<?> f, final int sign) {
+		final Column column = store.column(f);
+		if (column == null) throw new IllegalArgumentException(f +" was not selected");
+		if (column instanceof IntColumn) {
+			final int[] values = ((IntColumn) column).values;
+			boolean found = false;
+			int ret = 0;
+			for (int i=rows.nextSetBit(0); i>=0; i=rows.nextSetBit(i+1)) {
+				if (column.nulls.get(i)) continue;
+				if (!found || (sign > 0 ? values[i] > ret : values[i] < ret)) ret = values[i];
+				found = true;
+			}
+			return found ? ret : null;
+		}
+		if (column instanceof LongColumn) {
+			final long[] values = ((LongColumn) column).values;
+			boolean found = false;
+			long ret = 0;
+			for (int i=rows.nextSetBit(0); i>=0; i=rows.nextSetBit(i+1)) {
+				if (column.nulls.get(i)) continue;
+				if (!found || (sign > 0 ? values[i] > ret : values[i] < ret)) ret = values[i];
+				found = true;
+			}
+			return found ? ret : null;
+		}
+		if (column instanceof DoubleColumn) {
+			final double[] values = ((DoubleColumn) column).values;
+			boolean found = false;
+			double ret = 0;
+			for (int i=rows.nextSetBit(0); i>=0; i=rows.nextSetBit(i+1)) {
+				if (column.nulls.get(i)) continue;
+				if (!found || Double.compare(values[i], ret) * sign > 0) ret = values[i];
+				found = true;
+			}
+			return found ? ret : null;
+		}
+		Object ret = null;
+		for (int i=rows.nextSetBit(0); i>=0; i=rows.nextSetBit(i+1)) {
+			final Object v = column.get(i);
+			if (v != null && (ret == null || Evaluator.compare(v, ret) * sign > 0)) ret = v;
+		}
+		return ret;
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	public <S> Map<S, Integer> countBy(final Field<S> byField) throws SQLException {
+		final Column column = store.column(byField);
+		if (column == null) return super.countBy(byField);
+		final Map<S, Integer> ret = new HashMap<S, Integer>();
+		if (column instanceof StringColumn) {
+			final StringColumn strings = (StringColumn) column;
+			final int[] counts = strings.counts(rows);
+			for (int i=0; i<counts.length; ++i) {
+				if (counts[i] > 0) ret.put((S) strings.dictionary[i], counts[i]);
+			}
+			final int nulls = column.isNull(rows, true).cardinality();
+			if (nulls > 0) ret.put(null, nulls);
+			return ret;
+		}
+		for (int i=rows.nextSetBit(0); i>=0; i=rows.nextSetBit(i+1)) {
+			final S key = (S) column.get(i);
+			final Integer value = ret.get(key);
+			ret.put(key, value==null ? 1 : value + 1);
+		}
+		return ret;
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	public <S> Iterable<S> asIterableOf(final Field<S> field) {
+		final Column column = store.column(field);
+		if (column == null) throw new IllegalArgumentException(field +" was not selected");
+		final List<S> ret = new ArrayList<S>();
+		for (final int i : positions()) ret.add((S) column.get(i));
+		return ret;
+	}
+
+	@Override
+	public Query<T> distinct() {
+		throw new UnsupportedOperationException("distinct not supported yet on columnar queries");
+	}
+
+	@SuppressWarnings("rawtypes")
+	@Override
+	public Query<T> with(final FK... fields) {
+		throw new UnsupportedOperationException("can't pre-pull FKs from in-memory queries");
+	}
+
+	@Override
+	public Query<T> deferFields(final Field<?>... fields) {
+		// do nothing
+		return this;
+	}
+
+	@Override
+	public Query<T> onlyFields(final Field<?>... fields) {
+		// do nothing
+		return this;
+	}
+
+	@Override
+	public Query<T> deferFields(final Collection<Field<?>> fields) {
+		// do nothing
+		return this;
+	}
+
+	@Override
+	public Query<T> onlyFields(final Collection<Field<?>> fields) {
+		// do nothing
+		return this;
+	}
+
+	@Override
+	public int update() throws SQLException {
+		throw new UnsupportedOperationException("can't update on an in-memory query");
+	}
+
+	@Override
+	public int delete() throws SQLException {
+		throw new UnsupportedOperationException("can't delete on an in-memory query");
+	}
+
+	@Override
+	public Query<T> set(final Field<?> key, final Object value) {
+		throw new UnsupportedOperationException("can't do this on an in-memory query");
+	}
+
+	@Override
+	public Query<T> set(final Map<Field<?>, Object> values) {
+		throw new UnsupportedOperationException("can't do this on an in-memory query");
+	}
+
+	@Override
+	public Object insert() throws SQLException {
+		throw new UnsupportedOperationException("can't insert on an in-memory query");
+	}
+
+	@Override
+	public Query<T> use(final DataSource ds) {
+		throw new UnsupportedOperationException("can't specify a DataSource " +
+				"for an in-memory query");
+	}
+
+	@Override
+	public Query<T> use(final Connection conn) {
+		// do nothing
+		return this;
+	}
+
+	@Override
+	public Query<T> use(final DB_TYPE type) {
+		// ignore
+		return this;
+	}
+
+	@Override
+	public Query<T> toMemory() {
+		return this;
+	}
+
+	@Override
+	public Query<T> toColumnarMemory() {
+		return this;
+	}
+
+	@Override
+	public Query<T> max() {
+		throw new UnsupportedOperationException("max not supported yet on in-memory queries");
+	}
+
+	@Override
+	public Query<T> min() {
+		throw new UnsupportedOperationException("min not supported yet on in-memory queries");
+	}
+
+	@Override
+	public Query<T> avg() {
+		throw new UnsupportedOperationException("avg not supported yet on in-memory queries");
+	}
+
+	@Override
+	public Condition exists() {
+		return rows.isEmpty() ? Condition.FALSE : Condition.TRUE;
+	}
+
+	@Override
+	public DataSource getDataSource() {
+		return null;
+	}
+
+	@Override
+	public List<Field<?>> getSelectFields() {
+		return store.fields;
+	}
+
+	@Override
+	public Query<T> in(final Collection<T> set) {
+		throw new UnsupportedOperationException("can't join on an in-memory query");
+	}
+
+}
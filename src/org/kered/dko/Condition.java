@@ -5,7 +5,10 @@ import java.sql.PreparedStatement;
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collection;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedHashSet;
 import java.util.List;
@@ -73,16 +76,23 @@ public abstract class Condition {
 		return true;
 	}
 
+	/**
+	 * Membership in a large collection, checked against a temporary table of its (distinct)
+	 * values loaded in large batches and indexed. &nbsp; Falls back to {@code In} when the
+	 * field's type has no temporary table column type or the database binds arrays (postgres).
+	 */
 	static class InTmpTable<T> extends Condition {
 
+		private static final int BATCH_SIZE = 1000;
+
 		private final Field<T> field;
 		private final Collection<T> set;
-		private final String tmpTableName = "#DKO_"+ Math.round(Math.random() * Integer.MAX_VALUE);
-		private String type = null;
+		private final String tmpTableName = "DKO_"+ Math.round(Math.random() * Integer.MAX_VALUE);
 		private In backup;
-		
+
 		private String getTmpTableName(DB_TYPE dbType) {
-			if (dbType == DB_TYPE.SQLITE3) return tmpTableName.substring(1);
+			if (dbType == DB_TYPE.SQLSERVER) return "#"+ tmpTableName;
+			if (dbType == DB_TYPE.DERBY) return "SESSION."+ tmpTableName;
 			return tmpTableName;
 		}
 
@@ -91,17 +101,48 @@ public abstract class Condition {
 			this.field = field;
 			// we make a set because we create a PK index on the tmp table
 			this.set = new LinkedHashSet<T>(set);
-			if (Integer.class.equals(field.TYPE)) type = "int";
-			if (Long.class.equals(field.TYPE)) type = "long";
-			if (String.class.equals(field.TYPE)) type = "varchar(4096)";
-			if (Character.class.equals(field.TYPE)) type = "char(1)";
-			if (type == null) throw new RuntimeException("unsupported type for temp table " +
-					"generation: "+ field.TYPE);
+		}
+
+		/**
+		 * @return the column type of the temporary table, or null if this field's type isn't supported
+		 */
+		private String getColumnType(final DB_TYPE dbType) {
+			final Class<?> type = field.TYPE;
+			if (Integer.class.equals(type)) return "int";
+			if (Short.class.equals(type) || Byte.class.equals(type)) return "smallint";
+			if (Long.class.equals(type)) return dbType==DB_TYPE.ORACLE ? "number(19)" : "bigint";
+			if (String.class.equals(type)) return dbType==DB_TYPE.ORACLE ? "varchar2(4000)" : "varchar(4096)";
+			if (Character.class.equals(type)) return "char(1)";
+			if (Double.class.equals(type)) return dbType==DB_TYPE.SQLSERVER ? "float" : "double precision";
+			if (Float.class.equals(type)) return "real";
+			if (java.math.BigDecimal.class.equals(type)) {
+				if (dbType==DB_TYPE.ORACLE) return "number";
+				if (dbType==DB_TYPE.POSTGRES) return "numeric";
+				if (dbType==DB_TYPE.DERBY) return "decimal(31,10)";
+				if (dbType==DB_TYPE.MYSQL) return "decimal(65,30)";
+				if (dbType==DB_TYPE.HSQL) return "decimal(128,32)";
+				return "decimal(38,10)";
+			}
+			if (java.sql.Date.class.equals(type)) return "date";
+			if (java.util.Date.class.equals(type) || java.sql.Timestamp.class.equals(type)) {
+				return dbType==DB_TYPE.SQLSERVER || dbType==DB_TYPE.MYSQL ? "datetime" : "timestamp";
+			}
+			return null;
+		}
+
+		@Override
+		Evaluator.Predicate compile() {
+			return backup.compile();
 		}
 
 		@Override
-		boolean matches(final Table t) {
-			return set.contains(t.get(field));
+		int[] lookup(final InMemoryQuery<?> q) {
+			return backup.lookup(q);
+		}
+
+		@Override
+		BitSet filter(final ColumnStore<?> store, final BitSet rows) {
+			return backup.filter(store, rows);
 		}
 
 		@Override
@@ -118,7 +159,8 @@ public abstract class Condition {
 		}
 
 		private boolean useBackup(SqlContext context) {
-			return context.dbType == DB_TYPE.MYSQL;
+			if (context == null || getColumnType(context.dbType) == null) return true;
+			return context.dbType == DB_TYPE.POSTGRES && In.getArrayType(field) != null;
 		}
 
 		@Override
@@ -131,13 +173,20 @@ public abstract class Condition {
 			PreparedStatement ps = null;
 			try {
 				stmt = conn.createStatement();
-				final String collate = Util.isCollateType(type) ? " COLLATE database_default" : "";
-				
-				String tmpStr = context.dbType==DB_TYPE.SQLITE3 ? "TEMP " : "";
-				String sql = "CREATE "+ tmpStr +"TABLE "+ getTmpTableName(context.dbType) + "(id "+ type + collate +")";
-				if (context.dbType==Constants.DB_TYPE.ORACLE || context.dbType==DB_TYPE.DERBY) {
+				final String type = getColumnType(context.dbType);
+				final String collate = context.dbType==DB_TYPE.SQLSERVER && Util.isCollateType(type) ? " COLLATE database_default" : "";
+				String create = "CREATE TABLE ";
+				if (context.dbType==DB_TYPE.SQLITE3) create = "CREATE TEMP TABLE ";
+				if (context.dbType==DB_TYPE.MYSQL || context.dbType==DB_TYPE.POSTGRES) create = "CREATE TEMPORARY TABLE ";
+				if (context.dbType==DB_TYPE.ORACLE) create = "CREATE GLOBAL TEMPORARY TABLE ";
+				if (context.dbType==DB_TYPE.DERBY) create = "DECLARE GLOBAL TEMPORARY TABLE ";
+				String sql = create + getTmpTableName(context.dbType) + "(id "+ type + collate +")";
+				if (context.dbType==Constants.DB_TYPE.ORACLE || context.dbType==Constants.DB_TYPE.DERBY) {
 					sql += " ON COMMIT PRESERVE ROWS";
 				}
+				if (context.dbType==Constants.DB_TYPE.DERBY) {
+					sql += " NOT LOGGED";
+				}
 				Util.log(sql, null);
 				stmt.execute(sql);
 				ps = conn.prepareStatement("insert into "+ getTmpTableName(context.dbType) +" values (?)");
@@ -146,23 +195,32 @@ public abstract class Condition {
 				int added = 0;
 				for (final T t : set) {
 					++i;
-					Util.setBindingWithTypeFixes(ps, 1, t);
+					Object o = t;
+					if (o!=null && java.util.Date.class.equals(o.getClass())) {
+						o = new java.sql.Timestamp(((java.util.Date) o).getTime());
+					}
+					Util.setBindingWithTypeFixes(ps, 1, o);
 					if (addBatchSupported) {
 						ps.addBatch();
-						if (i%64 == 0) for (final int x : ps.executeBatch()) added += x;
+						if (i%BATCH_SIZE == 0) for (final int x : ps.executeBatch()) added += x;
 					} else {
 						ps.execute();
 						++added;
 					}
 				}
-				if (addBatchSupported && i%64 != 0) {
+				if (addBatchSupported && i%BATCH_SIZE != 0) {
 					for (final int x : ps.executeBatch()) {
 						added += x;
 					}
 				}
-				final String createIndex = "CREATE INDEX "+ getTmpTableName(context.dbType) +"_IDX ON "+ getTmpTableName(context.dbType) +" (id)";
-				Util.log(createIndex, null);
-				stmt.execute(createIndex);
+				// derby can't index its temporary tables
+				if (context.dbType!=DB_TYPE.DERBY) {
+					// mysql can't index a whole varchar(4096)
+					final String column = context.dbType==DB_TYPE.MYSQL && type.startsWith("varchar") ? "id(255)" : "id";
+					final String createIndex = "CREATE INDEX "+ getTmpTableName(context.dbType) +"_IDX ON "+ getTmpTableName(context.dbType) +" ("+ column +")";
+					Util.log(createIndex, null);
+					stmt.execute(createIndex);
+				}
 			} catch (final SQLException e) {
 				throw e;
 			} finally {
@@ -188,6 +246,12 @@ public abstract class Condition {
 			Statement stmt = null;
 			try {
 				stmt = conn.createStatement();
+				if (context.dbType==DB_TYPE.ORACLE) {
+					// oracle can't drop a temporary table still holding rows for this session
+					final String sql = "TRUNCATE TABLE "+ getTmpTableName(context.dbType);
+					Util.log(sql, null);
+					stmt.execute(sql);
+				}
 				final String sql = "DROP TABLE "+ getTmpTableName(context.dbType);
 				Util.log(sql, null);
 				stmt.execute(sql);
@@ -213,8 +277,12 @@ public abstract class Condition {
 			sb.append(" 1=1");
 		}
 		@Override
-		boolean matches(final Table t) {
-			return true;
+		Evaluator.Predicate compile() {
+			return Evaluator.TRUE;
+		}
+		@Override
+		BitSet filter(final ColumnStore<?> store, final BitSet rows) {
+			return (BitSet) rows.clone();
 		}
 	};
 
@@ -227,8 +295,12 @@ public abstract class Condition {
 			sb.append(" 1=0");
 		}
 		@Override
-		boolean matches(final Table t) {
-			return false;
+		Evaluator.Predicate compile() {
+			return Evaluator.FALSE;
+		}
+		@Override
+		BitSet filter(final ColumnStore<?> store, final BitSet rows) {
+			return new BitSet();
 		}
 	};
 
@@ -250,7 +322,7 @@ public abstract class Condition {
 		}
 
 		@Override
-		boolean matches(final Table t) {
+		Evaluator.Predicate compile() {
 			throw new RuntimeException("literal conditions cannot be applied to in-memory queries");
 		}
 
@@ -281,10 +353,53 @@ public abstract class Condition {
 		return bindings;
 	}
 
+	private transient volatile Evaluator.Predicate predicate = null;
+
+	/**
+	 * Internal function.  Do not use.  Subject to change.
+	 */
+	boolean matches(final Table t) {
+		Evaluator.Predicate p = predicate;
+		if (p == null) predicate = p = compile();
+		return p.test(t);
+	}
+
+	/**
+	 * Internal function.  Do not use.  Subject to change.
+	 * @return this condition compiled for checking objects in memory (once, by {@code matches()})
+	 */
+	abstract Evaluator.Predicate compile();
+
+	/**
+	 * Internal function.  Do not use.  Subject to change.
+	 * @return the (ascending) positions of the rows of this in-memory query that may match
+	 * this condition, found with its indexes, or null if the rows have to be scanned
+	 */
+	int[] lookup(final InMemoryQuery<?> q) {
+		return null;
+	}
+
 	/**
 	 * Internal function.  Do not use.  Subject to change.
+	 * @return the rows of {@code rows} matching this condition, evaluated a column at a time,
+	 * or null if it can't be (see {@code ColumnStore.filter()})
 	 */
-	abstract boolean matches(Table t);
+	BitSet filter(final ColumnStore<?> store, final BitSet rows) {
+		return null;
+	}
+
+	/**
+	 * @return if this is a plain value (not a field or function) an index can be searched for
+	 */
+	private static boolean isValue(final Object o) {
+		return o != null && !(o instanceof Field) && !(o instanceof Expression) && !(o instanceof SQLFunction.SQLLiteral);
+	}
+
+	private static Evaluator.Predicate[] compileAll(final List<Condition> conditions) {
+		final Evaluator.Predicate[] ret = new Evaluator.Predicate[conditions.size()];
+		for (int i=0; i<ret.length; ++i) ret[i] = conditions.get(i).compile();
+		return ret;
+	}
 
 	/**
 	 * Internal function.  Do not use.  Subject to change.
@@ -370,11 +485,38 @@ public abstract class Condition {
 		}
 
 		@Override
-		boolean matches(final Table t) {
+		Evaluator.Predicate compile() {
+			final Evaluator.Predicate[] ps = compileAll(conditions);
+			return new Evaluator.Predicate() {
+				@Override
+				boolean test(final Table t) {
+					for (final Evaluator.Predicate p : ps) {
+						if (!p.test(t)) return false;
+					}
+					return true;
+				}
+			};
+		}
+
+		@Override
+		int[] lookup(final InMemoryQuery<?> q) {
+			int[] ret = null;
 			for (final Condition c : conditions) {
-				if (!c.matches(t)) return false;
+				final int[] positions = c.lookup(q);
+				if (positions == null) continue;
+				ret = ret==null ? positions : InMemoryIndex.intersect(ret, positions);
 			}
-			return true;
+			return ret;
+		}
+
+		@Override
+		BitSet filter(final ColumnStore<?> store, final BitSet rows) {
+			BitSet ret = rows;
+			for (final Condition c : conditions) {
+				if (ret.isEmpty()) break;
+				ret = store.filter(c, ret);
+			}
+			return ret==rows ? (BitSet) rows.clone() : ret;
 		}
 
 		@Override
@@ -438,11 +580,41 @@ public abstract class Condition {
 		}
 
 		@Override
-		boolean matches(final Table t) {
+		Evaluator.Predicate compile() {
+			final Evaluator.Predicate[] ps = compileAll(conditions);
+			return new Evaluator.Predicate() {
+				@Override
+				boolean test(final Table t) {
+					for (final Evaluator.Predicate p : ps) {
+						if (p.test(t)) return true;
+					}
+					return false;
+				}
+			};
+		}
+
+		@Override
+		int[] lookup(final InMemoryQuery<?> q) {
+			int[] ret = new int[0];
 			for (final Condition c : conditions) {
-				if (c.matches(t)) return true;
+				final int[] positions = c.lookup(q);
+				if (positions == null) return null;
+				ret = InMemoryIndex.union(ret, positions);
 			}
-			return false;
+			return ret;
+		}
+
+		@Override
+		BitSet filter(final ColumnStore<?> store, final BitSet rows) {
+			final BitSet ret = new BitSet();
+			final BitSet remaining = (BitSet) rows.clone();
+			for (final Condition c : conditions) {
+				if (remaining.isEmpty()) break;
+				final BitSet matches = store.filter(c, remaining);
+				ret.or(matches);
+				remaining.andNot(matches);
+			}
+			return ret;
 		}
 
 		@Override
@@ -491,8 +663,21 @@ public abstract class Condition {
 		}
 
 		@Override
-		boolean matches(final Table t) {
-			return !condition.matches(t);
+		Evaluator.Predicate compile() {
+			final Evaluator.Predicate p = condition.compile();
+			return new Evaluator.Predicate() {
+				@Override
+				boolean test(final Table t) {
+					return !p.test(t);
+				}
+			};
+		}
+
+		@Override
+		BitSet filter(final ColumnStore<?> store, final BitSet rows) {
+			final BitSet ret = (BitSet) rows.clone();
+			ret.andNot(store.filter(condition, rows));
+			return ret;
 		}
 
 		@Override
@@ -562,9 +747,8 @@ public abstract class Condition {
 			}
 		}
 
-		@SuppressWarnings({ "rawtypes", "unchecked" })
 		@Override
-		boolean matches(final Table t) {
+		Evaluator.Predicate compile() {
 			if (!cmp1.trim().equalsIgnoreCase("between")) {
 				throw new IllegalStateException("unknown comparision function '"+ cmp1
 						+"' for in-memory conditional check");
@@ -573,19 +757,34 @@ public abstract class Condition {
 				throw new IllegalStateException("unknown comparision function '"+ cmp2
 						+"' for in-memory conditional check");
 			}
-			Comparable o1 = null;
-			if (v1 instanceof Field) o1 = (Comparable) t.get((Field<?>) v1);
-			else if (v1 instanceof Comparable) o1 = (Comparable) v1;
-			Comparable o2 = null;
-			if (v2 instanceof Field) o2 = (Comparable) t.get((Field<?>) v2);
-			else if (v2 instanceof Comparable) o2 = (Comparable) v2;
-			Comparable o3 = null;
-			if (v3 instanceof Field) o3 = (Comparable) t.get((Field<?>) v3);
-			else if (v3 instanceof Comparable) o3 = (Comparable) v3;
 			// SQL between in inclusive
-			if (o2 != null && o2.compareTo(o1) > 0) return false;
-			if (o3 != null && o3.compareTo(o1) < 0) return false;
-			return true;
+			final Evaluator.Predicate lower = Evaluator.compare(Evaluator.value(v1), ">=", Evaluator.value(v2));
+			final Evaluator.Predicate upper = Evaluator.compare(Evaluator.value(v1), "<=", Evaluator.value(v3));
+			return new Evaluator.Predicate() {
+				@Override
+				boolean test(final Table t) {
+					return lower.test(t) && upper.test(t);
+				}
+			};
+		}
+
+		@Override
+		int[] lookup(final InMemoryQuery<?> q) {
+			if (!(v1 instanceof Field) || !cmp1.trim().equalsIgnoreCase("between")) return null;
+			if (v2 == null || v3 == null) return new int[0];
+			if (!isValue(v2) || !isValue(v3)) return null;
+			final InMemoryIndex index = q.getIndex((Field<?>) v1);
+			return index==null ? null : index.range(v2, true, v3, true);
+		}
+
+		@Override
+		BitSet filter(final ColumnStore<?> store, final BitSet rows) {
+			if (!(v1 instanceof Field) || !cmp1.trim().equalsIgnoreCase("between")) return null;
+			if (v2 == null || v3 == null) return new BitSet();
+			if (!isValue(v2) || !isValue(v3)) return null;
+			final ColumnStore.Column column = store.column((Field<?>) v1);
+			if (column == null) return null;
+			return column.compare(column.compare(rows, ">=", v2), "<=", v3);
 		}
 
 	}
@@ -623,24 +822,48 @@ public abstract class Condition {
 		}
 
 		@Override
-		boolean matches(final Table t) {
-			final Object v = t.get(field);
-			if (" is null".equals(this.suffix)) {
-				return v == null;
+		Evaluator.Predicate compile() {
+			final boolean isNull = " is null".equals(suffix);
+			if (isNull || " is not null".equals(suffix)) {
+				return new Evaluator.Predicate() {
+					@Override
+					boolean test(final Table t) {
+						return (t.get(field) == null) == isNull;
+					}
+				};
 			}
-			if (" is not null".equals(this.suffix)) {
-				return v != null;
+			if (suffix == null && (prefix == null || "not ".equals(prefix))) {
+				// a boolean field
+				final Boolean expected = prefix == null;
+				return new Evaluator.Predicate() {
+					@Override
+					boolean test(final Table t) {
+						return expected.equals(t.get(field));
+					}
+				};
 			}
-			throw new IllegalStateException("unknown comparision function '"+ suffix
+			throw new IllegalStateException("unknown comparision function '"+ (suffix==null ? prefix : suffix)
 					+"' for in-memory conditional check");
 		}
 
+		@Override
+		BitSet filter(final ColumnStore<?> store, final BitSet rows) {
+			final ColumnStore.Column column = store.column(field);
+			if (column == null) return null;
+			final boolean isNull = " is null".equals(suffix);
+			if (isNull || " is not null".equals(suffix)) return column.isNull(rows, isNull);
+			if (suffix == null && (prefix == null || "not ".equals(prefix))) {
+				return column.compare(rows, "=", prefix == null);
+			}
+			return null;
+		}
+
 	}
 
 	static class Binary extends Condition {
 
 		final Field<?> field;
-		private Object v;
+		Object v;
 		Field<?> field2;
 		final String cmp;
 		private DBRowIterator<?> s;
@@ -674,6 +897,11 @@ public abstract class Condition {
 			this.o2  = f;
 		}
 
+		@Override
+		DBQuery<?> getSubQuery() {
+			return s==null ? null : s.getUnderlyingQuery();
+		}
+
 		@Override
 		protected void getSQL(final StringBuffer sb, final List<Object> bindings, final SqlContext context) {
 			sb.append(' ');
@@ -741,18 +969,27 @@ public abstract class Condition {
 		}
 
 		@Override
-		boolean matches(final Table t) {
-			if (v!=null) {
-				if ("=".equals(cmp)) return v.equals(t.get(field));
-				if ("!=".equals(cmp)) return !v.equals(t.get(field));
-				throw new RuntimeException("operator "+ cmp +" unsupported in in-memory comparisons");
-			} else if (field2!=null) {
-				final Object a = t.get(field);
-				final Object b = t.get(field2);
-				return a == b || (a != null && a.equals(b));
-			} else {
-				return t.get(field) == null;
-			}
+		Evaluator.Predicate compile() {
+			if (s!=null) throw new RuntimeException("sub-queries cannot be applied to in-memory queries");
+			if (v==null && field2==null && o2==null) return new Unary(field, " is null").compile();
+			final Object other = v!=null ? v : field2!=null ? field2 : o2;
+			return Evaluator.compare(Evaluator.value(field), cmp, Evaluator.value(other));
+		}
+
+		@Override
+		int[] lookup(final InMemoryQuery<?> q) {
+			if (!isValue(v) || !"=".equals(cmp.trim())) return null;
+			final InMemoryIndex index = q.getIndex(field);
+			return index==null ? null : index.eq(v);
+		}
+
+		@Override
+		BitSet filter(final ColumnStore<?> store, final BitSet rows) {
+			if (s!=null) return null;
+			final ColumnStore.Column column = store.column(field);
+			if (column == null) return null;
+			if (v==null && field2==null && o2==null) return column.isNull(rows, true);
+			return isValue(v) ? column.compare(rows, cmp, v) : null;
 		}
 
 	}
@@ -770,22 +1007,29 @@ public abstract class Condition {
 		}
 
 		@Override
-		boolean matches(final Table t) {
-			if ((o1 instanceof SQLFunction) || (o2 instanceof SQLFunction)) {
-				throw new RuntimeException("Condition checking of functions cached queries not yet supported.");
-			}
-			final Object v1 = o1 instanceof Field ? t.get((Field) o1) : o1;
-			final Object v2 = o2 instanceof Field ? t.get((Field) o2) : o2;
-			return matches(v1, v2);
+		Evaluator.Predicate compile() {
+			return Evaluator.compare(Evaluator.value(o1), cmp, Evaluator.value(o2));
 		}
 
-		boolean matches(final Object v1, final Object v2) {
-			throw new RuntimeException("In memory checking of this condition type is not supported yet.");
+		@Override
+		int[] lookup(final InMemoryQuery<?> q) {
+			if (!(o1 instanceof Field) || !isValue(o2)) return null;
+			final String op = cmp.trim();
+			final boolean lt = "<".equals(op) || "<=".equals(op);
+			final boolean gt = ">".equals(op) || ">=".equals(op);
+			if (!"=".equals(op) && !lt && !gt) return null;
+			final InMemoryIndex index = q.getIndex((Field<?>) o1);
+			if (index == null) return null;
+			if ("=".equals(op)) return index.eq(o2);
+			final boolean inclusive = op.endsWith("=");
+			return lt ? index.range(null, false, o2, inclusive) : index.range(o2, inclusive, null, false);
 		}
 
-		Object deO(final Table t, final Object o) {
-			if (o instanceof Field) return t.get((Field) o);
-			return o;
+		@Override
+		BitSet filter(final ColumnStore<?> store, final BitSet rows) {
+			if (!(o1 instanceof Field) || !isValue(o2)) return null;
+			final ColumnStore.Column column = store.column((Field<?>) o1);
+			return column==null ? null : column.compare(rows, cmp, o2);
 		}
 
 		@Override
@@ -818,8 +1062,57 @@ public abstract class Condition {
 			}
 		}}
 
+	/**
+	 * Membership in a list. &nbsp; Collections are bound as a single array on postgres
+	 * ({@code = any(?)}). &nbsp; Elsewhere their bind lists are padded (by repeating the last
+	 * value) to the next power of two, so collections of varying sizes share a few statements
+	 * (and plans), and split into {@code in} lists of at most 1000 values (oracle's limit).
+	 * &nbsp; Arrays of more than 1000 values are treated the same way.
+	 */
 	static class In extends Condition {
 
+		private static final int MAX_LIST_SIZE = 1000;
+
+		/**
+		 * An array bound as one parameter.
+		 */
+		static class ArrayBinding {
+			final String type;
+			final Object[] values;
+			ArrayBinding(final String type, final Object[] values) {
+				this.type = type;
+				this.values = values;
+			}
+			@Override
+			public int hashCode() {
+				return Arrays.hashCode(values);
+			}
+			@Override
+			public boolean equals(final Object o) {
+				return o instanceof ArrayBinding && Arrays.equals(values, ((ArrayBinding) o).values);
+			}
+			@Override
+			public String toString() {
+				return Arrays.toString(values);
+			}
+		}
+
+		/**
+		 * @return the postgres array element type for this field, or null if it can't be bound as an array
+		 */
+		static String getArrayType(final Field<?> field) {
+			final Class<?> type = field.TYPE;
+			if (Integer.class.equals(type)) return "int4";
+			if (Long.class.equals(type)) return "int8";
+			if (Short.class.equals(type)) return "int2";
+			if (String.class.equals(type)) return "varchar";
+			if (Double.class.equals(type)) return "float8";
+			if (Float.class.equals(type)) return "float4";
+			if (java.math.BigDecimal.class.equals(type)) return "numeric";
+			if (Boolean.class.equals(type)) return "bool";
+			return null;
+		}
+
 		private final Field<?> field;
 		private final String cmp;
 		private final Object[] set;
@@ -841,6 +1134,15 @@ public abstract class Condition {
 
 		@Override
 		protected void getSQL(final StringBuffer sb, final List<Object> bindings, final SqlContext context) {
+			if (set2 != null && set2.size() > 0) {
+				getSQLForValues(sb, bindings, context, set2.toArray());
+				return;
+			}
+			if (set != null && set.length > MAX_LIST_SIZE && !hasFields(set)) {
+				// too long for one list on oracle
+				getSQLForValues(sb, bindings, context, set);
+				return;
+			}
 			sb.append(' ');
 			sb.append(Util.derefField(field, context));
 			sb.append(cmp);
@@ -857,43 +1159,141 @@ public abstract class Condition {
 					}
 					if (i<set.length-1) sb.append(",");
 				}
-			} else if (set2 != null && set2.size() > 0) {
-				int i = 0;
-				for (final Object v : set2) {
-					sb.append("?");
-					if (i<set2.size()-1) sb.append(",");
-					bindings.add(v);
-					++i;
-				}
 			} else {
 				sb.append("null");
 			}
 			sb.append(')');
 		}
 
+		private static boolean hasFields(final Object[] values) {
+			for (final Object v : values) {
+				if (v instanceof Field) return true;
+			}
+			return false;
+		}
+
+		private void getSQLForValues(final StringBuffer sb, final List<Object> bindings,
+				final SqlContext context, final Object[] values) {
+			final boolean not = cmp.trim().equalsIgnoreCase("not in");
+			final String arrayType = context!=null && context.dbType==DB_TYPE.POSTGRES ? getArrayType(field) : null;
+			if (arrayType != null) {
+				sb.append(' ');
+				sb.append(Util.derefField(field, context));
+				sb.append(not ? " <> all(?)" : " = any(?)");
+				bindings.add(new ArrayBinding(arrayType, values));
+				return;
+			}
+			final boolean chunked = values.length > MAX_LIST_SIZE;
+			if (chunked) sb.append(" (");
+			for (int start=0; start<values.length; start+=MAX_LIST_SIZE) {
+				if (start > 0) sb.append(not ? " and" : " or");
+				final int end = Math.min(values.length, start + MAX_LIST_SIZE);
+				sb.append(' ');
+				sb.append(Util.derefField(field, context));
+				sb.append(cmp);
+				sb.append('(');
+				final int size = Math.min(MAX_LIST_SIZE, paddedSize(end - start));
+				for (int i=0; i<size; ++i) {
+					if (i > 0) sb.append(",");
+					sb.append("?");
+					bindings.add(values[Math.min(start+i, end-1)]);
+				}
+				sb.append(')');
+			}
+			if (chunked) sb.append(')');
+		}
+
+		private static int paddedSize(final int n) {
+			return n <= 1 ? n : Integer.highestOneBit(n-1) << 1;
+		}
+
 		@Override
-		boolean matches(final Table t) {
-			boolean rev;
+		Evaluator.Predicate compile() {
+			final boolean rev;
 			if (cmp.trim().equalsIgnoreCase("in")) rev = false;
 			else if (cmp.trim().equalsIgnoreCase("not in")) rev = true;
 			else throw new IllegalStateException("unknown comparision function '"+ cmp
 					+"' for in-memory conditional check");
+			final Evaluator.Value value = Evaluator.value(field);
 			if (set != null && set.length > 0) {
-				for (int i=0; i<set.length; ++i) {
-					if (eq(t.get(field), set[i])) return rev ? false : true;
-				}
-				return rev ? true : false;
+				final Evaluator.Value[] values = new Evaluator.Value[set.length];
+				for (int i=0; i<set.length; ++i) values[i] = Evaluator.value(set[i]);
+				return new Evaluator.Predicate() {
+					@Override
+					boolean test(final Table t) {
+						final Object v = value.get(t);
+						if (v == null) return false;
+						boolean sawNull = false;
+						for (final Evaluator.Value x : values) {
+							final Object o = x.get(t);
+							if (o == null) sawNull = true;
+							else if (Evaluator.equal(v, o)) return !rev;
+						}
+						// "x not in (..., null)" is never true in SQL
+						return rev && !sawNull;
+					}
+				};
 			} else if (set2 != null && set2.size() > 0) {
-				final boolean v = set2.contains(t.get(field));
-				return rev ? !v : v;
+				final Set<Object> keys = new HashSet<Object>();
+				for (final Object o : set2) keys.add(Evaluator.key(o));
+				final boolean hasNull = keys.contains(null);
+				return new Evaluator.Predicate() {
+					@Override
+					boolean test(final Table t) {
+						final Object v = value.get(t);
+						if (v == null) return false;
+						if (keys.contains(Evaluator.key(v))) return !rev;
+						return rev && !hasNull;
+					}
+				};
 			} else {
-				return false;
+				return Evaluator.FALSE;
 			}
 		}
-	}
 
-	private static boolean eq(final Object a, final Object b) {
-		return a == b || (a != null && a.equals(b));
+		@Override
+		int[] lookup(final InMemoryQuery<?> q) {
+			if (!cmp.trim().equalsIgnoreCase("in")) return null;
+			final Collection<?> values;
+			if (set != null) {
+				for (final Object o : set) {
+					if (o != null && !isValue(o)) return null;
+				}
+				values = Arrays.asList(set);
+			} else {
+				values = set2;
+			}
+			final InMemoryIndex index = q.getIndex(field);
+			return index==null ? null : index.in(values);
+		}
+
+		@Override
+		BitSet filter(final ColumnStore<?> store, final BitSet rows) {
+			final boolean not = cmp.trim().equalsIgnoreCase("not in");
+			if (!not && !cmp.trim().equalsIgnoreCase("in")) return null;
+			final Collection<?> values;
+			if (set != null && set.length > 0) {
+				for (final Object o : set) {
+					if (o != null && !isValue(o)) return null;
+				}
+				values = Arrays.asList(set);
+			} else if (set2 != null && set2.size() > 0) {
+				values = set2;
+			} else {
+				return new BitSet();
+			}
+			final ColumnStore.Column column = store.column(field);
+			if (column == null) return null;
+			final BitSet in = column.in(rows, values);
+			if (!not) return in;
+			// "x not in (..., null)" is never true in SQL
+			for (final Object o : values) {
+				if (o == null) return new BitSet();
+			}
+			final BitSet ret = column.isNull(rows, false);
+			ret.andNot(in);
+			return ret;
+		}
 	}
 
 	static class Exists extends Condition {
@@ -907,19 +1307,29 @@ public abstract class Condition {
 			else s = null;
 		}
 
+		@Override
+		DBQuery<?> getSubQuery() {
+			return s==null ? null : s.getUnderlyingQuery();
+		}
+
 		@Override
 		public Condition not() {
 			return new Not(this, false);
 		}
 
 		@Override
-		boolean matches(final Table t) {
-			try {
-				return q.size() > 0;
-			} catch (final SQLException e) {
-				e.printStackTrace();
-				return false;
-			}
+		Evaluator.Predicate compile() {
+			return new Evaluator.Predicate() {
+				@Override
+				boolean test(final Table t) {
+					try {
+						return q.size() > 0;
+					} catch (final SQLException e) {
+						e.printStackTrace();
+						return false;
+					}
+				}
+			};
 		}
 
 		@Override
@@ -948,6 +1358,13 @@ public abstract class Condition {
 		v.visited(this);
 	}
 
+	/**
+	 * @return the database query this condition selects from (ie: {@code x in (select ...)}), if any
+	 */
+	DBQuery<?> getSubQuery() {
+		return null;
+	}
+
 	static interface Visitor {
 		void visited(Condition c);
 	}
@@ -42,6 +42,18 @@ public class Constants {
 		YEAR,;
 	}
 
+	/**
+	 * The file formats of {@code Query.snapshot(File, SNAPSHOT_FORMAT)}.
+	 *
+	 * @author Derek Anderson
+	 */
+	public static enum SNAPSHOT_FORMAT {
+		/** a SQLite database, read back with SQL (the default) */
+		SQLITE,
+		/** a binary file of typed rows, memory-mapped and readable by any number of threads */
+		MAPPED,
+	}
+
 	/**
 	 * Used for tweaking generated SQL by database type.
 	 * You can override the detected type by passing one of these constants
@@ -305,6 +317,96 @@ public class Constants {
 
 	public static final String PROPERTY_USE_PERSISTENCE_DB = "org.kered.dko.use_persistence_db";
 
+	/**
+	 * A Java property that turns on JDK Flight Recorder events for DKO's hot paths
+	 * (query execution, row batches, bulk batches, connection acquisition, local join
+	 * loads and usage monitor writes).  Requires a JVM with the {@code jdk.jfr} module.
+	 * Disabled by default.
+	 */
+	public static final String PROPERTY_JFR_EVENTS = "org.kered.dko.jfr_events";
+
+	/**
+	 * A Java property (in milliseconds) above which executed statements are recorded
+	 * in the {@code SlowQueryLog}.  A negative value turns the slow query log off.
+	 * By default: -1 (off)
+	 */
+	public static final String PROPERTY_SLOW_QUERY_THRESHOLD_MS = "org.kered.dko.slow_query_threshold_ms";
+
+	/**
+	 * A Java property that controls how many slow queries are kept in memory by the
+	 * {@code SlowQueryLog}.  By default: 128
+	 */
+	public static final String PROPERTY_SLOW_QUERY_LOG_SIZE = "org.kered.dko.slow_query_log_size";
+
+	/**
+	 * A Java property that controls if slow selects are re-run with {@code explainAsText()}
+	 * so their execution plans are recorded alongside them.  Disabled by default.
+	 */
+	public static final String PROPERTY_SLOW_QUERY_EXPLAIN = "org.kered.dko.slow_query_explain";
+
+	/**
+	 * A Java property that controls if slow queries are also written to the
+	 * persistence database (table {@code slow_query}).  Disabled by default.
+	 */
+	public static final String PROPERTY_SLOW_QUERY_PERSIST = "org.kered.dko.slow_query_persist";
+
+	/**
+	 * A Java property that controls how many rows the {@code EntityCache} (the primary key
+	 * cache consulted by {@code get(pk)} and lazy-loaded foreign keys) holds before evicting
+	 * the least recently used.  Zero turns the cache off.  By default: 0
+	 */
+	public static final String PROPERTY_ENTITY_CACHE_SIZE = "org.kered.dko.entity_cache_size";
+
+	/**
+	 * A Java property that controls how many query results the {@code ResultCache} (used by
+	 * queries marked with {@code Query.cache(ttl)}) holds before evicting the least recently
+	 * used.  Zero turns the cache off.  By default: 256
+	 */
+	public static final String PROPERTY_QUERY_CACHE_SIZE = "org.kered.dko.query_cache_size";
+
+	/**
+	 * A Java property that controls the largest query result (in rows) the {@code ResultCache}
+	 * will hold.  By default: 10000
+	 */
+	public static final String PROPERTY_QUERY_CACHE_MAX_ROWS = "org.kered.dko.query_cache_max_rows";
+
+	/**
+	 * A Java property that turns on batch loading of lazy foreign keys.  When a FK getter is
+	 * called on an object that came from a query, the referenced rows of every object read
+	 * in the same batch are loaded with one query (instead of one query per object).
+	 * Disabled by default.
+	 */
+	public static final String PROPERTY_BATCH_FK_LOADING = "org.kered.dko.batch_fk_loading";
+
+	/**
+	 * A Java property that controls the automatic prefetching of foreign keys.  When the
+	 * objects of a query created at a given line of code lazily follow a FK often enough,
+	 * later executions from that line prefetch it (with {@code .with(fk)} or batch loading).
+	 * The decisions are kept in the persistence database - see {@code AutoPrefetch}.
+	 * Disabled by default (set to "true" to enable).
+	 */
+	public static final String PROPERTY_AUTO_PREFETCH = "org.kered.dko.auto_prefetch";
+
+	/**
+	 * A Java property (a percentage of the objects read) above which a lazily followed FK
+	 * is automatically prefetched.  By default: 50
+	 */
+	public static final String PROPERTY_AUTO_PREFETCH_THRESHOLD = "org.kered.dko.auto_prefetch_threshold";
+
+	/**
+	 * A Java property that controls the number of threads of the default executor of the
+	 * asynchronous operations (see {@code Async}).  By default: 16
+	 */
+	public static final String PROPERTY_ASYNC_THREADS = "org.kered.dko.async_threads";
+
+	/**
+	 * A Java property that controls how many rows a query (without a {@code fetchSize()}) is
+	 * expected to return, based on the usage monitor's past row counts, before its results are
+	 * streamed from the database instead of read into memory by the JDBC driver.  Zero turns
+	 * this off.  By default: 10000
+	 */
+	public static final String PROPERTY_STREAMING_THRESHOLD = "org.kered.dko.streaming_threshold";
+
 	static enum JOIN_TYPE {
 
 		LEFT("left join"),
@@ -5,9 +5,14 @@ import java.sql.SQLException;
 import java.sql.Statement;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import javax.sql.DataSource;
 
@@ -59,13 +64,14 @@ public class Context {
 	 * @return the context for the current thread group
 	 */
 	public static Context getThreadGroupContext() {
+		final Context captured = capturedThreadGroupContext.get();
+		if (captured != null) return captured;
 		final ThreadGroup tg = Thread.currentThread().getThreadGroup();
-		Context context = threadGroupContexts.get(tg);
-		if (context == null) {
-			context = new Context();
-			threadGroupContexts.put(tg, context);
-		}
-		return context;
+		final Context context = threadGroupContexts.get(tg);
+		if (context != null) return context;
+		final Context newContext = new Context();
+		final Context existing = threadGroupContexts.putIfAbsent(tg, newContext);
+		return existing==null ? newContext : existing;
 	}
 
 	/**
@@ -77,49 +83,26 @@ public class Context {
 
 	static DataSource getDataSource(final Class<? extends Table> cls) {
 		// don't let DB overrides effect persistence classes
-		if (QuerySize.class.getPackage().equals(cls.getPackage())) return null;
+		final Package pkg = cls.getPackage();
+		if (PERSISTENCE_PACKAGE.equals(pkg)) return null;
 		
 		final Context[] contexts = {getThreadContext(), getThreadGroupContext(), getVMContext()};
 		for (final Context context : contexts) {
-			DataSource ds = null;
-
-			Map<UUID, DataSource> x = context.classDataSources.get(cls);
-			if (x != null) {
-				synchronized(x) {
-					for (final DataSource tmp : x.values()) { ds = tmp; }
-				}
-				if (ds != null) return ds;
-			}
-
-			//System.err.println("woot2 "+ context);
-			x = context.packageDataSources.get(cls.getPackage());
-			if (x != null) {
-				synchronized(x) {
-					for (final DataSource tmp : x.values()) { ds = tmp; }
-				}
-				//System.err.println("woot2.1 "+ ds);
-				if (ds != null) return ds;
-			}
-
-			//System.err.println("woot3 "+ context);
-			synchronized(context.defaultDataSource) {
-				for (final DataSource tmp : context.defaultDataSource.values()) { ds = tmp; }
-			}
+			final Resolved r = context.resolved();
+			DataSource ds = r.classDataSources.get(cls);
 			if (ds != null) return ds;
+			ds = r.packageDataSources.get(pkg);
+			if (ds != null) return ds;
+			if (r.defaultDataSource != null) return r.defaultDataSource;
 		}
 		return null;
 	}
 
 	static String getSchemaToUse(final DataSource ds, final String originalSchema) {
 		final Tuple2<DataSource, String> key = new Tuple2<DataSource,String>(ds, originalSchema);
-		String schema = null;
 		final Context[] contexts = {getThreadContext(), getThreadGroupContext(), getVMContext()};
 		for (final Context context : contexts) {
-			final Map<UUID, String> x = context.schemaOverrides.get(key);
-			if (x == null) continue;
-			synchronized(x) {
-				for (final String tmp : x.values()) { schema = tmp; }
-			}
+			final String schema = context.resolved().schemaOverrides.get(key);
 			if (schema != null) return schema;
 		}
 		return originalSchema;
@@ -128,12 +111,7 @@ public class Context {
 	static boolean usageWarningsEnabled() {
 		final Context[] contexts = {getThreadContext(), getThreadGroupContext(), getVMContext()};
 		for (final Context context : contexts) {
-			Boolean x = null;
-			synchronized(context.enableUsageWarnings) {
-				for (final Boolean v : context.enableUsageWarnings.values()) {
-					x = v;
-				}
-			}
+			final Boolean x = context.resolved().enableUsageWarnings;
 			if (x != null) return x;
 		}
 		String prop = System.getProperty(Constants.PROPERTY_WARN_EXCESSIVE_LAZY_LOADING);
@@ -145,12 +123,7 @@ public class Context {
 	static boolean selectOptimizationsEnabled() {
 		final Context[] contexts = {getThreadContext(), getThreadGroupContext(), getVMContext()};
 		for (final Context context : contexts) {
-			Boolean x = null;
-			synchronized(context.enableSelectOptimizations) {
-				for (final Boolean v : context.enableSelectOptimizations.values()) {
-					x = v;
-				}
-			}
+			final Boolean x = context.resolved().enableSelectOptimizations;
 			if (x != null) return x;
 		}
 		String prop = System.getProperty(Constants.PROPERTY_OPTIMIZE_SELECT_FIELDS);
@@ -159,12 +132,114 @@ public class Context {
 		return true;
 	}
 
+	/**
+	 * Calls a task with the given contexts standing in for the current thread's thread and
+	 * thread-group contexts, restoring the thread's own afterwards.
+	 */
+	static <V> V callWithContexts(final Context threadContext, final Context threadGroupContext,
+			final Callable<V> task) throws Exception {
+		final Context oldThreadContext = threadContextContainer.get();
+		final Context oldThreadGroupContext = capturedThreadGroupContext.get();
+		threadContextContainer.set(threadContext);
+		capturedThreadGroupContext.set(threadGroupContext);
+		try {
+			return task.call();
+		} finally {
+			threadContextContainer.set(oldThreadContext);
+			capturedThreadGroupContext.set(oldThreadGroupContext);
+		}
+	}
+
+	/**
+	 * @return a new context with this context's current settings (data sources, schema
+	 * overrides, etc.) and recent writes, but none of its transactions or units of work
+	 */
+	Context copySettings() {
+		final Resolved r = resolved();
+		final Context ret = new Context();
+		final UUID uuid = UUID.randomUUID();
+		for (final Map.Entry<Class<?>,DataSource> e : r.classDataSources.entrySet()) {
+			ret.classDataSources.put(e.getKey(), single(uuid, e.getValue()));
+		}
+		for (final Map.Entry<Package,DataSource> e : r.packageDataSources.entrySet()) {
+			ret.packageDataSources.put(e.getKey(), single(uuid, e.getValue()));
+		}
+		if (r.defaultDataSource != null) ret.defaultDataSource.put(uuid, r.defaultDataSource);
+		for (final Map.Entry<Tuple2<DataSource,String>,String> e : r.schemaOverrides.entrySet()) {
+			ret.schemaOverrides.put(e.getKey(), single(uuid, e.getValue()));
+		}
+		if (r.enableUsageWarnings != null) ret.enableUsageWarnings.put(uuid, r.enableUsageWarnings);
+		if (r.enableSelectOptimizations != null) ret.enableSelectOptimizations.put(uuid, r.enableSelectOptimizations);
+		ret.lastWrites.putAll(lastWrites);
+		return ret;
+	}
+
+	private static <V> Map<UUID,V> single(final UUID uuid, final V v) {
+		final Map<UUID,V> ret = Collections.synchronizedMap(new LinkedHashMap<UUID,V>());
+		ret.put(uuid, v);
+		return ret;
+	}
+
+	/**
+	 * Records that the current thread wrote through this data source (for read-your-writes
+	 * routing), once the write is committed.
+	 */
+	static void noteWrite(final DataSource ds) {
+		getThreadContext().lastWrites.put(ds, System.currentTimeMillis());
+	}
+
+	/**
+	 * @return true if the current thread wrote through this data source in the last {@code millis}
+	 */
+	static boolean wroteWithin(final DataSource ds, final long millis) {
+		if (millis <= 0 || ds == null) return false;
+		final Long last = getThreadContext().lastWrites.get(ds);
+		return last != null && last > System.currentTimeMillis() - millis;
+	}
+
+	/**
+	 * Records that a statement wrote to this table through this data source. &nbsp; Inside a
+	 * transaction it's recorded on the transaction, so the table's caches are invalidated again
+	 * when it ends (invalidating only when the statement runs would let another thread re-cache
+	 * the row as it was before the commit) and the write is noted for read-your-writes routing
+	 * when it commits. &nbsp; Otherwise the write has already been committed and is noted now.
+	 */
+	static void noteTableWrite(final DataSource ds, final Class<? extends Table> type) {
+		if (ds == null || type == null) return;
+		Context context = getThreadContext();
+		if (!context.transactionConnections.containsKey(ds)) context = getThreadGroupContext();
+		if (!context.transactionConnections.containsKey(ds)) context = getVMContext();
+		if (!context.transactionConnections.containsKey(ds)) {
+			DBQuery.noteCommittedWrite(ds);
+			return;
+		}
+		Set<Class<? extends Table>> types = context.transactionWrites.get(ds);
+		if (types == null) {
+			types = Collections.synchronizedSet(new HashSet<Class<? extends Table>>());
+			final Set<Class<? extends Table>> existing = context.transactionWrites.putIfAbsent(ds, types);
+			if (existing != null) types = existing;
+		}
+		types.add(type);
+	}
+
+	private void invalidateTransactionWrites(final DataSource ds) {
+		final Set<Class<? extends Table>> types = transactionWrites.remove(ds);
+		if (types == null) return;
+		synchronized (types) {
+			for (final Class<? extends Table> type : types) {
+				EntityCache.invalidate(type);
+				ResultCache.invalidate(type);
+			}
+		}
+	}
+
 	/**
 	 * Returns true if currently inside a transaction.
 	 * @param ds
 	 * @return
 	 */
 	public static boolean inTransaction(final DataSource ds) {
+		if (ds == null) return false;
 		boolean isInTransaction = getThreadContext().transactionConnections.containsKey(ds);
 		if (isInTransaction) return true;
 		isInTransaction = getThreadGroupContext().transactionConnections.containsKey(ds);
@@ -178,6 +253,7 @@ public class Context {
 	 * @return null is not currently in a transaction
 	 */
 	public static Connection getConnection(final DataSource ds) {
+		if (ds == null) return null;
 		Connection c = getThreadContext().transactionConnections.get(ds);
 		if (c == null) c = getThreadGroupContext().transactionConnections.get(ds);
 		if (c == null) c = getVMContext().transactionConnections.get(ds);
@@ -193,7 +269,7 @@ public class Context {
 	public boolean startTransaction(final DataSource ds) throws SQLException {
 		Connection c = transactionConnections.get(ds);
 		if (c != null) return false;
-		c = ds.getConnection();
+		c = DBQuery.connect(ds, false);
 		if (Constants.DB_TYPE.detect(ds)==Constants.DB_TYPE.SQLITE3) {
 			Statement stmt = c.createStatement();
 			try {
@@ -220,20 +296,26 @@ public class Context {
 	public boolean commitTransaction(final DataSource ds) throws SQLException {
 		final Connection c = transactionConnections.remove(ds);
 		if (c == null) return false;
-		if (Constants.DB_TYPE.detect(ds)==Constants.DB_TYPE.SQLITE3) {
-			Statement stmt = c.createStatement();
-			try {
-				String sql = "commit";
-				Util.log(sql, null);
-				stmt.execute(sql);
-			} finally {
-				stmt.close();
+		final boolean wrote = transactionWrites.containsKey(ds);
+		try {
+			if (Constants.DB_TYPE.detect(ds)==Constants.DB_TYPE.SQLITE3) {
+				Statement stmt = c.createStatement();
+				try {
+					String sql = "commit";
+					Util.log(sql, null);
+					stmt.execute(sql);
+				} finally {
+					stmt.close();
+				}
+			} else {
+				Util.log("connection.commit()", null);
+				c.commit();
 			}
-		} else {
-			Util.log("connection.commit()", null);
-			c.commit();
+			c.close();
+		} finally {
+			invalidateTransactionWrites(ds);
 		}
-		c.close();
+		if (wrote) DBQuery.noteCommittedWrite(ds);
 		return true;
 	}
 
@@ -274,6 +356,7 @@ public class Context {
 			} catch (final SQLException e2) {
 				e2.printStackTrace();
 			}
+			invalidateTransactionWrites(ds);
 			return false;
 		}
 		try {
@@ -281,6 +364,7 @@ public class Context {
 		} catch (final SQLException e) {
 			e.printStackTrace();
 		}
+		invalidateTransactionWrites(ds);
 		return true;
 	}
 
@@ -300,10 +384,89 @@ public class Context {
 			throw e;
 		} finally {
 			c.close();
+			invalidateTransactionWrites(ds);
 		}
 		return true;
 	}
 
+	/**
+	 * Starts a unit of work. &nbsp; Until it's committed, inserts and updates through this
+	 * {@code DataSource} (by anything using this context) aren't run right away, but are
+	 * collected and then run by {@code commitUnitOfWork()} in the order they were made, as
+	 * JDBC batches (one per run of statements on the same table and columns). &nbsp; Only
+	 * updates of one row by its primary key are deferred: they report one row updated, and the
+	 * flush fails if that's not what they did. &nbsp; Errors are only thrown at commit. &nbsp;
+	 * Reads don't see the pending writes until they're flushed: deletes, and inserts and
+	 * updates that can't be deferred (such as inserts relying on a generated key), flush them
+	 * first, as do reads by primary key of a row waiting to be inserted (so {@code save()}
+	 * sees it) and {@code flushUnitOfWork()}.
+	 * @param ds
+	 * @return false if a unit of work was already started
+	 */
+	public boolean startUnitOfWork(final DataSource ds) {
+		return unitsOfWork.putIfAbsent(ds, new UnitOfWork(ds)) == null;
+	}
+
+	/**
+	 * Runs the writes of the current unit of work, which stays open.
+	 * @param ds
+	 * @return the number of statements run
+	 * @throws SQLException
+	 */
+	public int flushUnitOfWork(final DataSource ds) throws SQLException {
+		final UnitOfWork uow = unitsOfWork.get(ds);
+		return uow==null ? 0 : uow.flush();
+	}
+
+	/**
+	 * Runs the writes of the current unit of work in one transaction (or in the current one,
+	 * if there is one) and ends it.
+	 * @param ds
+	 * @return false if no unit of work was started
+	 * @throws SQLException
+	 */
+	public boolean commitUnitOfWork(final DataSource ds) throws SQLException {
+		final UnitOfWork uow = unitsOfWork.remove(ds);
+		if (uow == null) return false;
+		if (uow.size() == 0) return true;
+		final Context tc = getThreadContext();
+		final boolean startedTransaction = !inTransaction(ds) && tc.startTransaction(ds);
+		try {
+			uow.flush();
+		} catch (final SQLException e) {
+			if (startedTransaction) tc.rollbackTransaction(ds);
+			throw e;
+		} catch (final RuntimeException e) {
+			if (startedTransaction) tc.rollbackTransaction(ds);
+			throw e;
+		}
+		if (startedTransaction) tc.commitTransaction(ds);
+		return true;
+	}
+
+	/**
+	 * Discards the writes of the current unit of work that haven't been flushed yet and ends it.
+	 * @param ds
+	 * @return false if no unit of work was started
+	 */
+	public boolean rollbackUnitOfWork(final DataSource ds) {
+		final UnitOfWork uow = unitsOfWork.remove(ds);
+		if (uow == null) return false;
+		uow.clear();
+		return true;
+	}
+
+	/**
+	 * @return the unit of work (from the thread, thread group or vm context) for this data source, or null
+	 */
+	static UnitOfWork getUnitOfWork(final DataSource ds) {
+		if (ds == null) return null;
+		UnitOfWork uow = getThreadContext().unitsOfWork.get(ds);
+		if (uow == null) uow = getThreadGroupContext().unitsOfWork.get(ds);
+		if (uow == null) uow = getVMContext().unitsOfWork.get(ds);
+		return uow;
+	}
+
 	/**
 	 * @deprecated Use {@link #overrideDatabaseName(DataSource,String,String)} instead
 	 */
@@ -329,11 +492,13 @@ public class Context {
 		}
 		final UUID uuid = UUID.randomUUID();
 		map.put(uuid, newDatabaseName);
+		changed();
 		final Map<UUID, String> map2 = map;
 		return new Undoer() {
 			@Override
 			public void undo() {
 				map2.remove(uuid);
+				changed();
 			}
 		};
 	}
@@ -348,10 +513,12 @@ public class Context {
 	public Undoer setDataSource(final DataSource ds) {
 		final UUID uuid = UUID.randomUUID();
 		defaultDataSource.put(uuid, ds);
+		changed();
 		return new Undoer() {
 			@Override
 			public void undo() {
 				defaultDataSource.remove(uuid);
+				changed();
 			}
 		};
 	}
@@ -373,11 +540,13 @@ public class Context {
 		}
 		final UUID uuid = UUID.randomUUID();
 		map.put(uuid, ds);
+		changed();
 		final Map<UUID, DataSource> map2 = map;
 		return new Undoer() {
 			@Override
 			public void undo() {
 				map2.remove(uuid);
+				changed();
 			}
 		};
 	}
@@ -396,11 +565,13 @@ public class Context {
 		}
 		final UUID uuid = UUID.randomUUID();
 		map.put(uuid, ds);
+		changed();
 		final Map<UUID, DataSource> map2 = map;
 		return new Undoer() {
 			@Override
 			public void undo() {
 				map2.remove(uuid);
+				changed();
 			}
 		};
 	}
@@ -414,10 +585,12 @@ public class Context {
 	public Undoer enableUsageWarnings(final boolean enable) {
 		final UUID uuid = UUID.randomUUID();
 		enableUsageWarnings.put(uuid, enable);
+		changed();
 		return new Undoer() {
 			@Override
 			public void undo() {
 				enableUsageWarnings.remove(uuid);
+				changed();
 			}
 		};
 	}
@@ -430,10 +603,12 @@ public class Context {
 	public Undoer enableSelectOptimizations(final boolean enable) {
 		final UUID uuid = UUID.randomUUID();
 		enableSelectOptimizations.put(uuid, enable);
+		changed();
 		return new Undoer() {
 			@Override
 			public void undo() {
 				enableSelectOptimizations.remove(uuid);
+				changed();
 			}
 		};
 	}
@@ -463,8 +638,13 @@ public class Context {
 
 	private static Context vmContext = new Context();
 
-	private static Map<ThreadGroup,Context> threadGroupContexts =
-			Collections.synchronizedMap(new HashMap<ThreadGroup,Context>());
+	private static final Package PERSISTENCE_PACKAGE = QuerySize.class.getPackage();
+
+	private static ConcurrentMap<ThreadGroup,Context> threadGroupContexts =
+			new ConcurrentHashMap<ThreadGroup,Context>();
+
+	/** set while running an async task with the submitting thread's thread-group context */
+	private static ThreadLocal<Context> capturedThreadGroupContext = new ThreadLocal<Context>();
 
 	private static ThreadLocal<Context> threadContextContainer = new ThreadLocal<Context>() {
 		@Override
@@ -492,6 +672,78 @@ public class Context {
 			Collections.synchronizedMap(new LinkedHashMap<Class<?>,Map<UUID,DataSource>>());
 
 	private final Map<DataSource,Connection> transactionConnections =
-			Collections.synchronizedMap(new HashMap<DataSource,Connection>());
+			new ConcurrentHashMap<DataSource,Connection>();
+
+	private final Map<DataSource,Long> lastWrites =
+			new ConcurrentHashMap<DataSource,Long>();
+
+	private final ConcurrentMap<DataSource,Set<Class<? extends Table>>> transactionWrites =
+			new ConcurrentHashMap<DataSource,Set<Class<? extends Table>>>();
+
+	private final ConcurrentMap<DataSource,UnitOfWork> unitsOfWork =
+			new ConcurrentHashMap<DataSource,UnitOfWork>();
+
+	/**
+	 * What this context's settings currently resolve to (the most recent value of each), so
+	 * looking them up on every query doesn't lock the maps above. &nbsp; Rebuilt after a change.
+	 */
+	private static class Resolved {
+		final Map<Class<?>,DataSource> classDataSources = new HashMap<Class<?>,DataSource>();
+		final Map<Package,DataSource> packageDataSources = new HashMap<Package,DataSource>();
+		DataSource defaultDataSource = null;
+		final Map<Tuple2<DataSource,String>,String> schemaOverrides = new HashMap<Tuple2<DataSource,String>,String>();
+		Boolean enableUsageWarnings = null;
+		Boolean enableSelectOptimizations = null;
+	}
+
+	private volatile Resolved resolved = null;
+
+	private Resolved resolved() {
+		final Resolved r = resolved;
+		return r==null ? resolve() : r;
+	}
+
+	private synchronized Resolved resolve() {
+		if (resolved != null) return resolved;
+		final Resolved r = new Resolved();
+		synchronized (classDataSources) {
+			for (final Map.Entry<Class<?>,Map<UUID,DataSource>> e : classDataSources.entrySet()) {
+				final DataSource ds = last(e.getValue());
+				if (ds != null) r.classDataSources.put(e.getKey(), ds);
+			}
+		}
+		synchronized (packageDataSources) {
+			for (final Map.Entry<Package,Map<UUID,DataSource>> e : packageDataSources.entrySet()) {
+				final DataSource ds = last(e.getValue());
+				if (ds != null) r.packageDataSources.put(e.getKey(), ds);
+			}
+		}
+		r.defaultDataSource = last(defaultDataSource);
+		synchronized (schemaOverrides) {
+			for (final Map.Entry<Tuple2<DataSource,String>,Map<UUID,String>> e : schemaOverrides.entrySet()) {
+				final String schema = last(e.getValue());
+				if (schema != null) r.schemaOverrides.put(e.getKey(), schema);
+			}
+		}
+		r.enableUsageWarnings = last(enableUsageWarnings);
+		r.enableSelectOptimizations = last(enableSelectOptimizations);
+		resolved = r;
+		return r;
+	}
+
+	/**
+	 * Called after every change to this context's settings.
+	 */
+	private synchronized void changed() {
+		resolved = null;
+	}
+
+	private static <V> V last(final Map<UUID,V> map) {
+		V ret = null;
+		synchronized (map) {
+			for (final V v : map.values()) ret = v;
+		}
+		return ret;
+	}
 
 }
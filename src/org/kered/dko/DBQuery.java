@@ -55,7 +55,7 @@ class DBQuery<T extends Table> extends AbstractQuery<T> {
 	private Set<Field<?>> groupBySet = null;
 	private List<Expression.OrderBy<?>> orderByExpressions = null;
 	long top = 0;
-	private Map<Field<?>,Object> data = null;
+	Map<Field<?>,Object> data = null;
 	boolean distinct = false;
 	DataSource ds = null;
 	DataSource defaultDS = null;
@@ -65,6 +65,12 @@ class DBQuery<T extends Table> extends AbstractQuery<T> {
 	private boolean onlySelectFromFirstTableAndJoins = true;
 	List<Union<T>> unions = null;
 	private Integer timeout = null;
+	long cacheTTL = 0;
+	List<FK<?>[]> separatePaths = null;
+	int parallelism = 0;
+	boolean parallelInPKOrder = false;
+	int fetchSize = 0;
+	int readAhead = 0;
 
 	private TableInfo addTable(final Class<? extends Table> table) {
 		final String tableName = genTableName(table, usedTableNames);
@@ -134,6 +140,14 @@ class DBQuery<T extends Table> extends AbstractQuery<T> {
 			unions = new ArrayList<Union<T>>(q.unions);
 		}
 		timeout = q.timeout;
+		cacheTTL = q.cacheTTL;
+		if (q.separatePaths!=null) {
+			separatePaths = new ArrayList<FK<?>[]>(q.separatePaths);
+		}
+		parallelism = q.parallelism;
+		parallelInPKOrder = q.parallelInPKOrder;
+		fetchSize = q.fetchSize;
+		readAhead = q.readAhead;
 	}
 
 	DBQuery(final Class<T> tableClass) {
@@ -244,7 +258,15 @@ class DBQuery<T extends Table> extends AbstractQuery<T> {
 	@Override
 	public Iterator<T> iterator() {
 		//sanityCheckToManyJoins();
-		return new SelectFromOAI<T>(this);
+		try {
+			flushPendingInsert();
+		} catch (final SQLException e) {
+			throw new RuntimeException(e);
+		}
+		if (parallelism > 1 && canRunInParallel()) return ParallelScan.iterator(this);
+		final SelectFromOAI<T> i = new SelectFromOAI<T>(this);
+		if (separatePaths == null) return i;
+		return new SeparatePrefetch<T>(i, separatePaths, getDataSource());
 	}
 
 	@Override
@@ -296,12 +318,31 @@ class DBQuery<T extends Table> extends AbstractQuery<T> {
 	}
 
 	static Tuple2<Connection,Boolean> getConnR(final DataSource ds) throws SQLException {
+		final Object event = FlightRecorderEvents.begin(FlightRecorderEvents.Type.CONNECTION_ACQUIRE);
+		final Tuple2<Connection,Boolean> ret = getConnRImpl(ds);
+		if (event!=null) FlightRecorderEvents.commit(event, String.valueOf(ds), true, !ret.b);
+		return ret;
+	}
+
+	private static Tuple2<Connection,Boolean> getConnRImpl(final DataSource ds) throws SQLException {
 		if (Context.inTransaction(ds)) {
 			return new Tuple2<Connection,Boolean>(Context.getConnection(ds), false);
 		}
+		final MirroredDataSource mirrored = getMirroredDataSource(ds);
+		if (mirrored != null && !Context.wroteWithin(ds, mirrored.getReadYourWritesMillis())) {
+			return new Tuple2<Connection,Boolean>(mirrored.getMirroredConnection(), true);
+		}
+		return new Tuple2<Connection,Boolean>(ds.getConnection(), true);
+	}
+
+	/**
+	 * @return the {@code MirroredDataSource} this is or wraps, or null
+	 */
+	private static MirroredDataSource getMirroredDataSource(final DataSource ds) throws SQLException {
+		if (ds instanceof MirroredDataSource) return (MirroredDataSource) ds;
 		try {
 			if (ds.isWrapperFor(MirroredDataSource.class)) {
-				return new Tuple2<Connection,Boolean>(ds.unwrap(MirroredDataSource.class).getMirroredConnection(), true);
+				return ds.unwrap(MirroredDataSource.class);
 			}
 		} catch (final AbstractMethodError e) {
 			/* ignore - mysql doesn't implement this method */
@@ -314,18 +355,49 @@ class DBQuery<T extends Table> extends AbstractQuery<T> {
 				throw e;
 			}
 		}
-		return new Tuple2<Connection,Boolean>(ds.getConnection(), true);
+		return null;
+	}
+
+	/**
+	 * Opens a connection outside of any transaction, for the code paths that don't go through
+	 * {@code getConnR()} or {@code getConnRW()} (so every connection DKO takes is recorded).
+	 */
+	static Connection connect(final DataSource ds, final boolean readOnly) throws SQLException {
+		final Object event = FlightRecorderEvents.begin(FlightRecorderEvents.Type.CONNECTION_ACQUIRE);
+		final Connection ret = ds.getConnection();
+		if (event!=null) FlightRecorderEvents.commit(event, String.valueOf(ds), readOnly, false);
+		return ret;
 	}
 
 	static Tuple2<Connection,Boolean> getConnRW(final DataSource ds) throws SQLException {
+		final Object event = FlightRecorderEvents.begin(FlightRecorderEvents.Type.CONNECTION_ACQUIRE);
+		final Tuple2<Connection,Boolean> ret;
 		if (Context.inTransaction(ds)) {
-			return new Tuple2<Connection,Boolean>(Context.getConnection(ds), false);
+			ret = new Tuple2<Connection,Boolean>(Context.getConnection(ds), false);
+		} else {
+			ret = new Tuple2<Connection,Boolean>(ds.getConnection(), true);
+		}
+		if (event!=null) FlightRecorderEvents.commit(event, String.valueOf(ds), false, !ret.b);
+		return ret;
+	}
+
+	/**
+	 * Notes a committed write through this data source, if it's mirrored with read-your-writes
+	 * routing. &nbsp; Called after the write (or the transaction it was in) is committed, not
+	 * when its connection is taken, so the mirror's lag is measured from when it could see it.
+	 */
+	static void noteCommittedWrite(final DataSource ds) {
+		try {
+			final MirroredDataSource mirrored = getMirroredDataSource(ds);
+			if (mirrored != null && mirrored.getReadYourWritesMillis() > 0) Context.noteWrite(ds);
+		} catch (final SQLException e) {
+			e.printStackTrace();
 		}
-		return new Tuple2<Connection,Boolean>(ds.getConnection(), true);
 	}
 
 	@Override
 	public long count() throws SQLException {
+		flushPendingInsert();
 		final SqlContext context = new SqlContext(this);
 		initTableNameMap(true);
 		final List<Object> bindings = new ArrayList<Object>();
@@ -338,6 +410,7 @@ class DBQuery<T extends Table> extends AbstractQuery<T> {
 		Util.log(sql, bindings);
 		PreparedStatement ps;
 		try {
+			final long start = System.nanoTime();
 			_preExecute(context, conn);
 			ps = createPS(sql, conn);
 			setBindings(ps, bindings);
@@ -348,6 +421,7 @@ class DBQuery<T extends Table> extends AbstractQuery<T> {
 			rs.close();
 			ps.close();
 			_postExecute(context, conn);
+			SlowQueryLog.check(this, sql, bindings, count, System.nanoTime() - start, false);
 			return count;
 		} catch (final SQLException e) {
 			throw e;
@@ -410,6 +484,16 @@ class DBQuery<T extends Table> extends AbstractQuery<T> {
 
 	@Override
 	public int update() throws SQLException {
+		try {
+			return updateImpl();
+		} finally {
+			EntityCache.invalidate(this);
+			ResultCache.invalidate(ofType);
+			Context.noteTableWrite(getDataSource(), ofType);
+		}
+	}
+
+	private int updateImpl() throws SQLException {
 		final SqlContext context = new SqlContext(this);
 		if (data==null || data.size()==0) return 0;
 		final DataSource ds = getDataSource();
@@ -453,10 +537,13 @@ class DBQuery<T extends Table> extends AbstractQuery<T> {
 		bindings.addAll(wcab.b);
 		final String sql = sb.toString();
 
+		final UnitOfWork uow = Context.getUnitOfWork(ds);
+		if (uow != null && uow.defer(this, false, sql, bindings)) return UnitOfWork.DEFERRED_UPDATE_COUNT;
 		Util.log(sql, bindings);
 		final Tuple2<Connection,Boolean> info = getConnRW(ds);
 		final Connection conn = info.a;
 		try {
+			final long start = System.nanoTime();
 			final PreparedStatement ps = createPS(sql, conn);
 			setBindings(ps, bindings);
 			_preExecute(context, conn);
@@ -464,6 +551,7 @@ class DBQuery<T extends Table> extends AbstractQuery<T> {
 			final int count = ps.getUpdateCount();
 			ps.close();
 			_postExecute(context, conn);
+			SlowQueryLog.check(this, sql, bindings, count, System.nanoTime() - start, false);
 			return count;
 		} finally {
 			if (info.b) {
@@ -475,9 +563,21 @@ class DBQuery<T extends Table> extends AbstractQuery<T> {
 
 	@Override
 	public int delete() throws SQLException {
+		try {
+			return deleteImpl();
+		} finally {
+			EntityCache.invalidate(this);
+			ResultCache.invalidate(ofType);
+			Context.noteTableWrite(getDataSource(), ofType);
+		}
+	}
+
+	private int deleteImpl() throws SQLException {
 		final DBQuery<T> q = new DBQuery<T>(this);
 		final SqlContext context = new SqlContext(q);
 		final DataSource ds = getDataSource();
+		final UnitOfWork uow = Context.getUnitOfWork(ds);
+		if (uow != null) uow.flush();
 		final Tuple2<Connection,Boolean> info = q.getConnRW(ds);
 		final Connection conn = info.a;
 		q.initTableNameMap(true);
@@ -492,22 +592,26 @@ class DBQuery<T extends Table> extends AbstractQuery<T> {
 						"is not yet supported");
 				final String sql = "delete from " + schemaWithDot + Util.getTableName(ofType) + wcab.a;
 				Util.log(sql, wcab.b);
+				final long start = System.nanoTime();
 				final PreparedStatement ps = createPS(sql, conn);
 				q.setBindings(ps, wcab.b);
 				ps.execute();
 				final int count = ps.getUpdateCount();
 				ps.close();
+				SlowQueryLog.check(q, sql, wcab.b, count, System.nanoTime() - start, false);
 				return count;
 			} else if (getDBType()==DB_TYPE.SQLITE3) {
 				if (q.tableInfos.size() > 1 || !q.joins.isEmpty()) throw new RuntimeException("SQLITE3 multi-table delete " +
 						"is not yet supported");
 				final String sql = "delete from " + schemaWithDot + Util.getTableName(ofType) + wcab.a;
 				Util.log(sql, wcab.b);
+				final long start = System.nanoTime();
 				final PreparedStatement ps = createPS(sql, conn);
 				q.setBindings(ps, wcab.b);
 				ps.execute();
 				final int count = ps.getUpdateCount();
 				ps.close();
+				SlowQueryLog.check(q, sql, wcab.b, count, System.nanoTime() - start, false);
 				return count;
 			} else if (getDBType()==DB_TYPE.SQLSERVER) {
 				if (q.tableInfos.size() > 1 || !q.joins.isEmpty()) throw new RuntimeException("SQLSERVER multi-table delete " +
@@ -515,22 +619,26 @@ class DBQuery<T extends Table> extends AbstractQuery<T> {
 				if (!"".equals(schemaWithDot)) schemaWithDot = schemaWithDot + ".";
 				final String sql = "delete from "+ schemaWithDot + Util.getTableName(ofType) + wcab.a;
 				Util.log(sql, wcab.b);
+				final long start = System.nanoTime();
 				final PreparedStatement ps = createPS(sql, conn);
 				q.setBindings(ps, wcab.b);
 				ps.execute();
 				final int count = ps.getUpdateCount();
 				ps.close();
+				SlowQueryLog.check(q, sql, wcab.b, count, System.nanoTime() - start, false);
 				return count;
 			} else {
 				if (q.tableInfos.size() > 1 || !q.joins.isEmpty()) throw new RuntimeException("multi-table delete " +
 						"is not yet supported");
 				final String sql = "delete from " + schemaWithDot + Util.getTableName(ofType) + wcab.a;
 				Util.log(sql, wcab.b);
+				final long start = System.nanoTime();
 				final PreparedStatement ps = createPS(sql, conn);
 				q.setBindings(ps, wcab.b);
 				ps.execute();
 				final int count = ps.getUpdateCount();
 				ps.close();
+				SlowQueryLog.check(q, sql, wcab.b, count, System.nanoTime() - start, false);
 				return count;
 			}
 		} finally {
@@ -824,6 +932,20 @@ class DBQuery<T extends Table> extends AbstractQuery<T> {
 
 	@Override
 	public Object insert() throws SQLException {
+		try {
+			return insertImpl();
+		} finally {
+			// new rows can't be cached (misses aren't), so only an entry for this PK could be stale
+			if (EntityCache.isEnabled()) {
+				final List<Object> pk = getPKLookupValues();
+				if (pk != null) EntityCache.invalidate(this);
+			}
+			ResultCache.invalidate(ofType);
+			Context.noteTableWrite(getDataSource(), ofType);
+		}
+	}
+
+	private Object insertImpl() throws SQLException {
 		final DBQuery<T> q = new DBQuery<T>(this);
 		final SqlContext context = new SqlContext(q);
 		final DataSource ds = getDataSource();
@@ -850,6 +972,8 @@ class DBQuery<T extends Table> extends AbstractQuery<T> {
 		sb.append(")");
 		final String sql = sb.toString();
 
+		final UnitOfWork uow = Context.getUnitOfWork(ds);
+		if (uow != null && uow.defer(q, true, sql, bindings)) return null;
 		Util.log(sql, bindings);
 		final Tuple2<Connection,Boolean> info = getConnRW(ds);
 		final Connection conn = info.a;
@@ -1057,6 +1181,51 @@ class DBQuery<T extends Table> extends AbstractQuery<T> {
 		return q;
 	}
 
+	@Override
+	public Query<T> parallel(final int n) {
+		return parallel(n, false);
+	}
+
+	@Override
+	public Query<T> parallel(final int n, final boolean inPKOrder) {
+		if (n < 1) throw new IllegalArgumentException("parallelism must be positive: "+ n);
+		final DBQuery<T> q = new DBQuery<T>(this);
+		q.parallelism = n;
+		q.parallelInPKOrder = inPKOrder;
+		return q;
+	}
+
+	@Override
+	public Query<T> fetchSize(final int n) {
+		if (n < 1) throw new IllegalArgumentException("fetch size must be positive: "+ n);
+		final DBQuery<T> q = new DBQuery<T>(this);
+		q.fetchSize = n;
+		return q;
+	}
+
+	@Override
+	public Query<T> readAhead(final int rows) {
+		if (rows < 1) throw new IllegalArgumentException("read ahead buffer size must be positive: "+ rows);
+		final DBQuery<T> q = new DBQuery<T>(this);
+		q.readAhead = rows;
+		return q;
+	}
+
+	@Override
+	public Query<T> withSeparately(final Field.FK<?>... fkFields) {
+		if (Join.class.isAssignableFrom(ofType)) return with(fkFields);
+		Class<? extends Table> cls = tableInfos.get(0).tableClass;
+		for (final FK<?> fk : fkFields) {
+			if (Util.sameTable(fk.referencing, cls)) cls = fk.referenced;
+			else if (Util.sameTable(fk.referenced, cls)) cls = fk.referencing;
+			else throw new IllegalArgumentException("you have a break in your FK chain");
+		}
+		final DBQuery<T> q = new DBQuery<T>(this);
+		if (q.separatePaths==null) q.separatePaths = new ArrayList<FK<?>[]>();
+		q.separatePaths.add(fkFields.clone());
+		return q;
+	}
+
 	@SuppressWarnings("rawtypes")
 	static String genTableNameFromFKPathKey(final FK[] fkFields, final int offset, final Table refingTable) {
 		final StringBuffer sb = new StringBuffer();
@@ -1419,7 +1588,7 @@ class DBQuery<T extends Table> extends AbstractQuery<T> {
 
 	@Override
 	public Query<T> toMemory() {
-		return new InMemoryQuery<T>(this);
+		return InMemoryQuery.of(this);
 	}
 
 	@Override
@@ -1456,6 +1625,67 @@ class DBQuery<T extends Table> extends AbstractQuery<T> {
 		return get(Util.getPK(ofType).eq(pk));
 	}
 
+	@Override
+	public T getTheOnly() {
+		if (!EntityCache.isEnabled()) return super.getTheOnly();
+		final List<Object> pk = getPKLookupValues();
+		if (pk == null || Context.inTransaction(getDataSource())) return super.getTheOnly();
+		T t = EntityCache.get(this, pk);
+		if (t != null) return t;
+		final long writeCount = EntityCache.getWriteCount();
+		t = super.getTheOnly();
+		if (t != null) EntityCache.put(this, pk, t, writeCount);
+		return t;
+	}
+
+	/**
+	 * If this query selects whole rows of a single table by an equality match on every
+	 * primary key column (and nothing else), returns the PK values in {@code PK.GET_FIELDS()}
+	 * order. &nbsp; Otherwise null.
+	 */
+	List<Object> getPKLookupValues() {
+		if (conditions == null || tableInfos.size() != 1 || !joins.isEmpty() || !joinsToOne.isEmpty()
+				|| !joinsToMany.isEmpty() || onlySet != null || deferSet != null || groupBySet != null
+				|| unions != null || globallyAppliedSelectFunction != null) return null;
+		final TableInfo ti = tableInfos.get(0);
+		if (ti.tableClass != ofType || ti.dummyTable != null || ti.innerQuery != null) return null;
+		final PK<T> pk = Util.getPK(ofType);
+		if (pk == null) return null;
+		final List<Field<?>> pkFields = pk.GET_FIELDS();
+		final Object[] values = new Object[pkFields.size()];
+		final List<Condition> flattened = new ArrayList<Condition>();
+		for (final Condition c : conditions) flattenAnds(c, flattened);
+		if (flattened.size() != values.length) return null;
+		for (final Condition c : flattened) {
+			if (!(c instanceof Condition.Binary)) return null;
+			final Condition.Binary b = (Condition.Binary) c;
+			if (!"=".equals(b.cmp) || b.v == null) return null;
+			final int i = pkFields.indexOf(b.field);
+			if (i < 0 || values[i] != null) return null;
+			values[i] = b.v;
+		}
+		return Arrays.asList(values);
+	}
+
+	/**
+	 * Flushes the unit of work on this query's data source if the query reads a row (by its
+	 * primary key) that the unit of work is waiting to insert.
+	 */
+	private void flushPendingInsert() throws SQLException {
+		final UnitOfWork uow = Context.getUnitOfWork(getDataSource());
+		if (uow == null) return;
+		final List<Object> pk = getPKLookupValues();
+		if (pk != null && uow.isPendingInsert(ofType, pk)) uow.flush();
+	}
+
+	private static void flattenAnds(final Condition c, final List<Condition> into) {
+		if (c instanceof Condition.And) {
+			for (final Condition x : ((Condition.And) c).conditions) flattenAnds(x, into);
+		} else {
+			into.add(c);
+		}
+	}
+
 	@Override
 	public Query<T> use(final Connection conn) {
 		return use(new SingleConnectionDataSource(conn));
@@ -1537,10 +1767,13 @@ class DBQuery<T extends Table> extends AbstractQuery<T> {
 				* result
 				+ ((globallyAppliedSelectFunction == null) ? 0
 						: globallyAppliedSelectFunction.hashCode());
+		result = prime * result + ((joins == null) ? 0 : joins.hashCode());
 		result = prime * result
 				+ ((joinsToMany == null) ? 0 : joinsToMany.hashCode());
 		result = prime * result
 				+ ((joinsToOne == null) ? 0 : joinsToOne.hashCode());
+		result = prime * result + (includeCrossInSelect ? 1231 : 1237);
+		result = prime * result + (onlySelectFromFirstTableAndJoins ? 1231 : 1237);
 		result = prime * result + ((onlySet == null) ? 0 : onlySet.hashCode());
 		result = prime * result + ((groupBySet == null) ? 0 : groupBySet.hashCode());
 		result = prime * result
@@ -1592,6 +1825,11 @@ class DBQuery<T extends Table> extends AbstractQuery<T> {
 		} else if (!globallyAppliedSelectFunction
 				.equals(other.globallyAppliedSelectFunction))
 			return false;
+		if (joins == null) {
+			if (other.joins != null)
+				return false;
+		} else if (!joins.equals(other.joins))
+			return false;
 		if (joinsToMany == null) {
 			if (other.joinsToMany != null)
 				return false;
@@ -1602,6 +1840,10 @@ class DBQuery<T extends Table> extends AbstractQuery<T> {
 				return false;
 		} else if (!joinsToOne.equals(other.joinsToOne))
 			return false;
+		if (includeCrossInSelect != other.includeCrossInSelect)
+			return false;
+		if (onlySelectFromFirstTableAndJoins != other.onlySelectFromFirstTableAndJoins)
+			return false;
 		if (onlySet == null) {
 			if (other.onlySet != null)
 				return false;
@@ -1639,6 +1881,25 @@ class DBQuery<T extends Table> extends AbstractQuery<T> {
 		return true;
 	}
 
+	/**
+	 * @return true if this query can be split into primary key ranges read independently
+	 */
+	boolean canRunInParallel() {
+		if (Join.class.isAssignableFrom(ofType) || Util.getPK(ofType)==null) return false;
+		if (top>0 || !joinsToMany.isEmpty() || isOrdered()) return false;
+		if (distinct || groupBySet!=null || globallyAppliedSelectFunction!=null || unions!=null) return false;
+		return !Context.inTransaction(getDataSource());
+	}
+
+	/**
+	 * @return true if to-one joins can be added to this query with {@code with()} without changing its results
+	 */
+	boolean canPrefetchWithJoins() {
+		if (tableInfos.size()!=1 || !joins.isEmpty()) return false;
+		if (distinct || onlySet!=null || groupBySet!=null) return false;
+		return globallyAppliedSelectFunction==null && unions==null;
+	}
+
 	@Override
 	public <S extends Table> Query<Join<T, S>> crossJoin(final Class<S> other) {
 		if (!Util.sameDataSource(this, other)) return super.crossJoin(other);
@@ -1823,6 +2084,54 @@ class DBQuery<T extends Table> extends AbstractQuery<T> {
 		return q;
 	}
 
+	@Override
+	public Query<T> cache(final long ttlMillis) {
+		final DBQuery<T> q = new DBQuery<T>(this);
+		q.cacheTTL = ttlMillis;
+		return q;
+	}
+
+	/**
+	 * @return every table this query reads from (including joins and sub-selects)
+	 */
+	Set<Class<? extends Table>> getReferencedTables() {
+		final Set<Class<? extends Table>> ret = new HashSet<Class<? extends Table>>();
+		addReferencedTables(ret);
+		return ret;
+	}
+
+	@SuppressWarnings("rawtypes")
+	private void addReferencedTables(final Set<Class<? extends Table>> into) {
+		for (final TableInfo ti : tableInfos) {
+			into.add(ti.tableClass);
+			if (ti.innerQuery != null) ti.innerQuery.addReferencedTables(into);
+		}
+		final List<JoinInfo> allJoins = new ArrayList<JoinInfo>(joins);
+		allJoins.addAll(joinsToOne);
+		allJoins.addAll(joinsToMany);
+		for (final JoinInfo join : allJoins) {
+			if (join.reffedTableInfo != null) into.add(join.reffedTableInfo.tableClass);
+			if (join.reffingTableInfo != null) into.add(join.reffingTableInfo.tableClass);
+			if (join.condition != null) addSubQueryTables(join.condition, into);
+		}
+		if (conditions != null) {
+			for (final Condition c : conditions) addSubQueryTables(c, into);
+		}
+		if (unions != null) {
+			for (final Union<T> union : unions) union.q.addReferencedTables(into);
+		}
+	}
+
+	private static void addSubQueryTables(final Condition condition, final Set<Class<? extends Table>> into) {
+		condition.visit(new Condition.Visitor() {
+			@Override
+			public void visited(final Condition c) {
+				final DBQuery<?> q = c.getSubQuery();
+				if (q != null) q.addReferencedTables(into);
+			}
+		});
+	}
+
 	@Override
 	public Query<T> orderBy(Expression.OrderBy<?>... obes) {
 		final DBQuery<T> q = new DBQuery<T>(this);
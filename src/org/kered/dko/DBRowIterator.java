@@ -2,6 +2,7 @@ package org.kered.dko;
 
 import static org.kered.dko.Constants.DIRECTION.DESCENDING;
 
+import java.lang.ref.WeakReference;
 import java.lang.reflect.Constructor;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
@@ -11,10 +12,14 @@ import java.sql.SQLException;
 import java.sql.SQLRecoverableException;
 import java.sql.Statement;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
 
 import javax.sql.DataSource;
@@ -27,6 +32,7 @@ import org.kered.dko.Tuple.Tuple2;
 class DBRowIterator<T extends Table> implements PeekableClosableIterator<Object[]> {
 
 	private static final int BATCH_SIZE = 2048;
+	private static final int STREAMING_FETCH_SIZE = 1000;
 
 	@Override
 	protected void finalize() throws Throwable {
@@ -37,6 +43,7 @@ class DBRowIterator<T extends Table> implements PeekableClosableIterator<Object[
 	}
 
 	private static final Logger log = Logger.getLogger("org.kered.dko.DBRowIterator");
+	private static final long streamingThreshold = parseStreamingThreshold();
 
 	final DBQuery<T> query;
 	private PreparedStatement ps;
@@ -58,6 +65,26 @@ class DBRowIterator<T extends Table> implements PeekableClosableIterator<Object[
 
 	private boolean finishedNatually = false;
 
+	private Tuple2<String,List<Object>> sqlAndBindings = null;
+	private long rowsRead = 0;
+	private long elapsedNanos = 0;
+	// the QUERY_EXECUTE event, committed on close() once the row count is known
+	private Object queryEvent = null;
+
+	// rows being collected for the ResultCache (null if not caching this query)
+	private List<Object[]> rowsToCache = null;
+	private long cacheStamp = 0;
+
+	private long estimatedRowCount = -1;
+	private boolean restoreAutoCommit = false;
+
+	// read-ahead mode: a background thread decodes rows into a bounded buffer
+	private static final Object[] END_OF_ROWS = new Object[0];
+	private ReadAhead readAhead = null;
+	private Object[] readAheadNext = null;
+	private long consumerStallNanos = 0;
+	private Object readAheadEvent = null;
+
 	DBRowIterator(final DBQuery<T> dbQuery) {
 		this(dbQuery, true);
 	}
@@ -71,18 +98,34 @@ class DBRowIterator<T extends Table> implements PeekableClosableIterator<Object[
 		} else {
 			usageMonitor = null;
 		}
-		this.query = usageMonitor==null ? dbQuery : usageMonitor.getSelectOptimizedQuery();
+		this.query = usageMonitor==null ? dbQuery
+				: usageMonitor.getPrefetchOptimizedQuery(usageMonitor.getSelectOptimizedQuery());
 		final List<Select<?>> selectFieldsList = query.getSelectFields(false);
 		selectedFields = selectFieldsList.toArray(new Expression.Select<?>[0]);
 		if (this.usageMonitor!=null) {
 			this.usageMonitor.setSelectedFields(selectedFields);
 		}
 		ds  = query.getDataSource();
+		if (usageMonitor!=null && query.fetchSize==0 && streamingThreshold>0) {
+			estimatedRowCount = UsageStats.getKnownRowCount(dbQuery);
+		}
 	}
 
 	void init() {
+		if (ResultCache.shouldCache(query, ds)) {
+			final List<Object[]> rows = ResultCache.get(query, ds);
+			if (rows != null) {
+				nextRows.addAll(rows);
+				done = true;
+				initted = true;
+				return;
+			}
+			cacheStamp = ResultCache.getStamp(query);
+			rowsToCache = new ArrayList<Object[]>();
+		}
 		// old iterator method before merging
 		String sql = null;
+		queryEvent = FlightRecorderEvents.begin(FlightRecorderEvents.Type.QUERY_EXECUTE);
 		try {
 			final Tuple2<Connection,Boolean> connInfo = DBQuery.getConnR(ds);
 			conn = connInfo.a;
@@ -90,15 +133,19 @@ class DBRowIterator<T extends Table> implements PeekableClosableIterator<Object[
 			context  = new SqlContext(query);
 			final Tuple2<String, List<Object>> ret = getSQL(context);
 			sql = ret.a;
+			sqlAndBindings = ret;
 			Util.log(sql, ret.b);
+			final long start = System.nanoTime();
 			query._preExecute(context, conn);
 			ps = query.createPS(ret.a, conn);
 			if (context.dbType==DB_TYPE.DERBY && query.top>0 && query.joinsToMany.size()==0) {
 				ps.setMaxRows((int) query.top);
 			}
+			configureFetchSize(context.dbType);
 			query.setBindings(ps, ret.b);
 			ps.execute();
 			rs = ps.getResultSet();
+			elapsedNanos += System.nanoTime() - start;
 			done = false;
 		} catch (final SQLException e) {
 			log.severe(sql + "\n => " + e.getMessage());
@@ -115,6 +162,170 @@ class DBRowIterator<T extends Table> implements PeekableClosableIterator<Object[
 			throw e;
 		}
 		initted  = true;
+		if (query.readAhead>0 && shouldCloseConnection && rs!=null) startReadAhead(query.readAhead);
+	}
+
+	/**
+	 * Starts a thread reading the rows into a buffer of the given size (blocking when it's full)
+	 * while the consumer processes the earlier rows. &nbsp; Only used when the query has its own
+	 * connection, as the consumer could otherwise use the same connection concurrently.
+	 */
+	private void startReadAhead(final int size) {
+		readAheadEvent = FlightRecorderEvents.begin(FlightRecorderEvents.Type.READ_AHEAD);
+		readAhead = new ReadAhead(this, size);
+		readAhead.start();
+	}
+
+	/**
+	 * The read-ahead thread. &nbsp; It only references its iterator while reading a batch
+	 * of rows, so an abandoned iterator can still be finalized (and closed).
+	 */
+	private static class ReadAhead extends Thread {
+
+		final BlockingQueue<Object[]> queue;
+		private final WeakReference<DBRowIterator<?>> owner;
+		private final int batchSize;
+		volatile boolean cancelled = false;
+		volatile Throwable failure = null;
+		long producerStallNanos = 0;
+
+		ReadAhead(final DBRowIterator<?> owner, final int size) {
+			super("dko-read-ahead");
+			setDaemon(true);
+			queue = new ArrayBlockingQueue<Object[]>(size);
+			this.owner = new WeakReference<DBRowIterator<?>>(owner);
+			batchSize = Math.min(size, BATCH_SIZE);
+		}
+
+		@Override
+		public void run() {
+			try {
+				final List<Object[]> rows = new ArrayList<Object[]>(batchSize);
+				boolean more = true;
+				while (more && !cancelled) {
+					final DBRowIterator<?> it = owner.get();
+					if (it == null) break;
+					more = it.readNextRows(rows, batchSize) == batchSize;
+					for (final Object[] row : rows) {
+						if (!put(row)) return;
+					}
+					rows.clear();
+				}
+			} catch (final Throwable t) {
+				failure = t;
+			} finally {
+				put(END_OF_ROWS);
+			}
+		}
+
+		/**
+		 * Adds a row to the buffer, waiting for space.
+		 * @return false if the iterator was closed (or abandoned)
+		 */
+		private boolean put(final Object[] row) {
+			if (queue.offer(row)) return true;
+			final long start = System.nanoTime();
+			try {
+				while (!cancelled && owner.get() != null) {
+					if (queue.offer(row, 100, TimeUnit.MILLISECONDS)) return true;
+				}
+			} catch (final InterruptedException e) {
+				/* ignore */
+			} finally {
+				producerStallNanos += System.nanoTime() - start;
+			}
+			return false;
+		}
+	}
+
+	private Object[] peekReadAhead() {
+		if (readAheadNext == null) {
+			readAheadNext = readAhead.queue.poll();
+			if (readAheadNext == null) {
+				final long start = System.nanoTime();
+				try {
+					readAheadNext = readAhead.queue.take();
+				} catch (final InterruptedException e) {
+					close();
+					throw new RuntimeException(e);
+				} finally {
+					consumerStallNanos += System.nanoTime() - start;
+				}
+			}
+		}
+		if (readAheadNext == END_OF_ROWS) {
+			if (readAhead.failure != null) {
+				final Throwable t = readAhead.failure;
+				readAhead.failure = null;
+				close();
+				if (t instanceof RuntimeException) throw (RuntimeException) t;
+				throw new RuntimeException(t);
+			}
+			this.finishedNatually = true;
+			return null;
+		}
+		return readAheadNext;
+	}
+
+	/**
+	 * Stops the read-ahead thread (the statement should already be cancelled if it's
+	 * still reading) and reports how long each side waited on the other.
+	 */
+	private void stopReadAhead() {
+		if (readAhead == null) return;
+		readAhead.cancelled = true;
+		readAhead.queue.clear();
+		try {
+			readAhead.join();
+		} catch (final InterruptedException e) {
+			/* ignore */
+		}
+		readAhead.queue.clear();
+		readAheadNext = END_OF_ROWS;
+		log.fine("read ahead "+ rowsRead +" rows of "+ query.getType().getSimpleName()
+				+": the reader waited "+ readAhead.producerStallNanos/1000000 +"ms for the consumer, the consumer "
+				+ consumerStallNanos/1000000 +"ms for the reader");
+		if (readAheadEvent!=null) FlightRecorderEvents.commit(readAheadEvent, query.getType().getName(),
+				rowsRead, readAhead.producerStallNanos, consumerStallNanos);
+	}
+
+	/**
+	 * Sets the statement's fetch size if the query was given one or is expected to return
+	 * more than the streaming threshold, configuring the drivers that otherwise read the whole
+	 * result set into memory anyway.
+	 */
+	private void configureFetchSize(final DB_TYPE dbType) throws SQLException {
+		int fetchSize = query.fetchSize;
+		if (fetchSize == 0) {
+			if (estimatedRowCount <= streamingThreshold) return;
+			if (query.top>0 && query.top <= streamingThreshold) return;
+			fetchSize = STREAMING_FETCH_SIZE;
+		}
+		// no point fetching more than top() (and derby refuses a fetch size over the max rows)
+		if (query.top>0 && query.top<fetchSize) fetchSize = (int) query.top;
+		if (dbType==DB_TYPE.MYSQL) {
+			// mysql only streams row by row, which ties up the connection until the results are closed
+			if (shouldCloseConnection) fetchSize = Integer.MIN_VALUE;
+		} else if (dbType==DB_TYPE.POSTGRES) {
+			// postgres ignores the fetch size outside of a transaction
+			if (shouldCloseConnection && conn.getAutoCommit()) {
+				conn.setAutoCommit(false);
+				restoreAutoCommit = true;
+			}
+		}
+		ps.setFetchSize(fetchSize);
+	}
+
+	private static long parseStreamingThreshold() {
+		final String s = System.getProperty(Constants.PROPERTY_STREAMING_THRESHOLD);
+		if (s != null) {
+			try {
+				return Long.parseLong(s.trim());
+			} catch (final NumberFormatException e) {
+				log.warning("could not parse "+ Constants.PROPERTY_STREAMING_THRESHOLD +"="+ s);
+			}
+		}
+		return 10000;
 	}
 
 	protected String getSQL() {
@@ -125,6 +336,19 @@ class DBRowIterator<T extends Table> implements PeekableClosableIterator<Object[
 		return query;
 	}
 
+	/**
+	 * @return the rows read from the database but not yet returned by {@code next()}
+	 */
+	Iterable<Object[]> getBufferedRows() {
+		if (readAhead == null) return nextRows;
+		final List<Object[]> ret = new ArrayList<Object[]>(readAhead.queue.size()+1);
+		if (readAheadNext != null && readAheadNext != END_OF_ROWS) ret.add(readAheadNext);
+		for (final Object[] row : readAhead.queue) {
+			if (row != END_OF_ROWS) ret.add(row);
+		}
+		return ret;
+	}
+
 	protected Tuple2<String,List<Object>> getSQL(final SqlContext context) {
 		selectedBoundFields = query.getSelectFields(true).toArray(new Expression.Select<?>[0]);
 		final StringBuffer sb = new StringBuffer();
@@ -219,15 +443,21 @@ class DBRowIterator<T extends Table> implements PeekableClosableIterator<Object[
 
 	@Override
 	public Object[] next() {
+		if (readAhead != null) {
+			final Object[] row = peekReadAhead();
+			if (row != null) readAheadNext = null;
+			return row;
+		}
 		peek();
 		return nextRows.poll();
 	}
 
 	@Override
 	public Object[] peek() {
+		if (readAhead != null) return peekReadAhead();
 		if (!done && nextRows.isEmpty()) {
 			try {
-				readNextRows(BATCH_SIZE);
+				readNextRows(nextRows, BATCH_SIZE);
 			} catch (final SQLException e) {
 				throw new RuntimeException(e);
 			}
@@ -239,13 +469,23 @@ class DBRowIterator<T extends Table> implements PeekableClosableIterator<Object[
 		else return nextRows.peek();
 	}
 
-	private int readNextRows(final int max) throws SQLException {
+	private int readNextRows(final Collection<Object[]> into, final int max) throws SQLException {
 		if (rs == null) return 0;
+		final Object event = FlightRecorderEvents.begin(FlightRecorderEvents.Type.ROW_BATCH);
+		final long start = System.nanoTime();
 		int c = 0;
 		while (c < max) {
 			if (!rs.next()) {
-				close();
+				elapsedNanos += System.nanoTime() - start;
+				rowsRead += c;
+				if (rowsToCache != null) {
+					ResultCache.put(query, ds, rowsToCache, cacheStamp);
+					rowsToCache = null;
+				}
+				// in read-ahead mode the consumer closes once it reaches the end
+				if (readAhead == null) close();
 				//preFetchOtherJoins();
+				if (event!=null) FlightRecorderEvents.commit(event, "DBRowIterator", query.getType().getName(), (long) c);
 				return c;
 			}
 			++c;
@@ -253,10 +493,17 @@ class DBRowIterator<T extends Table> implements PeekableClosableIterator<Object[
 			for (int i=0; i<selectedFields.length; ++i) {
 				nextRow[i] = Util.getTypedValueFromRS(rs, i+1, selectedFields[i]);
 			}
-			nextRows.add(nextRow);
+			into.add(nextRow);
 			if (usageMonitor!=null) ++usageMonitor.rowCount;
+			if (rowsToCache != null) {
+				if (rowsToCache.size() < ResultCache.getMaxRows()) rowsToCache.add(nextRow.clone());
+				else rowsToCache = null;
+			}
 		}
 		//preFetchOtherJoins();
+		elapsedNanos += System.nanoTime() - start;
+		rowsRead += c;
+		if (event!=null) FlightRecorderEvents.commit(event, "DBRowIterator", query.getType().getName(), (long) c);
 		return c;
 	}
 
@@ -293,6 +540,7 @@ class DBRowIterator<T extends Table> implements PeekableClosableIterator<Object[
 				throw e;
 			}
 		}
+		stopReadAhead();
 		try {
 			if (rs!=null && !rs.isClosed()) rs.close();
 		} catch (final SQLException e2) {
@@ -320,6 +568,14 @@ class DBRowIterator<T extends Table> implements PeekableClosableIterator<Object[
 		} catch (final SQLException e1) {
 			e1.printStackTrace();
 		}
+		if (restoreAutoCommit) {
+			try {
+				if (conn!=null && !conn.isClosed()) conn.setAutoCommit(true);
+			} catch (final SQLException e) {
+				e.printStackTrace();
+			}
+			restoreAutoCommit = false;
+		}
 		if (shouldCloseConnection) {
 			try {
 				if (conn!=null && !conn.isClosed()) conn.close();
@@ -336,6 +592,14 @@ class DBRowIterator<T extends Table> implements PeekableClosableIterator<Object[
 			usageMonitor.saveSizeOfQuery();
 		}
 		done = true;
+		if (queryEvent!=null) {
+			FlightRecorderEvents.commit(queryEvent, sqlAndBindings==null ? null : sqlAndBindings.a,
+					query.getType().getName(), context==null ? null : String.valueOf(context.dbType), rowsRead);
+			queryEvent = null;
+		}
+		if (sqlAndBindings!=null) {
+			SlowQueryLog.check(query, sqlAndBindings.a, sqlAndBindings.b, rowsRead, elapsedNanos, true);
+		}
 	}
 
 	@Override
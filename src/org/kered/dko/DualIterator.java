@@ -31,7 +31,7 @@ class DualIterator {
 		this.qRfields = qRfields;
     	Util.log(sql, null);
     	try {
-	    	conn = ds.getConnection();
+	    	conn = DBQuery.connect(ds, true);
 	    	ps = conn.prepareStatement(sql);
 	    	rs = ps.executeQuery();
     	} catch (SQLException e) {
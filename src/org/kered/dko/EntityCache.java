@@ -0,0 +1,348 @@
+package org.kered.dko;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.logging.Logger;
+
+import javax.sql.DataSource;
+
+import org.kered.dko.Field.PK;
+
+/**
+ * An optional second-level cache of rows, keyed by table class and primary key. &nbsp;
+ * When enabled it's consulted by {@code Query.get(pk)}, by the lazy-loading FK getters
+ * of the generated classes, and by any other {@code getTheOnly()} call on a query that
+ * is nothing more than an equality match on every primary key column. &nbsp;
+ * It holds at most {@code getCapacity()} rows, evicting the least recently used.
+ * <p>
+ * Entries are invalidated by writes made through DKO: {@code Table.insert/update/delete/save},
+ * {@code Query.update()/delete()} (the whole table if the query isn't a primary key match)
+ * and {@code Bulk}. &nbsp; Writes made outside of DKO (other processes, triggers, cascading
+ * deletes) are not seen - call {@code invalidate(Class)} or {@code clear()} after them,
+ * or leave the cache off for those tables. &nbsp; The cache is bypassed while the current
+ * thread is in a transaction on the query's data source.
+ * <p>
+ * Callers always get their own copy of a cached row, so modifying it doesn't affect
+ * other readers. &nbsp; Off by default; turn it on with {@code Constants.PROPERTY_ENTITY_CACHE_SIZE}
+ * or at runtime:
+ * <pre>  {@code EntityCache.setCapacity(10000);
+ *   ...
+ *   System.out.println(EntityCache.getStats().get(MyTable.class));}</pre>
+ *
+ * @author Derek Anderson
+ */
+public class EntityCache {
+
+	private static final Logger log = Logger.getLogger("org.kered.dko.EntityCache");
+
+	private static volatile int capacity = parseSize();
+
+	/* incremented on every invalidation, so a row read before a write can't be cached after it */
+	private static volatile long writes = 0;
+
+	private static final Map<Key,CachedRow> cache = new LinkedHashMap<Key,CachedRow>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+		@Override
+		protected boolean removeEldestEntry(final Entry<Key,CachedRow> eldest) {
+			if (size() <= capacity) return false;
+			stats(eldest.getKey().type).evictions++;
+			return true;
+		}
+	};
+
+	private static final Map<Class<? extends Table>,Stats> stats = new HashMap<Class<? extends Table>,Stats>();
+
+	private static final Map<Class<? extends Table>,Constructor<? extends Table>> copyConstructors =
+			new HashMap<Class<? extends Table>,Constructor<? extends Table>>();
+
+	/**
+	 * Cache metrics for one table. &nbsp; {@code getStats()} returns snapshots of these.
+	 */
+	public static class Stats {
+
+		private long hits = 0;
+		private long misses = 0;
+		private long evictions = 0;
+		private long invalidations = 0;
+
+		private Stats copy() {
+			final Stats ret = new Stats();
+			ret.hits = hits;
+			ret.misses = misses;
+			ret.evictions = evictions;
+			ret.invalidations = invalidations;
+			return ret;
+		}
+
+		public long getHits() {
+			return hits;
+		}
+
+		public long getMisses() {
+			return misses;
+		}
+
+		/**
+		 * @return rows removed to stay under the capacity
+		 */
+		public long getEvictions() {
+			return evictions;
+		}
+
+		/**
+		 * @return rows (or whole tables) removed because of writes
+		 */
+		public long getInvalidations() {
+			return invalidations;
+		}
+
+		/**
+		 * @return hits / (hits + misses), or 0 if the cache hasn't been consulted
+		 */
+		public double getHitRate() {
+			final long total = hits + misses;
+			return total==0 ? 0 : (double) hits / total;
+		}
+
+		@Override
+		public String toString() {
+			return "[EntityCache.Stats hits="+ hits +" misses="+ misses +" hitRate="+ String.format("%.3f", getHitRate())
+					+" evictions="+ evictions +" invalidations="+ invalidations +"]";
+		}
+	}
+
+	private static class Key {
+		final Class<? extends Table> type;
+		final List<Object> pk;
+		Key(final Class<? extends Table> type, final List<Object> pk) {
+			this.type = type;
+			this.pk = pk;
+		}
+		@Override
+		public int hashCode() {
+			return type.hashCode() * 31 + pk.hashCode();
+		}
+		@Override
+		public boolean equals(final Object obj) {
+			if (this == obj) return true;
+			if (!(obj instanceof Key)) return false;
+			final Key other = (Key) obj;
+			return type == other.type && pk.equals(other.pk);
+		}
+	}
+
+	private static class CachedRow {
+		final DataSource ds;
+		final Table row;
+		CachedRow(final DataSource ds, final Table row) {
+			this.ds = ds;
+			this.row = row;
+		}
+	}
+
+	/**
+	 * Sets the maximum number of rows held (across all tables). &nbsp; Zero turns the
+	 * cache off. &nbsp; Shrinking it clears the cache.
+	 * @param size
+	 */
+	public static void setCapacity(final int size) {
+		if (size < 0) throw new IllegalArgumentException("capacity cannot be negative: "+ size);
+		synchronized (cache) {
+			if (size < capacity) cache.clear();
+			capacity = size;
+		}
+	}
+
+	public static int getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * Removes every cached row. &nbsp; (The metrics are kept.)
+	 */
+	public static void clear() {
+		synchronized (cache) {
+			++writes;
+			cache.clear();
+		}
+	}
+
+	/**
+	 * Removes every cached row of a table. &nbsp; Call this after modifying the table
+	 * outside of DKO.
+	 * @param type
+	 */
+	public static void invalidate(final Class<? extends Table> type) {
+		if (capacity == 0) return;
+		synchronized (cache) {
+			++writes;
+			for (final Iterator<Key> it = cache.keySet().iterator(); it.hasNext();) {
+				if (it.next().type == type) it.remove();
+			}
+			stats(type).invalidations++;
+		}
+	}
+
+	/**
+	 * @return a snapshot of the metrics of every table that's used the cache
+	 */
+	public static Map<Class<? extends Table>,Stats> getStats() {
+		final Map<Class<? extends Table>,Stats> ret = new HashMap<Class<? extends Table>,Stats>();
+		synchronized (cache) {
+			for (final Entry<Class<? extends Table>, Stats> e : stats.entrySet()) {
+				ret.put(e.getKey(), e.getValue().copy());
+			}
+		}
+		return Collections.unmodifiableMap(ret);
+	}
+
+	/**
+	 * Resets the metrics of all tables.
+	 */
+	public static void resetStats() {
+		synchronized (cache) {
+			stats.clear();
+		}
+	}
+
+	static boolean isEnabled() {
+		return capacity > 0;
+	}
+
+	static long getWriteCount() {
+		return writes;
+	}
+
+	@SuppressWarnings("unchecked")
+	static <T extends Table> T get(final DBQuery<T> query, final List<Object> pk) {
+		final Key key = new Key(query.getType(), pk);
+		final DataSource ds = query.getDataSource();
+		final Table row;
+		synchronized (cache) {
+			final CachedRow cached = cache.get(key);
+			if (cached == null || cached.ds != ds) {
+				stats(key.type).misses++;
+				return null;
+			}
+			stats(key.type).hits++;
+			row = cached.row;
+		}
+		return (T) copy(row, ds);
+	}
+
+	/**
+	 * Caches the row unless a write happened since {@code writeCount} was read.
+	 */
+	static <T extends Table> void put(final DBQuery<T> query, final List<Object> pk, final T row, final long writeCount) {
+		final DataSource ds = query.getDataSource();
+		// copying calls the getters, which shouldn't count as column accesses
+		final UsageMonitor<?> um = row.__NOSCO_USAGE_MONITOR;
+		row.__NOSCO_USAGE_MONITOR = null;
+		final Table copy;
+		try {
+			copy = copy(row, ds);
+		} finally {
+			row.__NOSCO_USAGE_MONITOR = um;
+		}
+		if (copy == null) return;
+		synchronized (cache) {
+			if (writes != writeCount) return;
+			cache.put(new Key(query.getType(), pk), new CachedRow(ds, copy));
+		}
+	}
+
+	/**
+	 * Invalidates whatever a write through this query could have touched.
+	 */
+	static void invalidate(final DBQuery<?> query) {
+		if (capacity == 0) return;
+		final List<Object> pk = query.getPKLookupValues();
+		if (pk == null) invalidate(query.getType());
+		else invalidate(query.getType(), pk);
+	}
+
+	/**
+	 * Invalidates the row with the same primary key as this object.
+	 */
+	static void invalidate(final Table table) {
+		if (capacity == 0) return;
+		final Class<? extends Table> type = table.getClass();
+		final PK<?> pk = Util.getPK(type);
+		if (pk == null) {
+			invalidate(type);
+			return;
+		}
+		final List<Field<?>> fields = pk.GET_FIELDS();
+		final List<Object> values = new ArrayList<Object>(fields.size());
+		for (final Field<?> f : fields) values.add(table.get(f));
+		invalidate(type, values);
+	}
+
+	private static void invalidate(final Class<? extends Table> type, final List<Object> pk) {
+		synchronized (cache) {
+			++writes;
+			if (cache.remove(new Key(type, pk)) != null) stats(type).invalidations++;
+		}
+	}
+
+	private static Stats stats(final Class<? extends Table> type) {
+		Stats ret = stats.get(type);
+		if (ret == null) {
+			ret = new Stats();
+			stats.put(type, ret);
+		}
+		return ret;
+	}
+
+	private static Table copy(final Table row, final DataSource ds) {
+		final Class<? extends Table> type = row.getClass();
+		Constructor<? extends Table> c;
+		synchronized (copyConstructors) {
+			if (!copyConstructors.containsKey(type)) {
+				try {
+					c = type.getConstructor(type);
+				} catch (final NoSuchMethodException e) {
+					log.warning(type.getName() +" has no copy constructor (regenerate it) so it can't be cached");
+					c = null;
+				}
+				copyConstructors.put(type, c);
+			}
+			c = copyConstructors.get(type);
+		}
+		if (c == null) return null;
+		try {
+			final Table ret = c.newInstance(row);
+			ret.__NOSCO_ORIGINAL_DATA_SOURCE = ds;
+			return ret;
+		} catch (final InstantiationException e) {
+			throw new RuntimeException(e);
+		} catch (final IllegalAccessException e) {
+			throw new RuntimeException(e);
+		} catch (final InvocationTargetException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private static int parseSize() {
+		final String s = System.getProperty(Constants.PROPERTY_ENTITY_CACHE_SIZE);
+		if (s != null) {
+			try {
+				final int size = Integer.parseInt(s.trim());
+				if (size >= 0) return size;
+			} catch (final NumberFormatException e) {
+				/* ignore */
+			}
+			log.warning("could not parse "+ Constants.PROPERTY_ENTITY_CACHE_SIZE +"="+ s);
+		}
+		return 0;
+	}
+
+}
@@ -0,0 +1,517 @@
+package org.kered.dko;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.math.MathContext;
+import java.sql.Timestamp;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.TimeZone;
+import java.util.regex.Pattern;
+
+import org.kered.dko.Constants.CALENDAR;
+
+/**
+ * Evaluates conditions (and the fields, values and functions they compare) against objects
+ * in memory, for {@code InMemoryQuery}, {@code FilteringQuery} and {@code SoftJoin}. &nbsp;
+ * A condition compiles itself once (see {@code Condition.compile()}) into a tree of
+ * predicates and values, so checking an object is just a walk down that tree. &nbsp;
+ * Comparisons follow SQL: anything compared to null is false, numbers of different types
+ * are compared by value, and {@code like} patterns ({@code %} and {@code _}) are case
+ * sensitive. &nbsp; Functions are evaluated for {@code SQLFunction}'s own catalog (dates,
+ * strings, {@code COALESCE} and arithmetic); custom functions, literal SQL and sub-queries
+ * can't be, and throw when compiled.
+ *
+ * @author Derek Anderson
+ */
+class Evaluator {
+
+	/**
+	 * A compiled condition.
+	 */
+	static abstract class Predicate {
+		abstract boolean test(Table t);
+	}
+
+	/**
+	 * A compiled expression.
+	 */
+	static abstract class Value {
+		abstract Object get(Table t);
+	}
+
+	private static class Constant extends Value {
+		final Object o;
+		Constant(final Object o) {
+			this.o = o;
+		}
+		@Override
+		Object get(final Table t) {
+			return o;
+		}
+	}
+
+	static final Predicate TRUE = new Predicate() {
+		@Override
+		boolean test(final Table t) {
+			return true;
+		}
+	};
+
+	static final Predicate FALSE = new Predicate() {
+		@Override
+		boolean test(final Table t) {
+			return false;
+		}
+	};
+
+	private static final long DAY_MILLIS = 1000L*60*60*24;
+
+	/**
+	 * @return a field's value, a function's result, or a constant
+	 */
+	@SuppressWarnings("rawtypes")
+	static Value value(final Object o) {
+		if (o instanceof Field) {
+			final Field<?> field = (Field) o;
+			return new Value() {
+				@Override
+				Object get(final Table t) {
+					return t.get(field);
+				}
+			};
+		}
+		if (o instanceof SQLFunction) return ((SQLFunction<?>) o).compile();
+		if (o instanceof SQLFunction.SQLLiteral) {
+			final String sql = ((SQLFunction.SQLLiteral) o).sql;
+			try {
+				return new Constant(new BigDecimal(sql.trim()));
+			} catch (final NumberFormatException e) {
+				throw new RuntimeException("the sql literal '"+ sql +"' can't be evaluated in memory");
+			}
+		}
+		if (o instanceof Expression) {
+			throw new RuntimeException(o.getClass().getName() +" can't be evaluated in memory");
+		}
+		return new Constant(o);
+	}
+
+	/**
+	 * @param cmp one of {@code = != <> < <= > >= like} (surrounding spaces ignored)
+	 */
+	static Predicate compare(final Value a, final String cmp, final Value b) {
+		if (b instanceof Constant) {
+			final Test test = test(cmp, ((Constant) b).o);
+			return new Predicate() {
+				@Override
+				boolean test(final Table t) {
+					return test.test(a.get(t));
+				}
+			};
+		}
+		final String op = cmp.trim().toLowerCase();
+		if ("like".equals(op) || "not like".equals(op)) {
+			final boolean not = op.startsWith("not");
+			return new Predicate() {
+				@Override
+				boolean test(final Table t) {
+					final Object v = a.get(t);
+					final Object pattern = b.get(t);
+					if (v == null || pattern == null) return false;
+					return likePattern(pattern.toString()).matcher(v.toString()).matches() != not;
+				}
+			};
+		}
+		final boolean[] signs = signs(op);
+		final boolean ordering = isOrdering(op);
+		return new Predicate() {
+			@Override
+			boolean test(final Table t) {
+				final Object x = a.get(t);
+				if (x == null) return false;
+				final Object y = b.get(t);
+				if (y == null) return false;
+				return matches(signs, ordering, x, y);
+			}
+		};
+	}
+
+	/**
+	 * A comparison with a constant, for testing many values against it.
+	 */
+	static abstract class Test {
+		abstract boolean test(Object x);
+	}
+
+	/**
+	 * @param cmp one of {@code = != <> < <= > >= like} (surrounding spaces ignored)
+	 * @return a test of values against {@code v}
+	 */
+	static Test test(final String cmp, final Object v) {
+		final String op = cmp.trim().toLowerCase();
+		if (v == null) {
+			return new Test() {
+				@Override
+				boolean test(final Object x) {
+					return false;
+				}
+			};
+		}
+		if ("like".equals(op) || "not like".equals(op)) {
+			final boolean not = op.startsWith("not");
+			final Pattern p = likePattern(v.toString());
+			return new Test() {
+				@Override
+				boolean test(final Object x) {
+					return x != null && p.matcher(x.toString()).matches() != not;
+				}
+			};
+		}
+		final boolean[] signs = signs(op);
+		final boolean ordering = isOrdering(op);
+		return new Test() {
+			@Override
+			boolean test(final Object x) {
+				return x != null && matches(signs, ordering, x, v);
+			}
+		};
+	}
+
+	/**
+	 * @param op one of {@code = != <> < <= > >=}
+	 * @return which results of a comparison (less than, equal, greater than) the operator accepts
+	 */
+	static boolean[] signs(final String op) {
+		final String o = op.trim();
+		if ("=".equals(o)) return new boolean[] {false, true, false};
+		if ("!=".equals(o) || "<>".equals(o)) return new boolean[] {true, false, true};
+		if ("<".equals(o)) return new boolean[] {true, false, false};
+		if ("<=".equals(o)) return new boolean[] {true, true, false};
+		if (">".equals(o)) return new boolean[] {false, false, true};
+		if (">=".equals(o)) return new boolean[] {false, true, true};
+		throw new RuntimeException("operator "+ op +" unsupported in in-memory comparisons");
+	}
+
+	/**
+	 * @return if this operator orders its values (or only checks if they're equal)
+	 */
+	static boolean isOrdering(final String op) {
+		final String o = op.trim();
+		return !"=".equals(o) && !"!=".equals(o) && !"<>".equals(o);
+	}
+
+	private static boolean matches(final boolean[] signs, final boolean ordering, final Object x, final Object y) {
+		if (!ordering) return signs[equal(x, y) ? 1 : 0];
+		return signs[Integer.signum(compare(x, y)) + 1];
+	}
+
+	/**
+	 * @return if these (non-null) values are equal, comparing numbers by value
+	 */
+	static boolean equal(final Object a, final Object b) {
+		if (a.getClass() == b.getClass()) return a.equals(b);
+		if (a instanceof Number || a instanceof Date || a instanceof Character) {
+			return compare(a, b) == 0;
+		}
+		return a.equals(b);
+	}
+
+	/**
+	 * Compares two (non-null) values.
+	 */
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	static int compare(final Object a, final Object b) {
+		if (a instanceof Number && b instanceof Number && a.getClass() != b.getClass()) {
+			return toBigDecimal((Number) a).compareTo(toBigDecimal((Number) b));
+		}
+		if (a instanceof Date && b instanceof Date) {
+			final long x = ((Date) a).getTime();
+			final long y = ((Date) b).getTime();
+			return x < y ? -1 : x == y ? 0 : 1;
+		}
+		if (a instanceof Character || b instanceof Character) {
+			return a.toString().compareTo(b.toString());
+		}
+		return ((Comparable) a).compareTo(b);
+	}
+
+	/**
+	 * @return a key for hashing this value, equal for numbers of the same value
+	 */
+	static Object key(final Object o) {
+		if (o instanceof Number) {
+			if ((o instanceof Double && (((Double) o).isNaN() || ((Double) o).isInfinite()))
+					|| (o instanceof Float && (((Float) o).isNaN() || ((Float) o).isInfinite()))) {
+				return o;
+			}
+			final BigDecimal d = toBigDecimal((Number) o);
+			return d.signum() == 0 ? BigDecimal.ZERO : d.stripTrailingZeros();
+		}
+		if (o instanceof Character) return o.toString();
+		if (o instanceof Date) return ((Date) o).getTime();
+		return o;
+	}
+
+	private static BigDecimal toBigDecimal(final Number n) {
+		if (n instanceof BigDecimal) return (BigDecimal) n;
+		if (n instanceof BigInteger) return new BigDecimal((BigInteger) n);
+		if (n instanceof Double || n instanceof Float) return BigDecimal.valueOf(n.doubleValue());
+		return BigDecimal.valueOf(n.longValue());
+	}
+
+	/**
+	 * @return a regular expression matching what this sql {@code like} pattern matches
+	 */
+	static Pattern likePattern(final String like) {
+		final StringBuilder sb = new StringBuilder();
+		int literal = -1;
+		for (int i=0; i<like.length(); ++i) {
+			final char c = like.charAt(i);
+			if (c == '%' || c == '_') {
+				if (literal >= 0) sb.append(Pattern.quote(like.substring(literal, i)));
+				literal = -1;
+				sb.append(c == '%' ? ".*" : ".");
+			} else if (literal < 0) {
+				literal = i;
+			}
+		}
+		if (literal >= 0) sb.append(Pattern.quote(like.substring(literal)));
+		return Pattern.compile(sb.toString(), Pattern.DOTALL);
+	}
+
+	/**
+	 * @param op one of {@code + - * / %}
+	 */
+	static Value arithmetic(final Value a, final String op, final Value b) {
+		final char c = op.trim().charAt(0);
+		if ("+-*/%".indexOf(c) < 0) throw new RuntimeException("operator "+ op +" unsupported in in-memory expressions");
+		return new Value() {
+			@Override
+			Object get(final Table t) {
+				final Object x = a.get(t);
+				final Object y = b.get(t);
+				if (x == null || y == null) return null;
+				if (c == '+' && (x instanceof String || y instanceof String)) return x.toString() + y.toString();
+				if (!(x instanceof Number) || !(y instanceof Number)) {
+					throw new RuntimeException("can't evaluate "+ x + op + y +" in memory");
+				}
+				return arithmetic((Number) x, c, (Number) y);
+			}
+		};
+	}
+
+	private static Number arithmetic(final Number x, final char op, final Number y) {
+		if (x instanceof BigDecimal || y instanceof BigDecimal || x instanceof BigInteger || y instanceof BigInteger) {
+			final BigDecimal a = toBigDecimal(x);
+			final BigDecimal b = toBigDecimal(y);
+			switch (op) {
+			case '+': return a.add(b);
+			case '-': return a.subtract(b);
+			case '*': return a.multiply(b);
+			case '/': return a.divide(b, MathContext.DECIMAL128);
+			default: return a.remainder(b);
+			}
+		}
+		if (x instanceof Double || y instanceof Double || x instanceof Float || y instanceof Float) {
+			final double a = x.doubleValue();
+			final double b = y.doubleValue();
+			switch (op) {
+			case '+': return a + b;
+			case '-': return a - b;
+			case '*': return a * b;
+			case '/': return a / b;
+			default: return a % b;
+			}
+		}
+		// integer arithmetic, as in sql
+		final long a = x.longValue();
+		final long b = y.longValue();
+		final long r;
+		switch (op) {
+		case '+': r = a + b; break;
+		case '-': r = a - b; break;
+		case '*': r = a * b; break;
+		case '/': r = a / b; break;
+		default: r = a % b;
+		}
+		if (x instanceof Long || y instanceof Long) return r;
+		return (int) r;
+	}
+
+	/**
+	 * @return the value of one of {@code SQLFunction}'s functions
+	 */
+	static Value function(final String name, final Object[] args) {
+		final Object[] objects = args==null ? new Object[0] : args;
+		final String f = name.toUpperCase();
+		if ("NOW".equals(f) || "GETDATE".equals(f) || "GETUTCDATE".equals(f)) {
+			return new Value() {
+				@Override
+				Object get(final Table t) {
+					return new Timestamp(System.currentTimeMillis());
+				}
+			};
+		}
+		if ("COALESCE".equals(f) || "IFNULL".equals(f) || "ISNULL".equals(f)) {
+			final Value[] values = values(objects, 0);
+			return new Value() {
+				@Override
+				Object get(final Table t) {
+					for (final Value v : values) {
+						final Object o = v.get(t);
+						if (o != null) return o;
+					}
+					return null;
+				}
+			};
+		}
+		if ("LOWER".equals(f) || "UPPER".equals(f)) {
+			final Value v = value(objects[0]);
+			final boolean upper = "UPPER".equals(f);
+			return new Value() {
+				@Override
+				Object get(final Table t) {
+					final Object o = v.get(t);
+					if (o == null) return null;
+					return upper ? o.toString().toUpperCase() : o.toString().toLowerCase();
+				}
+			};
+		}
+		if ("CONCAT".equals(f)) {
+			final Value[] values = values(objects, 0);
+			return new Value() {
+				@Override
+				Object get(final Table t) {
+					final StringBuilder sb = new StringBuilder();
+					for (final Value v : values) {
+						final Object o = v.get(t);
+						if (o == null) return null;
+						sb.append(o);
+					}
+					return sb.toString();
+				}
+			};
+		}
+		if ("DAY".equals(f)) return datePart(CALENDAR.DAY, value(objects[0]));
+		if ("MONTH".equals(f)) return datePart(CALENDAR.MONTH, value(objects[0]));
+		if ("YEAR".equals(f)) return datePart(CALENDAR.YEAR, value(objects[0]));
+		if ("DATEPART".equals(f)) return datePart((CALENDAR) objects[0], value(objects[1]));
+		if ("DATEDIFF".equals(f)) return dateDiff((CALENDAR) objects[0], value(objects[1]), value(objects[2]));
+		throw new RuntimeException("the sql function "+ name +"() can't be evaluated in memory");
+	}
+
+	private static Value[] values(final Object[] objects, final int start) {
+		final Value[] ret = new Value[objects.length - start];
+		for (int i=start; i<objects.length; ++i) ret[i-start] = value(objects[i]);
+		return ret;
+	}
+
+	private static Value datePart(final CALENDAR component, final Value date) {
+		return new Value() {
+			@Override
+			Object get(final Table t) {
+				final Object o = date.get(t);
+				if (o == null) return null;
+				final Date d = (Date) o;
+				final Calendar cal = Calendar.getInstance();
+				cal.setTime(d);
+				switch (component) {
+				case YEAR: return cal.get(Calendar.YEAR);
+				case QUARTER: return cal.get(Calendar.MONTH) / 3 + 1;
+				case MONTH: return cal.get(Calendar.MONTH) + 1;
+				case WEEK: return cal.get(Calendar.WEEK_OF_YEAR);
+				case DAY: return cal.get(Calendar.DAY_OF_MONTH);
+				case WEEKDAY: return cal.get(Calendar.DAY_OF_WEEK);
+				case HOUR: return cal.get(Calendar.HOUR_OF_DAY);
+				case MINUTE: return cal.get(Calendar.MINUTE);
+				case SECOND: return cal.get(Calendar.SECOND);
+				case MILLISECOND: return cal.get(Calendar.MILLISECOND);
+				case MICROSECOND: return d instanceof Timestamp ? ((Timestamp) d).getNanos() / 1000 : cal.get(Calendar.MILLISECOND) * 1000;
+				default: return d instanceof Timestamp ? ((Timestamp) d).getNanos() : cal.get(Calendar.MILLISECOND) * 1000000;
+				}
+			}
+		};
+	}
+
+	/**
+	 * @return the number of {@code component} boundaries crossed from {@code start} to {@code end}
+	 * (as sql server's {@code DATEDIFF()})
+	 */
+	private static Value dateDiff(final CALENDAR component, final Value start, final Value end) {
+		return new Value() {
+			@Override
+			Object get(final Table t) {
+				final Object s = start.get(t);
+				final Object e = end.get(t);
+				if (s == null || e == null) return null;
+				final Calendar c1 = Calendar.getInstance();
+				c1.setTime((Date) s);
+				final Calendar c2 = Calendar.getInstance();
+				c2.setTime((Date) e);
+				final long m1 = localMillis((Date) s);
+				final long m2 = localMillis((Date) e);
+				final int y = c2.get(Calendar.YEAR) - c1.get(Calendar.YEAR);
+				switch (component) {
+				case YEAR: return y;
+				case QUARTER: return y*4 + c2.get(Calendar.MONTH)/3 - c1.get(Calendar.MONTH)/3;
+				case MONTH: return y*12 + c2.get(Calendar.MONTH) - c1.get(Calendar.MONTH);
+				// day 0 (1970-01-01) was a thursday, so weeks starting sunday are offset by 4 days
+				case WEEK: return (int) (floorDiv(floorDiv(m2, DAY_MILLIS) + 4, 7) - floorDiv(floorDiv(m1, DAY_MILLIS) + 4, 7));
+				case DAY:
+				case WEEKDAY: return (int) (floorDiv(m2, DAY_MILLIS) - floorDiv(m1, DAY_MILLIS));
+				case HOUR: return (int) (floorDiv(m2, 1000L*60*60) - floorDiv(m1, 1000L*60*60));
+				case MINUTE: return (int) (floorDiv(m2, 1000L*60) - floorDiv(m1, 1000L*60));
+				case SECOND: return (int) (floorDiv(m2, 1000L) - floorDiv(m1, 1000L));
+				case MILLISECOND: return (int) (m2 - m1);
+				case MICROSECOND: return (int) ((m2 - m1) * 1000);
+				default: return (int) ((m2 - m1) * 1000000);
+				}
+			}
+		};
+	}
+
+	private static long localMillis(final Date d) {
+		final long t = d.getTime();
+		return t + TimeZone.getDefault().getOffset(t);
+	}
+
+	private static long floorDiv(final long a, final long b) {
+		final long q = a / b;
+		return (a % b != 0 && (a < 0) != (b < 0)) ? q - 1 : q;
+	}
+
+	/**
+	 * @return the date plus {@code count} of {@code component} (of the same class as the date)
+	 */
+	static Value dateAdd(final Value date, final int count, final CALENDAR component) {
+		return new Value() {
+			@Override
+			Object get(final Table t) {
+				final Object o = date.get(t);
+				if (o == null) return null;
+				final Date d = (Date) o;
+				final Calendar cal = Calendar.getInstance();
+				cal.setTime(d);
+				switch (component) {
+				case YEAR: cal.add(Calendar.YEAR, count); break;
+				case QUARTER: cal.add(Calendar.MONTH, count*3); break;
+				case MONTH: cal.add(Calendar.MONTH, count); break;
+				case WEEK: cal.add(Calendar.WEEK_OF_YEAR, count); break;
+				case DAY:
+				case WEEKDAY: cal.add(Calendar.DATE, count); break;
+				case HOUR: cal.add(Calendar.HOUR_OF_DAY, count); break;
+				case MINUTE: cal.add(Calendar.MINUTE, count); break;
+				case SECOND: cal.add(Calendar.SECOND, count); break;
+				case MILLISECOND: cal.add(Calendar.MILLISECOND, count); break;
+				case MICROSECOND: cal.add(Calendar.MILLISECOND, count / 1000); break;
+				default: cal.add(Calendar.MILLISECOND, count / 1000000);
+				}
+				final long millis = cal.getTimeInMillis();
+				if (d instanceof Timestamp) return new Timestamp(millis);
+				if (d instanceof java.sql.Date) return new java.sql.Date(millis);
+				return new Date(millis);
+			}
+		};
+	}
+
+}
@@ -0,0 +1,212 @@
+package org.kered.dko;
+
+import java.lang.ref.Reference;
+import java.lang.ref.WeakReference;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Logger;
+
+import org.kered.dko.Expression.Select;
+import org.kered.dko.Field.FK;
+
+/**
+ * The objects read together by one {@code SelectFromOAI} batch. &nbsp; When a lazy FK getter
+ * is called on one of them, the referenced rows of every object in the batch (of the same
+ * class, whose FK hasn't been loaded yet) are selected with a single {@code in} query (a
+ * temporary table for large batches) and handed to each object with {@code SET_FK}. &nbsp;
+ * Rows the {@code DBRowIterator} has already read but that haven't been turned into objects
+ * yet are included, so objects created later in the batch find their FK already loaded. &nbsp;
+ * This turns the classic N+1 pattern into about one query per batch.
+ * <p>
+ * Objects with equal FK values share the same referenced instance. &nbsp;
+ * Every object points to its batch, so the batch only holds its objects, their source and
+ * the rows it loaded weakly: keeping one object doesn't keep the rest of its batch. &nbsp;
+ * (A referenced row that's been collected is simply selected again.)
+ * <p>
+ * Turned on with {@code Constants.PROPERTY_BATCH_FK_LOADING} or {@code setEnabled()}.
+ *
+ * @author Derek Anderson
+ */
+public class FKBatch {
+
+	private static final Logger log = Logger.getLogger("org.kered.dko.FKBatch");
+
+	private static volatile boolean enabled = Util.truthy(System.getProperty(Constants.PROPERTY_BATCH_FK_LOADING));
+
+	private static final Map<Class<? extends Table>,Method> setFKMethods = new HashMap<Class<? extends Table>,Method>();
+
+	private final Reference<DBRowIterator<?>> rows;
+	private final Select<?>[] selectedFields;
+	private final List<TableInfo> tableInfos;
+	private final Map<Class<? extends Table>,List<Reference<Table>>> members = new HashMap<Class<? extends Table>,List<Reference<Table>>>();
+	// a null value is a key that was selected but not found
+	private final Map<FK<?>,Map<Object,Reference<Table>>> loaded = new HashMap<FK<?>,Map<Object,Reference<Table>>>();
+	private int size = 0;
+
+	/**
+	 * Turns batch loading of lazy foreign keys on or off for queries read from now on.
+	 * @param enabled
+	 */
+	public static void setEnabled(final boolean enabled) {
+		FKBatch.enabled = enabled;
+	}
+
+	public static boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * @param rows the source of the objects (to peek at rows not yet turned into objects), or null
+	 * @param selectedFields
+	 * @param tableInfos
+	 */
+	FKBatch(final DBRowIterator<?> rows, final Select<?>[] selectedFields, final List<TableInfo> tableInfos) {
+		this.rows = new WeakReference<DBRowIterator<?>>(rows);
+		this.selectedFields = selectedFields;
+		this.tableInfos = tableInfos;
+	}
+
+	synchronized void add(final Table t) {
+		List<Reference<Table>> tables = members.get(t.getClass());
+		if (tables == null) {
+			tables = new ArrayList<Reference<Table>>();
+			members.put(t.getClass(), tables);
+		}
+		tables.add(new WeakReference<Table>(t));
+		t.__NOSCO_FK_BATCH = this;
+		++size;
+	}
+
+	int size() {
+		return size;
+	}
+
+	/**
+	 * Loads this FK for every object in the batch of the same class as {@code table}.
+	 * @return true if the FK of {@code table} was loaded
+	 */
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	synchronized boolean load(final Table table, final FK<? extends Table> fk) {
+		final Field[] referencing = fk.REFERENCING_FIELDS();
+		final Field[] referenced = fk.REFERENCED_FIELDS();
+		if (referencing.length != 1) return false;
+		// don't trigger lazy loading of the FK column itself
+		if (!table.__NOSCO_FETCHED_VALUES.get(referencing[0].INDEX)) return false;
+		final List<Reference<Table>> tables = members.get(table.getClass());
+		if (tables == null) return false;
+		final Method setFK = getSetFKMethod(table.getClass());
+		if (setFK == null) return false;
+
+		final List<Table> pending = new ArrayList<Table>();
+		for (final Iterator<Reference<Table>> it = tables.iterator(); it.hasNext();) {
+			final Table t = it.next().get();
+			if (t == null) {
+				it.remove();
+				continue;
+			}
+			if (t.__NOSCO_FETCHED_VALUES.get(fk.INDEX)) continue;
+			if (!t.__NOSCO_FETCHED_VALUES.get(referencing[0].INDEX)) continue;
+			pending.add(t);
+		}
+
+		Map<Object,Reference<Table>> byKey = loaded.get(fk);
+		final Object value = table.get(referencing[0]);
+		// holds the rows loaded by this call until they're handed out
+		final List<Table> found = new ArrayList<Table>();
+		if (byKey == null || (value != null && !isLoaded(byKey, value))) {
+			final Set<Object> values = new LinkedHashSet<Object>();
+			for (final Table t : pending) {
+				final Object v = t.get(referencing[0]);
+				if (v != null) values.add(v);
+			}
+			addBufferedValues(table.getClass(), referencing[0], values);
+			if (byKey == null) {
+				byKey = new HashMap<Object,Reference<Table>>();
+				loaded.put(fk, byKey);
+			} else {
+				for (final Iterator<Object> it = values.iterator(); it.hasNext();) {
+					if (isLoaded(byKey, it.next())) it.remove();
+				}
+			}
+			for (final Object v : values) byKey.put(v, null);
+			if (!values.isEmpty()) {
+				final Query<? extends Table> q = QueryFactory.IT.getQuery(fk.referenced).where(referenced[0].in(values));
+				for (final Table t : q) {
+					found.add(t);
+					byKey.put(t.get(referenced[0]), new WeakReference<Table>(t));
+				}
+			}
+			log.fine("batch loaded "+ fk +" for "+ values.size() +" values");
+		}
+
+		try {
+			for (final Table t : pending) {
+				final Object v = t.get(referencing[0]);
+				if (v == null) {
+					setFK.invoke(t, fk, null);
+					continue;
+				}
+				if (!byKey.containsKey(v)) continue;
+				final Reference<Table> ref = byKey.get(v);
+				final Table referencedRow = ref==null ? null : ref.get();
+				if (ref != null && referencedRow == null) continue;
+				setFK.invoke(t, fk, referencedRow);
+			}
+		} catch (final IllegalAccessException e) {
+			throw new RuntimeException(e);
+		} catch (final InvocationTargetException e) {
+			throw new RuntimeException(e);
+		}
+		return table.__NOSCO_FETCHED_VALUES.get(fk.INDEX);
+	}
+
+	/**
+	 * @return if this key was selected, and its row (if it had one) hasn't been collected since
+	 */
+	private static boolean isLoaded(final Map<Object,Reference<Table>> byKey, final Object key) {
+		if (!byKey.containsKey(key)) return false;
+		final Reference<Table> ref = byKey.get(key);
+		return ref == null || ref.get() != null;
+	}
+
+	/**
+	 * Adds the FK values of rows that have been read but not yet turned into objects.
+	 */
+	private void addBufferedValues(final Class<? extends Table> cls, final Field<?> field, final Set<Object> values) {
+		final DBRowIterator<?> rows = this.rows.get();
+		if (rows == null) return;
+		for (final TableInfo ti : tableInfos) {
+			if (ti.tableClass != cls) continue;
+			for (int i=ti.start; i<ti.end; ++i) {
+				if (!field.sameField(selectedFields[i])) continue;
+				for (final Object[] row : rows.getBufferedRows()) {
+					if (row[i] != null) values.add(row[i]);
+				}
+			}
+		}
+	}
+
+	static Method getSetFKMethod(final Class<? extends Table> cls) {
+		synchronized (setFKMethods) {
+			if (!setFKMethods.containsKey(cls)) {
+				Method m = null;
+				try {
+					m = cls.getDeclaredMethod("SET_FK", Field.FK.class, Object.class);
+					m.setAccessible(true);
+				} catch (final NoSuchMethodException e) {
+					/* ignore */
+				}
+				setFKMethods.put(cls, m);
+			}
+			return setFKMethods.get(cls);
+		}
+	}
+
+}
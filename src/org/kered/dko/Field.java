@@ -263,13 +263,7 @@ public class Field<T> implements Cloneable, Expression.OrderBy<T>, Expression.Se
 	 * @return
 	 */
 	public Condition lt(final T v) {
-		return new Binary2(this, "<", v) {
-			@Override
-			boolean matches(final Object v1, final Object v2) {
-				if (v1==null) return false;
-				return ((Comparable<T>)v1).compareTo((T) v2) < 0;
-			}
-		};
+		return new Binary2(this, "<", v);
 	}
 
 	/**
@@ -278,13 +272,7 @@ public class Field<T> implements Cloneable, Expression.OrderBy<T>, Expression.Se
 	 * @return
 	 */
 	public Condition lt(final Field<T> v) {
-		return new Binary2(this, "<", v) {
-			@Override
-			boolean matches(final Object v1, final Object v2) {
-				if (v1==null) return false;
-				return ((Comparable<T>)v1).compareTo((T) v2) < 0;
-			}
-		};
+		return new Binary2(this, "<", v);
 	}
 
 	/**
@@ -302,13 +290,7 @@ public class Field<T> implements Cloneable, Expression.OrderBy<T>, Expression.Se
 	 * @return
 	 */
 	public Condition lte(final T v) {
-		return new Binary2(this, "<=", v) {
-			@Override
-			boolean matches(final Object v1, final Object v2) {
-				if (v1==null) return false;
-				return ((Comparable<T>)v1).compareTo((T) v2) <= 0;
-			}
-		};
+		return new Binary2(this, "<=", v);
 	}
 
 	/**
@@ -317,13 +299,7 @@ public class Field<T> implements Cloneable, Expression.OrderBy<T>, Expression.Se
 	 * @return
 	 */
 	public Condition lte(final Field<T> v) {
-		return new Binary2(this, "<=", v) {
-			@Override
-			boolean matches(final Object v1, final Object v2) {
-				if (v1==null) return false;
-				return ((Comparable<T>)v1).compareTo((T) v2) <= 0;
-			}
-		};
+		return new Binary2(this, "<=", v);
 	}
 
 	/**
@@ -341,13 +317,7 @@ public class Field<T> implements Cloneable, Expression.OrderBy<T>, Expression.Se
 	 * @return
 	 */
 	public Condition gt(final T v) {
-		return new Binary2(this, ">", v) {
-			@Override
-			boolean matches(final Object v1, final Object v2) {
-				if (v1==null) return false;
-				return ((Comparable<T>)v1).compareTo((T) v2) > 0;
-			}
-		};
+		return new Binary2(this, ">", v);
 	}
 
 	/**
@@ -356,13 +326,7 @@ public class Field<T> implements Cloneable, Expression.OrderBy<T>, Expression.Se
 	 * @return
 	 */
 	public Condition gt(final Field<T> v) {
-		return new Binary2(this, ">", v) {
-			@Override
-			boolean matches(final Object v1, final Object v2) {
-				if (v1==null) return false;
-				return ((Comparable<T>)v1).compareTo((T) v2) > 0;
-			}
-		};
+		return new Binary2(this, ">", v);
 	}
 
 	/**
@@ -380,13 +344,7 @@ public class Field<T> implements Cloneable, Expression.OrderBy<T>, Expression.Se
 	 * @return
 	 */
 	public Condition gte(final T v) {
-		return new Binary2(this, ">=", v) {
-			@Override
-			boolean matches(final Object v1, final Object v2) {
-				if (v1==null) return false;
-				return ((Comparable<T>)v1).compareTo((T) v2) >= 0;
-			}
-		};
+		return new Binary2(this, ">=", v);
 	}
 
 	/**
@@ -395,13 +353,7 @@ public class Field<T> implements Cloneable, Expression.OrderBy<T>, Expression.Se
 	 * @return
 	 */
 	public Condition gte(final Field<T> v) {
-		return new Binary2(this, ">=", v) {
-			@Override
-			boolean matches(final Object v1, final Object v2) {
-				if (v1==null) return false;
-				return ((Comparable<T>)v1).compareTo((T) v2) >= 0;
-			}
-		};
+		return new Binary2(this, ">=", v);
 	}
 
 	/**
@@ -518,6 +470,9 @@ public class Field<T> implements Cloneable, Expression.OrderBy<T>, Expression.Se
 	/**
 	 * Creates a condition representing this field being a member of the given set.
 	 * If this collection is large a temporary table is created and joined against.
+	 * (Otherwise, or if this field's type can't be put in one, the values are bound as an
+	 * array on postgres, and elsewhere as lists padded to a power of two, to reuse
+	 * statements, of at most 1000 values.)
 	 * @param set
 	 * @return
 	 */
@@ -97,6 +97,41 @@ class FilteringQuery<T extends Table> extends AbstractQuery<T> implements Matryo
 		return ret;
 	}
 
+	@Override
+	public Query<T> parallel(int n) {
+		FilteringQuery<T> ret = new FilteringQuery<T>(this);
+		ret.q = ret.q.parallel(n);
+		return ret;
+	}
+
+	@Override
+	public Query<T> parallel(int n, boolean inPKOrder) {
+		FilteringQuery<T> ret = new FilteringQuery<T>(this);
+		ret.q = ret.q.parallel(n, inPKOrder);
+		return ret;
+	}
+
+	@Override
+	public Query<T> fetchSize(int n) {
+		FilteringQuery<T> ret = new FilteringQuery<T>(this);
+		ret.q = ret.q.fetchSize(n);
+		return ret;
+	}
+
+	@Override
+	public Query<T> readAhead(int rows) {
+		FilteringQuery<T> ret = new FilteringQuery<T>(this);
+		ret.q = ret.q.readAhead(rows);
+		return ret;
+	}
+
+	@Override
+	public Query<T> withSeparately(FK<?>... fields) {
+		FilteringQuery<T> ret = new FilteringQuery<T>(this);
+		ret.q = ret.q.withSeparately(fields);
+		return ret;
+	}
+
 	@Override
 	public Query<T> deferFields(Field<?>... fields) {
 		FilteringQuery<T> ret = new FilteringQuery<T>(this);
@@ -0,0 +1,152 @@
+package org.kered.dko;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+
+/**
+ * Emits JDK Flight Recorder events for DKO's hot paths. &nbsp;
+ * DKO is built for older JVMs, so the events are defined at runtime through
+ * {@code jdk.jfr.EventFactory} (via reflection) instead of by subclassing
+ * {@code jdk.jfr.Event}. &nbsp; Turned off unless the {@code org.kered.dko.jfr_events}
+ * property is set, in which case every call site costs a single static boolean check.
+ * When it is set, {@code begin()} still returns null (without creating an event) unless
+ * a recording has the event type enabled.
+ * <p>
+ * Usage:
+ * <pre>  {@code final Object e = FlightRecorderEvents.begin(Type.BULK_BATCH);
+ *   ...
+ *   if (e!=null) FlightRecorderEvents.commit(e, "insert", tableName, (long) rows);}</pre>
+ *
+ * @author Derek Anderson
+ */
+class FlightRecorderEvents {
+
+	private static final Logger log = Logger.getLogger("org.kered.dko.FlightRecorderEvents");
+
+	static enum Type {
+
+		QUERY_EXECUTE("QueryExecute", "DKO Query Execute",
+				new String[] {"sql", "table", "dbType", "rows"},
+				new Class<?>[] {String.class, String.class, String.class, long.class}),
+		ROW_BATCH("RowBatch", "DKO Row Batch",
+				new String[] {"source", "table", "rows"}, new Class<?>[] {String.class, String.class, long.class}),
+		BULK_BATCH("BulkBatch", "DKO Bulk Batch",
+				new String[] {"operation", "table", "rows"}, new Class<?>[] {String.class, String.class, long.class}),
+		CONNECTION_ACQUIRE("ConnectionAcquire", "DKO Connection Acquire",
+				new String[] {"dataSource", "readOnly", "inTransaction"}, new Class<?>[] {String.class, boolean.class, boolean.class}),
+		LOCAL_JOIN_LOAD("LocalJoinLoad", "DKO Local Join Load",
+				new String[] {"table", "rows"}, new Class<?>[] {String.class, long.class}),
+		USAGE_MONITOR_WRITE("UsageMonitorWrite", "DKO Usage Monitor Write",
+				new String[] {"table", "operation"}, new Class<?>[] {String.class, String.class}),
+		READ_AHEAD("ReadAhead", "DKO Read Ahead",
+				new String[] {"table", "rows", "producerStallNanos", "consumerStallNanos"},
+				new Class<?>[] {String.class, long.class, long.class, long.class});
+
+		private final String jfrName;
+		private final String label;
+		private final String[] fieldNames;
+		private final Class<?>[] fieldTypes;
+		private Object eventType = null;
+		private Constructor<?> eventConstructor = null;
+
+		Type(final String jfrName, final String label, final String[] fieldNames, final Class<?>[] fieldTypes) {
+			this.jfrName = jfrName;
+			this.label = label;
+			this.fieldNames = fieldNames;
+			this.fieldTypes = fieldTypes;
+		}
+	}
+
+	// assigned by init(), so they must be declared (without initializers) before ENABLED
+	private static Method EVENT_TYPE_IS_ENABLED;
+	private static Method EVENT_BEGIN;
+	private static Method EVENT_SET;
+	private static Method EVENT_COMMIT;
+
+	static final boolean ENABLED = init();
+
+	private static boolean init() {
+		if (!Util.truthy(System.getProperty(Constants.PROPERTY_JFR_EVENTS))) return false;
+		try {
+			final Class<?> factoryClass = Class.forName("jdk.jfr.EventFactory");
+			final Class<?> eventClass = Class.forName("jdk.jfr.Event");
+			final Class<?> annotationElementClass = Class.forName("jdk.jfr.AnnotationElement");
+			final Class<?> valueDescriptorClass = Class.forName("jdk.jfr.ValueDescriptor");
+			final Class<?> nameClass = Class.forName("jdk.jfr.Name");
+			final Class<?> labelClass = Class.forName("jdk.jfr.Label");
+			final Class<?> categoryClass = Class.forName("jdk.jfr.Category");
+			final Constructor<?> annotationElement = annotationElementClass.getConstructor(Class.class, Object.class);
+			final Constructor<?> valueDescriptor = valueDescriptorClass.getConstructor(Class.class, String.class);
+			final Method create = factoryClass.getMethod("create", List.class, List.class);
+			final Method getEventType = factoryClass.getMethod("getEventType");
+			final Method newEvent = factoryClass.getMethod("newEvent");
+			for (final Type type : Type.values()) {
+				final List<Object> annotations = new ArrayList<Object>();
+				annotations.add(annotationElement.newInstance(nameClass, "org.kered.dko."+ type.jfrName));
+				annotations.add(annotationElement.newInstance(labelClass, type.label));
+				annotations.add(annotationElement.newInstance(categoryClass, new String[] {"DKO"}));
+				final List<Object> fields = new ArrayList<Object>();
+				for (int i=0; i<type.fieldNames.length; ++i) {
+					fields.add(valueDescriptor.newInstance(type.fieldTypes[i], type.fieldNames[i]));
+				}
+				final Object factory = create.invoke(null, annotations, fields);
+				type.eventType = getEventType.invoke(factory);
+				// the factory's event class is generated once, so construct it directly from here on
+				type.eventConstructor = newEvent.invoke(factory).getClass().getDeclaredConstructor();
+				type.eventConstructor.setAccessible(true);
+			}
+			EVENT_TYPE_IS_ENABLED = Class.forName("jdk.jfr.EventType").getMethod("isEnabled");
+			EVENT_BEGIN = eventClass.getMethod("begin");
+			EVENT_SET = eventClass.getMethod("set", Integer.TYPE, Object.class);
+			EVENT_COMMIT = eventClass.getMethod("commit");
+			return true;
+		} catch (final ClassNotFoundException e) {
+			log.warning(Constants.PROPERTY_JFR_EVENTS +" is set but this JVM does not support " +
+					"JDK Flight Recorder.  DKO events are disabled.");
+		} catch (final Throwable e) {
+			log.warning("could not register DKO flight recorder events: "+ e);
+		}
+		return false;
+	}
+
+	/**
+	 * Starts timing an event.
+	 * @param type
+	 * @return an opaque event handle to pass to {@code commit()}, or null if events are
+	 * disabled or no recording has this type enabled
+	 */
+	static Object begin(final Type type) {
+		if (!ENABLED) return null;
+		try {
+			if (!(Boolean) EVENT_TYPE_IS_ENABLED.invoke(type.eventType)) return null;
+			final Object event = type.eventConstructor.newInstance();
+			EVENT_BEGIN.invoke(event);
+			return event;
+		} catch (final Exception e) {
+			log.fine("could not begin "+ type +" event: "+ e);
+			return null;
+		}
+	}
+
+	/**
+	 * Stops timing an event and records it with the given field values (in the
+	 * order the event's {@code Type} declares them).
+	 * @param event the handle from {@code begin()} (may be null)
+	 * @param values
+	 */
+	static void commit(final Object event, final Object... values) {
+		if (event == null) return;
+		try {
+			for (int i=0; i<values.length; ++i) {
+				EVENT_SET.invoke(event, i, values[i]);
+			}
+			EVENT_COMMIT.invoke(event);
+		} catch (final Exception e) {
+			log.fine("could not commit event: "+ e);
+		}
+	}
+
+}
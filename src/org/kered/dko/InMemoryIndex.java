@@ -0,0 +1,183 @@
+package org.kered.dko;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An index on one field of an {@code InMemoryQuery}'s rows, used by its {@code where()} and
+ * {@code get()} instead of scanning every row. &nbsp; It maps each value (numbers compared by
+ * value, as {@code Evaluator} does) to the positions of its rows for {@code =} and {@code in},
+ * and keeps the positions sorted by value for ranges ({@code < <= > >= between}), built on
+ * the first range lookup. &nbsp; Lookups return the positions in ascending order, so the
+ * rows keep the query's order. &nbsp; An index is built over a fixed list of rows and is
+ * immutable, so it's safe to share between threads (and is rebuilt when the rows change).
+ *
+ * @author Derek Anderson
+ */
+class InMemoryIndex {
+
+	private static final int[] NONE = new int[0];
+
+	final Field<?> field;
+	final List<? extends Table> rows;
+	private final Object[] values;
+	private final Map<Object,int[]> positions;
+	private volatile int[] sorted = null;
+	private volatile boolean unsortable = false;
+
+	InMemoryIndex(final Field<?> field, final List<? extends Table> rows) {
+		this.field = field;
+		this.rows = rows;
+		values = new Object[rows.size()];
+		final Map<Object,List<Integer>> tmp = new HashMap<Object,List<Integer>>();
+		for (int i=0; i<values.length; ++i) {
+			final Object v = rows.get(i).get(field);
+			values[i] = v;
+			if (v == null) continue;
+			final Object key = Evaluator.key(v);
+			List<Integer> list = tmp.get(key);
+			if (list == null) {
+				list = new ArrayList<Integer>(1);
+				tmp.put(key, list);
+			}
+			list.add(i);
+		}
+		positions = new HashMap<Object,int[]>(tmp.size() * 4 / 3 + 1);
+		for (final Map.Entry<Object,List<Integer>> e : tmp.entrySet()) {
+			final List<Integer> list = e.getValue();
+			final int[] a = new int[list.size()];
+			for (int i=0; i<a.length; ++i) a[i] = list.get(i);
+			positions.put(e.getKey(), a);
+		}
+	}
+
+	/**
+	 * @return the positions of the rows equal to this value
+	 */
+	int[] eq(final Object v) {
+		if (v == null) return NONE;
+		final int[] ret = positions.get(Evaluator.key(v));
+		return ret==null ? NONE : ret;
+	}
+
+	/**
+	 * @return the positions of the rows equal to any of these values
+	 */
+	int[] in(final Collection<?> vs) {
+		int count = 0;
+		final List<int[]> found = new ArrayList<int[]>();
+		for (final Object v : vs) {
+			final int[] a = eq(v);
+			if (a.length == 0) continue;
+			found.add(a);
+			count += a.length;
+		}
+		if (found.size() == 1) return found.get(0);
+		final int[] ret = new int[count];
+		int i = 0;
+		for (final int[] a : found) {
+			System.arraycopy(a, 0, ret, i, a.length);
+			i += a.length;
+		}
+		return distinct(ret);
+	}
+
+	/**
+	 * @param lo the lower bound, or null for none
+	 * @param hi the upper bound, or null for none
+	 * @return the positions of the rows in this range, or null if this field's values can't be sorted
+	 */
+	int[] range(final Object lo, final boolean loInclusive, final Object hi, final boolean hiInclusive) {
+		final int[] sorted = getSorted();
+		if (sorted == null) return null;
+		final int start = lo==null ? 0 : bound(sorted, lo, !loInclusive);
+		final int end = hi==null ? sorted.length : bound(sorted, hi, hiInclusive);
+		if (start >= end) return NONE;
+		final int[] ret = Arrays.copyOfRange(sorted, start, end);
+		Arrays.sort(ret);
+		return ret;
+	}
+
+	/**
+	 * @return the first index in sorted whose value is greater than (or, if {@code after},
+	 * greater than or equal to) v
+	 */
+	private int bound(final int[] sorted, final Object v, final boolean after) {
+		int lo = 0;
+		int hi = sorted.length;
+		while (lo < hi) {
+			final int mid = (lo + hi) >>> 1;
+			final int c = Evaluator.compare(values[sorted[mid]], v);
+			if (c < 0 || (after && c == 0)) lo = mid + 1;
+			else hi = mid;
+		}
+		return lo;
+	}
+
+	private int[] getSorted() {
+		if (sorted == null && !unsortable) {
+			final List<Integer> nonNull = new ArrayList<Integer>(values.length);
+			for (int i=0; i<values.length; ++i) {
+				if (values[i] != null) nonNull.add(i);
+			}
+			final Integer[] tmp = nonNull.toArray(new Integer[nonNull.size()]);
+			try {
+				Arrays.sort(tmp, new Comparator<Integer>() {
+					@Override
+					public int compare(final Integer a, final Integer b) {
+						return Evaluator.compare(values[a], values[b]);
+					}
+				});
+				final int[] ret = new int[tmp.length];
+				for (int i=0; i<ret.length; ++i) ret[i] = tmp[i];
+				sorted = ret;
+			} catch (final ClassCastException e) {
+				unsortable = true;
+			}
+		}
+		return sorted;
+	}
+
+	/**
+	 * @return the positions in both (sorted) lists
+	 */
+	static int[] intersect(final int[] a, final int[] b) {
+		final int[] ret = new int[Math.min(a.length, b.length)];
+		int i = 0, j = 0, k = 0;
+		while (i < a.length && j < b.length) {
+			if (a[i] < b[j]) ++i;
+			else if (a[i] > b[j]) ++j;
+			else {
+				ret[k++] = a[i];
+				++i;
+				++j;
+			}
+		}
+		return k==ret.length ? ret : Arrays.copyOf(ret, k);
+	}
+
+	/**
+	 * @return the positions in either (sorted) list
+	 */
+	static int[] union(final int[] a, final int[] b) {
+		final int[] ret = new int[a.length + b.length];
+		System.arraycopy(a, 0, ret, 0, a.length);
+		System.arraycopy(b, 0, ret, a.length, b.length);
+		return distinct(ret);
+	}
+
+	private static int[] distinct(final int[] a) {
+		Arrays.sort(a);
+		int k = 0;
+		for (int i=0; i<a.length; ++i) {
+			if (i == 0 || a[i] != a[i-1]) a[k++] = a[i];
+		}
+		return k==a.length ? a : Arrays.copyOf(a, k);
+	}
+
+}
@@ -1,5 +1,6 @@
 package org.kered.dko;
 
+import java.lang.ref.WeakReference;
 import java.sql.Connection;
 import java.sql.SQLException;
 import java.util.ArrayList;
@@ -10,22 +11,39 @@ import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
 
 import javax.sql.DataSource;
 
 import org.kered.dko.Constants.DB_TYPE;
-import org.kered.dko.Constants.DIRECTION;
 import org.kered.dko.Field.FK;
 import org.kered.dko.Table.__Alias;
 import org.kered.dko.Table.__PrimaryKey;
 
 class InMemoryQuery<T extends Table> extends AbstractQuery<T> {
 
-	List<T> cache = null;
+	private static final Logger log = Logger.getLogger("org.kered.dko.InMemoryQuery");
+
+	/**
+	 * Unindexed fields are indexed after this many lookups on them.
+	 */
+	private static final int AUTO_INDEX_AFTER = 8;
+
+	/* the in-memory copies of database queries (from toMemory()), by the tables they read */
+	private static final Map<Class<? extends Table>,List<WeakReference<InMemoryQuery<?>>>> copies =
+			new HashMap<Class<? extends Table>,List<WeakReference<InMemoryQuery<?>>>>();
+
+	volatile List<T> cache = null;
+	private volatile boolean stale = false;
+	private volatile Map<Field<?>,InMemoryIndex> indexes = new ConcurrentHashMap<Field<?>,InMemoryIndex>();
+	private final Map<Field<?>,Integer> scans = new HashMap<Field<?>,Integer>();
 	private List<Field<?>> selectFields;
 	private Query<T> query;
 	private boolean loaded = false;
 	private boolean ordered = false;
+	private List<T> unsorted = null;
+	private Comparator<T> order = null;
 
 	InMemoryQuery(final Query<T> query) {
 		this(query, false);
@@ -39,6 +57,13 @@ class InMemoryQuery<T extends Table> extends AbstractQuery<T> {
 
 	private synchronized void load() {
 		if (loaded) return;
+		if (order != null) {
+			// ordered, and being read before a limit() could pick just the top rows
+			cache = TopN.sort(unsorted.iterator(), order);
+			unsorted = null;
+			loaded = true;
+			return;
+		}
 		cache = new ArrayList<T>();
 		this.selectFields = query.getSelectFields();
 		for (final T t : query) {
@@ -70,7 +95,7 @@ class InMemoryQuery<T extends Table> extends AbstractQuery<T> {
 
 	@Override
 	public Iterator<T> iterator() {
-		if (!loaded) load();
+		ensureLoaded();
 		return Collections.unmodifiableList(cache).iterator();
 	}
 
@@ -79,23 +104,142 @@ class InMemoryQuery<T extends Table> extends AbstractQuery<T> {
 		return ordered;
 	}
 
+	/**
+	 * Loads the rows of a database query into memory, and reloads them (see {@code refresh()})
+	 * on the first read after DKO writes to any table the query reads from.
+	 */
+	static <T extends Table> InMemoryQuery<T> of(final DBQuery<T> query) {
+		final InMemoryQuery<T> ret = new InMemoryQuery<T>(query);
+		synchronized (copies) {
+			for (final Class<? extends Table> type : query.getReferencedTables()) {
+				List<WeakReference<InMemoryQuery<?>>> refs = copies.get(type);
+				if (refs == null) {
+					refs = new ArrayList<WeakReference<InMemoryQuery<?>>>();
+					copies.put(type, refs);
+				}
+				// drop the collected ones whenever the list doubles
+				if (refs.size() >= 16 && (refs.size() & (refs.size()-1)) == 0) {
+					for (final Iterator<WeakReference<InMemoryQuery<?>>> i = refs.iterator(); i.hasNext();) {
+						if (i.next().get() == null) i.remove();
+					}
+				}
+				refs.add(new WeakReference<InMemoryQuery<?>>(ret));
+			}
+		}
+		return ret;
+	}
+
+	/**
+	 * Marks the in-memory copies of queries reading this table to be reloaded when next read.
+	 */
+	static void invalidate(final Class<? extends Table> type) {
+		synchronized (copies) {
+			final List<WeakReference<InMemoryQuery<?>>> refs = copies.get(type);
+			if (refs == null) return;
+			for (final Iterator<WeakReference<InMemoryQuery<?>>> i = refs.iterator(); i.hasNext();) {
+				final InMemoryQuery<?> q = i.next().get();
+				if (q == null) i.remove();
+				else q.stale = true;
+			}
+		}
+	}
+
+	private void ensureLoaded() {
+		if (stale) {
+			synchronized (this) {
+				if (stale) refresh();
+			}
+		} else if (!loaded) {
+			load();
+		}
+	}
+
+	/**
+	 * Reloads the rows from the query this was created from, and rebuilds its indexes.
+	 */
+	synchronized void refresh() {
+		if (query == null) throw new UnsupportedOperationException("this in-memory query has no query to refresh from");
+		// cleared first, so a write while reloading marks it stale again
+		stale = false;
+		final List<T> rows = new ArrayList<T>();
+		for (final T t : query) rows.add(t);
+		final Map<Field<?>,InMemoryIndex> fresh = new ConcurrentHashMap<Field<?>,InMemoryIndex>();
+		for (final Field<?> field : indexes.keySet()) fresh.put(field, new InMemoryIndex(field, rows));
+		this.selectFields = query.getSelectFields();
+		cache = rows;
+		indexes = fresh;
+		loaded = true;
+	}
+
+	@Override
+	public Query<T> index(final Field<?>... fields) {
+		ensureLoaded();
+		for (final Field<?> field : fields) {
+			if (currentIndex(field) == null) buildIndex(field);
+		}
+		return this;
+	}
+
+	/**
+	 * @return the index on this field, or null if it isn't indexed (yet - this counts as
+	 * a lookup towards indexing it)
+	 */
+	InMemoryIndex getIndex(final Field<?> field) {
+		final InMemoryIndex index = currentIndex(field);
+		if (index != null) return index;
+		synchronized (scans) {
+			final Integer n = scans.get(field);
+			final int count = n==null ? 1 : n + 1;
+			if (count < AUTO_INDEX_AFTER) {
+				scans.put(field, count);
+				return null;
+			}
+			scans.remove(field);
+		}
+		log.fine("indexing "+ field +" of "+ getType().getSimpleName() +" after "+ AUTO_INDEX_AFTER +" lookups on it");
+		return buildIndex(field);
+	}
+
+	/**
+	 * @return the index on this field, if it's over the current rows
+	 */
+	private InMemoryIndex currentIndex(final Field<?> field) {
+		final InMemoryIndex index = indexes.get(field);
+		return index != null && index.rows == cache ? index : null;
+	}
+
+	private synchronized InMemoryIndex buildIndex(final Field<?> field) {
+		InMemoryIndex index = currentIndex(field);
+		if (index == null) {
+			index = new InMemoryIndex(field, cache);
+			indexes.put(field, index);
+		}
+		return index;
+	}
+
 	@Override
 	public Query<T> where(final Condition... conditions) {
-		if (!loaded) load();
+		ensureLoaded();
 		final InMemoryQuery<T> q = new InMemoryQuery<T>(this);
-		for (final T t : cache) {
-			boolean include = true;
-			for (final Condition c : conditions) {
-				include &= c.matches(t);
+		final List<T> rows = cache;
+		final Condition condition = conditions.length==1 ? conditions[0] : new Condition.And(conditions);
+		final int[] positions = condition.lookup(this);
+		if (positions != null && rows == cache) {
+			for (final int i : positions) {
+				final T t = rows.get(i);
+				if (condition.matches(t)) q.cache.add(t);
+			}
+		} else {
+			for (final T t : rows) {
+				if (condition.matches(t)) q.cache.add(t);
 			}
-			if (include) q.cache.add(t);
 		}
 		return q;
 	}
 
 	@Override
 	public long count() throws SQLException {
-		if (!loaded) load();
+		ensureLoaded();
 		return cache.size();
 	}
 
@@ -104,47 +248,35 @@ class InMemoryQuery<T extends Table> extends AbstractQuery<T> {
 		return null;
 	}
 
+	/**
+	 * The rows aren't sorted until they're read, so a following {@code limit()} can pick out
+	 * just the first ones (with {@code TopN}) instead.
+	 */
 	@Override
 	public Query<T> orderBy(final Expression.OrderBy<?>... obes) {
-		ordered = true;
-		if (!loaded) load();
+		final Comparator<T> order = TopN.comparator(obes);
+		ensureLoaded();
 		final InMemoryQuery<T> q = new InMemoryQuery<T>(this);
-		q.cache.addAll(cache);
-		Collections.sort(q.cache, new Comparator<T>() {
-			@SuppressWarnings({ "unchecked", "rawtypes" })
-			@Override
-			public int compare(final T o1, final T o2) {
-				for (final Expression.OrderBy<?> obe : obes) {
-					Field f = null;
-					if (obe instanceof Field) {
-						f = (Field) obe;
-						final Comparable c1 = (Comparable) o1.get(f);
-						final Object c2 = o2.get(f);
-						if (c1 == null && c2 != null) return 1;
-						final int c = c1.compareTo(c2);
-						if (c != 0) return c;
-					}
-					else if (obe instanceof Field.OrderByField) {
-						f = ((Field.OrderByField) obe).underlying;
-						final Comparable c1 = (Comparable) o1.get(f);
-						final Object c2 = o2.get(f);
-						int mul = ((Field.OrderByField) obe).direction==DIRECTION.ASCENDING ? 1 : -1;
-						if (c1 == null && c2 != null) return mul;
-						final int c = c1.compareTo(c2) * mul;
-						if (c != 0) return c;
-					}
-				}
-				return 0;
-			}});
+		q.unsorted = cache;
+		q.order = order;
+		q.loaded = false;
+		q.ordered = true;
 		return q;
 	}
 
 	@Override
 	public Query<T> limit(final long n) {
-		if (!loaded) load();
 		final InMemoryQuery<T> q = new InMemoryQuery<T>(this);
+		q.ordered = ordered;
+		synchronized (this) {
+			if (!loaded && order != null) {
+				q.cache = TopN.top(unsorted.iterator(), order, n);
+				return q;
+			}
+		}
+		ensureLoaded();
 		q.cache = new ArrayList<T>();
-		q.cache.addAll(cache.subList(0, Math.min((int)n, cache.size())));
+		q.cache.addAll(cache.subList(0, (int) Math.min(n, cache.size())));
 		return q;
 	}
 
@@ -195,7 +327,7 @@ class InMemoryQuery<T extends Table> extends AbstractQuery<T> {
 
 	@Override
 	public Iterable<T> all() {
-		if (!loaded) load();
+		ensureLoaded();
 		return Collections.unmodifiableList(cache);
 	}
 
@@ -238,7 +370,7 @@ class InMemoryQuery<T extends Table> extends AbstractQuery<T> {
 
 	@Override
 	public Condition exists() {
-		if (!loaded) load();
+		ensureLoaded();
 		if (cache.isEmpty()) return Condition.Literal.FALSE;
 		else return Condition.Literal.TRUE;
 	}
@@ -258,9 +390,13 @@ class InMemoryQuery<T extends Table> extends AbstractQuery<T> {
 	@SuppressWarnings("unchecked")
 	@Override
 	public T get(final __PrimaryKey<T> pk) {
-		if (!loaded) load();
+		ensureLoaded();
 		if (cache==null || cache.size() == 0) return null;
-		return get(Util.getPK(cache.get(0)).eq(pk));
+		final Field.PK<T> pkFields = Util.getPK(cache.get(0));
+		for (final Field<?> field : pkFields.GET_FIELDS()) {
+			if (currentIndex(field) == null) buildIndex(field);
+		}
+		return get(pkFields.eq(pk));
 	}
 
 	@Override
@@ -271,7 +407,7 @@ class InMemoryQuery<T extends Table> extends AbstractQuery<T> {
 
 	@Override
 	public List<Field<?>> getSelectFields() {
-		if (!loaded) load();
+		ensureLoaded();
 		return selectFields;
 	}
 
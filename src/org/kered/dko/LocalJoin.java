@@ -9,6 +9,7 @@ import java.sql.SQLException;
 import java.sql.Statement;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -39,6 +40,8 @@ class LocalJoin<T extends Table> extends AbstractQuery<T> {
 	private Condition joinCondition;
 	private final JOIN_TYPE joinType;
 	private long limit = -1;
+	private Expression.OrderBy<?>[] obes = null;
+	private boolean limitPushedDown = false;
 
 	private transient List<Field<?>> selectFields;
 
@@ -50,6 +53,7 @@ class LocalJoin<T extends Table> extends AbstractQuery<T> {
 		qR = q.qR;
 		joinCondition = q.joinCondition;
 		limit = q.limit;
+		obes = q.obes;
 	}
 
 	public LocalJoin(final JOIN_TYPE joinType, final Class<? extends Table> type, final Query<? extends Table> q, final Class<? extends Table> t, final Condition on) {
@@ -99,8 +103,6 @@ class LocalJoin<T extends Table> extends AbstractQuery<T> {
 	public Query<T> limit(final long n) {
 		final LocalJoin<T> q = new LocalJoin<T>(this);
 		q.limit = n;
-		if (joinType==JOIN_TYPE.LEFT || joinType==JOIN_TYPE.OUTER) q.qL = q.qL.top(n);
-		if (joinType==JOIN_TYPE.RIGHT || joinType==JOIN_TYPE.OUTER) q.qR = q.qR.top(n);
 		return q;
 	}
 
@@ -203,6 +205,23 @@ class LocalJoin<T extends Table> extends AbstractQuery<T> {
 
 	@Override
 	public Iterator<T> iterator() {
+		if (obes != null) {
+			// order (and limit) the rows of the unordered, unlimited join in memory
+			final LocalJoin<T> all = new LocalJoin<T>(this);
+			all.obes = null;
+			all.limit = -1;
+			final Comparator<T> order = TopN.comparator(obes);
+			final List<T> rows = limit < 0 ? TopN.sort(all.iterator(), order) : TopN.top(all.iterator(), order, limit);
+			return rows.iterator();
+		}
+		if (limit >= 0 && !limitPushedDown && joinType != JOIN_TYPE.INNER && joinType != JOIN_TYPE.CROSS) {
+			// (done here, not in limit(), as an orderBy() would need every row)
+			final LocalJoin<T> q = new LocalJoin<T>(this);
+			if (joinType==JOIN_TYPE.LEFT || joinType==JOIN_TYPE.OUTER) q.qL = q.qL.top(limit);
+			if (joinType==JOIN_TYPE.RIGHT || joinType==JOIN_TYPE.OUTER) q.qR = q.qR.top(limit);
+			q.limitPushedDown = true;
+			return q.iterator();
+		}
 		return new ClosableIterator<T>() {
 			
 			private File tmpFile = null;
@@ -212,8 +231,8 @@ class LocalJoin<T extends Table> extends AbstractQuery<T> {
 			private ClosableIterator<Table> iL;
 			private ClosableIterator<Table> iR;
 			private DualIterator di;
-			private Map<Field, String> fieldNameOverridesL;
-			private Map<Field, String> fieldNameOverridesR;
+			private Map<Field<?>,String> fieldNameOverridesL;
+			private Map<Field<?>,String> fieldNameOverridesR;
 			private long count = 0;
 
 			{
@@ -258,7 +277,7 @@ class LocalJoin<T extends Table> extends AbstractQuery<T> {
 			private void initQuery(DataSource ds) {
 				qLfields = qL.getSelectFields();
 				qRfields = qR.getSelectFields();
-				Map<Field,String> fieldNameOverrides = new HashMap<Field,String>();
+				Map<Field<?>,String> fieldNameOverrides = new HashMap<Field<?>,String>();
 				StringBuffer sb = new StringBuffer();
 				sb.append("select ");
 				for (Field<?> field : qLfields) {
@@ -275,7 +294,7 @@ class LocalJoin<T extends Table> extends AbstractQuery<T> {
 				}
 				sb.delete(sb.length()-2, sb.length()).append(" "); // delete the last comma
 				SqlContext context = new SqlContext(DB_TYPE.SQLITE3);
-				for (Entry<Field, String> e : fieldNameOverrides.entrySet()) {
+				for (Entry<Field<?>,String> e : fieldNameOverrides.entrySet()) {
 					context.setFieldNameOverride(e.getKey(), e.getValue());
 				}
 				if (joinType == JOIN_TYPE.RIGHT) {
@@ -384,9 +403,9 @@ class LocalJoin<T extends Table> extends AbstractQuery<T> {
 		};
 	}
 
-	static Map<Field, String> load(Query<? extends Table> q, String table, DataSource ds) {
+	static Map<Field<?>,String> load(Query<? extends Table> q, String table, DataSource ds) {
 		List<Field<?>> fields = q.getSelectFields();
-		Map<Field, String> fieldNameOverrides = buildSchema(fields, table, ds);
+		Map<Field<?>,String> fieldNameOverrides = buildSchema(fields, table, ds);
 		StringBuffer sb = new StringBuffer();
 		sb.append("insert into ").append(table).append(" (");
 		for (int i=0; i<fields.size(); ++i) {
@@ -408,8 +427,9 @@ class LocalJoin<T extends Table> extends AbstractQuery<T> {
 		
 		Connection conn = null;
 		PreparedStatement ps = null;
+		final Object event = FlightRecorderEvents.begin(FlightRecorderEvents.Type.LOCAL_JOIN_LOAD);
 		try {
-			conn = ds.getConnection();
+			conn = DBQuery.connect(ds, false);
 			conn.setAutoCommit(false);
 			ps = conn.prepareStatement(sql);
 			Util.log(sql, null);
@@ -429,6 +449,7 @@ class LocalJoin<T extends Table> extends AbstractQuery<T> {
 			//if (count%256!=0) ps.executeBatch();
 			conn.commit();
 			log.fine("loaded "+ count +" rows into "+ table);
+			if (event!=null) FlightRecorderEvents.commit(event, table, (long) count);
 		} catch (SQLException e) {
 			throw new RuntimeException(e);
 		} finally {
@@ -441,9 +462,9 @@ class LocalJoin<T extends Table> extends AbstractQuery<T> {
 		return fieldNameOverrides;
 	}
 
-	private static Map<Field, String> buildSchema(List<Field<?>> fields, String table, DataSource ds) {
+	private static Map<Field<?>,String> buildSchema(List<Field<?>> fields, String table, DataSource ds) {
 		Set<String> usedFieldNames = new HashSet<String>();
-		Map<Field,String> fieldNameOverrides = new HashMap<Field,String>();
+		Map<Field<?>,String> fieldNameOverrides = new HashMap<Field<?>,String>();
 		StringBuffer sb = new StringBuffer();
 		sb.append("create table ").append(table).append(" (");
 		for (int i=0; i<fields.size(); ++i) {
@@ -466,7 +487,7 @@ class LocalJoin<T extends Table> extends AbstractQuery<T> {
 		Connection conn = null;
 		Statement stmt = null;
 		try {
-			conn = ds.getConnection();
+			conn = DBQuery.connect(ds, false);
 			stmt = conn.createStatement();
 			Util.log(sql, null);
 			stmt.execute(sql);
@@ -489,7 +510,7 @@ class LocalJoin<T extends Table> extends AbstractQuery<T> {
 		Connection conn = null;
 		Statement ps = null;
 		try {
-			conn = ds.getConnection();
+			conn = DBQuery.connect(ds, true);
 			ps = conn.createStatement();
 			Util.log(sql, null);
 			ResultSet rs = ps.executeQuery(sql);
@@ -550,15 +571,19 @@ class LocalJoin<T extends Table> extends AbstractQuery<T> {
 		return null;
 	}
 
+	/**
+	 * Joins aren't ordered until they're read, and then in memory (with {@code TopN}, keeping
+	 * only the first rows if there's a {@code limit()}).
+	 */
 	@Override
 	public Query<T> orderBy(Expression.OrderBy<?>... obes) {
-		// TODO Auto-generated method stub
-		return null;
+		final LocalJoin<T> q = new LocalJoin<T>(this);
+		q.obes = obes;
+		return q;
 	}
 
 	@Override
 	public boolean isOrdered() {
-		// TODO When orderBy implemented...
-		return false;
+		return obes != null;
 	}
 }
@@ -0,0 +1,546 @@
+package org.kered.dko;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.Charset;
+import java.sql.Time;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import org.kered.dko.Table.__PrimaryKey;
+
+/**
+ * A {@code Snapshot} in the {@code SNAPSHOT_FORMAT.MAPPED} format: the rows of a query
+ * written to a binary file and read back through a {@code MappedByteBuffer}. &nbsp; Each
+ * row is a bitmap of its null fields followed by the values of the others, encoded by the
+ * field's type (primitives as themselves, strings as UTF-8, dates as milliseconds and
+ * anything else serialized). &nbsp; If the query's table has a primary key (and it was
+ * selected) the rows are followed by an index of their offsets sorted by the hash of
+ * their keys, used by {@code get()} and {@code refresh()}. &nbsp; The file isn't changed
+ * once written (a refresh writes a new one and renames it over the old) and every reader
+ * has its own view of the buffer, so any number of threads can read it at once, even
+ * during a refresh. &nbsp; Limited to 2GB (the size of one mapped buffer).
+ *
+ * @author Derek Anderson
+ */
+class MappedSnapshot<T extends Table> extends AbstractSnapshot<T> {
+
+	private static final String PREFIX = "dko_snapshot_";
+	private static final String EXT = ".dko";
+	private static final long MAGIC = 0x444b4f534e415031L; // "DKOSNAP1"
+	private static final int TRAILER_SIZE = 8 + 4 + 4 + 4 + 8;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static final byte BOOLEAN = 1;
+	private static final byte BYTE = 2;
+	private static final byte SHORT = 3;
+	private static final byte INT = 4;
+	private static final byte LONG = 5;
+	private static final byte FLOAT = 6;
+	private static final byte DOUBLE = 7;
+	private static final byte CHAR = 8;
+	private static final byte STRING = 9;
+	private static final byte BIG_DECIMAL = 10;
+	private static final byte DATE = 11;
+	private static final byte SQL_DATE = 12;
+	private static final byte TIME = 13;
+	private static final byte TIMESTAMP = 14;
+	private static final byte BYTES = 15;
+	private static final byte OBJECT = 16;
+
+	private final File f;
+	private final boolean delete;
+	private final Field<?>[] fields;
+	private final byte[] types;
+	private final int nullBytes;
+	private final Constructor<T> constructor;
+	private final Field<?>[] pkFields;
+	private final int[] pkPositions;
+
+	private volatile State state;
+
+	/**
+	 * A mapped snapshot file.
+	 */
+	private static class State {
+		final ByteBuffer buffer;
+		final long count;
+		final int rowsStart;
+		final int indexStart;
+		final int indexCount;
+		State(final ByteBuffer buffer, final File f) {
+			this.buffer = buffer;
+			final int end = buffer.limit();
+			if (end < TRAILER_SIZE || buffer.getLong(end - 8) != MAGIC) {
+				throw new RuntimeException("not a snapshot file: "+ f);
+			}
+			count = buffer.getLong(end - TRAILER_SIZE);
+			rowsStart = buffer.getInt(end - TRAILER_SIZE + 8);
+			indexStart = buffer.getInt(end - TRAILER_SIZE + 12);
+			indexCount = buffer.getInt(end - TRAILER_SIZE + 16);
+		}
+	}
+
+	MappedSnapshot(final Query<T> q) {
+		this(q, null);
+	}
+
+	/**
+	 * @param f the file to write, or a directory to write a temporary file in (or null
+	 * for the default temporary directory)
+	 */
+	@SuppressWarnings("unchecked")
+	MappedSnapshot(final Query<T> q, final File f) {
+		super(q);
+		try {
+			if (f == null || f.isDirectory()) {
+				this.f = File.createTempFile(PREFIX, EXT, f);
+				this.f.deleteOnExit();
+				delete = true;
+			} else {
+				this.f = f;
+				delete = false;
+			}
+		} catch (final IOException e) {
+			throw new RuntimeException(e);
+		}
+		final Class<T> type = q.getType();
+		try {
+			constructor = type.getDeclaredConstructor(Expression.Select[].class,
+					new Object[0].getClass(), Integer.TYPE, Integer.TYPE);
+			constructor.setAccessible(true);
+		} catch (final NoSuchMethodException e) {
+			throw new RuntimeException(type.getName() +" can't be written to a mapped snapshot", e);
+		}
+		final List<Field<?>> selected = q.getSelectFields();
+		fields = selected.toArray(new Field<?>[selected.size()]);
+		types = new byte[fields.length];
+		for (int i=0; i<fields.length; ++i) types[i] = typeOf(fields[i].TYPE);
+		nullBytes = (fields.length + 7) / 8;
+
+		final Field.PK<T> pk = Util.getPK(type);
+		final List<Field<?>> pkList = pk == null ? null : pk.GET_FIELDS();
+		int[] positions = null;
+		if (pkList != null && !pkList.isEmpty()) {
+			positions = new int[pkList.size()];
+			for (int i=0; i<positions.length; ++i) {
+				positions[i] = selected.indexOf(pkList.get(i));
+				if (positions[i] < 0) {
+					positions = null;
+					break;
+				}
+			}
+		}
+		pkPositions = positions;
+		pkFields = positions == null ? null : pkList.toArray(new Field<?>[pkList.size()]);
+
+		try {
+			write(q.iterator(), this.f);
+			state = map(this.f);
+		} catch (final IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private static State map(final File f) throws IOException {
+		final RandomAccessFile raf = new RandomAccessFile(f, "r");
+		try {
+			final FileChannel channel = raf.getChannel();
+			// the mapping stays valid after the channel is closed
+			return new State(channel.map(MapMode.READ_ONLY, 0, channel.size()), f);
+		} finally {
+			raf.close();
+		}
+	}
+
+	private void write(final Iterator<? extends Table> rows, final File f) throws IOException {
+		final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(f), 1<<16));
+		try {
+			out.writeLong(MAGIC);
+			out.writeInt(fields.length);
+			for (int i=0; i<fields.length; ++i) {
+				out.writeUTF(fields[i].NAME);
+				out.writeByte(types[i]);
+			}
+			final int rowsStart = out.size();
+			// (hash << 32 | offset), sorted by hash then offset
+			long[] index = new long[pkPositions==null ? 0 : 1024];
+			long n = 0;
+			final byte[] nulls = new byte[nullBytes];
+			final Object[] values = new Object[fields.length];
+			final Object[] key = pkPositions==null ? null : new Object[pkPositions.length];
+			while (rows.hasNext()) {
+				final Table t = rows.next();
+				final int offset = checkSize(out, f);
+				Arrays.fill(nulls, (byte) 0);
+				for (int i=0; i<fields.length; ++i) {
+					values[i] = t.get(fields[i]);
+					if (values[i] == null) nulls[i >> 3] |= 1 << (i & 7);
+				}
+				out.write(nulls);
+				for (int i=0; i<fields.length; ++i) {
+					if (values[i] != null) writeValue(out, types[i], values[i]);
+				}
+				if (pkPositions != null) {
+					for (int i=0; i<key.length; ++i) key[i] = values[pkPositions[i]];
+					if (n == index.length) index = Arrays.copyOf(index, index.length * 2);
+					index[(int) n] = ((long) hash(key) << 32) | offset;
+				}
+				++n;
+			}
+			final int indexStart = checkSize(out, f);
+			final int indexCount = pkPositions==null ? 0 : (int) n;
+			Arrays.sort(index, 0, indexCount);
+			for (int i=0; i<indexCount; ++i) {
+				out.writeInt((int) (index[i] >> 32));
+				out.writeInt((int) index[i]);
+			}
+			out.writeLong(n);
+			out.writeInt(rowsStart);
+			out.writeInt(indexStart);
+			out.writeInt(indexCount);
+			out.writeLong(MAGIC);
+			checkSize(out, f);
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * @return the number of bytes written so far
+	 */
+	private static int checkSize(final DataOutputStream out, final File f) throws IOException {
+		final int size = out.size();
+		// DataOutputStream's counter stops at Integer.MAX_VALUE
+		if (size == Integer.MAX_VALUE) throw new IOException("snapshot is too big (over 2GB) to be mapped: "+ f);
+		return size;
+	}
+
+	private static byte typeOf(final Class<?> type) {
+		if (Boolean.class.equals(type)) return BOOLEAN;
+		if (Byte.class.equals(type)) return BYTE;
+		if (Short.class.equals(type)) return SHORT;
+		if (Integer.class.equals(type)) return INT;
+		if (Long.class.equals(type)) return LONG;
+		if (Float.class.equals(type)) return FLOAT;
+		if (Double.class.equals(type)) return DOUBLE;
+		if (Character.class.equals(type)) return CHAR;
+		if (String.class.equals(type)) return STRING;
+		if (BigDecimal.class.equals(type)) return BIG_DECIMAL;
+		if (Timestamp.class.equals(type)) return TIMESTAMP;
+		if (java.sql.Date.class.equals(type)) return SQL_DATE;
+		if (Time.class.equals(type)) return TIME;
+		if (Date.class.equals(type)) return DATE;
+		if (byte[].class.equals(type)) return BYTES;
+		return OBJECT;
+	}
+
+	private static void writeValue(final DataOutputStream out, final byte type, final Object v) throws IOException {
+		switch (type) {
+		case BOOLEAN: out.writeBoolean((Boolean) v); break;
+		case BYTE: out.writeByte(((Number) v).byteValue()); break;
+		case SHORT: out.writeShort(((Number) v).shortValue()); break;
+		case INT: out.writeInt(((Number) v).intValue()); break;
+		case LONG: out.writeLong(((Number) v).longValue()); break;
+		case FLOAT: out.writeFloat(((Number) v).floatValue()); break;
+		case DOUBLE: out.writeDouble(((Number) v).doubleValue()); break;
+		case CHAR: out.writeChar((Character) v); break;
+		case STRING: writeBytes(out, v.toString().getBytes(UTF8)); break;
+		case BIG_DECIMAL: writeBytes(out, v.toString().getBytes(UTF8)); break;
+		case DATE:
+		case SQL_DATE:
+		case TIME:
+			out.writeLong(((Date) v).getTime());
+			break;
+		case TIMESTAMP:
+			out.writeLong(((Date) v).getTime());
+			out.writeInt(v instanceof Timestamp ? ((Timestamp) v).getNanos() : (int) (((Date) v).getTime() % 1000) * 1000000);
+			break;
+		case BYTES: writeBytes(out, (byte[]) v); break;
+		default:
+			final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			final ObjectOutputStream oos = new ObjectOutputStream(bytes);
+			oos.writeObject(v);
+			oos.close();
+			writeBytes(out, bytes.toByteArray());
+		}
+	}
+
+	private static void writeBytes(final DataOutputStream out, final byte[] bytes) throws IOException {
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	/**
+	 * Reads the row at the buffer's position, leaving it at the start of the next row.
+	 */
+	private Object[] read(final ByteBuffer b) {
+		final int nullsAt = b.position();
+		b.position(nullsAt + nullBytes);
+		final Object[] values = new Object[fields.length];
+		for (int i=0; i<fields.length; ++i) {
+			if ((b.get(nullsAt + (i >> 3)) & (1 << (i & 7))) != 0) continue;
+			values[i] = readValue(b, types[i]);
+		}
+		return values;
+	}
+
+	private static Object readValue(final ByteBuffer b, final byte type) {
+		switch (type) {
+		case BOOLEAN: return b.get() != 0;
+		case BYTE: return b.get();
+		case SHORT: return b.getShort();
+		case INT: return b.getInt();
+		case LONG: return b.getLong();
+		case FLOAT: return b.getFloat();
+		case DOUBLE: return b.getDouble();
+		case CHAR: return b.getChar();
+		case STRING: return new String(readBytes(b), UTF8);
+		case BIG_DECIMAL: return new BigDecimal(new String(readBytes(b), UTF8));
+		case DATE: return new Date(b.getLong());
+		case SQL_DATE: return new java.sql.Date(b.getLong());
+		case TIME: return new Time(b.getLong());
+		case TIMESTAMP:
+			final Timestamp ts = new Timestamp(b.getLong());
+			ts.setNanos(b.getInt());
+			return ts;
+		case BYTES: return readBytes(b);
+		default:
+			try {
+				final ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(readBytes(b)));
+				try {
+					return ois.readObject();
+				} finally {
+					ois.close();
+				}
+			} catch (final IOException e) {
+				throw new RuntimeException(e);
+			} catch (final ClassNotFoundException e) {
+				throw new RuntimeException(e);
+			}
+		}
+	}
+
+	private static byte[] readBytes(final ByteBuffer b) {
+		final byte[] bytes = new byte[b.getInt()];
+		b.get(bytes);
+		return bytes;
+	}
+
+	private T newRow(final Object[] values) {
+		try {
+			return constructor.newInstance(fields, values, 0, values.length);
+		} catch (final InstantiationException e) {
+			throw new RuntimeException(e);
+		} catch (final IllegalAccessException e) {
+			throw new RuntimeException(e);
+		} catch (final InvocationTargetException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private static int hash(final Object[] key) {
+		int h = 1;
+		for (final Object v : key) h = 31 * h + (v==null ? 0 : Evaluator.key(v).hashCode());
+		return h;
+	}
+
+	@Override
+	public Iterator<T> iterator() {
+		return iterator(state);
+	}
+
+	private Iterator<T> iterator(final State s) {
+		final ByteBuffer b = s.buffer.duplicate();
+		b.position(s.rowsStart);
+		return new Iterator<T>() {
+			private long i = 0;
+			@Override
+			public boolean hasNext() {
+				return i < s.count;
+			}
+			@Override
+			public T next() {
+				if (!hasNext()) throw new NoSuchElementException();
+				++i;
+				return newRow(read(b));
+			}
+			@Override
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+
+	@Override
+	public T get(final __PrimaryKey<T> pk) {
+		final List<Field<?>> keyFields = pkFields==null ? pk.FIELDS() : Arrays.asList(pkFields);
+		final Object[] key = new Object[keyFields.size()];
+		for (int i=0; i<key.length; ++i) key[i] = pk.get(keyFields.get(i));
+		if (pkFields == null) {
+			// no index; scan for it
+			for (final T t : this) {
+				if (matches(keyFields, key, t)) return t;
+			}
+			return null;
+		}
+		final State s = state;
+		final int slot = find(s, keyFields, key);
+		return slot < 0 ? null : row(s, slot);
+	}
+
+	/**
+	 * @return the position in the index of the row with this primary key, or -1
+	 */
+	private int find(final State s, final List<Field<?>> keyFields, final Object[] key) {
+		final ByteBuffer b = s.buffer;
+		final int hash = hash(key);
+		int lo = 0;
+		int hi = s.indexCount;
+		while (lo < hi) {
+			final int mid = (lo + hi) >>> 1;
+			if (b.getInt(s.indexStart + mid * 8) < hash) lo = mid + 1;
+			else hi = mid;
+		}
+		for (int i=lo; i<s.indexCount && b.getInt(s.indexStart + i * 8) == hash; ++i) {
+			if (matches(keyFields, key, row(s, i))) return i;
+		}
+		return -1;
+	}
+
+	/**
+	 * @return the row at this position in the index
+	 */
+	private T row(final State s, final int slot) {
+		final ByteBuffer b = s.buffer.duplicate();
+		b.position(b.getInt(s.indexStart + slot * 8 + 4));
+		return newRow(read(b));
+	}
+
+	@Override
+	public synchronized long refresh() {
+		final List<Field<?>> pk = pkFields();
+		final State s = state;
+		final BitSet seen = new BitSet(s.indexCount);
+		final List<T> upserts = new ArrayList<T>();
+		final Object[] key = new Object[pkFields.length];
+		for (final T t : q) {
+			for (int i=0; i<key.length; ++i) key[i] = t.get(pkFields[i]);
+			final int slot = find(s, pk, key);
+			if (slot < 0) {
+				upserts.add(t);
+			} else {
+				seen.set(slot);
+				if (!sameValues(row(s, slot), t)) upserts.add(t);
+			}
+		}
+		final List<T> deletes = new ArrayList<T>();
+		for (int i=seen.nextClearBit(0); i<s.indexCount; i=seen.nextClearBit(i+1)) {
+			deletes.add(row(s, i));
+		}
+		if (deletes.isEmpty() && upserts.isEmpty()) return 0;
+		apply(deletes, upserts);
+		return deletes.size() + upserts.size();
+	}
+
+	/**
+	 * Writes a new file of the current rows with these changes applied (the updated rows
+	 * where they were, the new ones at the end) and renames it over the old one.
+	 */
+	@Override
+	synchronized void apply(final Collection<T> deletes, final Collection<T> upserts) {
+		final List<Field<?>> pk = pkFields();
+		final Set<List<Object>> deleted = new HashSet<List<Object>>();
+		for (final T t : deletes) deleted.add(key(t, pk));
+		final Map<List<Object>,T> remaining = new LinkedHashMap<List<Object>,T>();
+		for (final T t : upserts) remaining.put(key(t, pk), t);
+		final Iterator<T> old = iterator(state);
+		final Iterator<T> merged = new Iterator<T>() {
+			private T next = null;
+			private Iterator<T> added = null;
+			@Override
+			public boolean hasNext() {
+				while (next == null) {
+					if (old.hasNext()) {
+						final T t = old.next();
+						final List<Object> k = key(t, pk);
+						if (deleted.contains(k)) continue;
+						final T replacement = remaining.remove(k);
+						next = replacement==null ? t : replacement;
+					} else {
+						if (added == null) added = remaining.values().iterator();
+						if (!added.hasNext()) return false;
+						next = added.next();
+					}
+				}
+				return true;
+			}
+			@Override
+			public T next() {
+				if (!hasNext()) throw new NoSuchElementException();
+				final T t = next;
+				next = null;
+				return t;
+			}
+			@Override
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
+		File tmp = null;
+		try {
+			tmp = File.createTempFile(PREFIX, EXT, f.getAbsoluteFile().getParentFile());
+			write(merged, tmp);
+			if (!tmp.renameTo(f)) {
+				// some platforms won't rename over an existing file
+				if (!f.delete() || !tmp.renameTo(f)) throw new IOException("couldn't replace "+ f +" with "+ tmp);
+			}
+			tmp = null;
+			state = map(f);
+		} catch (final IOException e) {
+			throw new RuntimeException(e);
+		} finally {
+			if (tmp != null) tmp.delete();
+		}
+	}
+
+	private static boolean matches(final List<Field<?>> keyFields, final Object[] key, final Table t) {
+		for (int i=0; i<key.length; ++i) {
+			final Object v = t.get(keyFields.get(i));
+			if (v == null || key[i] == null || !Evaluator.equal(v, key[i])) return false;
+		}
+		return true;
+	}
+
+	@Override
+	protected void finalize() throws Throwable {
+		if (delete && f.exists()) f.delete();
+		super.finalize();
+	}
+
+}
@@ -0,0 +1,280 @@
+package org.kered.dko;
+
+import java.lang.ref.WeakReference;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.math.RoundingMode;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Logger;
+
+/**
+ * Implements {@code Query.parallel(n)}. &nbsp; Splits the query into key ranges on the first
+ * column of the table's primary key and reads each range as a task on the {@code Async}
+ * executor (and so on its own connection from the data source), with a copy of the caller's
+ * contexts as {@code Async} runs them. &nbsp; The boundaries of numeric and date keys are
+ * spread evenly between their min and max; other keys are sampled from a scan of the
+ * key column. &nbsp; Rows are handed to the caller as they arrive, or range after range
+ * (each ordered by the primary key) when the primary key order was asked for, while the
+ * later ranges keep reading ahead into bounded queues.
+ *
+ * @author Derek Anderson
+ */
+class ParallelScan<T extends Table> implements ClosableIterator<T> {
+
+	private static final Logger log = Logger.getLogger("org.kered.dko.ParallelScan");
+
+	private static final int QUEUE_SIZE = 1024;
+	private static final Object END = new Object();
+
+	private static class Failure {
+		final Throwable t;
+		Failure(final Throwable t) {
+			this.t = t;
+		}
+	}
+
+	/**
+	 * Reads one range into its queue on an executor thread. &nbsp; It only holds the scan weakly,
+	 * so it stops if the scan is dropped without being closed.
+	 */
+	private static class Range<T extends Table> implements Callable<Void> {
+		private final Iterator<T> it;
+		private final BlockingQueue<Object> queue;
+		private final AtomicBoolean closed;
+		private final WeakReference<ParallelScan<T>> scan;
+		private final Context threadContext;
+		private final Context threadGroupContext;
+
+		Range(final ParallelScan<T> scan, final Iterator<T> it, final BlockingQueue<Object> queue,
+				final Context threadContext, final Context threadGroupContext) {
+			this.it = it;
+			this.queue = queue;
+			this.closed = scan.closed;
+			this.scan = new WeakReference<ParallelScan<T>>(scan);
+			this.threadContext = threadContext;
+			this.threadGroupContext = threadGroupContext;
+		}
+
+		@Override
+		public Void call() throws Exception {
+			// the iterator connects (and resolves its data source and schema) when first read
+			return Context.callWithContexts(threadContext, threadGroupContext, new Callable<Void>() {
+				@Override
+				public Void call() {
+					read();
+					return null;
+				}
+			});
+		}
+
+		private void read() {
+			try {
+				while (!closed.get() && it.hasNext()) {
+					if (!put(it.next())) break;
+				}
+			} catch (final Throwable t) {
+				put(new Failure(t));
+			} finally {
+				if (it instanceof ClosableIterator) ((ClosableIterator<T>) it).close();
+				put(END);
+			}
+		}
+
+		private boolean put(final Object o) {
+			try {
+				while (!closed.get() && scan.get() != null) {
+					if (queue.offer(o, 100, TimeUnit.MILLISECONDS)) return true;
+				}
+			} catch (final InterruptedException e) {
+				/* ignore */
+			}
+			return false;
+		}
+	}
+
+	private final boolean ordered;
+	private final List<BlockingQueue<Object>> queues = new ArrayList<BlockingQueue<Object>>();
+	private final List<Future<?>> workers = new ArrayList<Future<?>>();
+	private final AtomicBoolean closed = new AtomicBoolean(false);
+	private int current = 0;
+	private int running = 0;
+	private T next = null;
+
+	/**
+	 * @return an iterator over the query's rows, read in parallel if it could be split
+	 */
+	static <T extends Table> Iterator<T> iterator(final DBQuery<T> query) {
+		final DBQuery<T> base = new DBQuery<T>(query);
+		base.parallelism = 0;
+		List<Query<T>> ranges = null;
+		try {
+			ranges = split(base, query.parallelism, query.parallelInPKOrder);
+		} catch (final SQLException e) {
+			log.warning("could not split "+ query +" into ranges, so reading it serially: "+ e);
+		}
+		if (ranges == null || ranges.size() < 2) {
+			return query.parallelInPKOrder ? base.orderBy(pkFields(base)).iterator() : base.iterator();
+		}
+		return new ParallelScan<T>(ranges, query.parallelInPKOrder);
+	}
+
+	private ParallelScan(final List<Query<T>> ranges, final boolean ordered) {
+		this.ordered = ordered;
+		final Context threadContext = Context.getThreadContext().copySettings();
+		final Context threadGroupContext = Context.getThreadGroupContext().copySettings();
+		final List<Range<T>> tasks = new ArrayList<Range<T>>();
+		if (!ordered) queues.add(new LinkedBlockingQueue<Object>(QUEUE_SIZE));
+		for (int i=0; i<ranges.size(); ++i) {
+			final BlockingQueue<Object> queue;
+			if (ordered) {
+				queue = new LinkedBlockingQueue<Object>(QUEUE_SIZE);
+				queues.add(queue);
+			} else {
+				queue = queues.get(0);
+			}
+			// created on this thread so the usage monitor sees the caller's stack
+			tasks.add(new Range<T>(this, ranges.get(i).iterator(), queue, threadContext, threadGroupContext));
+		}
+		running = tasks.size();
+		for (final Range<T> task : tasks) workers.add(Async.getExecutor().submit(task));
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	public boolean hasNext() {
+		if (next != null) return true;
+		while (!closed.get()) {
+			if (ordered ? current >= queues.size() : running == 0) return false;
+			final Object o;
+			try {
+				o = queues.get(ordered ? current : 0).take();
+			} catch (final InterruptedException e) {
+				close();
+				throw new RuntimeException(e);
+			}
+			if (o == END) {
+				if (ordered) ++current;
+				else --running;
+			} else if (o instanceof Failure) {
+				close();
+				final Throwable t = ((Failure) o).t;
+				if (t instanceof RuntimeException) throw (RuntimeException) t;
+				throw new RuntimeException(t);
+			} else {
+				next = (T) o;
+				return true;
+			}
+		}
+		return false;
+	}
+
+	@Override
+	public T next() {
+		if (!hasNext()) throw new NoSuchElementException();
+		final T t = next;
+		next = null;
+		return t;
+	}
+
+	@Override
+	public void remove() {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public void close() {
+		if (!closed.compareAndSet(false, true)) return;
+		// interrupts the ranges still reading (and drops those not started)
+		for (final Future<?> worker : workers) worker.cancel(true);
+		for (final BlockingQueue<Object> queue : queues) queue.clear();
+	}
+
+	@SuppressWarnings("rawtypes")
+	private static Field[] pkFields(final DBQuery<?> query) {
+		return Util.getPK(query.getType()).GET_FIELDS().toArray(new Field[0]);
+	}
+
+	/**
+	 * @return one query per key range, or null if the table is empty
+	 */
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	static <T extends Table> List<Query<T>> split(final DBQuery<T> base, final int n, final boolean ordered) throws SQLException {
+		final Field[] pk = pkFields(base);
+		final Field f = pk[0];
+		final Comparable min = base.min(f);
+		final Comparable max = base.max(f);
+		if (min == null || max == null || min.equals(max)) return null;
+		final List<Comparable> bounds = new ArrayList<Comparable>();
+		if (min instanceof Number && max instanceof Number) {
+			final BigDecimal lo = new BigDecimal(min.toString());
+			final BigDecimal step = new BigDecimal(max.toString()).subtract(lo)
+					.divide(BigDecimal.valueOf(n), 10, RoundingMode.DOWN);
+			for (int i=1; i<n; ++i) {
+				bounds.add(toType(lo.add(step.multiply(BigDecimal.valueOf(i))), min));
+			}
+		} else if (min instanceof Date && max instanceof Date) {
+			final long lo = ((Date) min).getTime();
+			final long step = (((Date) max).getTime() - lo) / n;
+			for (int i=1; i<n; ++i) {
+				bounds.add(toType(lo + step*i, (Date) min));
+			}
+		} else {
+			// sample the boundaries from the (ordered) key column
+			final long count = base.count();
+			final long stride = count / n;
+			if (stride == 0) return null;
+			long i = 0;
+			for (final Object v : base.orderBy(f).asIterableOf(f)) {
+				if (i > 0 && i % stride == 0 && bounds.size() < n-1) bounds.add((Comparable) v);
+				++i;
+			}
+		}
+		// drop duplicate (or out of order) boundaries, as from rounding integral keys
+		for (int i=1; i<bounds.size(); ++i) {
+			if (bounds.get(i).compareTo(bounds.get(i-1)) <= 0) bounds.remove(i--);
+		}
+		if (!bounds.isEmpty() && bounds.get(0).compareTo(min) <= 0) bounds.remove(0);
+		if (bounds.isEmpty()) return null;
+		final List<Query<T>> ret = new ArrayList<Query<T>>();
+		for (int i=0; i<=bounds.size(); ++i) {
+			Condition c;
+			if (i == 0) c = f.lt(bounds.get(0));
+			else if (i == bounds.size()) c = f.gte(bounds.get(i-1));
+			else c = f.gte(bounds.get(i-1)).and(f.lt(bounds.get(i)));
+			Query<T> q = base.where(c);
+			if (ordered) q = q.orderBy(pk);
+			ret.add(q);
+		}
+		log.fine("split "+ base +" into "+ ret.size() +" ranges on "+ f +": "+ bounds);
+		return ret;
+	}
+
+	private static Comparable<?> toType(final BigDecimal v, final Object like) {
+		if (like instanceof Integer) return v.intValue();
+		if (like instanceof Long) return v.longValue();
+		if (like instanceof Short) return v.shortValue();
+		if (like instanceof Byte) return v.byteValue();
+		if (like instanceof BigInteger) return v.toBigInteger();
+		if (like instanceof Double) return v.doubleValue();
+		if (like instanceof Float) return v.floatValue();
+		return v;
+	}
+
+	private static Date toType(final long millis, final Date like) {
+		if (like instanceof java.sql.Timestamp) return new java.sql.Timestamp(millis);
+		if (like instanceof java.sql.Date) return new java.sql.Date(millis);
+		return new Date(millis);
+	}
+
+}
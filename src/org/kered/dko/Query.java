@@ -7,11 +7,13 @@ import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Future;
 
 import javax.sql.DataSource;
 
 import org.kered.dko.Constants.DB_TYPE;
 import org.kered.dko.Constants.DIRECTION;
+import org.kered.dko.Constants.SNAPSHOT_FORMAT;
 import org.kered.dko.Table.__Alias;
 
 
@@ -173,6 +175,19 @@ public interface Query<T extends Table> extends Iterable<T> {
 	 */
 	public Query<T> with(Field.FK... fields);
 
+	/**
+	 * Like {@code with()}, but loads the FKed objects with separate queries instead of joins.
+	 * The objects of this query are read in batches, and each step of the FK path is loaded
+	 * for the whole batch with one more query (keyed by the previous step's keys).
+	 * Collections of referencing objects are populated under the .get...Set() style methods.
+	 * Prefer this to {@code with()} for to-many relationships, where joins repeat the
+	 * parent's columns for every child, multiply when several are used, and keep
+	 * {@code top()} from being applied by the database.
+	 * @param fields
+	 * @return
+	 */
+	public Query<T> withSeparately(Field.FK<?>... fields);
+
 	/**
 	 * Don't include the following fields in the select statement.
 	 * Note: The returned object will still contain a .getField() method.  If it is called another
@@ -286,7 +301,8 @@ public interface Query<T extends Table> extends Iterable<T> {
 	 * Example:  SomeClass.ALL.set(SomeClass.SOME_FIELD, "xyz")
 	 *                        .where(SomeClass.SOME_FIELD.eq("abc"))
 	 *                        .update();
-	 * @return
+	 * @return the number of rows updated (or 1 if the update was deferred by a unit of work,
+	 * see {@code Context.startUnitOfWork()})
 	 * @throws SQLException
 	 */
 	public int update() throws SQLException;
@@ -637,18 +653,42 @@ public interface Query<T extends Table> extends Iterable<T> {
 	/**
 	 * Evaluates the given query into memory and returns to you a new query backed by
 	 * this in-memory store. &nbsp; (does nothing if this is already an in-memory
-	 * query.
+	 * query.) &nbsp; After DKO writes to a table the query reads from, the rows are reloaded
+	 * (and their indexes rebuilt) when next read. &nbsp; Changing the rows in place doesn't
+	 * update the indexes: call {@code ResultCache.invalidate(Class)} to reload them.
 	 * @return
 	 */
 	public Query<T> toMemory();
 
+	/**
+	 * Like {@code toMemory()}, but stores the rows by column: numbers in primitive arrays and
+	 * repeated strings once each, which takes a fraction of the memory of the objects. &nbsp;
+	 * {@code where()} is evaluated a column at a time and {@code sum()}, {@code average()},
+	 * {@code min()}, {@code max()} and {@code countBy()} read the columns directly, so it's
+	 * meant for analysis of large results. &nbsp; Objects are created as the query is iterated
+	 * (so changes to them aren't kept). &nbsp; Only for queries of tables (not joins).
+	 * @return
+	 */
+	public Query<T> toColumnarMemory();
+
+	/**
+	 * Indexes these fields of an in-memory query (see {@code toMemory()}), so {@code where()}
+	 * and {@code get()} look up equality, {@code in} and range conditions on them instead of
+	 * scanning every row. &nbsp; (In-memory queries also index fields on their own after
+	 * repeated lookups, and always index the primary key for {@code get(pk)}.) &nbsp;
+	 * Ignored by database queries.
+	 * @param fields
+	 * @return
+	 */
+	public Query<T> index(Field<?>... fields);
+
 	/**
 	 * Evaluates this query, serializes it to disk (a temporary file that is deleted
 	 * on this object's GC or on VM exit), and returns to you an Iterable backed by
 	 * the snapshot.
 	 * @return
 	 */
-	public Iterable<T> snapshot();
+	public Snapshot<T> snapshot();
 
 	/**
 	 * Evaluates this query, serializes it to disk (to the file provided), and returns
@@ -656,7 +696,20 @@ public interface Query<T extends Table> extends Iterable<T> {
 	 * file will be created in that directory and deleted on this object's GC or on VM exit.
 	 * @return
 	 */
-	public Iterable<T> snapshot(File f);
+	public Snapshot<T> snapshot(File f);
+
+	/**
+	 * Like {@code snapshot(File)}, but in the given format. &nbsp; {@code SQLITE} (the default)
+	 * writes a SQLite database, read back through one connection. &nbsp; {@code MAPPED} writes
+	 * a compact binary file of typed rows that's memory-mapped, so it can be scanned by any
+	 * number of threads at once without JDBC or SQL, and has an index on the table's primary
+	 * key for {@code Snapshot.get()} (SQLite snapshots scan for it). &nbsp; Mapped snapshots
+	 * are limited to 2GB and are only for queries of tables (not joins).
+	 * @param f
+	 * @param format
+	 * @return
+	 */
+	public Snapshot<T> snapshot(File f, SNAPSHOT_FORMAT format);
 
 	/**
 	 * Turns a query into an "exists" subquery. &nbsp; Example:
@@ -960,6 +1013,95 @@ public interface Query<T extends Table> extends Iterable<T> {
 	 */
 	public Query<T> setQueryTimeout(int seconds);
 
+	/**
+	 * Caches the results of this query (in the {@code ResultCache}) for up to the given time.
+	 * Repeat executions of an identical query (same structure and bound values) return the
+	 * cached rows until then, or until DKO writes to any table the query reads from.
+	 * Only database backed queries are cached.
+	 * @param ttlMillis how long results may be reused (in milliseconds), or 0 to not cache
+	 * @return
+	 */
+	public Query<T> cache(long ttlMillis);
+
+	/**
+	 * Scans this query in chunks of at most {@code size} rows, each read with its own
+	 * statement ordered by the primary key and starting after the previous chunk's last key.
+	 * Use this instead of iterating directly over huge tables (long exports, backfills), so
+	 * cursors and connections aren't held for the whole scan.  If this query is limited with
+	 * {@code top()}, the scan stops after that many rows.  See {@code Chunks} to resume
+	 * a scan from a checkpoint.
+	 * @param size
+	 * @return
+	 */
+	public Chunks<T> chunks(int size);
+
+	/**
+	 * Reads this query in up to {@code n} parts at once on the {@code Async} executor, each
+	 * scanning its own range of the table's primary key (on its own connection from the data
+	 * source).  Rows are returned
+	 * in no particular order.  Queries that are ordered, limited with {@code top()}, grouped,
+	 * distinct, have to-many joins or are run in a transaction are read serially.
+	 * @param n
+	 * @return
+	 */
+	public Query<T> parallel(int n);
+
+	/**
+	 * Returns the rows of this query as a {@code RowStream}, which can be closed when you stop
+	 * reading early and split by primary key range to process it on several threads.
+	 * @return
+	 */
+	public RowStream<T> stream();
+
+	/**
+	 * Like {@code asList()}, but runs the query on the {@code Async} executor.
+	 * @return
+	 */
+	public Future<List<T>> asListAsync();
+
+	/**
+	 * Like {@code count()}, but runs the query on the {@code Async} executor.
+	 * @return
+	 */
+	public Future<Long> countAsync();
+
+	/**
+	 * Like {@code update()}, but runs the query on the {@code Async} executor.
+	 * @return
+	 */
+	public Future<Integer> updateAsync();
+
+	/**
+	 * Same as {@code parallel(n)}, but if {@code inPKOrder} the rows are returned in primary
+	 * key order (the ranges are returned one after the other while the later ones read ahead).
+	 * @param n
+	 * @param inPKOrder
+	 * @return
+	 */
+	public Query<T> parallel(int n, boolean inPKOrder);
+
+	/**
+	 * Sets the number of rows the JDBC driver should fetch from the database at a time, and
+	 * streams the results (configuring the driver as needed - a forward-only cursor with a
+	 * fetch size of {@code Integer.MIN_VALUE} for MySQL, auto-commit turned off on the
+	 * query's own connection for PostgreSQL) so iterating through them takes constant memory.
+	 * &nbsp; Queries not given a fetch size are streamed if they're expected to return more
+	 * than {@code Constants.PROPERTY_STREAMING_THRESHOLD} rows.
+	 * @param n
+	 * @return
+	 */
+	public Query<T> fetchSize(int n);
+
+	/**
+	 * Reads up to {@code rows} rows ahead of the caller on a background thread, so the database
+	 * and the code processing the rows work at the same time instead of taking turns. &nbsp; The
+	 * reader blocks when the buffer is full, and stops when the iterator is closed. &nbsp; Has no
+	 * effect inside a transaction (where the connection is shared with the caller).
+	 * @param rows the size of the buffer
+	 * @return
+	 */
+	public Query<T> readAhead(int rows);
+
 	/**
 	 * Group by the following fields.
 	 * @param fields
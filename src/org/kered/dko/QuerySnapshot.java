@@ -3,36 +3,44 @@ package org.kered.dko;
 import java.io.File;
 import java.io.IOException;
 import java.sql.Connection;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.logging.Logger;
 
 import javax.sql.DataSource;
 
 import org.kered.dko.Constants.DB_TYPE;
 import org.kered.dko.Constants.JOIN_TYPE;
+import org.kered.dko.Diff.RowChange;
+import org.kered.dko.Table.__PrimaryKey;
 import org.kered.dko.datasource.JDBCDriverDataSource;
 import org.kered.dko.datasource.SingleThreadedDataSource;
 
-class QuerySnapshot<T extends Table> implements Iterable<T> {
+class QuerySnapshot<T extends Table> extends AbstractSnapshot<T> {
 
+	private static final Logger log = Logger.getLogger("org.kered.dko.QuerySnapshot");
 	private static final String PREFIX = "dko_snapshot_";
 	private static final String EXT = ".sqlite.db";
 
 	private final File f;
 	private final boolean delete;
 	private SingleThreadedDataSource ds;
-	private final Query<T> q;
 	private final String tmpTableName = genTmpTableName();
 	private String sql;
 	private List<Field<?>> fields;
+	private Map<Field<?>,String> fieldNameOverrides;
 
 	public QuerySnapshot(Query<T> q) {
-		this.q = q;
+		super(q);
 		try {
 			f = File.createTempFile(PREFIX, EXT);
 			delete = true;
@@ -53,7 +61,7 @@ class QuerySnapshot<T extends Table> implements Iterable<T> {
 	}
 
 	public QuerySnapshot(Query<T> q, File f) {
-		this.q = q;
+		super(q);
 		if (f.isDirectory()) {
 			try {
 				this.f = File.createTempFile(PREFIX, EXT, f);
@@ -75,38 +83,218 @@ class QuerySnapshot<T extends Table> implements Iterable<T> {
 		String url = "jdbc:sqlite:" + f.getPath();
 		ds = new SingleThreadedDataSource(new JDBCDriverDataSource(Constants.DB_TYPE.SQLITE3, url), 10000, false);
 
-		Map<Field, String> fieldNameOverrides = LocalJoin.load(q, tmpTableName, ds);
+		fieldNameOverrides = LocalJoin.load(q, tmpTableName, ds);
 		
 		StringBuffer sb = new StringBuffer();
 		sb.append("select ");
 		fields = q.getSelectFields();
 		for (Field<?> field : fields) {
-			String fieldName = fieldNameOverrides.get(field);
-			if (fieldName==null) fieldName = field.NAME;
-			sb.append(tmpTableName).append(".").append(fieldName).append(", ");
+			sb.append(tmpTableName).append(".").append(column(field)).append(", ");
 		}
 		sb.delete(sb.length()-2, sb.length()).append(" "); // delete the last comma
 		sb.append("from ").append(tmpTableName);
 		sql = sb.toString();
 	}
 
+	private String column(final Field<?> field) {
+		final String fieldName = fieldNameOverrides.get(field);
+		return fieldName==null ? field.NAME : fieldName;
+	}
+
 	@Override
 	public Iterator<T> iterator() {
+		return iterator(sql);
+	}
+
+	private Iterator<T> iterator(final String sql) {
 		if (q instanceof DBQuery) {
-			return new SelectFromOAI<T>((DBQuery<T>) q, buildSrcIterator());
+			return new SelectFromOAI<T>((DBQuery<T>) q, buildSrcIterator(sql));
 		} else {
 			throw new RuntimeException("not implemented (yet) for this query implementation: "+ q.getClass().getName());
 		}
 	}
 
-	private PeekableClosableIterator<Object[]> buildSrcIterator() {
+	@Override
+	public T get(final __PrimaryKey<T> pk) {
+		final List<Field<?>> keyFields = pk.FIELDS();
+		final Iterator<T> it = iterator();
+		try {
+			while (it.hasNext()) {
+				final T t = it.next();
+				boolean matches = true;
+				for (final Field<?> field : keyFields) {
+					final Object v = t.get(field);
+					final Object k = pk.get(field);
+					if (v == null || k == null || !Evaluator.equal(v, k)) {
+						matches = false;
+						break;
+					}
+				}
+				if (matches) return t;
+			}
+			return null;
+		} finally {
+			if (it instanceof ClosableIterator) ((ClosableIterator<T>) it).close();
+		}
+	}
+
+	@Override
+	public synchronized long refresh() {
+		final List<Field<?>> pk = pkFields();
+		final StringBuffer sb = new StringBuffer(sql).append(" order by ");
+		for (final Field<?> field : pk) sb.append(column(field)).append(", ");
+		sb.delete(sb.length()-2, sb.length());
+		final String orderedSql = sb.toString();
+		final List<Iterator<T>> opened = new ArrayList<Iterator<T>>();
+		final Iterable<T> from = checkSorted(new Iterable<T>() {
+			@Override
+			public Iterator<T> iterator() {
+				return QuerySnapshot.this.iterator(orderedSql);
+			}
+		}, opened);
+		final Iterable<T> to = checkSorted(q.orderBy(pk.toArray(new Field<?>[pk.size()])), opened);
+		final List<T> deletes = new ArrayList<T>();
+		final List<T> upserts = new ArrayList<T>();
+		try {
+			// the changes are collected first, as sqlite can't be written to while it's being read
+			for (final RowChange<T> change : Diff.diff(from, to)) {
+				if (change.isDelete()) deletes.add(change.getObject());
+				else upserts.add(change.getObject());
+			}
+		} catch (final UnsortedException e) {
+			log.warning("can't diff "+ tmpTableName +" against its query (they aren't sorted the " +
+					"same way, probably because of the database's collation), so reloading it");
+			close(opened);
+			return apply(true, Collections.<T>emptyList(), q);
+		}
+		close(opened);
+		if (deletes.isEmpty() && upserts.isEmpty()) return 0;
+		apply(deletes, upserts);
+		return deletes.size() + upserts.size();
+	}
+
+	@Override
+	void apply(final Collection<T> deletes, final Collection<T> upserts) {
+		apply(false, deletes, upserts);
+	}
+
+	/**
+	 * @param clear delete every row first
+	 * @return the number of rows deleted and upserted
+	 */
+	private long apply(final boolean clear, final Collection<T> deletes, final Iterable<T> upserts) {
+		final List<Field<?>> pk = pkFields();
+		final StringBuffer sb = new StringBuffer();
+		sb.append("insert into ").append(tmpTableName).append(" (");
+		for (final Field<?> field : fields) sb.append(column(field)).append(", ");
+		sb.delete(sb.length()-2, sb.length()).append(") values (");
+		for (int i=0; i<fields.size(); ++i) sb.append(i==0 ? "?" : ", ?");
+		final String insertSql = sb.append(")").toString();
+		sb.setLength(0);
+		sb.append("delete from ").append(tmpTableName).append(" where ");
+		for (int i=0; i<pk.size(); ++i) sb.append(i==0 ? "" : " and ").append(column(pk.get(i))).append("=?");
+		final String deleteSql = sb.toString();
+
+		long count = 0;
+		Connection conn = null;
+		try {
+			conn = DBQuery.connect(ds, false);
+			conn.setAutoCommit(false);
+			if (clear) {
+				final Statement stmt = conn.createStatement();
+				Util.log("delete from "+ tmpTableName, null);
+				stmt.executeUpdate("delete from "+ tmpTableName);
+				stmt.close();
+			}
+			final PreparedStatement delete = conn.prepareStatement(deleteSql);
+			final PreparedStatement insert = conn.prepareStatement(insertSql);
+			for (final T row : deletes) {
+				bind(delete, row, pk);
+				delete.execute();
+				++count;
+			}
+			for (final T row : upserts) {
+				if (!clear) {
+					bind(delete, row, pk);
+					delete.execute();
+				}
+				bind(insert, row, fields);
+				insert.execute();
+				++count;
+			}
+			delete.close();
+			insert.close();
+			conn.commit();
+			log.fine("applied "+ count +" changes to "+ tmpTableName);
+		} catch (final SQLException e) {
+			throw new RuntimeException(e);
+		} finally {
+			try {
+				if (conn!=null) conn.close();
+			} catch (final SQLException e) {
+				throw new RuntimeException(e);
+			}
+		}
+		return count;
+	}
+
+	private static void bind(final PreparedStatement ps, final Table row, final List<Field<?>> fields) throws SQLException {
+		for (int i=0; i<fields.size(); ++i) {
+			Util.setBindingWithTypeFixes(ps, i+1, row.__NOSCO_PRIVATE_mapType(row.get(fields.get(i))));
+		}
+	}
+
+	/**
+	 * Wraps these rows to throw {@code UnsortedException} if they're not in their natural
+	 * order (the order {@code Diff} needs), keeping their iterators in {@code opened}.
+	 */
+	private Iterable<T> checkSorted(final Iterable<T> rows, final List<Iterator<T>> opened) {
+		return new Iterable<T>() {
+			@Override
+			public Iterator<T> iterator() {
+				final Iterator<T> it = rows.iterator();
+				opened.add(it);
+				return new Iterator<T>() {
+					private T last = null;
+					@Override
+					public boolean hasNext() {
+						return it.hasNext();
+					}
+					@SuppressWarnings("unchecked")
+					@Override
+					public T next() {
+						final T t = it.next();
+						if (last != null && ((Comparable<T>) last).compareTo(t) >= 0) throw new UnsortedException();
+						last = t;
+						return t;
+					}
+					@Override
+					public void remove() {
+						throw new UnsupportedOperationException();
+					}
+				};
+			}
+		};
+	}
+
+	private void close(final List<Iterator<T>> opened) {
+		for (final Iterator<T> it : opened) {
+			if (it instanceof ClosableIterator) ((ClosableIterator<T>) it).close();
+		}
+	}
+
+	private static class UnsortedException extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+	}
+
+	private PeekableClosableIterator<Object[]> buildSrcIterator(final String sql) {
 		return new PeekableClosableIterator<Object[]>() {
 			Connection conn = null;
 			private ResultSet rs = null;
 			private Statement stmt = null;
 			{
 				try {
-					conn = ds.getConnection();
+					conn = DBQuery.connect(ds, true);
 					stmt = conn.createStatement();
 					Util.log(sql, null);
 					rs = stmt.executeQuery(sql);
@@ -148,7 +336,7 @@ class QuerySnapshot<T extends Table> implements Iterable<T> {
 			@Override
 			public void close() {
 				try {
-					if (rs!=null && !rs.isClosed()) {
+					if (rs!=null) {
 						rs.close();
 						rs = null;
 					}
@@ -156,7 +344,7 @@ class QuerySnapshot<T extends Table> implements Iterable<T> {
 					e.printStackTrace();
 				}
 				try {
-					if (stmt!=null && !stmt.isClosed()) {
+					if (stmt!=null) {
 						stmt.close();
 						stmt = null;
 					}
@@ -164,7 +352,7 @@ class QuerySnapshot<T extends Table> implements Iterable<T> {
 					e.printStackTrace();
 				}
 				try {
-					if (conn!=null && !conn.isClosed()) {
+					if (conn!=null) {
 						conn.close();
 						conn = null;
 					}
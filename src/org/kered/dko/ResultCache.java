@@ -0,0 +1,242 @@
+package org.kered.dko;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.logging.Logger;
+
+import javax.sql.DataSource;
+
+/**
+ * Caches the rows returned by queries marked with {@code Query.cache(ttl)}. &nbsp;
+ * Entries are keyed by the query's structure (its {@code equals()}, which includes the values
+ * bound to its conditions) and data source, and are invalidated whenever DKO writes to
+ * any table the query reads from (its base table, joined tables and sub-selects in its
+ * where clause) - by {@code Table.insert/update/delete/save}, {@code Query.update()/delete()/insert()}
+ * or {@code Bulk}. &nbsp; Writes made outside of DKO are not seen - use a short TTL, or call
+ * {@code invalidate(Class)} after them.
+ * <p>
+ * Only complete results are cached (iterating part of a query doesn't populate it), and
+ * only results of at most {@code Constants.PROPERTY_QUERY_CACHE_MAX_ROWS} rows. &nbsp;
+ * The cache is bypassed while the current thread is in a transaction on the query's data source.
+ * <pre>  {@code Query<Sale> q = Sale.ALL.where(Sale.DAY.eq(today)).cache(30000);
+ *   for (Sale s : q) ...  // executed
+ *   for (Sale s : q) ...  // from the cache, unless Sale was written to}</pre>
+ *
+ * @author Derek Anderson
+ */
+public class ResultCache {
+
+	private static final Logger log = Logger.getLogger("org.kered.dko.ResultCache");
+
+	private static volatile int capacity = parseInt(Constants.PROPERTY_QUERY_CACHE_SIZE, 256);
+	private static volatile int maxRows = parseInt(Constants.PROPERTY_QUERY_CACHE_MAX_ROWS, 10000);
+
+	private static final Map<Key,CachedResult> cache = new LinkedHashMap<Key,CachedResult>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+		@Override
+		protected boolean removeEldestEntry(final Entry<Key,CachedResult> eldest) {
+			if (size() <= capacity) return false;
+			++evictions;
+			return true;
+		}
+	};
+
+	/* per-table write counters, so a result read before a write can't be cached after it */
+	private static final Map<Class<? extends Table>,Long> generations = new HashMap<Class<? extends Table>,Long>();
+
+	private static long hits = 0;
+	private static long misses = 0;
+	private static long evictions = 0;
+	private static long invalidations = 0;
+
+	private static class Key {
+		final DBQuery<?> query;
+		final DataSource ds;
+		final int hash;
+		Key(final DBQuery<?> query, final DataSource ds) {
+			this.query = query;
+			this.ds = ds;
+			this.hash = query.hashCode() * 31 + (ds==null ? 0 : ds.hashCode());
+		}
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+		@Override
+		public boolean equals(final Object obj) {
+			if (this == obj) return true;
+			if (!(obj instanceof Key)) return false;
+			final Key other = (Key) obj;
+			return hash == other.hash && ds == other.ds && query.equals(other.query);
+		}
+	}
+
+	private static class CachedResult {
+		final List<Object[]> rows;
+		final Set<Class<? extends Table>> tables;
+		final long expires;
+		CachedResult(final List<Object[]> rows, final Set<Class<? extends Table>> tables, final long expires) {
+			this.rows = rows;
+			this.tables = tables;
+			this.expires = expires;
+		}
+	}
+
+	/**
+	 * Sets the maximum number of results held. &nbsp; Zero turns the cache off
+	 * (even for queries marked with {@code cache(ttl)}). &nbsp; Shrinking it clears the cache.
+	 * @param size
+	 */
+	public static void setCapacity(final int size) {
+		if (size < 0) throw new IllegalArgumentException("capacity cannot be negative: "+ size);
+		synchronized (cache) {
+			if (size < capacity) cache.clear();
+			capacity = size;
+		}
+	}
+
+	public static int getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * Sets the largest result (in rows) that will be cached.
+	 * @param rows
+	 */
+	public static void setMaxRows(final int rows) {
+		if (rows < 0) throw new IllegalArgumentException("max rows cannot be negative: "+ rows);
+		maxRows = rows;
+	}
+
+	public static int getMaxRows() {
+		return maxRows;
+	}
+
+	/**
+	 * Removes every cached result.
+	 */
+	public static void clear() {
+		synchronized (cache) {
+			for (final Entry<Class<? extends Table>, Long> e : generations.entrySet()) {
+				e.setValue(e.getValue() + 1);
+			}
+			cache.clear();
+		}
+	}
+
+	/**
+	 * Removes every cached result that reads from this table, and has the in-memory copies
+	 * of queries reading from it (see {@code Query.toMemory()}) reloaded when next read.
+	 * &nbsp; Call this after modifying the table outside of DKO.
+	 * @param type
+	 */
+	public static void invalidate(final Class<? extends Table> type) {
+		InMemoryQuery.invalidate(type);
+		synchronized (cache) {
+			final Long gen = generations.get(type);
+			if (gen == null) return; // no query reading from this table has been cached
+			generations.put(type, gen + 1);
+			for (final Iterator<CachedResult> it = cache.values().iterator(); it.hasNext();) {
+				if (it.next().tables.contains(type)) {
+					it.remove();
+					++invalidations;
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return hits, misses, evictions, invalidations and the current number of cached results
+	 */
+	public static Map<String,Long> getStats() {
+		final Map<String,Long> ret = new LinkedHashMap<String,Long>();
+		synchronized (cache) {
+			ret.put("hits", hits);
+			ret.put("misses", misses);
+			ret.put("evictions", evictions);
+			ret.put("invalidations", invalidations);
+			ret.put("size", (long) cache.size());
+		}
+		return Collections.unmodifiableMap(ret);
+	}
+
+	static boolean shouldCache(final DBQuery<?> query, final DataSource ds) {
+		return query.cacheTTL > 0 && capacity > 0 && query.unions == null && !Context.inTransaction(ds);
+	}
+
+	/**
+	 * @return the cached rows (the caller may modify them) or null
+	 */
+	static List<Object[]> get(final DBQuery<?> query, final DataSource ds) {
+		final Key key = new Key(query, ds);
+		final List<Object[]> rows;
+		synchronized (cache) {
+			final CachedResult cached = cache.get(key);
+			if (cached == null || cached.expires < System.currentTimeMillis()) {
+				if (cached != null) cache.remove(key);
+				++misses;
+				return null;
+			}
+			++hits;
+			rows = cached.rows;
+		}
+		final List<Object[]> ret = new ArrayList<Object[]>(rows.size());
+		for (final Object[] row : rows) ret.add(row.clone());
+		return ret;
+	}
+
+	/**
+	 * @return a stamp to pass to {@code put()} along with the rows read after calling this
+	 */
+	static long getStamp(final DBQuery<?> query) {
+		long stamp = 0;
+		synchronized (cache) {
+			for (final Class<? extends Table> type : query.getReferencedTables()) {
+				Long gen = generations.get(type);
+				if (gen == null) {
+					gen = 0L;
+					generations.put(type, gen);
+				}
+				stamp += gen;
+			}
+		}
+		return stamp;
+	}
+
+	static void put(final DBQuery<?> query, final DataSource ds, final List<Object[]> rows, final long stamp) {
+		final Set<Class<? extends Table>> tables = query.getReferencedTables();
+		// the key must not change if someone modifies the query later
+		final Key key = new Key(copyOf(query), ds);
+		synchronized (cache) {
+			if (getStamp(query) != stamp) return;
+			cache.put(key, new CachedResult(rows, tables, System.currentTimeMillis() + query.cacheTTL));
+		}
+		log.fine("cached "+ rows.size() +" rows for "+ query.cacheTTL +"ms");
+	}
+
+	private static <T extends Table> DBQuery<T> copyOf(final DBQuery<T> query) {
+		return new DBQuery<T>(query);
+	}
+
+	private static int parseInt(final String property, final int def) {
+		final String s = System.getProperty(property);
+		if (s != null) {
+			try {
+				final int size = Integer.parseInt(s.trim());
+				if (size >= 0) return size;
+			} catch (final NumberFormatException e) {
+				/* ignore */
+			}
+			log.warning("could not parse "+ property +"="+ s);
+		}
+		return def;
+	}
+
+}
@@ -0,0 +1,101 @@
+package org.kered.dko;
+
+import java.io.Closeable;
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.logging.Logger;
+
+/**
+ * A single pass over the rows of a query that can be closed early and split for parallel
+ * processing, returned by {@code Query.stream()}. &nbsp; Modeled on
+ * {@code java.util.Spliterator}: {@code estimateSize()} reports the row count the usage
+ * monitor recorded for the query (without running it), and {@code trySplit()} hands the
+ * upper half of the remaining primary key range to a new stream, so each half can be read
+ * by its own thread on its own connection. &nbsp; Closing the stream closes the underlying
+ * result set, which plain iteration only does once it reaches the end.
+ * <pre>  {@code RowStream<Sale> rows = Sale.ALL.stream();
+ *   try {
+ *     for (Sale s : rows) if (found(s)) break;
+ *   } finally {
+ *     rows.close();
+ *   }}</pre>
+ * To read it on several threads, split it before iterating and give each part its own thread:
+ * <pre>  {@code RowStream<Sale> first = Sale.ALL.stream();
+ *   RowStream<Sale> second = first.trySplit();  // null if the query can't be split
+ *   }</pre>
+ * On Java 8 each part can back a sequential {@code java.util.stream.Stream}:
+ * {@code StreamSupport.stream(Spliterators.spliterator(rows.iterator(), rows.estimateSize(), 0), false).onClose(...)}.
+ * &nbsp; (Don't make that stream parallel: the spliterator wrapping the iterator splits by
+ * copying rows out of the one result set, not by splitting the query.)
+ *
+ * @author Derek Anderson
+ */
+public class RowStream<T extends Table> implements Iterable<T>, Closeable {
+
+	private static final Logger log = Logger.getLogger("org.kered.dko.RowStream");
+
+	private Query<T> query;
+	private long estimate;
+	private Iterator<T> iterator = null;
+	private boolean closed = false;
+
+	RowStream(final Query<T> query) {
+		this(query, UsageStats.getKnownRowCount(query));
+	}
+
+	private RowStream(final Query<T> query, final long estimate) {
+		this.query = query;
+		this.estimate = estimate < 0 ? Long.MAX_VALUE : estimate;
+	}
+
+	/**
+	 * @return the estimated number of rows, or {@code Long.MAX_VALUE} if unknown
+	 */
+	public long estimateSize() {
+		return estimate;
+	}
+
+	/**
+	 * Splits off the upper half of this stream's primary key range. &nbsp; Only possible
+	 * before iterating, and only for queries {@code parallel()} could split.
+	 * @return a stream of the rows removed from this one, or null if it can't be split
+	 */
+	public synchronized RowStream<T> trySplit() {
+		if (iterator != null || closed || !(query instanceof DBQuery)) return null;
+		final DBQuery<T> q = (DBQuery<T>) query;
+		if (!q.canRunInParallel()) return null;
+		final List<Query<T>> halves;
+		try {
+			halves = ParallelScan.split(q, 2, false);
+		} catch (final SQLException e) {
+			log.warning("could not split "+ q +": "+ e);
+			return null;
+		}
+		if (halves == null || halves.size() != 2) return null;
+		query = halves.get(0);
+		if (estimate != Long.MAX_VALUE) estimate /= 2;
+		return new RowStream<T>(halves.get(1), estimate);
+	}
+
+	/**
+	 * Starts reading the rows. &nbsp; A stream can only be iterated once.
+	 */
+	@Override
+	public synchronized Iterator<T> iterator() {
+		if (iterator != null || closed) throw new IllegalStateException("a RowStream can only be iterated once");
+		iterator = query.iterator();
+		return iterator;
+	}
+
+	/**
+	 * Releases the result set (and connection) if the rows haven't all been read.
+	 */
+	@Override
+	public synchronized void close() {
+		if (closed) return;
+		closed = true;
+		if (iterator instanceof ClosableIterator) ((ClosableIterator<T>) iterator).close();
+	}
+
+}
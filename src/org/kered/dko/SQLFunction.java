@@ -51,6 +51,14 @@ public abstract class SQLFunction<T> implements Expression.OrderBy<T>, Expressio
 		return new OrderBySQLFunction<T>(this, DIRECTION.DESCENDING);
 	}
 
+	/**
+	 * Internal function.  Do not use.  Subject to change.
+	 * @return this function compiled for evaluation against objects in memory
+	 */
+	Evaluator.Value compile() {
+		throw new RuntimeException(getClass().getName() +" can't be evaluated in memory");
+	}
+
 	/**
 	 * Create a SQL function for IFNULL() (ISNULL() on SQL Server).
 	 * @param f
@@ -149,6 +157,11 @@ public abstract class SQLFunction<T> implements Expression.OrderBy<T>, Expressio
 				}
 			}
 
+			@Override
+			Evaluator.Value compile() {
+				return Evaluator.dateAdd(f1.compile(), count, component);
+			}
+
 		};
 	}
 
@@ -184,6 +197,11 @@ public abstract class SQLFunction<T> implements Expression.OrderBy<T>, Expressio
 					bindings.add(count);
 				}
 			}
+
+			@Override
+			Evaluator.Value compile() {
+				return Evaluator.dateAdd(Evaluator.value(field), count, component);
+			}
 		};
 
 	}
@@ -341,6 +359,11 @@ public abstract class SQLFunction<T> implements Expression.OrderBy<T>, Expressio
 					new Custom<String>("CONCAT", fields).__getSQL(sb, bindings, context);
 				}
 			}
+
+			@Override
+			Evaluator.Value compile() {
+				return Evaluator.function("CONCAT", fields);
+			}
 		};
 	}
 
@@ -564,6 +587,16 @@ public abstract class SQLFunction<T> implements Expression.OrderBy<T>, Expressio
 			sb.append(")");
 		}
 
+		@Override
+		Evaluator.Value compile() {
+			final String name = hsql!=null ? hsql : mysql!=null ? mysql : sqlserver;
+			if (name == null) {
+				// an operator, like "a + b"
+				return Evaluator.arithmetic(Evaluator.value(objects[0]), sep, Evaluator.value(objects[1]));
+			}
+			return Evaluator.function(name, objects);
+		}
+
 		@Override
 		public int hashCode() {
 			final int prime = 31;
@@ -51,6 +51,8 @@ class SelectFromOAI<T extends Table> implements ClosableIterator<T> {
 
 	private PeekableClosableIterator<Object[]> src;
 
+	private FKBatch fkBatch = null;
+
 	SelectFromOAI(final DBQuery<T> dbQuery) {
 		this(dbQuery, true);
 	}
@@ -158,6 +160,10 @@ class SelectFromOAI<T extends Table> implements ClosableIterator<T> {
 			return false;
 		}
 		if (next!=null) return true;
+		// timed per fetch (not across next() calls) so the event excludes the caller's own work.
+		// an uncommitted event is simply never recorded.
+		final Object event = FlightRecorderEvents.begin(FlightRecorderEvents.Type.ROW_BATCH);
+		long rows = 0;
 		if (!src.hasNext()) return false;
 		ttbMap.clear();
 		Object[] prevFieldValues = null;
@@ -177,6 +183,7 @@ class SelectFromOAI<T extends Table> implements ClosableIterator<T> {
 					close();
 					return false;
 				}
+				++rows;
 				final int objectSize = allTableInfos.size();
 				final Table[] objects = new Table[objectSize];
 				final boolean[] newObjectThisRow = new boolean[objectSize];
@@ -195,6 +202,14 @@ class SelectFromOAI<T extends Table> implements ClosableIterator<T> {
 									.newInstance(selectedFields, fieldValues, ti.start, ti.end);
 							t.__NOSCO_USAGE_MONITOR = usageMonitor;
 							t.__NOSCO_ORIGINAL_DATA_SOURCE = ds;
+							if (i==0 && usageMonitor!=null && AutoPrefetch.isEnabled()) ++usageMonitor.objectCount;
+							if (FKBatch.isEnabled() || (usageMonitor!=null && usageMonitor.batchLoadFks)) {
+								if (fkBatch == null || fkBatch.size() >= BATCH_SIZE) {
+									fkBatch = new FKBatch(src instanceof DBRowIterator ? (DBRowIterator<?>) src : null,
+											selectedFields, allTableInfos);
+								}
+								fkBatch.add(t);
+							}
 							if (i==0 && extraFieldsStartAt < fieldValues.length) {
 								for (int j=extraFieldsStartAt; j<fieldValues.length; ++j) {
 									t.set((Select)this.selectedFields[j], fieldValues[j]);
@@ -259,6 +274,8 @@ class SelectFromOAI<T extends Table> implements ClosableIterator<T> {
 			e.printStackTrace();
 			close();
 			throw new RuntimeException(e);
+		} finally {
+			if (event!=null && rows>0) FlightRecorderEvents.commit(event, "SelectFromOAI", query.getType().getName(), rows);
 		}
 		final boolean hasNext = next != null;
 		if (!hasNext) close();
@@ -0,0 +1,239 @@
+package org.kered.dko;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.logging.Logger;
+
+import javax.sql.DataSource;
+
+import org.kered.dko.Field.FK;
+
+/**
+ * Implements {@code Query.withSeparately(FK...)}. &nbsp; Reads the objects of the parent
+ * query a batch at a time and, for each FK path, loads every step of the path for the
+ * whole batch with one query (an {@code in} on the keys of the previous step, which
+ * becomes a temporary table for large batches). &nbsp; To-many steps are handed to the
+ * parents with {@code SET_FK_SET} (so their {@code get...Set()} methods return the
+ * children from memory) and to-one steps with {@code SET_FK}.
+ * <p>
+ * Unlike the left outer joins of {@code with()}, the parent columns aren't repeated for
+ * every child, several to-many paths don't multiply into each other, and {@code top()}
+ * is still applied by the database.
+ *
+ * @author Derek Anderson
+ */
+class SeparatePrefetch<T extends Table> implements ClosableIterator<T> {
+
+	private static final Logger log = Logger.getLogger("org.kered.dko.SeparatePrefetch");
+
+	private static final int BATCH_SIZE = 1024;
+
+	private static final Map<Class<? extends Table>,Method> setFKSetMethods = new HashMap<Class<? extends Table>,Method>();
+
+	private final ClosableIterator<T> src;
+	private final List<FK<?>[]> paths;
+	private final DataSource ds;
+	private final List<T> batch = new ArrayList<T>();
+	private int position = 0;
+
+	SeparatePrefetch(final ClosableIterator<T> src, final List<FK<?>[]> paths, final DataSource ds) {
+		this.src = src;
+		this.paths = paths;
+		this.ds = ds;
+	}
+
+	@Override
+	public boolean hasNext() {
+		if (position < batch.size()) return true;
+		batch.clear();
+		position = 0;
+		while (batch.size() < BATCH_SIZE && src.hasNext()) {
+			batch.add(src.next());
+		}
+		if (batch.isEmpty()) return false;
+		load(batch);
+		return true;
+	}
+
+	@Override
+	public T next() {
+		if (!hasNext()) throw new NoSuchElementException();
+		return batch.get(position++);
+	}
+
+	@Override
+	public void remove() {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public void close() {
+		src.close();
+	}
+
+	private void load(final List<? extends Table> parents) {
+		// paths sharing a prefix share its queries
+		final Map<List<FK<?>>,List<Table>> loaded = new HashMap<List<FK<?>>,List<Table>>();
+		for (final FK<?>[] path : paths) {
+			List<? extends Table> objects = parents;
+			for (int i=0; i<path.length && !objects.isEmpty(); ++i) {
+				final List<FK<?>> prefix = Arrays.asList(path).subList(0, i+1);
+				List<Table> next = loaded.get(prefix);
+				if (next == null) {
+					next = Util.sameTable(path[i].referencing, objects.get(0).getClass())
+							? loadToOne(objects, path[i]) : loadToMany(objects, path[i]);
+					loaded.put(prefix, next);
+				}
+				objects = next;
+			}
+		}
+	}
+
+	/**
+	 * Loads the objects referenced by these objects.
+	 * @return the distinct referenced objects
+	 */
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	private List<Table> loadToOne(final List<? extends Table> objects, final FK<?> fk) {
+		final Field[] referencing = fk.REFERENCING_FIELDS();
+		final Field[] referenced = fk.REFERENCED_FIELDS();
+		final Map<List<Object>,List<Table>> byKey = new LinkedHashMap<List<Object>,List<Table>>();
+		for (final Table t : objects) {
+			final List<Object> key = values(t, referencing);
+			if (key == null) continue;
+			List<Table> tables = byKey.get(key);
+			if (tables == null) {
+				tables = new ArrayList<Table>();
+				byKey.put(key, tables);
+			}
+			tables.add(t);
+		}
+		final Method setFK = FKBatch.getSetFKMethod(objects.get(0).getClass());
+		final List<Table> ret = new ArrayList<Table>();
+		for (final Table reffed : select(fk.referenced, referenced, byKey.keySet())) {
+			final List<Table> tables = byKey.remove(values(reffed, referenced));
+			if (tables == null) continue;
+			ret.add(reffed);
+			for (final Table t : tables) invoke(setFK, t, fk, reffed);
+		}
+		// dangling FKs
+		for (final List<Table> tables : byKey.values()) {
+			for (final Table t : tables) invoke(setFK, t, fk, null);
+		}
+		for (final Table t : objects) {
+			if (values(t, referencing) == null) invoke(setFK, t, fk, null);
+		}
+		return ret;
+	}
+
+	/**
+	 * Loads the objects referencing these objects.
+	 * @return all the referencing objects
+	 */
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	private List<Table> loadToMany(final List<? extends Table> objects, final FK<?> fk) {
+		final Field[] referencing = fk.REFERENCING_FIELDS();
+		final Field[] referenced = fk.REFERENCED_FIELDS();
+		final Map<List<Object>,List<Table>> parentsByKey = new HashMap<List<Object>,List<Table>>();
+		final Map<Table,List<Table>> children = new IdentityHashMap<Table,List<Table>>();
+		for (final Table t : objects) {
+			children.put(t, new ArrayList<Table>());
+			final List<Object> key = values(t, referenced);
+			if (key == null) continue;
+			List<Table> tables = parentsByKey.get(key);
+			if (tables == null) {
+				tables = new ArrayList<Table>();
+				parentsByKey.put(key, tables);
+			}
+			tables.add(t);
+		}
+		final Method setFK = FKBatch.getSetFKMethod(fk.referencing);
+		final Method setFKSet = getSetFKSetMethod(fk.referenced);
+		final List<Table> ret = new ArrayList<Table>();
+		for (final Table child : select(fk.referencing, referencing, parentsByKey.keySet())) {
+			final List<Table> parents = parentsByKey.get(values(child, referencing));
+			if (parents == null) continue;
+			ret.add(child);
+			for (final Table parent : parents) children.get(parent).add(child);
+			invoke(setFK, child, fk, parents.get(0));
+		}
+		for (final Map.Entry<Table,List<Table>> e : children.entrySet()) {
+			invoke(setFKSet, e.getKey(), fk, new InMemoryQuery(fk.referencing, e.getValue()));
+		}
+		return ret;
+	}
+
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	private List<Table> select(final Class<? extends Table> type, final Field[] fields, final Set<List<Object>> keys) {
+		final List<Table> ret = new ArrayList<Table>();
+		if (keys.isEmpty()) return ret;
+		Condition condition;
+		if (fields.length == 1) {
+			final Set<Object> values = new LinkedHashSet<Object>();
+			for (final List<Object> key : keys) values.add(key.get(0));
+			condition = fields[0].in(values);
+		} else {
+			condition = null;
+			for (final List<Object> key : keys) {
+				Condition c = fields[0].eq(key.get(0));
+				for (int i=1; i<fields.length; ++i) c = c.and(fields[i].eq(key.get(i)));
+				condition = condition==null ? c : condition.or(c);
+			}
+		}
+		final Query<? extends Table> q = ds==null ? QueryFactory.IT.getQuery(type) : QueryFactory.IT.getQuery(type, ds);
+		for (final Table t : q.where(condition)) ret.add(t);
+		log.fine("loaded "+ ret.size() +" "+ type.getSimpleName() +" rows for "+ keys.size() +" keys");
+		return ret;
+	}
+
+	/**
+	 * @return the values of these fields, or null if any are null
+	 */
+	private static List<Object> values(final Table t, final Field<?>[] fields) {
+		final List<Object> ret = new ArrayList<Object>(fields.length);
+		for (final Field<?> f : fields) {
+			final Object v = t.get(f);
+			if (v == null) return null;
+			ret.add(v);
+		}
+		return ret;
+	}
+
+	private static void invoke(final Method m, final Table t, final FK<?> fk, final Object v) {
+		if (m == null) throw new RuntimeException(t.getClass().getName() +" can't be prefetched into (regenerate it)");
+		try {
+			m.invoke(t, fk, v);
+		} catch (final IllegalAccessException e) {
+			throw new RuntimeException(e);
+		} catch (final InvocationTargetException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private static Method getSetFKSetMethod(final Class<? extends Table> cls) {
+		synchronized (setFKSetMethods) {
+			if (!setFKSetMethods.containsKey(cls)) {
+				Method m = null;
+				try {
+					m = cls.getDeclaredMethod("SET_FK_SET", Field.FK.class, Query.class);
+					m.setAccessible(true);
+				} catch (final NoSuchMethodException e) {
+					/* ignore */
+				}
+				setFKSetMethods.put(cls, m);
+			}
+			return setFKSetMethods.get(cls);
+		}
+	}
+
+}
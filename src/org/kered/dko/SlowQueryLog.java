@@ -0,0 +1,349 @@
+package org.kered.dko;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.logging.Logger;
+
+import javax.sql.DataSource;
+
+import org.kered.dko.persistence.SlowQuery;
+
+/**
+ * Records statements that take longer than a configurable threshold to execute. &nbsp;
+ * Covers selects (timed from execution through the last row fetched, not counting
+ * time spent by the caller between rows), {@code count()}, {@code update()} and {@code delete()}. &nbsp;
+ * The most recent entries are kept in a bounded in-memory buffer, and optionally written to
+ * the persistence database so regressions can be found in production without turning on
+ * full SQL logging. &nbsp; Plans and persistence are handled by a background thread
+ * (started the first time either is needed), never by the thread that ran the statement.
+ * <p>
+ * Off unless a threshold is set, with the properties {@code Constants.PROPERTY_SLOW_QUERY_*}
+ * or at runtime:
+ * <pre>  {@code SlowQueryLog.setThresholdMillis(250);
+ *   ...
+ *   for (SlowQueryLog.Entry e : SlowQueryLog.getEntries()) System.out.println(e);}</pre>
+ *
+ * @author Derek Anderson
+ */
+public class SlowQueryLog {
+
+	private static final Logger log = Logger.getLogger("org.kered.dko.SlowQueryLog");
+
+	private static volatile long thresholdNanos = parseThreshold();
+	private static volatile boolean explain = Util.truthy(System.getProperty(Constants.PROPERTY_SLOW_QUERY_EXPLAIN));
+	private static volatile boolean persist = Util.truthy(System.getProperty(Constants.PROPERTY_SLOW_QUERY_PERSIST));
+
+	private static Entry[] buffer = new Entry[parseSize()];
+	private static int next = 0;
+	private static int size = 0;
+
+	/**
+	 * One recorded slow statement.
+	 */
+	public static class Entry {
+
+		private final Class<? extends Table> type;
+		private final String sql;
+		private final List<Object> bindings;
+		private final long rowCount;
+		private final long elapsedMillis;
+		private final StackTraceElement callSite;
+		private volatile String plan = null;
+		private final long timestamp;
+
+		Entry(final Class<? extends Table> type, final String sql, final List<Object> bindings,
+				final long rowCount, final long elapsedMillis, final StackTraceElement callSite) {
+			this.type = type;
+			this.sql = sql;
+			this.bindings = bindings==null ? Collections.<Object>emptyList() : Collections.unmodifiableList(new ArrayList<Object>(bindings));
+			this.rowCount = rowCount;
+			this.elapsedMillis = elapsedMillis;
+			this.callSite = callSite;
+			this.timestamp = System.currentTimeMillis();
+		}
+
+		/**
+		 * @return the table class the query was built from
+		 */
+		public Class<? extends Table> getType() {
+			return type;
+		}
+
+		public String getSQL() {
+			return sql;
+		}
+
+		public List<Object> getBindings() {
+			return bindings;
+		}
+
+		/**
+		 * @return rows returned (selects), the count (counts) or rows affected (updates/deletes)
+		 */
+		public long getRowCount() {
+			return rowCount;
+		}
+
+		public long getElapsedMillis() {
+			return elapsedMillis;
+		}
+
+		/**
+		 * @return the first stack frame outside of DKO, or null if it couldn't be determined
+		 */
+		public StackTraceElement getCallSite() {
+			return callSite;
+		}
+
+		/**
+		 * @return the output of {@code explainAsText()}, or null if plans aren't being captured
+		 * (or this one hasn't been captured yet)
+		 */
+		public String getPlan() {
+			return plan;
+		}
+
+		/**
+		 * @return when this entry was recorded (in milliseconds since the epoch)
+		 */
+		public long getTimestamp() {
+			return timestamp;
+		}
+
+		@Override
+		public String toString() {
+			return elapsedMillis +"ms, "+ rowCount +" rows: "+ sql
+					+ (bindings.size() > 0 ? " -- ["+ Util.join("|", bindings) +"]" : "")
+					+ (callSite==null ? "" : " @ "+ callSite);
+		}
+	}
+
+	/**
+	 * Sets the threshold above which statements are recorded. &nbsp; A negative value turns
+	 * the slow query log off.
+	 * @param millis
+	 */
+	public static void setThresholdMillis(final long millis) {
+		thresholdNanos = millis < 0 ? -1 : millis * 1000000;
+	}
+
+	/**
+	 * @return the current threshold in milliseconds (negative if turned off)
+	 */
+	public static long getThresholdMillis() {
+		return thresholdNanos < 0 ? -1 : thresholdNanos / 1000000;
+	}
+
+	/**
+	 * Controls if slow selects are re-run with {@code explainAsText()} to record their plans. &nbsp;
+	 * Note that this executes an extra statement (in the background) for every slow select.
+	 * @param enabled
+	 */
+	public static void setExplain(final boolean enabled) {
+		explain = enabled;
+	}
+
+	/**
+	 * Controls if slow queries are written to the persistence database (table {@code slow_query}). &nbsp;
+	 * If the background thread falls more than 1024 entries behind, new ones are only kept
+	 * in memory.
+	 * @param enabled
+	 */
+	public static void setPersist(final boolean enabled) {
+		persist = enabled;
+	}
+
+	/**
+	 * @return how many entries are kept in memory
+	 */
+	public static synchronized int getCapacity() {
+		return buffer.length;
+	}
+
+	/**
+	 * Changes how many entries are kept in memory. &nbsp; Clears the existing entries.
+	 * @param capacity
+	 */
+	public static synchronized void setCapacity(final int capacity) {
+		if (capacity < 1) throw new IllegalArgumentException("capacity must be positive: "+ capacity);
+		buffer = new Entry[capacity];
+		next = 0;
+		size = 0;
+	}
+
+	/**
+	 * @return the recorded slow statements, oldest first
+	 */
+	public static synchronized List<Entry> getEntries() {
+		final List<Entry> ret = new ArrayList<Entry>(size);
+		for (int i=0; i<size; ++i) {
+			ret.add(buffer[(next - size + i + buffer.length) % buffer.length]);
+		}
+		return ret;
+	}
+
+	/**
+	 * Removes all in-memory entries. &nbsp; (Persisted entries are not touched.)
+	 */
+	public static synchronized void clear() {
+		for (int i=0; i<buffer.length; ++i) buffer[i] = null;
+		next = 0;
+		size = 0;
+	}
+
+	static boolean isEnabled() {
+		return thresholdNanos >= 0;
+	}
+
+	/**
+	 * Records the statement if it ran longer than the threshold.
+	 * @param query the query that generated the statement
+	 * @param sql
+	 * @param bindings
+	 * @param rowCount
+	 * @param elapsedNanos
+	 * @param explainable true if {@code query} is a select that can be explained
+	 */
+	static void check(final DBQuery<?> query, final String sql, final List<Object> bindings,
+			final long rowCount, final long elapsedNanos, final boolean explainable) {
+		final long threshold = thresholdNanos;
+		if (threshold < 0 || elapsedNanos < threshold) return;
+		final Class<? extends Table> type = query.getType();
+		if (type.getName().startsWith("org.kered.dko.persistence")) return;
+		final Entry entry = new Entry(type, sql, bindings, rowCount, elapsedNanos / 1000000, findCallSite());
+		synchronized (SlowQueryLog.class) {
+			buffer[next] = entry;
+			next = (next + 1) % buffer.length;
+			if (size < buffer.length) ++size;
+		}
+		log.info("slow query: "+ entry);
+		final boolean explainIt = explain && explainable;
+		if (explainIt || persist) {
+			final Pending pending = new Pending(entry, explainIt ? query : null, persist);
+			if (!background.offer(pending)) {
+				log.fine("slow query background queue is full, not explaining or persisting: "+ entry);
+			}
+			startBackgroundThread();
+		}
+	}
+
+	/**
+	 * An entry waiting on the background thread.
+	 */
+	private static class Pending {
+		private final Entry entry;
+		private final DBQuery<?> query;
+		private final Context threadContext;
+		private final Context threadGroupContext;
+		private final boolean persist;
+		private Pending(final Entry entry, final DBQuery<?> query, final boolean persist) {
+			this.entry = entry;
+			this.query = query;
+			// the explain runs elsewhere, so it needs the caller's data sources and schema overrides
+			this.threadContext = query==null ? null : Context.getThreadContext().copySettings();
+			this.threadGroupContext = query==null ? null : Context.getThreadGroupContext().copySettings();
+			this.persist = persist;
+		}
+	}
+
+	private static <T extends Table> String explain(final DBQuery<T> query) throws SQLException {
+		return new DBRowIterator<T>(query, false).explainAsText();
+	}
+
+	private static StackTraceElement findCallSite() {
+		final StackTraceElement[] st = Thread.currentThread().getStackTrace();
+		int i=0;
+		while (i<st.length && !st[i].getClassName().startsWith("org.kered.dko")) ++i;
+		while (i<st.length && st[i].getClassName().startsWith("org.kered.dko")) ++i;
+		return i<st.length ? st[i] : null;
+	}
+
+	private static long parseThreshold() {
+		final String s = System.getProperty(Constants.PROPERTY_SLOW_QUERY_THRESHOLD_MS);
+		long millis = -1;
+		if (s != null) {
+			try {
+				millis = Long.parseLong(s.trim());
+			} catch (final NumberFormatException e) {
+				log.warning("could not parse "+ Constants.PROPERTY_SLOW_QUERY_THRESHOLD_MS +"="+ s);
+			}
+		}
+		return millis < 0 ? -1 : millis * 1000000;
+	}
+
+	private static int parseSize() {
+		final String s = System.getProperty(Constants.PROPERTY_SLOW_QUERY_LOG_SIZE);
+		if (s != null) {
+			try {
+				final int size = Integer.parseInt(s.trim());
+				if (size > 0) return size;
+			} catch (final NumberFormatException e) {
+				/* ignore */
+			}
+			log.warning("could not parse "+ Constants.PROPERTY_SLOW_QUERY_LOG_SIZE +"="+ s);
+		}
+		return 128;
+	}
+
+	// the most entries waiting to be explained or persisted at once
+	private static final int BACKGROUND_QUEUE_SIZE = 1024;
+
+	private final static BlockingQueue<Pending> background = new ArrayBlockingQueue<Pending>(BACKGROUND_QUEUE_SIZE);
+	private static Thread backgroundThread = null;
+
+	private static synchronized void startBackgroundThread() {
+		if (backgroundThread != null) return;
+		backgroundThread = new Thread("dko-slow-query-log") {
+			@Override
+			public void run() {
+				while (true) {
+					try {
+						final Pending p = background.take();
+						if (p.query != null) {
+							try {
+								p.entry.plan = Context.callWithContexts(p.threadContext, p.threadGroupContext,
+										new Callable<String>() {
+									@Override
+									public String call() throws Exception {
+										return explain(p.query);
+									}
+								});
+							} catch (final Throwable e) {
+								p.entry.plan = "could not explain: "+ e;
+							}
+						}
+						if (p.persist) persist(p.entry);
+					} catch (final InterruptedException e) {
+						e.printStackTrace();
+					} catch (final SQLException e) {
+						e.printStackTrace();
+					}
+				}
+			}
+		};
+		backgroundThread.setDaemon(true);
+		backgroundThread.start();
+	}
+
+	private static void persist(final Entry e) throws SQLException {
+		final DataSource ds = org.kered.dko.persistence.Util.getDS();
+		if (ds==null) return;
+		new SlowQuery()
+				.setQueryHash(e.sql.hashCode())
+				.setTableName(Util.getTableName(e.type))
+				.setStatement(e.sql)
+				.setBindings(Util.join("|", e.bindings))
+				.setRowCount(e.rowCount)
+				.setElapsedMillis(e.elapsedMillis)
+				.setCallSite(e.callSite==null ? null : e.callSite.toString())
+				.setExplainPlan(e.plan)
+				.setExecutedAt(e.timestamp)
+				.insert(ds);
+	}
+
+}
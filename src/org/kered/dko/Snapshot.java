@@ -0,0 +1,44 @@
+package org.kered.dko;
+
+import org.kered.dko.Table.__PrimaryKey;
+
+/**
+ * The results of a query serialized to disk, returned by {@code Query.snapshot()}.
+ * &nbsp; Iterating over it reads the rows back from the file, not from the original
+ * query's data source.
+ *
+ * @author Derek Anderson
+ * @param <T>
+ */
+public interface Snapshot<T extends Table> extends Iterable<T> {
+
+	/**
+	 * Looks up a row in the snapshot by its primary key.
+	 * @param pk
+	 * @return the row, or null if there isn't one
+	 */
+	public T get(__PrimaryKey<T> pk);
+
+	/**
+	 * Brings this snapshot up to date with its query, changing only the rows that have
+	 * changed. &nbsp; Finds them by comparing the snapshot with the query's current results
+	 * (with {@code Diff} for SQLite snapshots, and the primary key index for mapped ones), so
+	 * the query is still run in full but the snapshot is only written to for what changed.
+	 * &nbsp; Requires the table's primary key to have been selected.
+	 * @return the number of rows added, updated or deleted
+	 */
+	public long refresh();
+
+	/**
+	 * Brings this snapshot up to date with its query, reading only the rows whose
+	 * {@code lastModified} is at or after the newest value in the snapshot (scanned for on
+	 * the first refresh, then remembered) and replacing their old versions by primary key.
+	 * &nbsp; Deleted rows aren't noticed (use {@code refresh()} for that).
+	 * &nbsp; Requires the table's primary key and {@code lastModified} to have been selected.
+	 * @param lastModified a field that's set to the current time (or a sequence) on every
+	 * insert and update
+	 * @return the number of rows read
+	 */
+	public long refresh(Field<?> lastModified);
+
+}
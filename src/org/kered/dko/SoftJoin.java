@@ -6,6 +6,7 @@ import java.sql.Connection;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
@@ -31,6 +32,7 @@ class SoftJoin<T extends Table> extends AbstractQuery<T> {
 	private final JOIN_TYPE joinType;
 	//private Class<? extends J> type;
 	private long limit = -1;
+	private Expression.OrderBy<?>[] obes = null;
 
 	private transient List<Field<?>> selectFields;
 
@@ -54,6 +56,7 @@ class SoftJoin<T extends Table> extends AbstractQuery<T> {
 		q2 = q.q2;
 		condition = q.condition;
 		limit = q.limit;
+		obes = q.obes;
 	}
 
 	public SoftJoin(final JOIN_TYPE joinType, final Class<? extends Table> type, final Query<? extends Table> q, final Class<? extends Table> t, final Condition on) {
@@ -184,6 +187,7 @@ class SoftJoin<T extends Table> extends AbstractQuery<T> {
 
 	@Override
 	public Iterator<T> iterator() {
+		if (obes != null) return ordered();
 
 	    final long q1Rows = UsageStats.estimateRowCount(q1);
 	    final long q2Rows = UsageStats.estimateRowCount(q2);
@@ -415,13 +419,31 @@ class SoftJoin<T extends Table> extends AbstractQuery<T> {
 		return null;
 	}
 
+	/**
+	 * Joins aren't ordered until they're read, and then in memory (with {@code TopN}, keeping
+	 * only the first rows if there's a {@code limit()}).
+	 */
 	@Override
 	public Query<T> orderBy(Expression.OrderBy<?>... obes) {
-		throw new RuntimeException("not implemented yet"); // TODO
+		final SoftJoin<T> q = new SoftJoin<T>(this);
+		q.obes = obes;
+		return q;
+	}
+
+	/**
+	 * @return the rows of the unordered, unlimited join, ordered (and limited) in memory
+	 */
+	private Iterator<T> ordered() {
+		final SoftJoin<T> all = new SoftJoin<T>(this);
+		all.obes = null;
+		all.limit = -1;
+		final Comparator<T> order = TopN.comparator(obes);
+		final List<T> rows = limit < 0 ? TopN.sort(all.iterator(), order) : TopN.top(all.iterator(), order, limit);
+		return rows.iterator();
 	}
 
 	@Override
 	public boolean isOrdered() {
-		throw new RuntimeException("not implemented yet"); // TODO
+		return obes != null;
 	}
 }
\ No newline at end of file
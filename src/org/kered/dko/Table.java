@@ -75,6 +75,8 @@ public abstract class Table {
 	@SuppressWarnings("rawtypes")
 	UsageMonitor __NOSCO_USAGE_MONITOR = null;
 
+	FKBatch __NOSCO_FK_BATCH = null;
+
 	/**
 	 * Returns true if the object has been modified
 	 * @return true if the object has been modified
@@ -376,6 +378,15 @@ public abstract class Table {
 		if (__NOSCO_USAGE_MONITOR!=null) __NOSCO_USAGE_MONITOR.accessedFkCallback(table, fk);
 	}
 
+	/**
+	 * Internal function - please don't use. &nbsp; Subject to change.
+	 * @param fk
+	 * @return true if the FK was loaded (along with the rest of this object's batch)
+	 */
+	protected boolean __NOSCO_PRIVATE_batchLoadFk(final Field.FK<? extends Table> fk) {
+		return __NOSCO_FK_BATCH!=null && __NOSCO_FK_BATCH.load(this, fk);
+	}
+
 	/**
 	 * Internal function - please don't use. &nbsp; Subject to change.
 	 * @param conn
@@ -23,6 +23,7 @@ class TemporaryTableFactory {
 		Class<T> cls = null;
 		private List<Field<?>> fields = null;
 		private Collection<T> set = null;
+		private List<Field<?>> indexFields = null;
 
 		@SuppressWarnings("rawtypes")
 		public static Field.PK<?> PK = new Field.PK();
@@ -38,6 +39,14 @@ class TemporaryTableFactory {
 			this.set = set;
 		}
 
+		/**
+		 * Indexes these columns of the table once it's loaded (for joins on them).
+		 */
+		DummyTableWithName<T> indexOn(final List<Field<?>> indexFields) {
+			this.indexFields = indexFields;
+			return this;
+		}
+
 		public static String _SCHEMA_NAME = null;
 
 		@Override
@@ -131,6 +140,15 @@ class TemporaryTableFactory {
 			return null;
 		}
 
+		/**
+		 * @return the name to use for this table in sql
+		 */
+		String getSQLName(final DB_TYPE dbType) {
+			String tableName = (dbType==Constants.DB_TYPE.SQLSERVER ? "#" : "") + name;
+			if (dbType==Constants.DB_TYPE.DERBY) tableName = "SESSION."+tableName;
+			return tableName;
+		}
+
 		@Override
 		protected void __NOSCO_PRIVATE_preExecute(final SqlContext context, final Connection conn) throws SQLException {
 			Statement stmt = null;
@@ -138,8 +156,7 @@ class TemporaryTableFactory {
 			try {
 				stmt = conn.createStatement();
 				final StringBuffer sqlSb = new StringBuffer();
-				String tableName = (context.dbType==Constants.DB_TYPE.SQLSERVER ? "#" : "") + name;
-				if (context.dbType==Constants.DB_TYPE.DERBY) tableName = "SESSION."+tableName;
+				final String tableName = getSQLName(context.dbType);
 				String fluff = "";
 				if (context.dbType==Constants.DB_TYPE.SQLSERVER) fluff = "TEMPORARY ";
 				if (context.dbType==Constants.DB_TYPE.ORACLE || context.dbType==Constants.DB_TYPE.DERBY) fluff = "GLOBAL TEMPORARY ";
@@ -158,6 +175,20 @@ class TemporaryTableFactory {
 					if (context.dbType==Constants.DB_TYPE.DERBY && "varchar".equals(field.SQL_TYPE.toLowerCase())) {
 						sqlSb.append("(32672)");
 					}
+					if (context.dbType==Constants.DB_TYPE.SQLSERVER && "varchar".equals(field.SQL_TYPE.toLowerCase())) {
+						sqlSb.append("(max)");
+					}
+					if (context.dbType==Constants.DB_TYPE.HSQL && "varchar".equals(field.SQL_TYPE.toLowerCase())) {
+						sqlSb.append("(32768)");
+					}
+					// without a precision most databases default decimals to a scale of zero
+					final String sqlType = field.SQL_TYPE.toLowerCase();
+					if ("decimal".equals(sqlType) || "numeric".equals(sqlType)) {
+						if (context.dbType==Constants.DB_TYPE.DERBY) sqlSb.append("(31,10)");
+						if (context.dbType==Constants.DB_TYPE.MYSQL) sqlSb.append("(65,30)");
+						if (context.dbType==Constants.DB_TYPE.SQLSERVER) sqlSb.append("(38,10)");
+						if (context.dbType==Constants.DB_TYPE.HSQL) sqlSb.append("(128,32)");
+					}
 					if (i < fields.size()-1) sqlSb.append(", ");
 				}
 				sqlSb.append(")");
@@ -179,7 +210,7 @@ class TemporaryTableFactory {
 					++i;
 					for (int j=0; j<fields.size(); ++j) {
 						final Field<?> field = fields.get(j);
-						final Object o = t.get(field);
+						final Object o = t.__NOSCO_PRIVATE_mapType(t.get(field));
 						Util.setBindingWithTypeFixes(ps, j+1, o);
 					}
 					ps.addBatch();
@@ -204,6 +235,14 @@ class TemporaryTableFactory {
 						added += x;
 					}
 				}
+				if (indexFields != null && !indexFields.isEmpty()) {
+					final List<String> columns = new ArrayList<String>();
+					for (final Field<?> field : indexFields) columns.add(field.NAME);
+					final String indexName = (context.dbType==Constants.DB_TYPE.DERBY ? "SESSION." : "") + name +"_I";
+					final String sqlIndex = "CREATE INDEX "+ indexName +" ON "+ tableName +" ("+ Util.join(",", columns) +")";
+					Util.log(sqlIndex, null);
+					stmt.execute(sqlIndex);
+				}
 //				ResultSet rs = stmt.executeQuery("select count(1) from "+ tableName);
 //				while (rs.next()) {
 //					System.err.println("tmp table "+ tableName +" has "+ rs.getLong(1) +" rows");
@@ -228,8 +267,7 @@ class TemporaryTableFactory {
 		@Override
 		protected void __NOSCO_PRIVATE_postExecute(final SqlContext context, final Connection conn) throws SQLException {
 			Statement stmt = null;
-			String tableName = (context.dbType==Constants.DB_TYPE.SQLSERVER ? "#" : "") + name;
-			if (context.dbType==Constants.DB_TYPE.DERBY) tableName = "SESSION."+tableName;
+			final String tableName = getSQLName(context.dbType);
 			try {
 				stmt = conn.createStatement();
 				if (context.dbType==DB_TYPE.ORACLE) {
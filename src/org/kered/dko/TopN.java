@@ -0,0 +1,116 @@
+package org.kered.dko;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import org.kered.dko.Constants.DIRECTION;
+
+/**
+ * Orders rows outside the database, for the queries that aren't run by one. &nbsp;
+ * {@code top()} keeps only the first {@code n} rows of a stream in a bounded heap, so an
+ * {@code orderBy()} with a {@code limit()} takes O(n) memory and O(rows log n) time
+ * instead of sorting every row. &nbsp; Both {@code top()} and {@code sort()} are stable
+ * (rows that order the same keep the order they came in).
+ *
+ * @author Derek Anderson
+ */
+class TopN {
+
+	/**
+	 * @return a comparator of rows by these fields, nulls last (first when descending)
+	 */
+	static <T extends Table> Comparator<T> comparator(final Expression.OrderBy<?>... obes) {
+		final Field<?>[] fields = new Field<?>[obes.length];
+		final int[] directions = new int[obes.length];
+		for (int i=0; i<obes.length; ++i) {
+			if (obes[i] instanceof Field) {
+				fields[i] = (Field<?>) obes[i];
+				directions[i] = 1;
+			} else if (obes[i] instanceof Field.OrderByField) {
+				fields[i] = ((Field.OrderByField<?>) obes[i]).underlying;
+				directions[i] = ((Field.OrderByField<?>) obes[i]).direction==DIRECTION.DESCENDING ? -1 : 1;
+			} else {
+				throw new UnsupportedOperationException("queries outside the database can only be ordered by fields: "+ obes[i]);
+			}
+		}
+		return new Comparator<T>() {
+			@Override
+			public int compare(final T a, final T b) {
+				for (int i=0; i<fields.length; ++i) {
+					final int c = TopN.compare(a.get(fields[i]), b.get(fields[i]));
+					if (c != 0) return c * directions[i];
+				}
+				return 0;
+			}
+		};
+	}
+
+	/**
+	 * Compares two values, nulls last.
+	 */
+	static int compare(final Object x, final Object y) {
+		if (x == null) return y == null ? 0 : 1;
+		if (y == null) return -1;
+		return Evaluator.compare(x, y);
+	}
+
+	/**
+	 * @return the first {@code n} of these rows in this order
+	 */
+	static <T> List<T> top(final Iterator<? extends T> rows, final Comparator<? super T> order, final long n) {
+		if (n <= 0) return new ArrayList<T>();
+		final int size = (int) Math.min(n, Integer.MAX_VALUE - 8);
+		final Comparator<Ranked<T>> byRank = new Comparator<Ranked<T>>() {
+			@Override
+			public int compare(final Ranked<T> a, final Ranked<T> b) {
+				final int c = order.compare(a.row, b.row);
+				if (c != 0) return c;
+				return a.seq < b.seq ? -1 : (a.seq == b.seq ? 0 : 1);
+			}
+		};
+		// the head is the last of the rows kept so far, the one a better row replaces
+		final PriorityQueue<Ranked<T>> heap = new PriorityQueue<Ranked<T>>(Math.min(size, 1024) + 1,
+				Collections.reverseOrder(byRank));
+		long seq = 0;
+		while (rows.hasNext()) {
+			final T row = rows.next();
+			if (heap.size() < size) {
+				heap.add(new Ranked<T>(row, seq));
+			} else if (order.compare(row, heap.peek().row) < 0) {
+				// (a tie goes to the row already kept, as it came first)
+				heap.poll();
+				heap.add(new Ranked<T>(row, seq));
+			}
+			++seq;
+		}
+		final List<Ranked<T>> kept = new ArrayList<Ranked<T>>(heap);
+		Collections.sort(kept, byRank);
+		final List<T> ret = new ArrayList<T>(kept.size());
+		for (final Ranked<T> r : kept) ret.add(r.row);
+		return ret;
+	}
+
+	/**
+	 * @return all of these rows in this order
+	 */
+	static <T> List<T> sort(final Iterator<? extends T> rows, final Comparator<? super T> order) {
+		final List<T> ret = new ArrayList<T>();
+		while (rows.hasNext()) ret.add(rows.next());
+		Collections.sort(ret, order);
+		return ret;
+	}
+
+	private static class Ranked<T> {
+		final T row;
+		final long seq;
+		Ranked(final T row, final long seq) {
+			this.row = row;
+			this.seq = seq;
+		}
+	}
+
+}
@@ -0,0 +1,222 @@
+package org.kered.dko;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Logger;
+
+import javax.sql.DataSource;
+
+import org.kered.dko.Field.PK;
+import org.kered.dko.Tuple.Tuple2;
+
+/**
+ * The inserts and updates deferred by {@code Context.startUnitOfWork(ds)}. &nbsp; Statements
+ * run in the order they were made, with consecutive runs of the same SQL (so the same
+ * table and columns) sent as JDBC batches.
+ * <p>
+ * Only single table statements without temporary tables are deferred, only inserts
+ * that specify their whole primary key (others may need the generated key back), and only
+ * updates of one row by its primary key (so the row count they report can be checked when
+ * they run). &nbsp; Anything else, and every delete, flushes the pending statements first
+ * and then runs immediately, so the database sees the writes in the order they were made.
+ * &nbsp; So does reading a row by the primary key of a pending insert (as {@code save()}
+ * does to pick between an insert and an update).
+ *
+ * @author Derek Anderson
+ */
+class UnitOfWork {
+
+	private static final Logger log = Logger.getLogger("org.kered.dko.UnitOfWork");
+
+	private static final int BATCH_SIZE = 512;
+
+	/**
+	 * What {@code Query.update()} returns for a deferred update (of one row by its primary
+	 * key). &nbsp; If it doesn't update exactly one row when it runs, the flush fails.
+	 */
+	static final int DEFERRED_UPDATE_COUNT = 1;
+
+	private static class Group {
+		final String sql;
+		final Class<? extends Table> type;
+		final boolean insert;
+		final List<DBQuery<?>> queries = new ArrayList<DBQuery<?>>();
+		final List<List<Object>> bindings = new ArrayList<List<Object>>();
+
+		Group(final String sql, final Class<? extends Table> type, final boolean insert) {
+			this.sql = sql;
+			this.type = type;
+			this.insert = insert;
+		}
+	}
+
+	private final DataSource ds;
+	private final List<Group> groups = new ArrayList<Group>();
+	private final Map<Class<? extends Table>,Set<List<Object>>> pendingInserts =
+			new HashMap<Class<? extends Table>,Set<List<Object>>>();
+	private int pending = 0;
+
+	UnitOfWork(final DataSource ds) {
+		this.ds = ds;
+	}
+
+	/**
+	 * Defers a statement if possible, otherwise flushes the pending ones (so the caller can run it).
+	 * @return true if the statement was deferred
+	 */
+	synchronized boolean defer(final DBQuery<?> q, final boolean insert, final String sql, final List<Object> bindings) throws SQLException {
+		if (!canDefer(q, insert)) {
+			flush();
+			return false;
+		}
+		Group group = groups.isEmpty() ? null : groups.get(groups.size()-1);
+		if (group == null || !group.sql.equals(sql)) {
+			group = new Group(sql, q.getType(), insert);
+			groups.add(group);
+		}
+		group.queries.add(q);
+		group.bindings.add(bindings);
+		if (insert) {
+			Set<List<Object>> pks = pendingInserts.get(q.getType());
+			if (pks == null) {
+				pks = new HashSet<List<Object>>();
+				pendingInserts.put(q.getType(), pks);
+			}
+			pks.add(pkValues(q));
+		}
+		++pending;
+		return true;
+	}
+
+	/**
+	 * @return true if an insert of the row with this primary key is waiting to be flushed
+	 */
+	synchronized boolean isPendingInsert(final Class<? extends Table> type, final List<Object> pk) {
+		final Set<List<Object>> pks = pendingInserts.get(type);
+		return pks != null && pks.contains(pk);
+	}
+
+	private static List<Object> pkValues(final DBQuery<?> q) {
+		final List<Object> ret = new ArrayList<Object>();
+		for (final Field<?> f : Util.getPK(q.getType()).GET_FIELDS()) ret.add(q.data.get(f));
+		return ret;
+	}
+
+	/**
+	 * @return the number of statements waiting to be flushed
+	 */
+	synchronized int size() {
+		return pending;
+	}
+
+	synchronized void clear() {
+		groups.clear();
+		pendingInserts.clear();
+		pending = 0;
+	}
+
+	/**
+	 * Runs the pending statements.
+	 * @return the number of statements run
+	 * @throws SQLException
+	 */
+	synchronized int flush() throws SQLException {
+		if (pending == 0) return 0;
+		final int ret = pending;
+		final int batches = groups.size();
+		final Tuple2<Connection,Boolean> info = DBQuery.getConnRW(ds);
+		final Connection conn = info.a;
+		try {
+			for (final Group group : groups) {
+				execute(conn, group);
+				// the statements already invalidated these when they were deferred, but
+				// the rows could have been cached again since
+				if (EntityCache.isEnabled()) {
+					for (final DBQuery<?> q : group.queries) EntityCache.invalidate(q);
+				}
+				ResultCache.invalidate(group.type);
+				Context.noteTableWrite(ds, group.type);
+			}
+			if (info.b && !conn.getAutoCommit()) conn.commit();
+		} catch (final SQLException e) {
+			if (info.b) rollback(conn);
+			throw e;
+		} catch (final RuntimeException e) {
+			if (info.b) rollback(conn);
+			throw e;
+		} finally {
+			clear();
+			if (info.b) conn.close();
+		}
+		log.fine("flushed "+ ret +" statements in "+ batches +" groups");
+		return ret;
+	}
+
+	private static void rollback(final Connection conn) {
+		try {
+			if (!conn.getAutoCommit()) conn.rollback();
+		} catch (final SQLException e) {
+			e.printStackTrace();
+		}
+	}
+
+	private void execute(final Connection conn, final Group group) throws SQLException {
+		final PreparedStatement ps = group.queries.get(0).createPS(group.sql, conn);
+		try {
+			for (int i=0; i<group.queries.size(); i+=BATCH_SIZE) {
+				final int end = Math.min(i+BATCH_SIZE, group.queries.size());
+				final Object event = FlightRecorderEvents.begin(FlightRecorderEvents.Type.BULK_BATCH);
+				for (int j=i; j<end; ++j) {
+					Util.log(group.sql, group.bindings.get(j));
+					group.queries.get(j).setBindings(ps, group.bindings.get(j));
+					ps.addBatch();
+				}
+				final int[] counts = ps.executeBatch();
+				if (!group.insert) {
+					for (int j=0; j<counts.length; ++j) {
+						if (counts[j] >= 0 && counts[j] != DEFERRED_UPDATE_COUNT) {
+							throw new SQLException("deferred update changed "+ counts[j] +" rows instead of "
+									+ DEFERRED_UPDATE_COUNT +": "+ group.sql +" "+ group.bindings.get(i+j));
+						}
+					}
+				}
+				if (event!=null) FlightRecorderEvents.commit(event, getClass().getSimpleName(), group.type.getName(), (long) (end-i));
+			}
+		} finally {
+			ps.close();
+		}
+	}
+
+	private static boolean canDefer(final DBQuery<?> q, final boolean insert) {
+		if (q.tableInfos.size() != 1 || q.tableInfos.get(0).dummyTable != null || !q.joins.isEmpty()) return false;
+		if (!insert && q.getPKLookupValues() == null) return false;
+		if (insert) {
+			final PK<?> pk = Util.getPK(q.getType());
+			if (pk == null || q.data == null) return false;
+			for (final Field<?> f : pk.GET_FIELDS()) {
+				if (q.data.get(f) == null) return false;
+			}
+		}
+		if (q.conditions != null) {
+			final boolean[] tmpTables = {false};
+			for (final Condition c : q.conditions) {
+				c.visit(new Condition.Visitor() {
+					@Override
+					public void visited(final Condition c) {
+						if (c instanceof Condition.InTmpTable) tmpTables[0] = true;
+					}
+				});
+			}
+			if (tmpTables[0]) return false;
+		}
+		return true;
+	}
+
+}
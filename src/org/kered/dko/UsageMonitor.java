@@ -23,6 +23,7 @@ import org.kered.dko.DBQuery.JoinInfo;
 import org.kered.dko.Expression.Select;
 import org.kered.dko.Field.FK;
 import org.kered.dko.persistence.ColumnAccess;
+import org.kered.dko.persistence.FkPrefetch;
 import org.kered.dko.persistence.QueryExecution;
 import org.kered.dko.persistence.QuerySize;
 
@@ -55,6 +56,9 @@ class UsageMonitor<T extends Table> {
 	private final DataSource ds;
 	private final boolean newQE;
 	private boolean shutdown = false;
+	private final boolean canJoin;
+	private Map<String,FkPrefetch> prefetches = null;
+	boolean batchLoadFks = false;
 	private static long warnBadFKUsageCount = 0;
 
 	private synchronized void shutdown() {
@@ -62,6 +66,7 @@ class UsageMonitor<T extends Table> {
 		try {
 			shutdown = true;
 			updateColumnAccesses();
+			recordFKPrefetches();
 			warnBadFKUsage();
 			questionUnusedColumns();
 		} catch (final Throwable t) {
@@ -103,14 +108,18 @@ class UsageMonitor<T extends Table> {
 					.setQueryExecutionIdFK(qe)
 					.setLastSeen(System.currentTimeMillis());
 				try {
+					final Object event = FlightRecorderEvents.begin(FlightRecorderEvents.Type.USAGE_MONITOR_WRITE);
 					ca.insert(ds);
+					if (event!=null) FlightRecorderEvents.commit(event, "column_access", "insert");
 				} catch (final SQLException e) {
 					e.printStackTrace();
 				}
 			} else if (ca.getLastSeen() < threshold) {
 				ca.setLastSeen(System.currentTimeMillis());
 				try {
+					final Object event = FlightRecorderEvents.begin(FlightRecorderEvents.Type.USAGE_MONITOR_WRITE);
 					ca.update(ds);
+					if (event!=null) FlightRecorderEvents.commit(event, "column_access", "update");
 				} catch (final SQLException e) {
 					e.printStackTrace();
 				}
@@ -141,9 +150,7 @@ class UsageMonitor<T extends Table> {
 
 	static <T extends Table> UsageMonitor build(final DBQuery<T> query) {
 		final Class<T> type = query.getType();
-		if (QueryExecution.class.equals(type)) return null;
-		if (QuerySize.class.equals(type)) return null;
-		if (ColumnAccess.class.equals(type)) return null;
+		if (type.getName().startsWith("org.kered.dko.persistence.")) return null;
 		try {
 			if (org.kered.dko.persistence.Util.getDS()==null) return null;
 			return new UsageMonitor<T>(query);
@@ -180,7 +187,9 @@ class UsageMonitor<T extends Table> {
 			.setDescription(query + " @ "+ st[0])
 			.setLastSeen(System.currentTimeMillis());
 			try {
+				final Object event = FlightRecorderEvents.begin(FlightRecorderEvents.Type.USAGE_MONITOR_WRITE);
 				qe.insert(ds);
+				if (event!=null) FlightRecorderEvents.commit(event, "query_execution", "insert");
 			} catch (final SQLException e) {
 				// TODO Auto-generated catch block
 				e.printStackTrace();
@@ -191,7 +200,9 @@ class UsageMonitor<T extends Table> {
 		if (qe!=null && (qe.getLastSeen()==null || qe.getLastSeen() < System.currentTimeMillis() - ONE_DAY)) {
 			qe.setLastSeen(System.currentTimeMillis());
 			try {
+				final Object event = FlightRecorderEvents.begin(FlightRecorderEvents.Type.USAGE_MONITOR_WRITE);
 				qe.update(ds);
+				if (event!=null) FlightRecorderEvents.commit(event, "query_execution", "update");
 			} catch (final SQLException e) {
 				// TODO Auto-generated catch block
 				e.printStackTrace();
@@ -200,6 +211,7 @@ class UsageMonitor<T extends Table> {
 
 		this.query = query;
 		this.queryType = query.getType();
+		this.canJoin = query.canPrefetchWithJoins();
         //System.err.println("queryHash "+ queryHash +" "+ query.hashCode());
         //System.err.println("queryHash "+ queryHash);
 
@@ -241,7 +253,10 @@ class UsageMonitor<T extends Table> {
 							+"% of the time.  This caused "+ v.i +" more queries to the "
 							+"database than necessary.  You should consider adding .with("
 							+ k.fk.referencing.getSimpleName() +"."+ k.fk.name
-							+") to your join.  This happened at:\n\t"
+							+") to your join."
+							+ (AutoPrefetch.isEnabled() && percent > AutoPrefetch.getThreshold()
+									? "  (DKO will prefetch it automatically the next time this query runs.)" : "")
+							+"  This happened at:\n\t"
 							+ Util.join("\n\t", (Object[]) k.a)
 							+"\nwhile iterating over a query created here:\n\t"
 							+ Util.join("\n\t", (Object[]) st) +"\n"
@@ -253,6 +268,21 @@ class UsageMonitor<T extends Table> {
 		}
 	}
 
+	private void recordFKPrefetches() {
+		if (!AutoPrefetch.isEnabled() || objectCount <= MIN_WARN_COUNT) return;
+		if (qe==null || qe.getId()==null) return;
+		final Map<FK<?>,Long> follows = new HashMap<FK<?>,Long>();
+		for (final Entry<StackTraceKey, M.Long> e : counter.entrySet()) {
+			final Long x = follows.get(e.getKey().fk);
+			follows.put(e.getKey().fk, (x==null ? 0 : x) + e.getValue().i);
+		}
+		if (prefetches == null) {
+			if (follows.isEmpty()) return;
+			prefetches = newQE ? new HashMap<String,FkPrefetch>() : AutoPrefetch.getDecisions(ds, qe);
+		}
+		AutoPrefetch.record(ds, qe, prefetches, follows, objectCount, canJoin, queryType);
+	}
+
 	void accessedFkCallback(final Table table, final FK<? extends Table> fk) {
 		final StackTraceElement[] tmp = Thread.currentThread().getStackTrace();
 		final StackTraceElement[] st = new StackTraceElement[tmp.length-3];
@@ -366,6 +396,36 @@ class UsageMonitor<T extends Table> {
 	}
 
 
+	/**
+	 * Applies the FK prefetches learned from previous executions from this call site
+	 * (see {@code AutoPrefetch}).
+	 */
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	DBQuery<T> getPrefetchOptimizedQuery(final DBQuery<T> query) {
+		if (newQE || !AutoPrefetch.isEnabled()) return query;
+		if (!Context.selectOptimizationsEnabled()) return query;
+		prefetches = AutoPrefetch.getDecisions(ds, qe);
+		if (prefetches.isEmpty()) return query;
+		final String tableName = canJoin ? Util.getTableName(queryType) : null;
+		final List<FK> with = new ArrayList<FK>();
+		for (final FkPrefetch d : prefetches.values()) {
+			final AutoPrefetch.Strategy strategy = AutoPrefetch.parse(d.getStrategy());
+			if (strategy == AutoPrefetch.Strategy.NONE) continue;
+			FK<?> fk = null;
+			if (strategy == AutoPrefetch.Strategy.WITH && canJoin && d.getTableName().equals(tableName)) {
+				fk = AutoPrefetch.getFK(queryType, d.getFkName());
+			}
+			if (fk == null) batchLoadFks = true;
+			else with.add(fk);
+		}
+		DBQuery<T> ret = query;
+		for (final FK fk : with) {
+			ret = (DBQuery<T>) ret.with(fk);
+		}
+		return ret;
+	}
+
+
 	/* ====================== serialization stuff ====================== */
 
 	static void doNothing() {
@@ -435,6 +495,7 @@ class UsageMonitor<T extends Table> {
 					}
 					// final int id = Math.abs(um.queryHashCode);
 					final long id = um.queryHash;
+					final Object event = FlightRecorderEvents.begin(FlightRecorderEvents.Type.USAGE_MONITOR_WRITE);
 					final QuerySize qs = QuerySize.ALL.use(ds).get(
 							QuerySize.ID.eq(id));
 					// if (qs!=null && qs.getHashCode()!=hash) {
@@ -452,6 +513,7 @@ class UsageMonitor<T extends Table> {
 						qs.setRowCount(ma(um.rowCount, qs.getRowCount()));
 						qs.update(ds);
 					}
+					if (event!=null) FlightRecorderEvents.commit(event, "query_size", qs==null ? "insert" : "update");
 				} catch (final InterruptedException e) {
 					e.printStackTrace();
 				} catch (final SQLException e) {
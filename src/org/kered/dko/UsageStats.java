@@ -47,6 +47,21 @@ class UsageStats {
 		return qs.getRowCount();
 	}
 
+	/**
+	 * Unlike {@code estimateRowCount()}, never runs the query.
+	 * @return the row count last recorded for this query, or -1 if it isn't known
+	 */
+	static long getKnownRowCount(final Query<? extends Table> q) {
+		try {
+			if (cache == null) init();
+		} catch (final RuntimeException e) {
+			return -1;
+		}
+		if (cache == null) return -1;
+		final QuerySize qs = cache.get(q.hashCode());
+		return qs==null || qs.getRowCount()==null ? -1 : qs.getRowCount();
+	}
+
 	private synchronized static void init() {
 		if (cache != null) return;
 		try {
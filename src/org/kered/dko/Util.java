@@ -526,6 +526,10 @@ public class Util {
 			}
 		}
 		else if (o instanceof Blob) ps.setBlob(i, (Blob) o);
+		else if (o instanceof Condition.In.ArrayBinding) {
+			final Condition.In.ArrayBinding array = (Condition.In.ArrayBinding) o;
+			ps.setArray(i, ps.getConnection().createArrayOf(array.type, array.values));
+		}
 		else if (o != null && "org.codehaus.groovy.runtime.GStringImpl".equals(o.getClass().getName())) {
 			ps.setObject(i, o.toString());
 		}
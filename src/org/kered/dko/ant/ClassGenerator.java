@@ -749,10 +749,12 @@ class ClassGenerator {
 			br.write("\tpublic "+ referencedTableClassName +" get"+ methodName +"() {\n");
 			final String fkName = genFKName(fk.columns.keySet(), referencedTable);
 			br.write("\t\tif (!__NOSCO_FETCHED_VALUES.get("+ fkName +".INDEX)) {\n");
-			br.write("\t\t\t"+ cachedObjectName +" = "+ referencedTableClassName +".ALL");
+			br.write("\t\t\tif (!__NOSCO_PRIVATE_batchLoadFk("+ fkName +")) {\n");
+			br.write("\t\t\t\t"+ cachedObjectName +" = "+ referencedTableClassName +".ALL");
 			br.write(".where("+ referencedTableClassName +"."+ getFieldName(fk.columns.values()) +".eq(get"+ Util.underscoreToCamelCase(fk.columns.keySet(), true) +"()))");
 			br.write(".getTheOnly();\n");
-			br.write("\t\t\t__NOSCO_FETCHED_VALUES.set("+ fkName +".INDEX);\n");
+			br.write("\t\t\t\t__NOSCO_FETCHED_VALUES.set("+ fkName +".INDEX);\n");
+			br.write("\t\t\t}\n");
 			br.write("\t\t\t__NOSCO_PRIVATE_accessedFkCallback(this, "+ fkName +");\n");
 			br.write("\t\t}\n");
 			br.write("\t\treturn "+ cachedObjectName +";\n\t}\n\n");
@@ -1,13 +1,19 @@
 package org.kered.dko.datasource;
 
 import java.io.PrintWriter;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
 import java.sql.Connection;
 import java.sql.SQLException;
 import java.sql.SQLFeatureNotSupportedException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.List;
 import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Logger;
 
 import javax.sql.DataSource;
@@ -16,7 +22,18 @@ import javax.sql.DataSource;
 /**
  * This class wraps other {@code javax.sql.DataSource} instances.  It usually passes
  * through calls to the primary, but if {@code getMirroredConnection()}
- * is called a random mirror is used instead.
+ * is called a mirror is used instead.
+ * <p>
+ * Mirrors are picked at random, weighted towards the ones that have been quickest to
+ * connect (and to answer health checks) and have the fewest connections currently open.
+ * &nbsp; A mirror that fails {@code setEjectAfterFailures()} times in a row is ejected
+ * for {@code setEjectMillis()}, after which the next connection is a trial: success
+ * re-admits it, failure ejects it again. &nbsp; If no mirror can be reached the primary is
+ * used. &nbsp; {@code startHealthChecks()} also probes every mirror periodically.
+ * <p>
+ * With {@code setReadYourWritesMillis()}, a thread that wrote through this data source
+ * reads from the primary for that long after the write was committed (so it sees its own
+ * writes even if the mirrors lag behind).
  *
  * @author Derek Anderson
  */
@@ -24,8 +41,56 @@ public class MirroredDataSource implements MatryoshkaDataSource {
 
 	private final DataSource primary;
 	private DataSource[] mirrors;
+	private final Mirror[] stats;
+	private final Random random = new Random();
+	private volatile long ejectMillis = 30000;
+	private volatile int ejectAfterFailures = 3;
+	private volatile long readYourWritesMillis = 0;
+	private volatile Thread healthChecker = null;
 	private static final Logger log = Logger.getLogger("org.kered.dko.datasource.MirroredDataSource");
 
+	/**
+	 * What we've observed about a mirror.
+	 */
+	private class Mirror {
+		final DataSource ds;
+		final AtomicInteger inFlight = new AtomicInteger();
+		// moving average of the time to connect (or answer a health check)
+		volatile double latencyMillis = 1;
+		final AtomicInteger failures = new AtomicInteger();
+		volatile long ejectedUntil = 0;
+
+		Mirror(final DataSource ds) {
+			this.ds = ds;
+		}
+
+		boolean isAvailable(final long now) {
+			return ejectedUntil <= now;
+		}
+
+		double weight() {
+			return 1 / ((latencyMillis + 1) * (inFlight.get() + 1));
+		}
+
+		void succeeded(final double millis) {
+			latencyMillis = latencyMillis * 0.8 + millis * 0.2;
+			failures.set(0);
+			if (ejectedUntil != 0) {
+				ejectedUntil = 0;
+				log.info("re-admitting mirror "+ ds);
+			}
+		}
+
+		void failed() {
+			// a failed trial after an ejection ejects again right away
+			final int n = failures.incrementAndGet();
+			if (n >= ejectAfterFailures || ejectedUntil != 0) {
+				ejectedUntil = System.currentTimeMillis() + ejectMillis;
+				log.warning("ejecting mirror "+ ds +" for "+ ejectMillis +"ms after "+ n +" failures");
+			}
+		}
+	}
+
 	/**
      * This class usually passes
      * through calls to the primary, but if {@code getMirroredConnection()}
@@ -37,6 +102,98 @@ public class MirroredDataSource implements MatryoshkaDataSource {
 		this.primary = primary;
 		if (mirrors == null) this.mirrors = new DataSource[0];
 		else this.mirrors = mirrors;
+		stats = new Mirror[this.mirrors.length];
+		for (int i=0; i<stats.length; ++i) stats[i] = new Mirror(this.mirrors[i]);
+	}
+
+	/**
+	 * @param millis how long a failing mirror is ejected for (by default 30s)
+	 */
+	public MirroredDataSource setEjectMillis(final long millis) {
+		ejectMillis = millis;
+		return this;
+	}
+
+	/**
+	 * @param failures how many consecutive failures eject a mirror (by default 3)
+	 */
+	public MirroredDataSource setEjectAfterFailures(final int failures) {
+		if (failures < 1) throw new IllegalArgumentException("failures must be positive: "+ failures);
+		ejectAfterFailures = failures;
+		return this;
+	}
+
+	/**
+	 * @param millis how long a thread reads from the primary after writing (by default 0, off)
+	 */
+	public MirroredDataSource setReadYourWritesMillis(final long millis) {
+		readYourWritesMillis = millis;
+		return this;
+	}
+
+	public long getReadYourWritesMillis() {
+		return readYourWritesMillis;
+	}
+
+	/**
+	 * @return true if this mirror is currently ejected
+	 */
+	public boolean isEjected(final DataSource mirror) {
+		final long now = System.currentTimeMillis();
+		for (final Mirror m : stats) {
+			if (m.ds == mirror) return !m.isAvailable(now);
+		}
+		return false;
+	}
+
+	/**
+	 * Starts a (daemon) thread checking every mirror at this interval, updating its latency
+	 * and ejecting or re-admitting it.
+	 * @param intervalMillis
+	 */
+	public synchronized void startHealthChecks(final long intervalMillis) {
+		stopHealthChecks();
+		healthChecker = new Thread("dko-mirror-health-check") {
+			@Override
+			public void run() {
+				while (healthChecker == this) {
+					for (final Mirror m : stats) checkHealth(m);
+					try {
+						Thread.sleep(intervalMillis);
+					} catch (final InterruptedException e) {
+						return;
+					}
+				}
+			}
+		};
+		healthChecker.setDaemon(true);
+		healthChecker.start();
+	}
+
+	public synchronized void stopHealthChecks() {
+		if (healthChecker == null) return;
+		final Thread t = healthChecker;
+		healthChecker = null;
+		t.interrupt();
+	}
+
+	private void checkHealth(final Mirror m) {
+		final long start = System.nanoTime();
+		Connection conn = null;
+		try {
+			conn = m.ds.getConnection();
+			if (conn.isValid(5)) m.succeeded((System.nanoTime() - start) / 1000000.0);
+			else m.failed();
+		} catch (final SQLException e) {
+			log.fine("health check of "+ m.ds +" failed: "+ e);
+			m.failed();
+		} finally {
+			try {
+				if (conn != null) conn.close();
+			} catch (final SQLException e) {
+				/* ignore */
+			}
+		}
 	}
 
 	@Override
@@ -78,25 +235,27 @@ public class MirroredDataSource implements MatryoshkaDataSource {
 	}
 
 	/**
-	 * Returns a connection from a randomly selected mirror. &nbsp;
+	 * Returns a connection from a mirror, picked by latency and open connections. &nbsp;
 	 * Feel free to override this method to implement other
 	 * load balancing stratigies in your own code.
 	 * @return
 	 * @throws SQLException
 	 */
 	public Connection getMirroredConnection() throws SQLException {
-		// for now we randomly select the mirror
-		// TODO: implement other strategies
 		if (mirrors.length == 0) return getConnection();
-		final Random random = new Random();
-		final int i = random.nextInt(mirrors.length);
-		for (int j=0; j<mirrors.length; ++j) {
-			final DataSource mirror = mirrors[(i+j)%mirrors.length];
+		final List<Mirror> tried = new ArrayList<Mirror>();
+		Mirror m;
+		while ((m = choose(tried)) != null) {
+			tried.add(m);
+			final long start = System.nanoTime();
 			try {
-				return mirror.getConnection();
+				final Connection conn = m.ds.getConnection();
+				m.succeeded((System.nanoTime() - start) / 1000000.0);
+				return track(m, conn);
 			} catch (final SQLException e) {
 				// db down - try another
-				log.warning("could not connect to "+ mirror +": "+ e.toString());
+				log.warning("could not connect to "+ m.ds +": "+ e.toString());
+				m.failed();
 			}
 		}
 		try {
@@ -108,6 +267,55 @@ public class MirroredDataSource implements MatryoshkaDataSource {
 				+ Arrays.asList(mirrors) +" or the primary: "+ primary);
 	}
 
+	/**
+	 * @return a random available mirror (not in {@code tried}) weighted by {@code Mirror.weight()}
+	 */
+	private Mirror choose(final List<Mirror> tried) {
+		final long now = System.currentTimeMillis();
+		double total = 0;
+		for (final Mirror m : stats) {
+			if (m.isAvailable(now) && !tried.contains(m)) total += m.weight();
+		}
+		if (total == 0) return null;
+		double r;
+		synchronized (random) {
+			r = random.nextDouble() * total;
+		}
+		Mirror last = null;
+		for (final Mirror m : stats) {
+			if (!m.isAvailable(now) || tried.contains(m)) continue;
+			last = m;
+			r -= m.weight();
+			if (r < 0) return m;
+		}
+		return last;
+	}
+
+	/**
+	 * Wraps the connection to count it as in flight until it's closed.
+	 */
+	private Connection track(final Mirror m, final Connection conn) {
+		m.inFlight.incrementAndGet();
+		return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(),
+				new Class<?>[] {Connection.class}, new InvocationHandler() {
+			private boolean closed = false;
+			@Override
+			public Object invoke(final Object proxy, final Method method, final Object[] args) throws Throwable {
+				if ("close".equals(method.getName()) && (args == null || args.length == 0)) {
+					synchronized (this) {
+						if (!closed) m.inFlight.decrementAndGet();
+						closed = true;
+					}
+				}
+				try {
+					return method.invoke(conn, args);
+				} catch (final InvocationTargetException e) {
+					throw e.getCause();
+				}
+			}
+		});
+	}
+
 	@Override
 	public Connection getConnection(final String arg0, final String arg1)
 			throws SQLException {
@@ -22,6 +22,10 @@ public class Util {
     static final String CREATE_QE = "CREATE TABLE query_execution (id INTEGER PRIMARY KEY, query_hash int, stack_hash int, last_seen bigint, description text);";
     static final String CREATE_QE_I1 = "CREATE INDEX qeqh ON query_execution(query_hash ASC);";
     static final String CREATE_QE_I2 = "CREATE INDEX qesh ON query_execution(stack_hash ASC);";
+    static final String CREATE_SQ = "CREATE TABLE slow_query (id INTEGER PRIMARY KEY, query_hash int, table_name TEXT, statement TEXT, bindings TEXT, row_count bigint, elapsed_millis bigint, call_site TEXT, explain_plan TEXT, executed_at bigint);";
+    static final String CREATE_SQ_I = "CREATE INDEX sqqh ON slow_query(query_hash ASC);";
+    static final String CREATE_FP = "CREATE TABLE fk_prefetch (id INTEGER PRIMARY KEY, query_execution_id long, table_name TEXT, fk_name TEXT, strategy TEXT, follow_percent int, overridden int, last_seen bigint);";
+    static final String CREATE_FP_I = "CREATE INDEX fpqe ON fk_prefetch(query_execution_id ASC);";
 
 	static DataSource ds = null;
 	private static File dbPath = null;
@@ -78,6 +82,8 @@ public class Util {
 				checkQuerySize(conn);
 				checkQueryExecution(conn);
 				checkColumnAccess(conn);
+				checkSlowQuery(conn);
+				checkFkPrefetch(conn);
 			} catch (final SQLException e) {
 				log.warning("I could not confirm the state of the persistence database ("+ PERSISTENCE_DB.getPath()
 						+"), so the usage monitor will be diabled for this query.  This will not effect its output, "
@@ -154,6 +160,36 @@ public class Util {
 		stmt.close();
 	}
 
+	private static void checkSlowQuery(final Connection conn) throws SQLException {
+		final Statement stmt = conn.createStatement();
+		try {
+			final ResultSet rs = stmt.executeQuery("select count(1) from slow_query");
+			rs.next();
+			int count = rs.getInt(1);
+			rs.close();
+		} catch (final SQLException e) {
+			log.fine(CREATE_SQ);
+			stmt.executeUpdate(CREATE_SQ);
+			stmt.executeUpdate(CREATE_SQ_I);
+		}
+		stmt.close();
+	}
+
+	private static void checkFkPrefetch(final Connection conn) throws SQLException {
+		final Statement stmt = conn.createStatement();
+		try {
+			final ResultSet rs = stmt.executeQuery("select count(1) from fk_prefetch");
+			rs.next();
+			int count = rs.getInt(1);
+			rs.close();
+		} catch (final SQLException e) {
+			log.fine(CREATE_FP);
+			stmt.executeUpdate(CREATE_FP);
+			stmt.executeUpdate(CREATE_FP_I);
+		}
+		stmt.close();
+	}
+
 	private static void checkQuerySize(final Connection conn) throws SQLException {
 		final Statement stmt = conn.createStatement();
 		try {
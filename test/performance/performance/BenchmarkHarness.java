@@ -0,0 +1,223 @@
+package performance;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.regex.Pattern;
+
+/**
+ * A small throughput benchmark runner (warmup iterations followed by timed
+ * measurement iterations, with a result sink to keep the JIT from eliminating work). &nbsp;
+ * Results are written as JSON in the same layout JMH uses for {@code -rf json}, so
+ * existing JMH result tooling can chart them across releases.
+ * <p>
+ * Tuned with these system properties:
+ * <ul>
+ * <li>{@code benchmark.filter} - regex of benchmark names to run (default: all)
+ * <li>{@code benchmark.warmup} - warmup iterations (default: 3)
+ * <li>{@code benchmark.iterations} - measurement iterations (default: 5)
+ * <li>{@code benchmark.time} - milliseconds per iteration (default: 1000)
+ * <li>{@code benchmark.out} - JSON result file (default: reports/benchmarks.json)
+ * </ul>
+ *
+ * @author Derek Anderson
+ */
+public class BenchmarkHarness {
+
+	/**
+	 * One benchmark. &nbsp; {@code op()} is called repeatedly; whatever it returns is
+	 * consumed so the work can't be optimized away.
+	 */
+	public static abstract class Benchmark {
+		final String name;
+		public Benchmark(final String name) {
+			this.name = name;
+		}
+		public void setUp() throws Exception {}
+		public abstract Object op() throws Exception;
+		public void tearDown() throws Exception {}
+	}
+
+	private static class Result {
+		final String name;
+		final Map<String,String> params;
+		final double[] scores;
+		Result(final String name, final Map<String,String> params, final double[] scores) {
+			this.name = name;
+			this.params = params;
+			this.scores = scores;
+		}
+		double mean() {
+			double sum = 0;
+			for (final double d : scores) sum += d;
+			return sum / scores.length;
+		}
+		double error() {
+			// 99.9% confidence interval half-width (normal approximation)
+			if (scores.length < 2) return Double.NaN;
+			final double mean = mean();
+			double sq = 0;
+			for (final double d : scores) sq += (d - mean) * (d - mean);
+			final double stddev = Math.sqrt(sq / (scores.length - 1));
+			return 3.29 * stddev / Math.sqrt(scores.length);
+		}
+	}
+
+	private final List<Benchmark> benchmarks = new ArrayList<Benchmark>();
+	private final List<Result> results = new ArrayList<Result>();
+	private final Map<String,String> params;
+	private final Pattern filter = Pattern.compile(System.getProperty("benchmark.filter", ".*"));
+	private final int warmup = Integer.getInteger("benchmark.warmup", 3);
+	private final int iterations = Integer.getInteger("benchmark.iterations", 5);
+	private final long iterationMillis = Long.getLong("benchmark.time", 1000);
+
+	/**
+	 * Prevents dead code elimination of benchmark results.
+	 */
+	public volatile int sink = 0;
+
+	/**
+	 * @param params recorded with every result (ex: the database type)
+	 */
+	public BenchmarkHarness(final Map<String,String> params) {
+		this.params = params;
+	}
+
+	/**
+	 * Sets a param recorded with the results of the following {@code run()}s.
+	 */
+	public BenchmarkHarness setParam(final String key, final String value) {
+		params.put(key, value);
+		return this;
+	}
+
+	public BenchmarkHarness add(final Benchmark b) {
+		benchmarks.add(b);
+		return this;
+	}
+
+	/**
+	 * Runs (and then removes) the added benchmarks. &nbsp; Results accumulate across calls.
+	 */
+	public void run() throws Exception {
+		for (final Benchmark b : benchmarks) {
+			if (!filter.matcher(b.name).find()) continue;
+			final String label = params.isEmpty() ? b.name : b.name +" "+ params;
+			try {
+				b.setUp();
+			} catch (final Throwable e) {
+				System.err.println(label +" skipped, setUp() failed: "+ e);
+				continue;
+			}
+			try {
+				for (int i=0; i<warmup; ++i) {
+					final double score = iteration(b);
+					System.err.println(label +" warmup "+ (i+1) +": "+ format(score) +" ops/s");
+				}
+				final double[] scores = new double[iterations];
+				for (int i=0; i<iterations; ++i) {
+					scores[i] = iteration(b);
+					System.err.println(label +" iteration "+ (i+1) +": "+ format(scores[i]) +" ops/s");
+				}
+				final Result r = new Result(b.name, new LinkedHashMap<String,String>(params), scores);
+				results.add(r);
+				System.err.println(label +": "+ format(r.mean()) +" +- "+ format(r.error()) +" ops/s");
+			} catch (final Throwable e) {
+				System.err.println(label +" failed: "+ e);
+				e.printStackTrace();
+			} finally {
+				b.tearDown();
+			}
+		}
+		benchmarks.clear();
+	}
+
+	private double iteration(final Benchmark b) throws Exception {
+		final long deadline = System.nanoTime() + iterationMillis * 1000000;
+		long ops = 0;
+		final long start = System.nanoTime();
+		long now;
+		do {
+			final Object o = b.op();
+			if (o != null) sink += o.hashCode();
+			++ops;
+			now = System.nanoTime();
+		} while (now < deadline);
+		return ops / ((now - start) / 1e9);
+	}
+
+	private static String format(final double d) {
+		return String.format("%.3f", d);
+	}
+
+	public void writeJSON(final File f) throws IOException {
+		if (f.getParentFile() != null) f.getParentFile().mkdirs();
+		final Writer w = new FileWriter(f);
+		try {
+			writeJSON(w);
+		} finally {
+			w.close();
+		}
+	}
+
+	public void writeJSON(final Writer w) throws IOException {
+		w.write("[\n");
+		for (int i=0; i<results.size(); ++i) {
+			final Result r = results.get(i);
+			w.write("  {\n");
+			w.write("    \"benchmark\": "+ quote(r.name) +",\n");
+			w.write("    \"mode\": \"thrpt\",\n");
+			w.write("    \"threads\": 1,\n");
+			w.write("    \"forks\": 1,\n");
+			w.write("    \"jdkVersion\": "+ quote(System.getProperty("java.version")) +",\n");
+			w.write("    \"vmName\": "+ quote(System.getProperty("java.vm.name")) +",\n");
+			w.write("    \"warmupIterations\": "+ warmup +",\n");
+			w.write("    \"warmupTime\": \""+ iterationMillis +" ms\",\n");
+			w.write("    \"measurementIterations\": "+ iterations +",\n");
+			w.write("    \"measurementTime\": \""+ iterationMillis +" ms\",\n");
+			w.write("    \"params\": {");
+			int j = 0;
+			for (final Entry<String,String> e : r.params.entrySet()) {
+				if (j++ > 0) w.write(", ");
+				w.write(quote(e.getKey()) +": "+ quote(e.getValue()));
+			}
+			w.write("},\n");
+			w.write("    \"primaryMetric\": {\n");
+			w.write("      \"score\": "+ number(r.mean()) +",\n");
+			w.write("      \"scoreError\": "+ number(r.error()) +",\n");
+			w.write("      \"scoreUnit\": \"ops/s\",\n");
+			w.write("      \"rawData\": [[");
+			for (int k=0; k<r.scores.length; ++k) {
+				if (k > 0) w.write(", ");
+				w.write(number(r.scores[k]));
+			}
+			w.write("]]\n");
+			w.write("    }\n");
+			w.write(i < results.size()-1 ? "  },\n" : "  }\n");
+		}
+		w.write("]\n");
+	}
+
+	private static String number(final double d) {
+		return Double.isNaN(d) || Double.isInfinite(d) ? "\"NaN\"" : Double.toString(d);
+	}
+
+	private static String quote(final String s) {
+		if (s == null) return "null";
+		final StringBuilder sb = new StringBuilder("\"");
+		for (int i=0; i<s.length(); ++i) {
+			final char c = s.charAt(i);
+			if (c == '"' || c == '\\') sb.append('\\').append(c);
+			else if (c < ' ') sb.append(String.format("\\u%04x", (int) c));
+			else sb.append(c);
+		}
+		return sb.append('"').toString();
+	}
+
+}
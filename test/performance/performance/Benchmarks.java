@@ -0,0 +1,532 @@
+package performance;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.sql.DataSource;
+
+import org.kered.dko.Bulk;
+import org.kered.dko.CSV;
+import org.kered.dko.Condition;
+import org.kered.dko.Constants.SNAPSHOT_FORMAT;
+import org.kered.dko.Context;
+import org.kered.dko.Context.Undoer;
+import org.kered.dko.Diff;
+import org.kered.dko.Field;
+import org.kered.dko.Join;
+import org.kered.dko.Query;
+import org.kered.dko.datasource.JDBCDriverDataSource;
+import org.kered.dko.json.Pickle;
+import org.kered.dko.unittest.nosco_test_jpetstore.Category;
+import org.kered.dko.unittest.nosco_test_jpetstore.Item;
+import org.kered.dko.unittest.nosco_test_jpetstore.Supplier;
+
+import performance.BenchmarkHarness.Benchmark;
+
+/**
+ * Throughput benchmarks for DKO's hot paths, run against each of the embedded databases
+ * (Derby, HSQLDB and SQLite, see {@code ant benchmark}). &nbsp; Every benchmark gets its own
+ * freshly loaded copy of the jpetstore tables it reads, so ones that write can't skew the rest. &nbsp;
+ * The {@code benchmark.dbs} property picks the databases (default: {@code derby,hsqldb,sqlite}). &nbsp;
+ * Package-private internals are reached through reflection, like {@code MicroBenchmarks}.
+ *
+ * @author Derek Anderson
+ */
+public class Benchmarks {
+
+	static Object dkoMethod(final Object o, final String cls, final String name) throws Exception {
+		final Method m = Class.forName("org.kered.dko."+ cls).getDeclaredMethod(name);
+		m.setAccessible(true);
+		return m.invoke(o);
+	}
+
+	static Object newRowIterator(final Query<?> q) throws Exception {
+		final Class<?> dbQuery = Class.forName("org.kered.dko.DBQuery");
+		final Constructor<?> c = Class.forName("org.kered.dko.DBRowIterator").getDeclaredConstructor(dbQuery, Boolean.TYPE);
+		c.setAccessible(true);
+		return c.newInstance(q, false);
+	}
+
+	/**
+	 * A benchmark with a private database holding the jpetstore supplier, category, product
+	 * and item tables (from the Derby scripts in {@code deps/jpetstore}), set as the VM
+	 * context's default data source while it runs.
+	 */
+	abstract static class DBBenchmark extends Benchmark {
+
+		private static final Set<String> TABLES = new HashSet<String>(Arrays.asList("supplier", "category", "product", "item"));
+		private static final Pattern STATEMENT_TABLE = Pattern.compile(
+				"^(?:create\\s+table|create\\s+index\\s+\\w+\\s+on|insert\\s+into)\\s+(\\w+)", Pattern.CASE_INSENSITIVE);
+		private static int count = 0;
+
+		final String db;
+		DataSource ds;
+		private String url;
+		private File file;
+		private final List<Undoer> undoers = new ArrayList<Undoer>();
+
+		DBBenchmark(final String name, final String db) {
+			super(name);
+			this.db = db;
+		}
+
+		/**
+		 * Called once the fixture database is loaded and in use.
+		 */
+		void init() throws Exception {}
+
+		/**
+		 * Called before the fixture database is dropped.
+		 */
+		void done() throws Exception {}
+
+		@Override
+		public final void setUp() throws Exception {
+			final String name = "dko_bench_"+ (++count);
+			if ("derby".equals(db)) {
+				Class.forName("org.apache.derby.jdbc.EmbeddedDriver");
+				url = "jdbc:derby:memory:"+ name +";create=true";
+			} else if ("hsqldb".equals(db)) {
+				Class.forName("org.hsqldb.jdbcDriver");
+				url = "jdbc:hsqldb:mem:"+ name;
+			} else if ("sqlite".equals(db)) {
+				// each connection to an in-memory sqlite database gets its own, so use a file
+				Class.forName("org.sqlite.JDBC");
+				file = File.createTempFile(name, ".db");
+				url = "jdbc:sqlite:"+ file.getPath();
+			} else {
+				throw new IllegalArgumentException("unknown benchmark database: "+ db);
+			}
+			ds = new JDBCDriverDataSource(url);
+			try {
+				load(ds, "deps/jpetstore/derby/jpetstore-derby-schema.sql");
+				load(ds, "deps/jpetstore/derby/jpetstore-derby-dataload.sql");
+				undoers.add(Context.getVMContext().setDataSource(ds));
+				// the generated classes are from derby's APP schema
+				if (!"derby".equals(db)) undoers.add(Context.getVMContext().overrideDatabaseName(ds, "APP", ""));
+				init();
+			} catch (final Exception e) {
+				drop();
+				throw e;
+			}
+		}
+
+		@Override
+		public final void tearDown() throws Exception {
+			try {
+				done();
+			} finally {
+				drop();
+			}
+		}
+
+		private void drop() throws SQLException {
+			for (final Undoer undoer : undoers) undoer.undo();
+			undoers.clear();
+			if ("derby".equals(db)) {
+				try {
+					DriverManager.getConnection(url.replace(";create=true", ";drop=true"));
+				} catch (final SQLException e) {
+					/* derby reports a successful drop as an exception */
+				}
+			} else if ("hsqldb".equals(db)) {
+				final Connection conn = ds.getConnection();
+				try {
+					conn.createStatement().execute("SHUTDOWN");
+				} finally {
+					conn.close();
+				}
+			} else if (file != null) {
+				file.delete();
+			}
+		}
+
+		private static void load(final DataSource ds, final String script) throws IOException, SQLException {
+			final StringBuilder sb = new StringBuilder();
+			final BufferedReader br = new BufferedReader(new FileReader(script));
+			try {
+				for (String line; (line=br.readLine())!=null; ) sb.append(line).append('\n');
+			} finally {
+				br.close();
+			}
+			final Connection conn = ds.getConnection();
+			try {
+				conn.setAutoCommit(false);
+				final Statement stmt = conn.createStatement();
+				for (String command : sb.toString().split(";\n")) {
+					command = command.trim();
+					final Matcher m = STATEMENT_TABLE.matcher(command);
+					if (m.find() && TABLES.contains(m.group(1).toLowerCase())) stmt.execute(command);
+				}
+				stmt.close();
+				conn.commit();
+			} finally {
+				conn.close();
+			}
+		}
+	}
+
+	public static void main(final String[] args) throws Exception {
+		// measure the library, not the usage monitor's background persistence
+		Context.getVMContext().enableUsageWarnings(false).setAutoUndo(false);
+		final BenchmarkHarness harness = new BenchmarkHarness(new LinkedHashMap<String,String>());
+		for (final String db : System.getProperty("benchmark.dbs", "derby,hsqldb,sqlite").split(",")) {
+			harness.setParam("db", db.trim());
+			addBenchmarks(harness, db.trim());
+			harness.run();
+		}
+		final File out = new File(System.getProperty("benchmark.out", "reports/benchmarks.json"));
+		harness.writeJSON(out);
+		System.err.println("wrote "+ out);
+	}
+
+	private static void addBenchmarks(final BenchmarkHarness harness, final String db) {
+
+		final Query<Item> itemQuery = Item.ALL.where(Item.LISTPRICE.gt(10.0), Item.STATUS.isNotNull())
+				.orderBy(Item.ITEMID);
+
+		harness.add(new DBBenchmark("sqlGeneration", db) {
+			// only the SQL building, not the iterator (or its usage monitor) around it
+			Object rowIterator;
+			Method getSQL;
+			@Override
+			void init() throws Exception {
+				rowIterator = newRowIterator(itemQuery);
+				getSQL = Class.forName("org.kered.dko.DBRowIterator").getDeclaredMethod("getSQL");
+				getSQL.setAccessible(true);
+			}
+			@Override
+			public Object op() throws Exception {
+				return getSQL.invoke(rowIterator);
+			}
+		});
+
+		harness.add(new DBBenchmark("getTypedValueFromRS", db) {
+			// sqlite only has forward only cursors, so there the select is re-run every op
+			final boolean scrollable = !"sqlite".equals(db);
+			String sql;
+			Connection conn;
+			Statement stmt;
+			ResultSet rs;
+			Field<?>[] fields;
+			Method getTypedValueFromRS;
+			@Override
+			void init() throws Exception {
+				sql = (String) dkoMethod(newRowIterator(Item.ALL), "DBRowIterator", "getSQL");
+				fields = Item.ALL.getSelectFields().toArray(new Field<?>[0]);
+				conn = ds.getConnection();
+				stmt = scrollable ? conn.createStatement(ResultSet.TYPE_SCROLL_INSENSITIVE, ResultSet.CONCUR_READ_ONLY)
+						: conn.createStatement();
+				rs = stmt.executeQuery(sql);
+				getTypedValueFromRS = Class.forName("org.kered.dko.Util").getDeclaredMethod("getTypedValueFromRS",
+						ResultSet.class, Integer.TYPE, Class.forName("org.kered.dko.Expression$Select"));
+				getTypedValueFromRS.setAccessible(true);
+			}
+			@Override
+			public Object op() throws Exception {
+				int h = 0;
+				if (scrollable) {
+					rs.beforeFirst();
+				} else {
+					rs.close();
+					rs = stmt.executeQuery(sql);
+				}
+				while (rs.next()) {
+					for (int i=0; i<fields.length; ++i) {
+						final Object o = getTypedValueFromRS.invoke(null, rs, i+1, fields[i]);
+						if (o != null) h += o.hashCode();
+					}
+				}
+				return h;
+			}
+			@Override
+			void done() throws Exception {
+				rs.close();
+				stmt.close();
+				conn.close();
+			}
+		});
+
+		harness.add(new DBBenchmark("selectFromOAI", db) {
+			@Override
+			public Object op() throws Exception {
+				return Item.ALL.asList().size();
+			}
+		});
+
+		harness.add(new DBBenchmark("bulkInsertDelete", db) {
+			// CATID is a varchar(10)
+			final Query<Category> them = Category.ALL.where(Category.CATID.like("~b%"));
+			int n = 0;
+			@Override
+			void init() throws Exception {
+				them.delete();
+			}
+			@Override
+			public Object op() throws Exception {
+				final List<Category> categories = new ArrayList<Category>();
+				for (int i=0; i<64; ++i) {
+					categories.add(new Category().setCatid("~b"+ (n++ % 10000000)).setName("benchmark"));
+				}
+				final long inserted = new Bulk(ds).insertAll(categories);
+				return inserted + them.delete();
+			}
+		});
+
+		harness.add(new DBBenchmark("bulkUpdate", db) {
+			List<Item> items;
+			int round = 0;
+			@Override
+			void init() throws Exception {
+				items = Item.ALL.asList();
+			}
+			@Override
+			public Object op() throws Exception {
+				++round;
+				for (final Item item : items) item.setAttr5("bench-"+ round);
+				return new Bulk(ds).updateAll(items);
+			}
+		});
+
+		harness.add(new DBBenchmark("bulkUpdateSetBased", db) {
+			List<Item> items;
+			int round = 0;
+			@Override
+			void init() throws Exception {
+				items = Item.ALL.asList();
+			}
+			@Override
+			public Object op() throws Exception {
+				++round;
+				for (final Item item : items) item.setAttr5("bench-"+ round);
+				return new Bulk(ds).setSetBased(true).updateAll(items);
+			}
+		});
+
+		harness.add(new DBBenchmark("diff", db) {
+			List<Item> before;
+			List<Item> after;
+			@Override
+			void init() throws Exception {
+				before = Item.ALL.orderBy(Item.ITEMID).asList();
+				after = Item.ALL.orderBy(Item.ITEMID).asList();
+				for (int i=0; i<after.size(); i+=2) after.get(i).setAttr4("changed");
+			}
+			@Override
+			public Object op() throws Exception {
+				return Diff.diffActualized(before, after).size();
+			}
+		});
+
+		harness.add(new DBBenchmark("localJoin", db) {
+			@Override
+			public Object op() throws Exception {
+				int c = 0;
+				for (final Join<Item, Supplier> j : Item.ALL.leftJoin(Supplier.ALL.toMemory(), Item.SUPPLIER.eq(Supplier.SUPPID))) {
+					if (j.r != null) ++c;
+				}
+				return c;
+			}
+		});
+
+		harness.add(new DBBenchmark("softJoin", db) {
+			Constructor<?> c;
+			Object left;
+			@Override
+			void init() throws Exception {
+				final Class<?> joinType = Class.forName("org.kered.dko.Constants$JOIN_TYPE");
+				c = Class.forName("org.kered.dko.SoftJoin").getDeclaredConstructor(joinType, Class.class, Query.class, Class.class, Condition.class);
+				c.setAccessible(true);
+				for (final Object o : joinType.getEnumConstants()) {
+					if ("LEFT".equals(((Enum<?>) o).name())) left = o;
+				}
+			}
+			@SuppressWarnings("unchecked")
+			@Override
+			public Object op() throws Exception {
+				final Query<Join<Item, Supplier>> q = (Query<Join<Item, Supplier>>) c.newInstance(left, Join.class,
+						Item.ALL.toMemory(), Supplier.class, Item.SUPPLIER.eq(Supplier.SUPPID));
+				int count = 0;
+				for (final Join<Item, Supplier> j : q) {
+					if (j.r != null) ++count;
+				}
+				return count;
+			}
+		});
+
+		harness.add(new DBBenchmark("csvWriteRead", db) {
+			List<Item> items;
+			@Override
+			void init() throws Exception {
+				items = Item.ALL.asList();
+			}
+			@Override
+			public Object op() throws Exception {
+				final StringWriter w = new StringWriter();
+				CSV.write(items, w);
+				int c = 0;
+				for (final Item item : CSV.read(Item.class, new StringReader(w.toString()))) {
+					if (item != null) ++c;
+				}
+				return c;
+			}
+		});
+
+		harness.add(new DBBenchmark("pickle", db) {
+			Pickle pickle;
+			List<Map<String,Object>> rows;
+			@Override
+			void init() throws Exception {
+				pickle = new Pickle();
+				rows = new ArrayList<Map<String,Object>>();
+				for (final Item item : Item.ALL) {
+					final Map<String,Object> row = new LinkedHashMap<String,Object>();
+					for (final Field<?> f : item.fields()) {
+						final Object o = item.get(f);
+						if (o != null) row.put(f.NAME, o);
+					}
+					rows.add(row);
+				}
+			}
+			@Override
+			public Object op() throws Exception {
+				final List<?> ret = pickle.deserialize(pickle.serialize(rows));
+				return ret.size();
+			}
+		});
+
+		harness.add(new DBBenchmark("contextLookup64Threads", db) {
+			// the per query Context lookups, from many threads at once
+			ExecutorService pool;
+			List<Callable<Integer>> tasks;
+			@Override
+			void init() throws Exception {
+				// started once, so the op only measures the lookups
+				pool = Executors.newFixedThreadPool(64);
+				tasks = new ArrayList<Callable<Integer>>();
+				for (int i=0; i<64; ++i) {
+					tasks.add(new Callable<Integer>() {
+						@Override
+						public Integer call() throws Exception {
+							int found = 0;
+							for (int j=0; j<1000; ++j) {
+								final DataSource x = Item.ALL.getDataSource();
+								if (x != null && !Context.inTransaction(x)) ++found;
+							}
+							return found;
+						}
+					});
+				}
+				pool.invokeAll(tasks);
+			}
+			@Override
+			public Object op() throws Exception {
+				int c = 0;
+				for (final Future<Integer> f : pool.invokeAll(tasks)) c += f.get();
+				return c;
+			}
+			@Override
+			void done() throws Exception {
+				pool.shutdown();
+			}
+		});
+
+		harness.add(new DBBenchmark("inMemoryLookups", db) {
+			// repeated equality and range lookups on reference data held in memory
+			Query<Item> items;
+			@Override
+			void init() throws Exception {
+				items = Item.ALL.toMemory();
+			}
+			@Override
+			public Object op() throws Exception {
+				long c = 0;
+				for (int i=0; i<10000; ++i) {
+					c += items.where(Item.ITEMID.eq("EST-"+ (i % 30))).count();
+					c += items.where(Item.LISTPRICE.between(10.0, 20.0)).count();
+				}
+				return c;
+			}
+		});
+
+		harness.add(new DBBenchmark("columnarFilter", db) {
+			// filtering and aggregating reference data held in memory by column
+			Query<Item> items;
+			@Override
+			void init() throws Exception {
+				items = Item.ALL.toColumnarMemory();
+			}
+			@Override
+			public Object op() throws Exception {
+				double c = 0;
+				for (int i=0; i<10000; ++i) {
+					final Query<Item> q = items.where(Item.LISTPRICE.between(10.0, 20.0).and(Item.ITEMID.like("EST-1%")));
+					c += q.count() + q.sum(Item.LISTPRICE);
+				}
+				return c;
+			}
+		});
+
+		harness.add(new DBBenchmark("mappedSnapshotScan", db) {
+			// repeated scans of a query's snapshot on disk, as reports over a frozen extract do
+			Iterable<Item> snapshot;
+			@Override
+			void init() throws Exception {
+				snapshot = Item.ALL.snapshot(new File(System.getProperty("java.io.tmpdir")), SNAPSHOT_FORMAT.MAPPED);
+			}
+			@Override
+			public Object op() throws Exception {
+				long c = 0;
+				for (int i=0; i<1000; ++i) {
+					for (final Item item : snapshot) c += item.getItemid().length();
+				}
+				return c;
+			}
+		});
+
+		harness.add(new DBBenchmark("topN", db) {
+			// the most expensive few rows of an in-memory query
+			Query<Item> items;
+			@Override
+			void init() throws Exception {
+				items = Item.ALL.toMemory();
+			}
+			@Override
+			public Object op() throws Exception {
+				long c = 0;
+				for (int i=0; i<10000; ++i) {
+					for (final Item item : items.orderBy(Item.LISTPRICE.desc(), Item.ITEMID).limit(3)) {
+						c += item.getItemid().length();
+					}
+				}
+				return c;
+			}
+		});
+
+	}
+
+}
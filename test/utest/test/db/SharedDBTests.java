@@ -6,41 +6,68 @@ import static org.kered.dko.SQLFunction.COUNT;
 
 import java.io.File;
 import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationHandler;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
 import java.sql.Connection;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.sql.DataSource;
 
 import junit.framework.TestCase;
 
+import org.kered.dko.Async;
+import org.kered.dko.AutoPrefetch;
 import org.kered.dko.Bulk;
 import org.kered.dko.CSV;
+import org.kered.dko.Chunks;
 import org.kered.dko.Condition;
 import org.kered.dko.Constants;
 import org.kered.dko.Constants.CALENDAR;
+import org.kered.dko.Constants.SNAPSHOT_FORMAT;
 import org.kered.dko.Context;
 import org.kered.dko.Context.Undoer;
 import org.kered.dko.Diff;
 import org.kered.dko.Diff.RowChange;
+import org.kered.dko.EntityCache;
+import org.kered.dko.Expression;
+import org.kered.dko.FKBatch;
 import org.kered.dko.Field;
 import org.kered.dko.Field.Tag;
 import org.kered.dko.Join;
 import org.kered.dko.Query;
 import org.kered.dko.QueryFactory;
+import org.kered.dko.ResultCache;
+import org.kered.dko.RowStream;
+import org.kered.dko.SQLFunction;
+import org.kered.dko.SlowQueryLog;
+import org.kered.dko.Snapshot;
 import org.kered.dko.Table;
 import org.kered.dko.datasource.ConnectionCountingDataSource;
+import org.kered.dko.datasource.MirroredDataSource;
+import org.kered.dko.persistence.FkPrefetch;
 import org.kered.dko.unittest.nosco_test_jpetstore.Account;
 import org.kered.dko.unittest.nosco_test_jpetstore.Category;
 import org.kered.dko.unittest.nosco_test_jpetstore.Inventory;
@@ -214,6 +241,115 @@ public class SharedDBTests extends TestCase {
 		assertEquals(1, ccds.getCount());
 	}
 
+	public void testFKBatchLoading() throws SQLException {
+		printTestName();
+		final boolean enabled = FKBatch.isEnabled();
+		final Undoer u = Context.getVMContext().setDataSource(ccds);
+		// keep the optimizer from dropping the FK columns (what earlier tests used)
+		final Undoer v = Context.getThreadContext().enableSelectOptimizations(false);
+		FKBatch.setEnabled(true);
+		try {
+			ccds.setCount(0);
+			final List<Item> items = Item.ALL.asList();
+			assertTrue(items.size() > 2);
+			for (final Item item : items) {
+				assertEquals(item.getSupplier(), item.getSupplierFK()==null ? null : item.getSupplierFK().getSuppid());
+				assertEquals(item.getProductid(), item.getProductidFK().getProductid());
+			}
+			// one query for the items and one per FK, instead of one per item per FK
+			assertEquals(3, ccds.getCount());
+			// a later batch (another query) loads its own
+			ccds.setCount(0);
+			final Item item = Item.ALL.first();
+			assertNotNull(item.getProductidFK());
+			assertEquals(2, ccds.getCount());
+		} finally {
+			FKBatch.setEnabled(enabled);
+			v.undo();
+			u.undo();
+		}
+	}
+
+	public void testAutoPrefetch() throws Exception {
+		printTestName();
+		final boolean enabled = AutoPrefetch.isEnabled();
+		AutoPrefetch.setEnabled(true);
+		final Undoer u = Context.getVMContext().setDataSource(ccds);
+		final java.lang.reflect.Field __NOSCO_USAGE_MONITOR = Table.class.getDeclaredField("__NOSCO_USAGE_MONITOR");
+		__NOSCO_USAGE_MONITOR.setAccessible(true);
+		try {
+			AutoPrefetch.reset();
+			final int[] counts = new int[3];
+			for (int run=0; run<counts.length; ++run) {
+				ccds.setCount(0);
+				Object um = null;
+				for (final Item item : Item.ALL) {
+					if (um == null) um = __NOSCO_USAGE_MONITOR.get(item);
+					item.getSupplierFK();
+				}
+				// what a garbage collected (or exiting) query does
+				final Method shutdown = um.getClass().getDeclaredMethod("shutdown");
+				shutdown.setAccessible(true);
+				shutdown.invoke(um);
+				counts[run] = ccds.getCount();
+			}
+			// the first run follows the FK lazily, the later ones join it
+			assertTrue(counts[0] > 2);
+			assertEquals(1, counts[1]);
+			assertEquals(1, counts[2]);
+			boolean found = false;
+			for (final FkPrefetch d : AutoPrefetch.getDecisions()) {
+				if ("item".equalsIgnoreCase(d.getTableName())) {
+					assertEquals(AutoPrefetch.Strategy.WITH, AutoPrefetch.getStrategy(d));
+					found = true;
+				}
+			}
+			assertTrue(found);
+		} finally {
+			AutoPrefetch.reset();
+			AutoPrefetch.setEnabled(enabled);
+			u.undo();
+		}
+	}
+
+	public void testWithSeparately() throws SQLException {
+		printTestName();
+		final Undoer u = Context.getVMContext().setDataSource(ccds);
+		// keep the optimizer from dropping the FK columns (what earlier tests used)
+		final Undoer v = Context.getThreadContext().enableSelectOptimizations(false);
+		try {
+			final long itemCount = Item.ALL.count();
+			ccds.setCount(0);
+			int count = 0;
+			for (final Item i : Item.ALL.withSeparately(Item.FK_PRODUCTID_PRODUCT, Product.FK_CATEGORY)) {
+				assertEquals(i.getProductid(), i.getProductidFK().getProductid());
+				assertEquals(i.getProductidFK().getCategory(), i.getProductidFK().getCategoryFK().getCatid());
+				++count;
+			}
+			assertEquals(itemCount, count);
+			// one query per step of the path
+			assertEquals(3, ccds.getCount());
+			// to-many
+			final Map<Integer,Long> expected = new java.util.HashMap<Integer,Long>();
+			for (final Supplier s : Supplier.ALL.with(Item.FK_SUPPLIER)) {
+				expected.put(s.getSuppid(), s.getItemSet().count());
+			}
+			ccds.setCount(0);
+			final List<Supplier> suppliers = Supplier.ALL.withSeparately(Item.FK_SUPPLIER).asList();
+			for (final Supplier s : suppliers) {
+				assertEquals(expected.get(s.getSuppid()), (Long) s.getItemSet().count());
+				for (final Item i : s.getItemSet()) assertEquals(s.getSuppid(), i.getSupplier());
+			}
+			assertEquals(expected.size(), suppliers.size());
+			assertEquals(2, ccds.getCount());
+			// the database still applies top()
+			assertEquals(1, Supplier.ALL.withSeparately(Item.FK_SUPPLIER).top(1).asList().size());
+		} finally {
+			v.undo();
+			u.undo();
+		}
+	}
+
 	public void testSimpleDiff() throws SQLException {
 		printTestName();
 		final List<Item> items = Item.ALL.asList();
@@ -331,6 +467,30 @@ public class SharedDBTests extends TestCase {
     	assertEquals(count, ret);
     }
 
+    public void testBulkUpdateSetBased() throws SQLException {
+		printTestName();
+    	final long count = Item.ALL.count();
+    	final List<Item> items = Item.ALL.asList();
+		for (final Item item : items) {
+    		item.setAttr2("set2-"+ item.getItemid());
+    		if (Math.random() > .5) item.setAttr3("set3");
+    	}
+    	// low enough that these rows are applied set-based (on every database)
+    	final Bulk bulk = new Bulk(ds).setSetBased(true).setSetBasedMinRows(2).setSetBasedOnDerby(true);
+    	assertEquals(count, bulk.updateAll(items));
+    	for (final Item item : Item.ALL) {
+    		assertEquals("set2-"+ item.getItemid(), item.getAttr2());
+    	}
+    	final Query<Category> them = Category.ALL.where(Category.CATID.like("test-%"));
+		them.delete();
+    	final List<Category> categories = new ArrayList<Category>();
+    	categories.add(new Category().setCatid("test-1"));
+    	categories.add(new Category().setCatid("test-2").setName("woot"));
+    	bulk.insertAll(categories);
+    	assertEquals(2, bulk.deleteAll(categories));
+    	assertEquals(0, them.count());
+    }
+
     public void testBulkInsertOrUpdate() throws SQLException {
 		printTestName();
     	System.err.println("testBulkInsertOrUpdate");
@@ -471,12 +631,139 @@ public class SharedDBTests extends TestCase {
     	Item.ALL.where(Item.ATTR1.between(Item.ATTR1, Item.ATTR2)).asList();
     }
 
-//    public void testBetweenFieldsInMemory() throws Exception {
-//	printTestName();
-//    	final List<Item> orig = Item.ALL.where(Item.ATTR1.between(Item.ATTR1, Item.ATTR2)).asList();
-//    	final List<Item> inMem = Item.ALL.toMemory().where(Item.ATTR1.between(Item.ATTR1, Item.ATTR2)).asList();
-//    	assertEquals(orig.size(), inMem.size());
-//    }
+    public void testBetweenFieldsInMemory() throws Exception {
+		printTestName();
+    	final List<Item> orig = Item.ALL.where(Item.ATTR1.between(Item.ATTR1, Item.ATTR2)).asList();
+    	final List<Item> inMem = Item.ALL.toMemory().where(Item.ATTR1.between(Item.ATTR1, Item.ATTR2)).asList();
+    	assertEquals(orig.size(), inMem.size());
+    }
+
+    public void testConditionsInMemory() throws Exception {
+		printTestName();
+    	final Query<Item> mem = Item.ALL.toMemory();
+    	final Condition[] conditions = {
+    		Item.LISTPRICE.gt(20.0),
+    		Item.LISTPRICE.lte(Item.UNITCOST.mul(2.0)),
+    		Item.ITEMID.like("EST-1%"),
+    		Item.ITEMID.like("EST-_"),
+    		Item.ATTR1.like("%Male%").not(),
+    		Item.ITEMID.in("EST-1", "EST-2", "none"),
+    		Item.ITEMID.notIn(Arrays.asList("EST-1", "EST-2")),
+    		Item.SUPPLIER.in(Arrays.asList(1)),
+    		Item.ATTR2.isNull(),
+    		Item.ATTR2.isNotNull().or(Item.SUPPLIER.neq(1)),
+    		Field.between(15.0, Item.UNITCOST, Item.LISTPRICE),
+    		Field.between(15.0, Item.UNITCOST.add(1.0), Item.LISTPRICE.sub(8.0)),
+    		CONCAT(Item.ITEMID, "!").eq("EST-20!"),
+    		SQLFunction.LOWER(Item.ITEMID).eq("est-20"),
+    		SQLFunction.COALESCE(Item.ATTR2, "none").eq("none"),
+    	};
+    	for (final Condition c : conditions) {
+    		assertEquals(c.toString(), Item.ALL.where(c).count(), mem.where(c).count());
+    	}
+    }
+
+    public void testInMemoryIndexes() throws Exception {
+		printTestName();
+    	final Query<Item> mem = Item.ALL.toMemory().index(Item.ITEMID, Item.LISTPRICE, Item.SUPPLIER);
+    	final Condition[] conditions = {
+    		Item.ITEMID.eq("EST-20"),
+    		Item.ITEMID.in("EST-1", "EST-2", "none"),
+    		Item.LISTPRICE.gt(20.0),
+    		Item.LISTPRICE.lte(18.5),
+    		Item.LISTPRICE.between(10.0, 20.0),
+    		Item.SUPPLIER.eq(1).and(Item.LISTPRICE.gte(20.0)),
+    		Item.ITEMID.eq("EST-20").or(Item.SUPPLIER.eq(2)),
+    		Item.ITEMID.like("EST-1%").and(Item.SUPPLIER.eq(1)),
+    	};
+    	for (final Condition c : conditions) {
+    		assertEquals(c.toString(), Item.ALL.where(c).orderBy(Item.ITEMID).asList(),
+    				mem.where(c).orderBy(Item.ITEMID).asList());
+    	}
+    	for (final Item item : Item.ALL) {
+    		assertEquals(item, mem.get(new Table.__PrimaryKey<Item>() {
+				@Override
+				public <R> R get(final Field<R> field) {
+					return item.get(field);
+				}
+				@Override
+				public List<Field<?>> FIELDS() {
+					return Item.PK.GET_FIELDS();
+				}
+			}));
+    	}
+    	// writes through DKO reload the rows and rebuild the indexes
+    	final Item first = Item.ALL.orderBy(Item.ITEMID).first();
+    	final Query<Item> byAttr2 = Item.ALL.toMemory().index(Item.ATTR2);
+    	assertEquals(0, byAttr2.where(Item.ATTR2.eq("mem-index")).count());
+    	try {
+    		Item.ALL.where(Item.ITEMID.eq(first.getItemid())).set(Item.ATTR2, "mem-index").update();
+    		assertEquals(first.getItemid(), byAttr2.where(Item.ATTR2.eq("mem-index")).first().getItemid());
+    		assertEquals(0, byAttr2.where(Item.ATTR2.eq(first.getAttr2())).count());
+    		// rows changed in place are reloaded once their table is invalidated
+    		byAttr2.where(Item.ATTR2.eq("mem-index")).first().setAttr2("in-place");
+    		ResultCache.invalidate(Item.class);
+    		assertEquals(0, byAttr2.where(Item.ATTR2.eq("in-place")).count());
+    		assertEquals(first.getItemid(), byAttr2.where(Item.ATTR2.eq("mem-index")).first().getItemid());
+    	} finally {
+    		Item.ALL.where(Item.ITEMID.eq(first.getItemid())).set(Item.ATTR2, first.getAttr2()).update();
+    	}
+    	assertEquals(first.getItemid(), byAttr2.where(Item.ATTR2.eq(first.getAttr2())).first().getItemid());
+    }
+
+    public void testColumnarMemory() throws Exception {
+		printTestName();
+    	final Query<Item> mem = Item.ALL.toColumnarMemory();
+    	assertEquals(Item.ALL.asList(), mem.asList());
+    	final Condition[] conditions = {
+    		Item.ITEMID.eq("EST-20"),
+    		Item.ITEMID.in("EST-1", "EST-2", "none"),
+    		Item.ITEMID.like("EST-1%"),
+    		Item.LISTPRICE.gt(20.0),
+    		Item.LISTPRICE.between(10.0, 20.0),
+    		Item.SUPPLIER.eq(1).and(Item.LISTPRICE.gte(20.0)),
+    		Item.ITEMID.eq("EST-20").or(Item.SUPPLIER.eq(2)),
+    		Item.ATTR2.isNull().or(Item.SUPPLIER.isNotNull().and(Item.SUPPLIER.notIn(Arrays.asList(1)))),
+    		Item.LISTPRICE.gt(Item.UNITCOST),
+    	};
+    	for (final Condition c : conditions) {
+    		assertEquals(c.toString(), Item.ALL.where(c).orderBy(Item.ITEMID).asList(),
+    				mem.where(c).orderBy(Item.ITEMID).asList());
+    	}
+    	final Query<Item> cheap = mem.where(Item.LISTPRICE.lt(50.0));
+    	final Query<Item> dbCheap = Item.ALL.where(Item.LISTPRICE.lt(50.0));
+    	assertEquals(dbCheap.count(), cheap.count());
+    	assertEquals(dbCheap.sum(Item.LISTPRICE), cheap.sum(Item.LISTPRICE), 0.0001);
+    	assertEquals(dbCheap.sum(Item.SUPPLIER), cheap.sum(Item.SUPPLIER));
+    	assertEquals(dbCheap.max(Item.LISTPRICE), cheap.max(Item.LISTPRICE));
+    	assertEquals(dbCheap.min(Item.ITEMID), cheap.min(Item.ITEMID));
+    	assertEquals(dbCheap.countBy(Item.SUPPLIER), cheap.countBy(Item.SUPPLIER));
+    	assertEquals(dbCheap.countBy(Item.ATTR1), cheap.countBy(Item.ATTR1));
+    	assertEquals(dbCheap.orderBy(Item.LISTPRICE.desc(), Item.ITEMID).limit(5).asList(),
+    			cheap.orderBy(Item.LISTPRICE.desc(), Item.ITEMID).limit(5).asList());
+    }
+
+    public void testInMemoryTopN() throws Exception {
+		printTestName();
+    	final Expression.OrderBy<?>[][] orders = {
+    		{Item.LISTPRICE.desc(), Item.ITEMID},
+    		{Item.SUPPLIER.desc(), Item.ITEMID},
+    		{Item.SUPPLIER, Item.ITEMID.desc()},
+    	};
+    	final List<Query<Item>> mems = new ArrayList<Query<Item>>();
+    	mems.add(Item.ALL.toMemory());
+    	mems.add(Item.ALL.toColumnarMemory());
+    	for (final Expression.OrderBy<?>[] order : orders) {
+    		final List<Item> expected = Item.ALL.orderBy(order).asList();
+    		for (final Query<Item> mem : mems) {
+    			assertEquals(expected, mem.orderBy(order).asList());
+    			assertEquals(expected.subList(0, 7), mem.orderBy(order).limit(7).asList());
+    			assertEquals(expected.subList(0, 1), mem.orderBy(order).top(1).asList());
+    			assertEquals(expected, mem.orderBy(order).limit(1000).asList());
+    			assertTrue(mem.orderBy(order).limit(7).isOrdered());
+    		}
+    	}
+    }
 
     public void testMapBy2() throws Exception {
 		printTestName();
@@ -669,6 +956,34 @@ public class SharedDBTests extends TestCase {
     	assertEquals(Category.ALL.size(), q.size());
     }
 
+    public void testInCollectionSizes() throws SQLException {
+		printTestName();
+    	final List<String> ids = new ArrayList<String>();
+    	for (final Item item : Item.ALL) ids.add(item.getItemid());
+    	for (final int n : new int[] {1, 3, 17, 300, 1500}) {
+    		final List<String> set = new ArrayList<String>();
+    		for (int i=0; i<n; ++i) set.add(i < ids.size() ? ids.get(i) : "none-"+ i);
+    		final int expected = Math.min(n, ids.size());
+    		assertEquals(expected, Item.ALL.where(Item.ITEMID.in(set)).count());
+    		assertEquals(ids.size() - expected, Item.ALL.where(Item.ITEMID.notIn(set)).count());
+    	}
+    	// arrays are always bound, in lists of at most 1000 values
+    	final List<Object> sqls = new ArrayList<Object>();
+    	final DataSource rds = recordCalls(DataSource.class, ds, "prepareStatement", sqls);
+    	for (final int n : new int[] {1000, 1001, 2500}) {
+    		final String[] values = new String[n];
+    		for (int i=0; i<n; ++i) values[i] = i < ids.size() ? ids.get(i) : "none-"+ i;
+    		sqls.clear();
+    		assertEquals(ids.size(), Item.ALL.use(rds).where(Item.ITEMID.in(values)).count());
+    		assertEquals(0, Item.ALL.use(rds).where(Item.ITEMID.notIn(values)).count());
+    		assertEquals(2, sqls.size());
+    		final int lists = (n+999) / 1000;
+    		assertEquals(lists, sqls.get(0).toString().split(" in ", -1).length - 1);
+    		assertEquals(lists - 1, sqls.get(0).toString().split(" or ", -1).length - 1);
+    		assertEquals(lists - 1, sqls.get(1).toString().split(" or ", -1).length - 1);
+    	}
+    }
+
     public void testTableIn2() throws SQLException {
 		printTestName();
     	final List<Category> cats = new ArrayList<Category>();
@@ -888,6 +1203,20 @@ public class SharedDBTests extends TestCase {
 		assertEquals(c1,  q.count());
 	}
 
+	public void testCDBLeftJoinOrderByTop() throws SQLException {
+		printTestName();
+		final DataSource ods = createPassThruDS();
+		final Query<Join<Item, Supplier>> q = Item.ALL.use(ods).leftJoin(Supplier.class, Item.SUPPLIER.eq(Supplier.SUPPID))
+				.orderBy(Item.LISTPRICE.desc(), Item.ITEMID);
+		final List<Item> expected = Item.ALL.orderBy(Item.LISTPRICE.desc(), Item.ITEMID).asList();
+		final List<Item> actual = new ArrayList<Item>();
+		for (final Join<Item, Supplier> x : q) actual.add(x.l);
+		assertEquals(expected, actual);
+		actual.clear();
+		for (final Join<Item, Supplier> x : q.top(5)) actual.add(x.l);
+		assertEquals(expected.subList(0, 5), actual);
+	}
+
 	public void testCDBRightJoin() throws SQLException {
 		printTestName();
 		final DataSource ods = createPassThruDS();
@@ -970,6 +1299,801 @@ public class SharedDBTests extends TestCase {
 		assertEquals(0, items.size());
 	}
 
+	public void testMappedSnapshot() throws SQLException {
+		printTestName();
+		final List<Item> items = Item.ALL.asList();
+		final Snapshot<Item> snapshot = Item.ALL.snapshot(new File(System.getProperty("java.io.tmpdir")), SNAPSHOT_FORMAT.MAPPED);
+		final List<Item> items2 = new ArrayList<Item>();
+		for (final Item item : snapshot) items2.add(item);
+		assertEquals(items, items2);
+		for (int i=0; i<items.size(); ++i) {
+			for (final Field<?> field : Item.ALL.getSelectFields()) {
+				assertEquals(field.NAME, items.get(i).get(field), items2.get(i).get(field));
+			}
+		}
+		// readers are independent
+		final Iterator<Item> a = snapshot.iterator();
+		final Iterator<Item> b = snapshot.iterator();
+		a.next();
+		assertEquals(items.get(0), b.next());
+		assertEquals(items.get(1), a.next());
+		for (final Item item : items) {
+			assertEquals(item, snapshot.get(pk(item)));
+		}
+		final Item missing = new Item();
+		missing.setItemid("none");
+		assertNull(snapshot.get(pk(missing)));
+		final Snapshot<Item> sqlite = Item.ALL.snapshot();
+		assertEquals(items.get(3), sqlite.get(pk(items.get(3))));
+	}
+
+	public void testSnapshotRefresh() throws SQLException {
+		printTestName();
+		final Product p = Product.ALL.first();
+		final Query<Item> items = Item.ALL.where(Item.ITEMID.like("test-%"));
+		items.delete();
+		new Item().setItemid("test-1").setProductid(p.getProductid()).setAttr5("v1").insert();
+		new Item().setItemid("test-2").setProductid(p.getProductid()).setAttr5("v1").insert();
+		new Item().setItemid("test-3").setProductid(p.getProductid()).setAttr5("v1").insert();
+		final File tmp = new File(System.getProperty("java.io.tmpdir"));
+		final List<Snapshot<Item>> snapshots = new ArrayList<Snapshot<Item>>();
+		snapshots.add(items.snapshot(tmp));
+		snapshots.add(items.snapshot(tmp, SNAPSHOT_FORMAT.MAPPED));
+		// an update, a delete and an insert
+		items.where(Item.ITEMID.eq("test-1")).set(Item.ATTR2, "woot2").update();
+		items.where(Item.ITEMID.eq("test-2")).delete();
+		new Item().setItemid("test-4").setProductid(p.getProductid()).setAttr5("v2").insert();
+		for (final Snapshot<Item> snapshot : snapshots) {
+			assertEquals(3, snapshot.refresh());
+			assertEquals(0, snapshot.refresh());
+			assertSnapshotOf(items, snapshot);
+		}
+		// newest in the snapshots is v2, so this reads test-3 and test-4
+		items.where(Item.ITEMID.eq("test-3")).set(Item.ATTR5, "v3").update();
+		for (final Snapshot<Item> snapshot : snapshots) {
+			assertEquals(2, snapshot.refresh(Item.ATTR5));
+			assertEquals(1, snapshot.refresh(Item.ATTR5));
+			assertSnapshotOf(items, snapshot);
+		}
+		items.delete();
+	}
+
+	private static void assertSnapshotOf(final Query<Item> items, final Snapshot<Item> snapshot) throws SQLException {
+		final List<Item> expected = items.orderBy(Item.ITEMID).asList();
+		final List<Item> actual = new ArrayList<Item>();
+		for (final Item item : snapshot) actual.add(item);
+		Collections.sort(actual);
+		assertEquals(expected, actual);
+		for (int i=0; i<expected.size(); ++i) {
+			assertEquals(expected.get(i).getAttr2(), actual.get(i).getAttr2());
+			assertEquals(expected.get(i).getAttr5(), actual.get(i).getAttr5());
+		}
+	}
+
+	public void testFlightRecorderEvents() throws Exception {
+		printTestName();
+		final Class<?> recordingClass;
+		try {
+			recordingClass = Class.forName("jdk.jfr.Recording");
+		} catch (final ClassNotFoundException e) {
+			return; // no flight recorder on this JVM
+		}
+		final Class<?> events = Class.forName("org.kered.dko.FlightRecorderEvents");
+		final java.lang.reflect.Field enabled = events.getDeclaredField("ENABLED");
+		enabled.setAccessible(true);
+		if (!enabled.getBoolean(null)) return; // org.kered.dko.jfr_events isn't set
+		final Method begin = events.getDeclaredMethod("begin", Class.forName("org.kered.dko.FlightRecorderEvents$Type"));
+		begin.setAccessible(true);
+		final Object rowBatch = Enum.valueOf(begin.getParameterTypes()[0].asSubclass(Enum.class), "ROW_BATCH");
+		// nothing is recording, so no event is created
+		assertNull(begin.invoke(null, rowBatch));
+		final Object recording = recordingClass.getConstructor().newInstance();
+		final File file = File.createTempFile("dko", ".jfr");
+		final List<?> recorded;
+		int count = 0;
+		try {
+			recordingClass.getMethod("enable", String.class).invoke(recording, "org.kered.dko.RowBatch");
+			recordingClass.getMethod("start").invoke(recording);
+			assertNotNull(begin.invoke(null, rowBatch));
+			for (final Item item : Item.ALL.orderBy(Item.ITEMID)) {
+				// the consumer's own time shouldn't count towards the events
+				Thread.sleep(20);
+				++count;
+			}
+			recordingClass.getMethod("stop").invoke(recording);
+			final Class<?> pathClass = Class.forName("java.nio.file.Path");
+			final Object path = File.class.getMethod("toPath").invoke(file);
+			recordingClass.getMethod("dump", pathClass).invoke(recording, path);
+			recorded = (List<?>) Class.forName("jdk.jfr.consumer.RecordingFile")
+					.getMethod("readAllEvents", pathClass).invoke(null, path);
+		} finally {
+			recordingClass.getMethod("close").invoke(recording);
+			file.delete();
+		}
+		final List<Long> millis = new ArrayList<Long>();
+		long rows = 0;
+		for (final Object e : recorded) {
+			final Object type = e.getClass().getMethod("getEventType").invoke(e);
+			if (!"org.kered.dko.RowBatch".equals(type.getClass().getMethod("getName").invoke(type))) continue;
+			final Method getString = e.getClass().getMethod("getString", String.class);
+			if (!"SelectFromOAI".equals(getString.invoke(e, "source"))) continue;
+			// dko's own queries (such as auto-prefetch's) may be recorded too
+			if (!Item.class.getName().equals(getString.invoke(e, "table"))) continue;
+			rows += (Long) e.getClass().getMethod("getLong", String.class).invoke(e, "rows");
+			final Object duration = e.getClass().getMethod("getDuration").invoke(e);
+			millis.add((Long) duration.getClass().getMethod("toMillis").invoke(duration));
+		}
+		assertEquals(count, rows);
+		assertEquals(count, millis.size());
+		// the first also executes the query
+		for (final long m : millis.subList(1, millis.size())) assertTrue(m < 20);
+	}
+
+	public void testSlowQueryLog() throws SQLException {
+		printTestName();
+		final long threshold = SlowQueryLog.getThresholdMillis();
+		final int capacity = SlowQueryLog.getCapacity();
+		SlowQueryLog.setCapacity(3);
+		try {
+			// off by default
+			assertTrue(threshold < 0);
+			Item.ALL.where(Item.ITEMID.eq("EST-1")).asList();
+			assertEquals(0, SlowQueryLog.getEntries().size());
+			SlowQueryLog.setThresholdMillis(60000);
+			Item.ALL.where(Item.ITEMID.eq("EST-1")).asList();
+			assertEquals(0, SlowQueryLog.getEntries().size());
+			SlowQueryLog.setThresholdMillis(0);
+			Item.ALL.where(Item.ITEMID.eq("EST-1")).asList();
+			assertEquals(0, Item.ALL.where(Item.ITEMID.eq("none")).count());
+			final List<SlowQueryLog.Entry> entries = SlowQueryLog.getEntries();
+			assertEquals(2, entries.size());
+			assertEquals(Item.class, entries.get(0).getType());
+			assertEquals(Arrays.asList("EST-1"), entries.get(0).getBindings());
+			assertEquals(1, entries.get(0).getRowCount());
+			assertEquals("testSlowQueryLog", entries.get(0).getCallSite().getMethodName());
+			assertEquals(Arrays.asList("none"), entries.get(1).getBindings());
+			// the oldest entries are evicted
+			Item.ALL.where(Item.ITEMID.eq("EST-2")).asList();
+			Item.ALL.where(Item.ITEMID.eq("EST-3")).asList();
+			final List<Object> bindings = new ArrayList<Object>();
+			for (final SlowQueryLog.Entry e : SlowQueryLog.getEntries()) bindings.addAll(e.getBindings());
+			assertEquals(Arrays.asList("none", "EST-2", "EST-3"), bindings);
+		} finally {
+			SlowQueryLog.setThresholdMillis(threshold);
+			SlowQueryLog.setCapacity(capacity);
+		}
+	}
+
+	public void testEntityCache() throws SQLException {
+		printTestName();
+		final int capacity = EntityCache.getCapacity();
+		EntityCache.setCapacity(100);
+		EntityCache.clear();
+		EntityCache.resetStats();
+		try {
+			final Query<Item> items = Item.ALL.use(ccds);
+			final Item item = Item.ALL.orderBy(Item.ITEMID).first();
+			ccds.setCount(0);
+			final Item a = items.get(pk(item));
+			final Item b = items.get(pk(item));
+			assertEquals(1, ccds.getCount());
+			assertEquals(item, a);
+			assertNotSame(a, b);
+			final EntityCache.Stats stats = EntityCache.getStats().get(Item.class);
+			assertEquals(1, stats.getHits());
+			assertEquals(1, stats.getMisses());
+			// callers get their own copies
+			b.setAttr2("entity-cache");
+			assertEquals(item.getAttr2(), items.get(pk(item)).getAttr2());
+			assertEquals(1, ccds.getCount());
+			// writes invalidate the row
+			b.update();
+			assertEquals("entity-cache", items.get(pk(item)).getAttr2());
+			assertEquals(2, ccds.getCount());
+			assertEquals(1, EntityCache.getStats().get(Item.class).getInvalidations());
+			// as do writes that aren't by primary key (the whole table)
+			Item.ALL.where(Item.ITEMID.eq(item.getItemid())).set(Item.ATTR2, item.getAttr2()).update();
+			assertEquals(item.getAttr2(), items.get(pk(item)).getAttr2());
+			assertEquals(3, ccds.getCount());
+		} finally {
+			EntityCache.setCapacity(capacity);
+			EntityCache.clear();
+		}
+	}
+
+	public void testEntityCacheTransaction() throws Exception {
+		printTestName();
+		final int capacity = EntityCache.getCapacity();
+		EntityCache.setCapacity(100);
+		EntityCache.clear();
+		EntityCache.resetStats();
+		// lets this thread read (and cache) the rows the other thread's transaction changed
+		final DataSource rds = readUncommitted();
+		final ExecutorService executor = Executors.newSingleThreadExecutor();
+		final Item item = Item.ALL.orderBy(Item.ITEMID).first();
+		final Query<Item> items = Item.ALL.use(rds);
+		try {
+			inTransaction(executor, rds, Item.ALL.use(rds).where(Item.ITEMID.eq(item.getItemid())).set(Item.ATTR2, "uncommitted"));
+			assertEquals("uncommitted", items.get(pk(item)).getAttr2());
+			endTransaction(executor, rds, false);
+			// the rollback drops what was cached while it was open
+			assertEquals(item.getAttr2(), items.get(pk(item)).getAttr2());
+			inTransaction(executor, rds, Item.ALL.use(rds).where(Item.ITEMID.eq(item.getItemid())).set(Item.ATTR2, "committed"));
+			assertEquals("committed", items.get(pk(item)).getAttr2());
+			final long misses = EntityCache.getStats().get(Item.class).getMisses();
+			endTransaction(executor, rds, true);
+			// as does the commit
+			assertEquals("committed", items.get(pk(item)).getAttr2());
+			assertEquals(misses + 1, EntityCache.getStats().get(Item.class).getMisses());
+		} finally {
+			endTransaction(executor, rds, false);
+			executor.shutdown();
+			Item.ALL.where(Item.ITEMID.eq(item.getItemid())).set(Item.ATTR2, item.getAttr2()).update();
+			EntityCache.setCapacity(capacity);
+			EntityCache.clear();
+		}
+	}
+
+	public void testResultCacheTransaction() throws Exception {
+		printTestName();
+		ResultCache.clear();
+		final DataSource rds = readUncommitted();
+		final ExecutorService executor = Executors.newSingleThreadExecutor();
+		final Item item = Item.ALL.orderBy(Item.ITEMID).first();
+		final Query<Item> q = Item.ALL.use(rds).where(Item.ITEMID.eq(item.getItemid())).cache(60000);
+		try {
+			inTransaction(executor, rds, Item.ALL.use(rds).where(Item.ITEMID.eq(item.getItemid())).set(Item.ATTR2, "uncommitted"));
+			assertEquals("uncommitted", q.first().getAttr2());
+			endTransaction(executor, rds, false);
+			// the rollback drops the results cached while it was open
+			assertEquals(item.getAttr2(), q.first().getAttr2());
+			inTransaction(executor, rds, Item.ALL.use(rds).where(Item.ITEMID.eq(item.getItemid())).set(Item.ATTR2, "committed"));
+			assertEquals("committed", q.first().getAttr2());
+			endTransaction(executor, rds, true);
+			assertEquals("committed", q.first().getAttr2());
+			Item.ALL.where(Item.ITEMID.eq(item.getItemid())).set(Item.ATTR2, item.getAttr2()).update();
+			assertEquals(item.getAttr2(), q.first().getAttr2());
+		} finally {
+			endTransaction(executor, rds, false);
+			executor.shutdown();
+			Item.ALL.where(Item.ITEMID.eq(item.getItemid())).set(Item.ATTR2, item.getAttr2()).update();
+			ResultCache.clear();
+		}
+	}
+
+	private DataSource readUncommitted() {
+		return new PassThruDS(ds) {
+			@Override
+			public Connection getConnection() throws SQLException {
+				final Connection c = super.getConnection();
+				c.setTransactionIsolation(Connection.TRANSACTION_READ_UNCOMMITTED);
+				return c;
+			}
+		};
+	}
+
+	/** starts a transaction on the executor's thread and runs the update in it */
+	private static void inTransaction(final ExecutorService executor, final DataSource ds, final Query<?> update) throws Exception {
+		executor.submit(new Callable<Void>() {
+			@Override
+			public Void call() throws Exception {
+				Context.getThreadContext().startTransaction(ds);
+				update.update();
+				return null;
+			}
+		}).get();
+	}
+
+	private static void endTransaction(final ExecutorService executor, final DataSource ds, final boolean commit) throws Exception {
+		executor.submit(new Callable<Void>() {
+			@Override
+			public Void call() throws Exception {
+				if (commit) Context.getThreadContext().commitTransaction(ds);
+				else Context.getThreadContext().rollbackTransaction(ds);
+				return null;
+			}
+		}).get();
+	}
+
+	public void testResultCache() throws SQLException {
+		printTestName();
+		ResultCache.clear();
+		final Product p = Product.ALL.first();
+		final Query<Item> items = Item.ALL.use(ccds).where(Item.ITEMID.like("test-%"));
+		items.delete();
+		new Item().setItemid("test-1").setProductid(p.getProductid()).insert();
+		final Query<Item> q = items.cache(60000);
+		ccds.setCount(0);
+		assertEquals(1, q.asList().size());
+		assertEquals(1, q.asList().size());
+		assertEquals(1, items.where(Item.ITEMID.eq("test-1")).cache(60000).asList().size());
+		assertEquals(2, ccds.getCount());
+		// writes to the table invalidate it
+		new Item().setItemid("test-2").setProductid(p.getProductid()).insert();
+		ccds.setCount(0);
+		assertEquals(2, q.asList().size());
+		assertEquals(2, q.asList().size());
+		assertEquals(1, ccds.getCount());
+		// as do bulk query writes
+		items.where(Item.ITEMID.eq("test-2")).delete();
+		assertEquals(1, q.asList().size());
+		items.delete();
+		// queries that differ only in their joins don't share results
+		final Condition on = Item.ATTR1.eq(Supplier.NAME);
+		final int left = Item.ALL.leftJoin(Supplier.class, on).asList().size();
+		final int inner = Item.ALL.innerJoin(Supplier.class, on).asList().size();
+		assertEquals(left, Item.ALL.leftJoin(Supplier.class, on).cache(60000).asList().size());
+		assertEquals(inner, Item.ALL.innerJoin(Supplier.class, on).cache(60000).asList().size());
+		assertEquals(left, Item.ALL.leftJoin(Supplier.class, on).cache(60000).asList().size());
+		assertFalse(Item.ALL.leftJoin(Supplier.class, on).equals(Item.ALL.innerJoin(Supplier.class, on)));
+		assertTrue(left != inner);
+	}
+
+	public void testChunks() throws SQLException {
+		printTestName();
+		final List<Item> all = Item.ALL.orderBy(Item.ITEMID).asList();
+		final List<Query<Item>> queries = new ArrayList<Query<Item>>();
+		queries.add(Item.ALL);
+		// reads the ordered query instead of using rownum (which is applied before the order)
+		queries.add(Item.ALL.use(Constants.DB_TYPE.ORACLE));
+		for (final Query<Item> q : queries) {
+			final List<Item> items = new ArrayList<Item>();
+			final Chunks<Item> chunks = q.chunks(5);
+			for (final List<Item> chunk : chunks) {
+				assertTrue(chunk.size() <= 5);
+				items.addAll(chunk);
+				assertEquals(items.get(items.size()-1).getItemid(), chunks.getCheckpoint()[0]);
+			}
+			assertEquals(all, items);
+			// resumed from a checkpoint
+			items.clear();
+			for (final List<Item> chunk : q.chunks(5).after(all.get(9).getItemid())) items.addAll(chunk);
+			assertEquals(all.subList(10, all.size()), items);
+			// limited by the query's own top()
+			final List<Integer> sizes = new ArrayList<Integer>();
+			items.clear();
+			for (final List<Item> chunk : q.top(12).chunks(5)) {
+				sizes.add(chunk.size());
+				items.addAll(chunk);
+			}
+			assertEquals(Arrays.asList(5, 5, 2), sizes);
+			assertEquals(all.subList(0, 12), items);
+			// a resumed scan only returns what's left of it
+			sizes.clear();
+			items.clear();
+			for (final List<Item> chunk : q.top(12).chunks(5).after(all.get(4).getItemid())) {
+				sizes.add(chunk.size());
+				items.addAll(chunk);
+			}
+			assertEquals(Arrays.asList(5, 2), sizes);
+			assertEquals(all.subList(5, 12), items);
+			final Chunks<Item> limited = q.top(12).chunks(5);
+			final Iterator<List<Item>> it = limited.iterator();
+			it.next();
+			it.next();
+			items.clear();
+			for (final List<Item> chunk : limited.after(limited.getCheckpoint())) items.addAll(chunk);
+			assertEquals(all.subList(10, 12), items);
+			assertFalse(q.top(12).chunks(5).after(all.get(11).getItemid()).iterator().hasNext());
+		}
+	}
+
+	public void testParallel() throws SQLException {
+		printTestName();
+		final List<Item> all = Item.ALL.orderBy(Item.ITEMID).asList();
+		final List<Item> items = Item.ALL.parallel(4).asList();
+		assertEquals(all.size(), items.size());
+		assertEquals(new HashSet<Item>(all), new HashSet<Item>(items));
+		assertEquals(all, Item.ALL.parallel(4, true).asList());
+		assertEquals(all.subList(0, 3), Item.ALL.orderBy(Item.ITEMID).top(3).parallel(4).asList());
+		assertEquals(all.subList(1, 4), Item.ALL.where(Item.ITEMID.gt(all.get(0).getItemid()))
+				.where(Item.ITEMID.lte(all.get(3).getItemid())).parallel(3, true).asList());
+		// the ranges are read on the Async executor, with the caller's data source
+		final ExecutorService old = Async.getExecutor();
+		final ExecutorService executor = Executors.newFixedThreadPool(2, new ThreadFactory() {
+			@Override
+			public Thread newThread(final Runnable r) {
+				return new Thread(r, "test-parallel");
+			}
+		});
+		final Set<String> threads = Collections.synchronizedSet(new HashSet<String>());
+		final DataSource rds = new PassThruDS(ds) {
+			@Override
+			public Connection getConnection() throws SQLException {
+				threads.add(Thread.currentThread().getName());
+				return super.getConnection();
+			}
+		};
+		Async.setExecutor(executor);
+		final Undoer u = Context.getThreadContext().setDataSource(rds);
+		try {
+			assertEquals(all, Item.ALL.parallel(4, true).asList());
+			assertTrue(threads.contains("test-parallel"));
+		} finally {
+			u.undo();
+			Async.setExecutor(old);
+			executor.shutdown();
+		}
+	}
+
+	public void testStream() throws SQLException {
+		printTestName();
+		final List<Item> all = Item.ALL.orderBy(Item.ITEMID).asList();
+		final RowStream<Item> first = Item.ALL.stream();
+		assertTrue(first.estimateSize() > 0);
+		final RowStream<Item> second = first.trySplit();
+		assertNotNull(second);
+		final List<Item> items = new ArrayList<Item>();
+		for (final Item item : first) items.add(item);
+		final int firstSize = items.size();
+		for (final Item item : second) items.add(item);
+		assertTrue(firstSize > 0 && firstSize < all.size());
+		assertEquals(all.size(), items.size());
+		assertEquals(new HashSet<Item>(all), new HashSet<Item>(items));
+		// only before iterating
+		assertNull(first.trySplit());
+		try {
+			first.iterator();
+			fail("a stream can only be iterated once");
+		} catch (final IllegalStateException e) {
+			/* expected */
+		}
+		// ordered queries can't be split
+		assertNull(Item.ALL.orderBy(Item.ITEMID).stream().trySplit());
+		// closed early
+		final RowStream<Item> rows = Item.ALL.stream();
+		final Iterator<Item> it = rows.iterator();
+		assertTrue(it.hasNext());
+		it.next();
+		rows.close();
+		rows.close();
+	}
+
+	public void testAsync() throws Exception {
+		printTestName();
+		final long count = Item.ALL.count();
+		assertEquals(count, Item.ALL.countAsync().get().longValue());
+		assertEquals(count, Item.ALL.asListAsync().get().size());
+		// in a transaction they run on the calling thread, within it
+		Context.getThreadContext().startTransaction(ds);
+		try {
+			final Future<Long> f = Item.ALL.countAsync();
+			assertTrue(f.isDone());
+			assertEquals(count, f.get().longValue());
+		} finally {
+			Context.getThreadContext().rollbackTransaction(ds);
+		}
+	}
+
+	public void testAsyncContextIsolation() throws Exception {
+		printTestName();
+		final long count = Item.ALL.count();
+		final ExecutorService old = Async.getExecutor();
+		final ExecutorService executor = Executors.newSingleThreadExecutor();
+		final CountDownLatch latch = new CountDownLatch(1);
+		Async.setExecutor(executor);
+		final Undoer u = Context.getThreadContext().setDataSource(ccds);
+		try {
+			// hold the worker so the query runs after the transaction starts
+			executor.submit(new Callable<Void>() {
+				@Override
+				public Void call() throws Exception {
+					latch.await();
+					return null;
+				}
+			});
+			final Future<Long> f = Item.ALL.countAsync();
+			u.undo();
+			ccds.setCount(0);
+			Context.getThreadContext().startTransaction(ccds);
+			try {
+				assertEquals(1, ccds.getCount());
+				latch.countDown();
+				// uses the data source set at submit time, on its own connection
+				assertEquals(count, f.get().longValue());
+				assertEquals(2, ccds.getCount());
+			} finally {
+				Context.getThreadContext().rollbackTransaction(ccds);
+			}
+		} finally {
+			latch.countDown();
+			u.undo();
+			Async.setExecutor(old);
+			executor.shutdown();
+		}
+	}
+
+	public void testFetchSize() throws SQLException {
+		printTestName();
+		final List<Item> all = Item.ALL.orderBy(Item.ITEMID).asList();
+		final List<Object> fetchSizes = new ArrayList<Object>();
+		final DataSource rds = recordCalls(DataSource.class, ds, "setFetchSize", fetchSizes);
+		assertEquals(all, Item.ALL.use(rds).orderBy(Item.ITEMID).fetchSize(7).asList());
+		assertEquals(Arrays.asList(7), fetchSizes);
+		// kept by later query changes, but capped at top()
+		fetchSizes.clear();
+		assertEquals(all.subList(0, 3), Item.ALL.use(rds).fetchSize(7).orderBy(Item.ITEMID).top(3).asList());
+		assertEquals(Arrays.asList(3), fetchSizes);
+		// small queries without one are left alone
+		fetchSizes.clear();
+		assertEquals(all, Item.ALL.use(rds).orderBy(Item.ITEMID).asList());
+		assertEquals(Collections.emptyList(), fetchSizes);
+		try {
+			Item.ALL.fetchSize(0);
+			fail("the fetch size must be positive");
+		} catch (final IllegalArgumentException e) {
+			/* expected */
+		}
+	}
+
+	public void testReadAhead() throws SQLException {
+		printTestName();
+		final List<Item> all = Item.ALL.orderBy(Item.ITEMID).asList();
+		assertEquals(all, Item.ALL.orderBy(Item.ITEMID).readAhead(2).asList());
+		assertEquals(all, Item.ALL.orderBy(Item.ITEMID).readAhead(1000).asList());
+		// the reader blocks on the full buffer, and stops when the rows are closed early
+		final Set<Thread> before = readAheadThreads();
+		final RowStream<Item> rows = Item.ALL.orderBy(Item.ITEMID).readAhead(2).stream();
+		final Iterator<Item> it = rows.iterator();
+		assertEquals(all.get(0), it.next());
+		final Set<Thread> readers = readAheadThreads();
+		readers.removeAll(before);
+		assertEquals(1, readers.size());
+		rows.close();
+		assertFalse(readers.iterator().next().isAlive());
+		// not used in a transaction (the connection is the caller's)
+		Context.getThreadContext().startTransaction(ds);
+		try {
+			final RowStream<Item> txRows = Item.ALL.orderBy(Item.ITEMID).readAhead(2).stream();
+			final Iterator<Item> txIt = txRows.iterator();
+			assertEquals(all.get(0), txIt.next());
+			final Set<Thread> txReaders = readAheadThreads();
+			txReaders.removeAll(before);
+			assertEquals(Collections.emptySet(), txReaders);
+			txRows.close();
+		} finally {
+			Context.getThreadContext().rollbackTransaction(ds);
+		}
+		try {
+			Item.ALL.readAhead(0);
+			fail("the buffer size must be positive");
+		} catch (final IllegalArgumentException e) {
+			/* expected */
+		}
+	}
+
+	private static Set<Thread> readAheadThreads() {
+		final Set<Thread> ret = new HashSet<Thread>();
+		for (final Thread t : Thread.getAllStackTraces().keySet()) {
+			if ("dko-read-ahead".equals(t.getName()) && t.isAlive()) ret.add(t);
+		}
+		return ret;
+	}
+
+	public void testMirrorEjection() throws Exception {
+		printTestName();
+		final AtomicInteger attempts = new AtomicInteger();
+		final AtomicBoolean down = new AtomicBoolean(true);
+		final DataSource mirror = (DataSource) Proxy.newProxyInstance(DataSource.class.getClassLoader(),
+				new Class<?>[] {DataSource.class}, new InvocationHandler() {
+			@Override
+			public Object invoke(final Object proxy, final Method method, final Object[] args) throws Throwable {
+				if ("getConnection".equals(method.getName())) {
+					attempts.incrementAndGet();
+					if (down.get()) throw new SQLException("mirror down");
+				}
+				try {
+					return method.invoke(ds, args);
+				} catch (final InvocationTargetException e) {
+					throw e.getCause();
+				}
+			}
+		});
+		final MirroredDataSource mds = new MirroredDataSource(ds, mirror)
+				.setEjectAfterFailures(2).setEjectMillis(100);
+		// failures fall back to the primary
+		for (int i=0; i<2; ++i) {
+			assertFalse(mds.isEjected(mirror));
+			mds.getMirroredConnection().close();
+		}
+		assertTrue(mds.isEjected(mirror));
+		assertEquals(2, attempts.get());
+		// ejected mirrors aren't tried
+		assertEquals(Item.ALL.count(), Item.ALL.use(mds).count());
+		assertEquals(2, attempts.get());
+		// a failed trial ejects again right away
+		Thread.sleep(150);
+		mds.getMirroredConnection().close();
+		assertEquals(3, attempts.get());
+		assertTrue(mds.isEjected(mirror));
+		// a successful trial re-admits it
+		down.set(false);
+		Thread.sleep(150);
+		mds.getMirroredConnection().close();
+		assertEquals(4, attempts.get());
+		assertFalse(mds.isEjected(mirror));
+	}
+
+	public void testMirrorReadYourWrites() throws Exception {
+		printTestName();
+		final ConnectionCountingDataSource primary = new ConnectionCountingDataSource(ds);
+		final ConnectionCountingDataSource mirror = new ConnectionCountingDataSource(ds);
+		final MirroredDataSource mds = new MirroredDataSource(primary, mirror);
+		final Item item = Item.ALL.get(Item.ITEMID.eq("EST-1"));
+		final Query<Item> items = Item.ALL.use(mds).where(Item.ITEMID.eq(item.getItemid()));
+		items.count();
+		primary.setCount(0);
+		mirror.setCount(0);
+		// reads go to the mirror
+		items.count();
+		assertEquals(0, primary.getCount());
+		assertEquals(1, mirror.getCount());
+		// ...even right after a write, unless read-your-writes is on
+		items.set(Item.ATTR2, item.getAttr2()).update();
+		items.count();
+		assertEquals(1, primary.getCount());
+		assertEquals(2, mirror.getCount());
+		mds.setReadYourWritesMillis(60000);
+		items.set(Item.ATTR2, item.getAttr2()).update();
+		items.count();
+		assertEquals(3, primary.getCount());
+		assertEquals(2, mirror.getCount());
+		// other threads still read from the mirror
+		final Thread t = new Thread() {
+			@Override
+			public void run() {
+				try {
+					items.count();
+				} catch (final SQLException e) {
+					throw new RuntimeException(e);
+				}
+			}
+		};
+		t.start();
+		t.join();
+		assertEquals(3, primary.getCount());
+		assertEquals(3, mirror.getCount());
+		// and this one goes back to it once the window passes
+		mds.setReadYourWritesMillis(1);
+		Thread.sleep(10);
+		items.count();
+		assertEquals(3, primary.getCount());
+		assertEquals(4, mirror.getCount());
+		// the window starts when the write is committed, not when it's run
+		mds.setReadYourWritesMillis(500);
+		Context.getThreadContext().startTransaction(mds);
+		try {
+			items.set(Item.ATTR2, item.getAttr2()).update();
+			Thread.sleep(600);
+		} finally {
+			Context.getThreadContext().commitTransaction(mds);
+		}
+		items.count();
+		assertEquals(5, primary.getCount());
+		assertEquals(4, mirror.getCount());
+	}
+
+	public void testUnitOfWork() throws SQLException {
+		printTestName();
+		final Product p = Product.ALL.first();
+		final Query<Item> items = Item.ALL.where(Item.ITEMID.like("test-%"));
+		final Query<Item> item1 = Item.ALL.where(Item.ITEMID.eq("test-1"));
+		items.delete();
+		final Context context = Context.getThreadContext();
+		try {
+			// run in the order they were made, even when the same SQL comes up again later
+			assertTrue(context.startUnitOfWork(ds));
+			new Item().setItemid("test-1").setProductid(p.getProductid()).insert();
+			assertEquals(1, item1.set(Item.ATTR2, "A").update());
+			assertEquals(1, item1.set(Item.ATTR1, "x").set(Item.ATTR2, "B").update());
+			assertEquals(1, item1.set(Item.ATTR2, "C").update());
+			assertEquals(0, items.count());
+			assertTrue(context.commitUnitOfWork(ds));
+			Item item = item1.first();
+			assertEquals("x", item.getAttr1());
+			assertEquals("C", item.getAttr2());
+			// deletes flush the pending writes first
+			assertTrue(context.startUnitOfWork(ds));
+			item1.set(Item.ATTR2, "D").update();
+			new Item().setItemid("test-2").setProductid(p.getProductid()).insert();
+			assertEquals(1, items.where(Item.ITEMID.eq("test-2")).delete());
+			assertEquals("D", item1.first().getAttr2());
+			assertTrue(context.commitUnitOfWork(ds));
+			assertEquals(1, items.count());
+			// rolled back writes never run
+			assertTrue(context.startUnitOfWork(ds));
+			item1.set(Item.ATTR2, "E").update();
+			new Item().setItemid("test-3").setProductid(p.getProductid()).insert();
+			assertTrue(context.rollbackUnitOfWork(ds));
+			assertFalse(context.rollbackUnitOfWork(ds));
+			item = item1.first();
+			assertEquals("D", item.getAttr2());
+			assertEquals(1, items.count());
+			// saving a new row twice inserts it and then updates it
+			assertTrue(context.startUnitOfWork(ds));
+			final Item saved = new Item().setItemid("test-4").setProductid(p.getProductid());
+			saved.save();
+			assertEquals(1, items.count());
+			saved.setAttr2("F");
+			saved.save();
+			assertTrue(context.commitUnitOfWork(ds));
+			assertEquals("F", Item.ALL.where(Item.ITEMID.eq("test-4")).first().getAttr2());
+			assertEquals(2, items.count());
+			// updates not by primary key run right away, with their real row count
+			assertTrue(context.startUnitOfWork(ds));
+			item1.set(Item.ATTR2, "G").update();
+			assertEquals(2, items.set(Item.ATTR1, "y").update());
+			assertEquals("G", item1.first().getAttr2());
+			assertTrue(context.commitUnitOfWork(ds));
+			// a deferred update that misses its row fails the commit, which rolls back
+			assertTrue(context.startUnitOfWork(ds));
+			new Item().setItemid("test-5").setProductid(p.getProductid()).insert();
+			assertEquals(1, Item.ALL.where(Item.ITEMID.eq("test-none")).set(Item.ATTR2, "H").update());
+			try {
+				context.commitUnitOfWork(ds);
+				fail("the deferred update changed no rows");
+			} catch (final SQLException e) {
+				/* expected */
+			}
+			assertEquals(2, items.count());
+			// cached rows are invalidated when the writes run
+			final int capacity = EntityCache.getCapacity();
+			EntityCache.setCapacity(100);
+			EntityCache.clear();
+			try {
+				item = item1.first();
+				assertTrue(context.startUnitOfWork(ds));
+				item1.set(Item.ATTR2, "I").update();
+				assertEquals("G", Item.ALL.get(pk(item)).getAttr2());
+				assertTrue(context.commitUnitOfWork(ds));
+				assertEquals("I", Item.ALL.get(pk(item)).getAttr2());
+			} finally {
+				EntityCache.setCapacity(capacity);
+				EntityCache.clear();
+			}
+		} finally {
+			context.rollbackUnitOfWork(ds);
+			items.delete();
+		}
+	}
+
+	/**
+	 * Wraps a JDBC object (and the connections and statements it returns), recording the
+	 * first argument of every call to the named method.
+	 */
+	static <X> X recordCalls(final Class<X> type, final X target, final String name, final List<Object> calls) {
+		return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] {type}, new InvocationHandler() {
+			@Override
+			public Object invoke(final Object proxy, final Method method, final Object[] args) throws Throwable {
+				if (name.equals(method.getName())) calls.add(args[0]);
+				final Object ret;
+				try {
+					ret = method.invoke(target, args);
+				} catch (final InvocationTargetException e) {
+					throw e.getCause();
+				}
+				final Class<?> rt = method.getReturnType();
+				if (rt == Connection.class) return recordCalls(Connection.class, (Connection) ret, name, calls);
+				if (rt == PreparedStatement.class) return recordCalls(PreparedStatement.class, (PreparedStatement) ret, name, calls);
+				if (rt == Statement.class) return recordCalls(Statement.class, (Statement) ret, name, calls);
+				return ret;
+			}
+		}));
+	}
+
+	private static Table.__PrimaryKey<Item> pk(final Item item) {
+		return new Table.__PrimaryKey<Item>() {
+			@Override
+			public <R> R get(final Field<R> field) {
+				return item.get(field);
+			}
+			@Override
+			public List<Field<?>> FIELDS() {
+				return Item.PK.GET_FIELDS();
+			}
+		};
+	}
+
 //	public void testInnerQuerySelect() throws SQLException {
 //		printTestName();
 //		Query<Item> items = Item.ALL.alsoSelect(Product.ALL.onlyFields(Product.PRODUCTID).max());
@@ -3,8 +3,12 @@ package test.db;
 import static org.kered.dko.SQLFunction.COUNT;
 
 import java.sql.SQLException;
+import java.util.ArrayList;
 import java.util.List;
 
+import javax.sql.DataSource;
+
+import org.kered.dko.Bulk;
 import org.kered.dko.Context;
 import org.kered.dko.datasource.ConnectionCountingDataSource;
 import org.kered.dko.datasource.JDBCDriverDataSource;
@@ -63,6 +67,27 @@ public class TestDerbyDB extends SharedDBTests {
 		}
 	}
 
+	public void testBulkSetBasedOnDerby() throws SQLException {
+		printTestName();
+		// a low threshold alone doesn't make derby set-based
+		final List<Object> sqls = new ArrayList<Object>();
+		final DataSource rds = recordCalls(DataSource.class, ds, "prepareStatement", sqls);
+		List<Item> items = Item.ALL.asList();
+		for (Item item : items) item.setAttr2("derby-"+ item.getItemid());
+		assertEquals(items.size(), new Bulk(rds).setSetBased(true).setSetBasedMinRows(2).updateAll(items));
+		assertFalse(sqls.isEmpty());
+		for (Object sql : sqls) assertFalse(sql.toString(), sql.toString().toLowerCase().contains("select"));
+		// turned on explicitly it is (its statement joining to the temporary table isn't prepared)
+		sqls.clear();
+		final DataSource uds = recordCalls(DataSource.class, ds, "executeUpdate", sqls);
+		items = Item.ALL.asList();
+		for (Item item : items) item.setAttr2("set2-"+ item.getItemid());
+		assertEquals(items.size(), new Bulk(uds).setSetBased(true).setSetBasedMinRows(2).setSetBasedOnDerby(true).updateAll(items));
+		boolean setBased = false;
+		for (Object sql : sqls) setBased |= sql.toString().toLowerCase().contains("select");
+		assertTrue(setBased);
+	}
+
 	public void testExplain() throws SQLException {
 		printTestName();
 		System.err.println("Derby doesn't support EXPLAIN.");